@@ -44,8 +44,10 @@ import org.waarp.openr66.protocol.configuration.Messages;
 import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
 import org.waarp.openr66.protocol.exception.OpenR66DatabaseGlobalException;
 import org.waarp.openr66.protocol.localhandler.packet.RequestPacket;
+import org.waarp.openr66.protocol.networkhandler.BlockSizeTuner;
 import org.waarp.openr66.protocol.utils.FileUtils;
 import org.waarp.openr66.protocol.utils.R66Future;
+import org.waarp.openr66.protocol.utils.TransferPriority;
 
 /**
  * Abstract class for Transfer operation
@@ -84,6 +86,11 @@ public abstract class AbstractTransfer implements Runnable {
 
     protected boolean normalInfoAsWarn = true;
 
+    /**
+     * Priority requested for this transfer (negative to use the one of the rule)
+     */
+    protected int priority = spriority;
+
     /**
      * @param clasz
      *            Class of Client Transfer
@@ -180,8 +187,13 @@ public abstract class AbstractTransfer implements Runnable {
             }
             logger.debug("Filesize: " + originalSize);
             String sep = PartnerConfiguration.getSeparator(remoteHost);
+            int size = blocksize;
+            if (size < 100) {
+                // not forced
+                size = BlockSizeTuner.getBlockSize(remoteHost);
+            }
             RequestPacket request = new RequestPacket(rulename,
-                    mode, filename, blocksize, 0,
+                    mode, filename, size, 0,
                     id, fileinfo, originalSize, sep);
             // Not isRecv since it is the requester, so send => isRetrieve is true
             boolean isRetrieve = !RequestPacket.isRecvMode(request.getMode());
@@ -197,9 +209,21 @@ public abstract class AbstractTransfer implements Runnable {
                 return null;
             }
         }
+        if (priority >= 0) {
+            taskRunner.setRequestedPriority(TransferPriority.check(priority));
+        }
         return taskRunner;
     }
 
+    /**
+     * @param priority
+     *            the priority requested for this transfer, overriding the one of the rule
+     *            (negative to use the one of the rule)
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     static protected String rhost = null;
     static protected String localFilename = null;
     static protected String rule = null;
@@ -212,6 +236,8 @@ public abstract class AbstractTransfer implements Runnable {
     static protected long idt = DbConstant.ILLEGALVALUE;
     static protected Timestamp ttimestart = null;
     static protected boolean snormalInfoAsWarn = true;
+    static protected boolean sbundle = false;
+    static protected int spriority = -1;
 
     /**
      * Parse the parameter and set current values
@@ -239,7 +265,8 @@ public abstract class AbstractTransfer implements Runnable {
             return false;
         }
         // Now set default values from configuration
-        block = Configuration.configuration.getBLOCKSIZE();
+        // 0 means not forced: tuned per partner or default one
+        block = 0;
         int i = 1;
         try {
             for (i = 1; i < args.length; i++) {
@@ -274,6 +301,11 @@ public abstract class AbstractTransfer implements Runnable {
                     }
                 } else if (args[i].equalsIgnoreCase("-nolog")) {
                     nolog = true;
+                } else if (args[i].equalsIgnoreCase("-bundle")) {
+                    sbundle = true;
+                } else if (args[i].equalsIgnoreCase("-priority")) {
+                    i++;
+                    spriority = TransferPriority.check(Integer.parseInt(args[i]));
                 } else if (args[i].equalsIgnoreCase("-id")) {
                     i++;
                     idt = Long.parseLong(args[i]);
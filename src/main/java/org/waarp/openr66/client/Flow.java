@@ -0,0 +1,105 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.client;
+
+/**
+ * Interfaces of reactive streams with demand (as java.util.concurrent.Flow of Java 9), used to
+ * stream data in send through mode (see SendThroughClient.sendFrom) and in receive through mode
+ * (see RecvThroughPublisher).<br>
+ * <br>
+ * A Subscriber receives at most as many items as it requested through its Subscription, such that
+ * the producer of the data never has to buffer more than the demand of the consumer.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public final class Flow {
+    private Flow() {
+    }
+
+    /**
+     * Producer of items to one Subscriber, according to its demand
+     * 
+     * @param <T>
+     *            the type of items
+     */
+    public static interface Publisher<T> {
+        /**
+         * Add this Subscriber, which is then given its Subscription through onSubscribe (or an
+         * error through onError if it cannot be subscribed)
+         * 
+         * @param subscriber
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Consumer of items. Calls to one Subscriber are never concurrent.
+     * 
+     * @param <T>
+     *            the type of items
+     */
+    public static interface Subscriber<T> {
+        /**
+         * First method called, before any other one
+         * 
+         * @param subscription
+         *            the subscription to use to request items or to cancel
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Called for each item, never more than requested
+         * 
+         * @param item
+         */
+        public void onNext(T item);
+
+        /**
+         * Called once if the Publisher or the Subscription is in error, no more method being
+         * called afterwards
+         * 
+         * @param throwable
+         */
+        public void onError(Throwable throwable);
+
+        /**
+         * Called once when no more item will be sent, no more method being called afterwards
+         */
+        public void onComplete();
+    }
+
+    /**
+     * Link between one Publisher and one Subscriber
+     */
+    public static interface Subscription {
+        /**
+         * Add n items to the demand of the Subscriber
+         * 
+         * @param n
+         *            strictly positive (else the Subscriber receives an error)
+         */
+        public void request(long n);
+
+        /**
+         * Stop receiving items (some items could still be received before the cancellation takes
+         * effect)
+         */
+        public void cancel();
+    }
+}
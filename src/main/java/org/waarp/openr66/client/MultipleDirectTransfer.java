@@ -18,8 +18,11 @@
 package org.waarp.openr66.client;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.database.exception.WaarpDatabaseException;
@@ -39,6 +42,7 @@ import org.waarp.openr66.protocol.localhandler.packet.InformationPacket;
 import org.waarp.openr66.protocol.localhandler.packet.ValidPacket;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
+import org.waarp.openr66.protocol.utils.FileBundle;
 import org.waarp.openr66.protocol.utils.R66Future;
 
 /**
@@ -54,6 +58,9 @@ import org.waarp.openr66.protocol.utils.R66Future;
  * -to host2 -file file2<br>
  * -to host3 -file file1<br>
  * -to host3 -file file2<br>
+ * <br>
+ * With '-bundle', small files are sent within bundles (one transfer for up to
+ * FileBundle.MAXIMAL_MEMBERS files) to partners accepting them.<br>
  * 
  * @author Frederic Bregier
  * 
@@ -62,6 +69,9 @@ public class MultipleDirectTransfer extends DirectTransfer {
     private int errorMultiple = 0;
     private int doneMultiple = 0;
     private List<OutputFormat> results = new ArrayList<OutputFormat>();
+    private boolean bundle = false;
+    private boolean inError = false;
+    private R66Result resultError = null;
 
     public MultipleDirectTransfer(R66Future future, String remoteHost,
             String filename, String rulename, String fileinfo, boolean isMD5, int blocksize,
@@ -140,8 +150,6 @@ public class MultipleDirectTransfer extends DirectTransfer {
     public void run() {
         String[] localfilenames = filename.split(",");
         String[] rhosts = remoteHost.split(",");
-        boolean inError = false;
-        R66Result resultError = null;
         // first check if filenames contains wildcards
         DbRule dbrule = null;
         try {
@@ -161,100 +169,29 @@ public class MultipleDirectTransfer extends DirectTransfer {
                 if (dbrule.isRecvMode()) {
                     files = getRemoteFiles(dbrule, localfilenames, host, networkTransaction);
                 }
-                for (String filename : files) {
+                List<String> singles = files;
+                List<File> bundled = null;
+                if (bundle && dbrule.isSendMode()) {
+                    singles = new ArrayList<String>();
+                    bundled = new ArrayList<File>();
+                    selectBundle(dbrule, host, files, singles, bundled);
+                }
+                for (String filename : singles) {
                     filename = filename.trim();
                     if (filename != null && !filename.isEmpty()) {
-                        logger.info("Launch transfer to " + host + " with file " + filename);
-                        long time1 = System.currentTimeMillis();
-                        R66Future future = new R66Future(true);
-                        DirectTransfer transaction = new DirectTransfer(future,
-                                host, filename, rule, fileInfo, ismd5, block, idt,
-                                networkTransaction);
-                        transaction.normalInfoAsWarn = normalInfoAsWarn;
-                        logger.debug("rhost: " + host + ":" + transaction.remoteHost);
-                        transaction.run();
-                        future.awaitUninterruptibly();
-                        long time2 = System.currentTimeMillis();
-                        logger.debug("finish transfer: " + future.isSuccess());
-                        long delay = time2 - time1;
-                        R66Result result = future.getResult();
-                        OutputFormat outputFormat = new OutputFormat("Unique "
-                                + MultipleDirectTransfer.class.getSimpleName(), null);
-                        if (future.isSuccess()) {
-                            if (result.getRunner().getErrorInfo() == ErrorCode.Warning) {
-                                outputFormat.setValue(FIELDS.status.name(), 1);
-                                outputFormat
-                                        .setValue(
-                                                FIELDS.statusTxt.name(),
-                                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Warned")); //$NON-NLS-1$
-                            } else {
-                                outputFormat.setValue(FIELDS.status.name(), 0);
-                                outputFormat
-                                        .setValue(
-                                                FIELDS.statusTxt.name(),
-                                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Success")); //$NON-NLS-1$
-                            }
-                            outputFormat.setValue(FIELDS.remote.name(), host);
-                            outputFormat.setValueString(result.getRunner().getJson());
-                            outputFormat.setValue("filefinal", (result.getFile() != null ? result.getFile().toString()
-                                    : "no file"));
-                            outputFormat.setValue("delay", delay);
-                            getResults().add(outputFormat);
-                            setDoneMultiple(getDoneMultiple() + 1);
-                            if (transaction.normalInfoAsWarn) {
-                                logger.warn(outputFormat.loggerOut());
-                            } else {
-                                logger.info(outputFormat.loggerOut());
-                            }
-                            if (nolog || result.getRunner().shallIgnoreSave()) {
-                                // In case of success, delete the runner
-                                try {
-                                    result.getRunner().delete();
-                                } catch (WaarpDatabaseException e) {
-                                    logger.warn("Cannot apply nolog to     " + result.getRunner().toShortString(),
-                                            e);
-                                }
-                            }
-                        } else {
-                            if (result == null || result.getRunner() == null) {
-                                outputFormat.setValue(FIELDS.status.name(), 2);
-                                outputFormat.setValue(FIELDS.statusTxt.name(),
-                                        Messages.getString("Transfer.FailedNoId")); //$NON-NLS-1$
-                                outputFormat.setValue(FIELDS.remote.name(), host);
-                                logger.error(outputFormat.loggerOut(), future.getCause());
-                                outputFormat.setValue(FIELDS.error.name(), future.getCause().getMessage());
-                                outputFormat.sysout();
-                                networkTransaction.closeAll();
-                                System.exit(ErrorCode.Unknown.ordinal());
-                            }
-                            if (result.getRunner().getErrorInfo() == ErrorCode.Warning) {
-                                outputFormat.setValue(FIELDS.status.name(), 1);
-                                outputFormat
-                                        .setValue(
-                                                FIELDS.statusTxt.name(),
-                                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Warned")); //$NON-NLS-1$
-                            } else {
-                                outputFormat.setValue(FIELDS.status.name(), 2);
-                                outputFormat
-                                        .setValue(
-                                                FIELDS.statusTxt.name(),
-                                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Failure")); //$NON-NLS-1$
-                            }
-                            outputFormat.setValue(FIELDS.remote.name(), host);
-                            outputFormat.setValueString(result.getRunner().getJson());
-                            if (result.getRunner().getErrorInfo() == ErrorCode.Warning) {
-                                logger.warn(outputFormat.loggerOut(), future.getCause());
-                            } else {
-                                logger.error(outputFormat.loggerOut(), future.getCause());
-                            }
-                            outputFormat.setValue(FIELDS.error.name(), future.getCause().getMessage());
-                            getResults().add(outputFormat);
-                            setErrorMultiple(getErrorMultiple() + 1);
-                            inError = true;
-                            if (result != null) {
-                                inError = true;
-                                resultError = result;
-                            }
+                        transferFile(host, filename, fileInfo, 1);
+                    }
+                }
+                if (bundled != null && !bundled.isEmpty()) {
+                    if (FileBundle.isAllowed(host)) {
+                        for (int i = 0; i < bundled.size(); i += FileBundle.MAXIMAL_MEMBERS) {
+                            transferBundle(host, bundled.subList(i,
+                                    Math.min(bundled.size(), i + FileBundle.MAXIMAL_MEMBERS)));
+                        }
+                    } else {
+                        // partner does not accept bundles
+                        for (File file : bundled) {
+                            transferFile(host, file.getAbsolutePath(), fileInfo, 1);
                         }
                     }
                 }
@@ -270,6 +207,179 @@ public class MultipleDirectTransfer extends DirectTransfer {
         }
     }
 
+    /**
+     * Select the files to send within bundles: existing small files with unique names. If the
+     * partner is not yet known to accept bundles, the first file is sent alone, which gives its
+     * configuration.
+     * 
+     * @param dbrule
+     * @param host
+     * @param files
+     * @param singles
+     *            the files to send one by one
+     * @param bundled
+     *            the files to send within bundles
+     */
+    private void selectBundle(DbRule dbrule, String host, List<String> files, List<String> singles,
+            List<File> bundled) {
+        Set<String> names = new HashSet<String>();
+        boolean allowed = FileBundle.isAllowed(host);
+        for (String filename : files) {
+            filename = filename.trim();
+            if (filename.isEmpty()) {
+                continue;
+            }
+            File file = new File(filename);
+            if (!file.isFile()) {
+                file = new File(Configuration.configuration.getBaseDirectory()
+                        + dbrule.getSendPath(), filename);
+            }
+            if (!FileBundle.isBundleable(file) || !names.add(file.getName())) {
+                singles.add(filename);
+            } else if (!allowed && singles.isEmpty()) {
+                singles.add(filename);
+            } else {
+                bundled.add(file);
+            }
+        }
+    }
+
+    /**
+     * Send several small files as one bundle
+     * 
+     * @param host
+     * @param members
+     */
+    private void transferBundle(String host, List<File> members) {
+        File bundleFile;
+        try {
+            bundleFile = FileBundle.create(members);
+        } catch (IOException e) {
+            logger.warn("Cannot create bundle, files sent one by one: " + e.getMessage());
+            for (File file : members) {
+                transferFile(host, file.getAbsolutePath(), fileInfo, 1);
+            }
+            return;
+        }
+        logger.info("Launch transfer to " + host + " with bundle of " + members.size() + " files");
+        try {
+            transferFile(host, bundleFile.getAbsolutePath(),
+                    FileBundle.getFileInformation(fileInfo), members.size());
+        } finally {
+            if (!bundleFile.delete()) {
+                logger.warn("Cannot delete bundle: " + bundleFile);
+            }
+        }
+    }
+
+    /**
+     * Transfer one file (or one bundle)
+     * 
+     * @param host
+     * @param filename
+     * @param info
+     *            the transfer information
+     * @param count
+     *            the number of files within this transfer
+     */
+    private void transferFile(String host, String filename, String info, int count) {
+        logger.info("Launch transfer to " + host + " with file " + filename);
+        long time1 = System.currentTimeMillis();
+        R66Future future = new R66Future(true);
+        DirectTransfer transaction = new DirectTransfer(future,
+                host, filename, rule, info, ismd5, block, idt,
+                networkTransaction);
+        transaction.normalInfoAsWarn = normalInfoAsWarn;
+        logger.debug("rhost: " + host + ":" + transaction.remoteHost);
+        transaction.run();
+        future.awaitUninterruptibly();
+        long time2 = System.currentTimeMillis();
+        logger.debug("finish transfer: " + future.isSuccess());
+        long delay = time2 - time1;
+        R66Result result = future.getResult();
+        OutputFormat outputFormat = new OutputFormat("Unique "
+                + MultipleDirectTransfer.class.getSimpleName(), null);
+        if (count > 1) {
+            outputFormat.setValue("bundle", count);
+        }
+        if (future.isSuccess()) {
+            if (result.getRunner().getErrorInfo() == ErrorCode.Warning) {
+                outputFormat.setValue(FIELDS.status.name(), 1);
+                outputFormat
+                        .setValue(
+                                FIELDS.statusTxt.name(),
+                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Warned")); //$NON-NLS-1$
+            } else {
+                outputFormat.setValue(FIELDS.status.name(), 0);
+                outputFormat
+                        .setValue(
+                                FIELDS.statusTxt.name(),
+                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Success")); //$NON-NLS-1$
+            }
+            outputFormat.setValue(FIELDS.remote.name(), host);
+            outputFormat.setValueString(result.getRunner().getJson());
+            outputFormat.setValue("filefinal", (result.getFile() != null ? result.getFile().toString()
+                    : "no file"));
+            outputFormat.setValue("delay", delay);
+            getResults().add(outputFormat);
+            setDoneMultiple(getDoneMultiple() + count);
+            if (transaction.normalInfoAsWarn) {
+                logger.warn(outputFormat.loggerOut());
+            } else {
+                logger.info(outputFormat.loggerOut());
+            }
+            if (nolog || result.getRunner().shallIgnoreSave()) {
+                // In case of success, delete the runner
+                try {
+                    result.getRunner().delete();
+                } catch (WaarpDatabaseException e) {
+                    logger.warn("Cannot apply nolog to     " + result.getRunner().toShortString(),
+                            e);
+                }
+            }
+        } else {
+            if (result == null || result.getRunner() == null) {
+                outputFormat.setValue(FIELDS.status.name(), 2);
+                outputFormat.setValue(FIELDS.statusTxt.name(),
+                        Messages.getString("Transfer.FailedNoId")); //$NON-NLS-1$
+                outputFormat.setValue(FIELDS.remote.name(), host);
+                logger.error(outputFormat.loggerOut(), future.getCause());
+                outputFormat.setValue(FIELDS.error.name(), future.getCause().getMessage());
+                outputFormat.sysout();
+                networkTransaction.closeAll();
+                System.exit(ErrorCode.Unknown.ordinal());
+            }
+            if (result.getRunner().getErrorInfo() == ErrorCode.Warning) {
+                outputFormat.setValue(FIELDS.status.name(), 1);
+                outputFormat
+                        .setValue(
+                                FIELDS.statusTxt.name(),
+                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Warned")); //$NON-NLS-1$
+            } else {
+                outputFormat.setValue(FIELDS.status.name(), 2);
+                outputFormat
+                        .setValue(
+                                FIELDS.statusTxt.name(),
+                                Messages.getString("Transfer.Status") + Messages.getString("RequestInformation.Failure")); //$NON-NLS-1$
+            }
+            outputFormat.setValue(FIELDS.remote.name(), host);
+            outputFormat.setValueString(result.getRunner().getJson());
+            if (result.getRunner().getErrorInfo() == ErrorCode.Warning) {
+                logger.warn(outputFormat.loggerOut(), future.getCause());
+            } else {
+                logger.error(outputFormat.loggerOut(), future.getCause());
+            }
+            outputFormat.setValue(FIELDS.error.name(), future.getCause().getMessage());
+            getResults().add(outputFormat);
+            setErrorMultiple(getErrorMultiple() + count);
+            inError = true;
+            if (result != null) {
+                inError = true;
+                resultError = result;
+            }
+        }
+    }
+
     public static void main(String[] args) {
         WaarpLoggerFactory.setDefaultFactory(new WaarpSlf4JLoggerFactory(null));
         if (logger == null) {
@@ -297,6 +407,7 @@ public class MultipleDirectTransfer extends DirectTransfer {
                             rule, fileInfo, ismd5, block, idt,
                             networkTransaction);
             multipleDirectTransfer.normalInfoAsWarn = snormalInfoAsWarn;
+            multipleDirectTransfer.setBundle(sbundle);
             multipleDirectTransfer.run();
             future.awaitUninterruptibly();
             long time2 = System.currentTimeMillis();
@@ -381,6 +492,22 @@ public class MultipleDirectTransfer extends DirectTransfer {
         this.doneMultiple = doneMultiple;
     }
 
+    /**
+     * @return True if small files are sent within bundles
+     */
+    public boolean isBundle() {
+        return bundle;
+    }
+
+    /**
+     * @param bundle
+     *            True to send small files within bundles (send rules only, to partners accepting
+     *            them)
+     */
+    public void setBundle(boolean bundle) {
+        this.bundle = bundle;
+    }
+
     /**
      * @return the results
      */
@@ -55,6 +55,11 @@ import org.waarp.openr66.protocol.utils.R66Future;
  * <tt>     futureReq.awaitUninterruptibly();</tt><br>
  * <tt>     R66Result result = futureReq.getResult();</tt><br>
  * <br>
+ * To stream the received data according to the demand of a consumer instead, use a
+ * RecvThroughPublisher as handler and subscribe to it:<br>
+ * <tt>     RecvThroughPublisher rth = new RecvThroughPublisher();</tt><br>
+ * <tt>     rth.subscribe(subscriber);</tt><br>
+ * <br>
  * 5) If there is the need to re-do, just re-execute the steps from 3 to 4.<br>
  * Don't forget at the very end to finish the global structure (steps 3 to 4 no more executed):<br>
  * <tt>     networkTransaction.closeAll();</tt><br>
@@ -103,15 +108,17 @@ public class RecvThroughClient extends AbstractTransfer {
         DbTaskRunner taskRunner = this.initRequest();
         if (taskRunner == null) {
             // already an error from there
+            handler.transferDone(future);
             return;
         }
+        R66Future transfer = null;
         try {
             ClientRunner runner = new ClientRunner(networkTransaction, taskRunner, future);
             runner.setRecvThroughHandler(handler);
             OpenR66ProtocolNotYetConnectionException exc = null;
             for (int i = 0; i < Configuration.RETRYNB; i++) {
                 try {
-                    runner.runTransfer();
+                    transfer = runner.runTransfer();
                     exc = null;
                     break;
                 } catch (OpenR66RunnerErrorException e) {
@@ -148,6 +155,7 @@ public class RecvThroughClient extends AbstractTransfer {
                 return;
             }
         } finally {
+            handler.transferDone(transfer != null ? transfer : future);
             if (taskRunner != null) {
                 if (future.isFailed() || nolog || taskRunner.shallIgnoreSave()) {
                     try {
@@ -19,6 +19,8 @@ package org.waarp.openr66.client;
 
 import io.netty.buffer.ByteBuf;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolBusinessException;
+import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+import org.waarp.openr66.protocol.utils.R66Future;
 
 /**
  * Class to be implemented for {@link RecvThroughClient}
@@ -38,6 +40,26 @@ public abstract class RecvThroughHandler {
     abstract public void writeByteBuf(ByteBuf buffer)
             throws OpenR66ProtocolBusinessException;
 
+    /**
+     * This method will be called once the handler is attached to the transfer, before the first
+     * call to writeByteBuf
+     * 
+     * @param localChannelReference
+     *            the local channel of the transfer
+     */
+    public void setLocalChannelReference(LocalChannelReference localChannelReference) {
+    }
+
+    /**
+     * This method will be called once the transfer is done (in success or not), after the last
+     * call to writeByteBuf
+     * 
+     * @param future
+     *            the future of the transfer
+     */
+    public void transferDone(R66Future future) {
+    }
+
     /**
      * Facility function to read from buffer and transfer to an array of bytes
      * 
@@ -0,0 +1,264 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.client;
+
+import java.util.ArrayDeque;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolBusinessException;
+import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+import org.waarp.openr66.protocol.utils.R66Future;
+
+/**
+ * RecvThroughHandler publishing the received blocks to one Subscriber, according to its demand
+ * (see RecvThroughClient).<br>
+ * <br>
+ * Received blocks are given to the Subscriber as soon as requested, else kept up to the sender
+ * window. Once this window is full, the reading of the packets of the transfer is suspended
+ * (autoRead off) until the Subscriber requests more blocks, such that the remote sender is slowed
+ * down instead of the blocks being buffered in memory, without blocking the event loop. The
+ * Subscriber owns each received buffer and must release it. The stream completes (or fails) once
+ * the transfer is done.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class RecvThroughPublisher extends RecvThroughHandler implements Flow.Publisher<ByteBuf> {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(RecvThroughPublisher.class);
+
+    private final int capacity;
+
+    private final ArrayDeque<ByteBuf> queue;
+
+    private Flow.Subscriber<? super ByteBuf> subscriber = null;
+
+    private volatile LocalChannelReference localChannelReference = null;
+
+    /**
+     * True while the reading of the packets is suspended
+     */
+    private boolean suspended = false;
+
+    /**
+     * True once onSubscribe is done, such that no other method is called before
+     */
+    private boolean subscribed = false;
+
+    private long demand = 0;
+
+    private boolean cancelled = false;
+
+    private boolean finished = false;
+
+    private boolean terminated = false;
+
+    private boolean draining = false;
+
+    private Throwable error = null;
+
+    private final Flow.Subscription subscription = new Flow.Subscription() {
+        public void request(long n) {
+            if (n <= 0) {
+                finish(new IllegalArgumentException("Non positive request: " + n));
+                return;
+            }
+            synchronized (RecvThroughPublisher.this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            drain();
+        }
+
+        public void cancel() {
+            synchronized (RecvThroughPublisher.this) {
+                cancelled = true;
+                releaseAll();
+            }
+            // let the next packet be read such that the transfer stops
+            resume();
+        }
+    };
+
+    public RecvThroughPublisher() {
+        int window = Configuration.configuration.getSenderWindow();
+        capacity = window < 1 ? 1 : window;
+        queue = new ArrayDeque<ByteBuf>(capacity);
+    }
+
+    public void subscribe(Flow.Subscriber<? super ByteBuf> newSubscriber) {
+        boolean accepted = false;
+        synchronized (this) {
+            if (subscriber == null) {
+                subscriber = newSubscriber;
+                accepted = true;
+            }
+        }
+        if (!accepted) {
+            // only one subscriber
+            newSubscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            newSubscriber.onError(new IllegalStateException("Already subscribed"));
+            return;
+        }
+        newSubscriber.onSubscribe(subscription);
+        synchronized (this) {
+            subscribed = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void setLocalChannelReference(LocalChannelReference localChannelReference) {
+        this.localChannelReference = localChannelReference;
+    }
+
+    /**
+     * Keep the received block for the Subscriber, suspending the reading if the window is full
+     */
+    @Override
+    public void writeByteBuf(ByteBuf buffer) throws OpenR66ProtocolBusinessException {
+        boolean suspend = false;
+        synchronized (this) {
+            if (cancelled || finished) {
+                throw new OpenR66ProtocolBusinessException("Subscriber cancelled the reception");
+            }
+            // the packet releases its buffer once written
+            queue.add(buffer.retain());
+            if (!suspended && queue.size() >= capacity && localChannelReference != null) {
+                suspended = true;
+                suspend = true;
+            }
+        }
+        if (suspend) {
+            logger.debug("No demand yet from the subscriber");
+            localChannelReference.setAutoRead(false);
+        }
+        drain();
+    }
+
+    /**
+     * Resume the reading of the packets if suspended
+     */
+    private void resume() {
+        synchronized (this) {
+            if (!suspended) {
+                return;
+            }
+            suspended = false;
+        }
+        localChannelReference.setAutoRead(true);
+    }
+
+    /**
+     * Complete the stream (or fail it) according to the transfer
+     * 
+     * @param future
+     *            the future of the transfer
+     */
+    @Override
+    public void transferDone(R66Future future) {
+        if (future.isSuccess()) {
+            finish(null);
+        } else {
+            Throwable cause = future.getCause();
+            finish(cause != null ? cause : new OpenR66ProtocolBusinessException("Transfer in error"));
+        }
+    }
+
+    private void finish(Throwable throwable) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            error = throwable;
+            if (throwable != null) {
+                // no more blocks once in error
+                releaseAll();
+            }
+        }
+        resume();
+        drain();
+    }
+
+    /**
+     * Send the blocks according to the demand, then the end of the stream (only one caller at a
+     * time, requests from onNext being served by the current caller)
+     */
+    private void drain() {
+        Flow.Subscriber<? super ByteBuf> current;
+        synchronized (this) {
+            if (draining || !subscribed) {
+                return;
+            }
+            draining = true;
+            current = subscriber;
+        }
+        for (;;) {
+            boolean room = false;
+            ByteBuf next = null;
+            Throwable failure = null;
+            synchronized (this) {
+                if (cancelled || terminated) {
+                    draining = false;
+                    return;
+                }
+                if (demand > 0 && !queue.isEmpty()) {
+                    next = queue.poll();
+                    demand--;
+                    room = suspended && queue.size() < capacity;
+                } else if (finished && queue.isEmpty()) {
+                    terminated = true;
+                    failure = error;
+                } else {
+                    draining = false;
+                    return;
+                }
+            }
+            if (room) {
+                resume();
+            }
+            if (next != null) {
+                current.onNext(next);
+            } else if (failure != null) {
+                current.onError(failure);
+            } else {
+                current.onComplete();
+            }
+        }
+    }
+
+    private void releaseAll() {
+        ByteBuf buffer;
+        while ((buffer = queue.poll()) != null) {
+            buffer.release();
+        }
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.waarp.openr66.client;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 
@@ -71,6 +72,10 @@ import org.waarp.openr66.protocol.utils.R66Future;
  * <tt>     byte[] data = readOrGetInSomeWayData();</tt><br>
  * <tt>     DataBlock block = transaction.transformToDataBlock(data);</tt><br>
  * <tt>     futureWrite = transaction.writeWhenPossible(block);</tt><br>
+ * Or stream the data from a publisher according to the network demand:<br>
+ * <tt>     R66Future futureSend = transaction.sendFrom(publisher);</tt><br>
+ * <tt>     futureSend.awaitUninterruptibly();</tt><br>
+ * then go to step 6 if in success (the transfer being already in error otherwise).<br>
  * <br>
  * 5) Once you have finished, so this is the last block, you have to do the following:<br>
  * If the last block is not empty:<br>
@@ -345,6 +350,20 @@ public abstract class SendThroughClient extends AbstractTransfer {
         return RetrieveRunner.writeWhenPossible(block, localChannelReference);
     }
 
+    /**
+     * Send all buffers of this publisher, each one as a block, requesting them as the network
+     * channel could accept them (see SendThroughSubscriber)
+     * 
+     * @param publisher
+     * @return the future done once all buffers are written (success) or once the transfer is in
+     *         error (failure)
+     */
+    public R66Future sendFrom(Flow.Publisher<ByteBuf> publisher) {
+        SendThroughSubscriber subscriber = new SendThroughSubscriber(this);
+        publisher.subscribe(subscriber);
+        return subscriber.getFuture();
+    }
+
     /**
      * Utility method for send through mode
      * 
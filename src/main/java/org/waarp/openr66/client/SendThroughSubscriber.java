@@ -0,0 +1,188 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.client;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.exception.OpenR66Exception;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolBusinessException;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolSystemException;
+import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+import org.waarp.openr66.protocol.networkhandler.FairShare;
+import org.waarp.openr66.protocol.networkhandler.NetworkChannelReference;
+import org.waarp.openr66.protocol.utils.R66Future;
+
+/**
+ * Subscriber sending the received buffers through a SendThroughClient (see
+ * SendThroughClient.sendFrom).<br>
+ * <br>
+ * The demand follows the network: the sender window is requested first, then one more buffer each
+ * time a write is done and the network channel is writable (in the weighted fair order of the
+ * transfers sharing it), such that the Publisher never produces more than what could be written.
+ * Each buffer is one block of the transfer and is released once written.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class SendThroughSubscriber implements Flow.Subscriber<ByteBuf> {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(SendThroughSubscriber.class);
+
+    private final SendThroughClient client;
+
+    private final R66Future future = new R66Future(true);
+
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    private volatile Flow.Subscription subscription = null;
+
+    private volatile boolean completed = false;
+
+    private final Runnable requestOne = new Runnable() {
+        public void run() {
+            Flow.Subscription current = subscription;
+            if (current != null && !done.get()) {
+                current.request(1);
+            }
+        }
+    };
+
+    private final ChannelFutureListener writeListener = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture channelFuture) {
+            int pending = inflight.decrementAndGet();
+            if (!channelFuture.isSuccess()) {
+                fail(new OpenR66ProtocolSystemException("Write in error", channelFuture.cause()));
+            } else if (completed) {
+                if (pending == 0) {
+                    succeed();
+                }
+            } else {
+                requestMore();
+            }
+        }
+    };
+
+    /**
+     * 
+     * @param client
+     *            the client with an initiated request
+     */
+    public SendThroughSubscriber(SendThroughClient client) {
+        this.client = client;
+    }
+
+    /**
+     * 
+     * @return the future done once all buffers are written (success) or once the transfer is in
+     *         error (failure)
+     */
+    public R66Future getFuture() {
+        return future;
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null || done.get()) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        int window = Configuration.configuration.getSenderWindow();
+        subscription.request(window < 1 ? 1 : window);
+    }
+
+    public void onNext(ByteBuf item) {
+        if (done.get()) {
+            item.release();
+            return;
+        }
+        DataBlock block = new DataBlock();
+        block.setBlock(item);
+        inflight.incrementAndGet();
+        ChannelFuture channelFuture;
+        try {
+            channelFuture = client.writeWhenPossible(block);
+        } catch (OpenR66Exception e) {
+            inflight.decrementAndGet();
+            fail(e);
+            return;
+        }
+        channelFuture.addListener(writeListener);
+    }
+
+    public void onError(Throwable throwable) {
+        fail(new OpenR66ProtocolBusinessException("Publisher in error", throwable));
+    }
+
+    public void onComplete() {
+        completed = true;
+        if (inflight.get() == 0) {
+            succeed();
+        }
+    }
+
+    /**
+     * Request one more buffer once the network channel is writable
+     */
+    private void requestMore() {
+        LocalChannelReference localChannelReference = client.localChannelReference;
+        NetworkChannelReference networkChannelReference = localChannelReference
+                .getNetworkChannelObject();
+        if (networkChannelReference == null) {
+            requestOne.run();
+            return;
+        }
+        FairShare share = localChannelReference.getFairShare();
+        if (share.getTurnBytes() == 0 && localChannelReference.getSession() != null) {
+            // one buffer of about one block per turn
+            share.setTurnBytes(localChannelReference.getSession().getBlockSize());
+        }
+        networkChannelReference.waitForWritability(requestOne, share);
+    }
+
+    private void succeed() {
+        if (done.compareAndSet(false, true)) {
+            future.setSuccess();
+        }
+    }
+
+    private void fail(OpenR66Exception e) {
+        if (done.compareAndSet(false, true)) {
+            logger.error("Send through stream in error", e);
+            Flow.Subscription current = subscription;
+            if (current != null) {
+                current.cancel();
+            }
+            client.transferInError(e);
+            future.setFailure(e);
+        }
+    }
+}
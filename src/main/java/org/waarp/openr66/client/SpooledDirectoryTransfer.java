@@ -19,8 +19,13 @@ package org.waarp.openr66.client;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -56,6 +61,7 @@ import org.waarp.openr66.protocol.configuration.Messages;
 import org.waarp.openr66.protocol.localhandler.packet.BusinessRequestPacket;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
+import org.waarp.openr66.protocol.utils.FileBundle;
 import org.waarp.openr66.protocol.utils.R66Future;
 import org.waarp.openr66.protocol.utils.R66ShutdownHook;
 
@@ -90,6 +96,8 @@ import org.waarp.openr66.protocol.utils.R66ShutdownHook;
  * -limitParallel limit to specify the number of concurrent actions in -direct mode only<br>
  * -minimalSize limit to specify the minimal size of each file that will be transferred (default: no limit)<br>
  * -notlogWarn | -logWarn to deactivate or activate (default) the logging in Warn mode of Send/Remove information of the spool<br>
+ * -bundle size to send small files within bundles of at most size files in -direct mode only, to partners accepting
+ * them (a bundle is sent once full or at each elapse)<br>
  * 
  * @author Frederic Bregier
  * 
@@ -157,6 +165,18 @@ public class SpooledDirectoryTransfer implements Runnable {
     private long sent = 0;
     private long error = 0;
 
+    /**
+     * Maximum number of files within one bundle (0 or 1 for no bundle)
+     */
+    protected int bundleSize = 0;
+
+    /**
+     * Files waiting to be sent within the next bundle
+     */
+    private final Map<String, FileItem> bundleItems = new LinkedHashMap<String, FileItem>();
+
+    private volatile boolean stopped = false;
+
     /**
      * @param future
      * @param name
@@ -406,8 +426,14 @@ public class SpooledDirectoryTransfer implements Runnable {
                 " elapse:" + elapseTime + " waarpElapse:" + elapseWaarpTime + " parallel:" + parallel
                 + " limitParallel:" + limitParallelTasks +
                 " submit:" + submit + " recursive:" + recurs);
+        if (bundleSize > 1 && !submit) {
+            Configuration.configuration.launchInFixedDelay(new BundleFlush(), elapseTime,
+                    TimeUnit.MILLISECONDS);
+        }
         monitor.start();
         monitor.waitForStopFile();
+        stopped = true;
+        flushBundle();
         this.future.setSuccess();
         if (Configuration.configuration.getShutdownConfiguration().serviceFuture != null) {
             Configuration.configuration.getShutdownConfiguration().serviceFuture.setSuccess();
@@ -424,12 +450,187 @@ public class SpooledDirectoryTransfer implements Runnable {
         }
     }
 
+    /**
+     * @param bundleSize
+     *            maximum number of files within one bundle (0 or 1 for no bundle, -direct mode only)
+     */
+    public void setBundleSize(int bundleSize) {
+        this.bundleSize = bundleSize;
+    }
+
+    /**
+     * Keep this file for the next bundle, sent once full
+     * 
+     * @param fileItem
+     */
+    private void addToBundle(FileItem fileItem) {
+        boolean full;
+        synchronized (bundleItems) {
+            bundleItems.put(fileItem.file.getAbsolutePath(), fileItem);
+            full = bundleItems.size() >= bundleSize;
+        }
+        if (full) {
+            flushBundle();
+        }
+    }
+
+    /**
+     * Send the waiting files within one bundle to all hosts. Files with the same name as a
+     * previous one, or all files if one host is not yet known to accept bundles, are sent one by
+     * one.
+     */
+    private void flushBundle() {
+        List<FileItem> items;
+        synchronized (bundleItems) {
+            if (bundleItems.isEmpty()) {
+                return;
+            }
+            items = new ArrayList<FileItem>(bundleItems.values());
+            bundleItems.clear();
+        }
+        SpooledRunner runner = new SpooledRunner(null);
+        runner.setMonitor(monitor);
+        boolean allowed = true;
+        for (String host : remoteHosts) {
+            host = host.trim();
+            if (!host.isEmpty() && !FileBundle.isAllowed(host)) {
+                allowed = false;
+            }
+        }
+        List<FileItem> members = new ArrayList<FileItem>();
+        List<File> files = new ArrayList<File>();
+        Set<String> names = new HashSet<String>();
+        for (FileItem item : items) {
+            if (allowed && names.add(item.file.getName())) {
+                members.add(item);
+                files.add(item.file);
+            } else {
+                runner.transfer(item);
+            }
+        }
+        if (members.size() < 2) {
+            for (FileItem item : members) {
+                runner.transfer(item);
+            }
+            return;
+        }
+        File bundle;
+        try {
+            bundle = FileBundle.create(files);
+        } catch (IOException e) {
+            logger.warn("Cannot create bundle, files sent one by one: " + e.getMessage());
+            for (FileItem item : members) {
+                runner.transfer(item);
+            }
+            return;
+        }
+        String info = fileinfo == null || fileinfo.equals(NO_INFO_ARGS) ? null : fileinfo;
+        boolean finalStatus = true;
+        try {
+            for (String host : remoteHosts) {
+                host = host.trim();
+                if (host.isEmpty()) {
+                    continue;
+                }
+                String text = "Bundle Transfer of " + members.size() + " files: ";
+                R66Future future = new R66Future(true);
+                DirectTransfer transaction = new DirectTransfer(future, host,
+                        bundle.getAbsolutePath(), rulename, FileBundle.getFileInformation(info),
+                        isMD5, blocksize, DbConstant.ILLEGALVALUE, networkTransaction);
+                transaction.normalInfoAsWarn = normalInfoAsWarn;
+                transaction.run();
+                future.awaitUninterruptibly();
+                DbTaskRunner taskRunner = future.getResult() != null ? future.getResult().getRunner() : null;
+                if (future.isSuccess()) {
+                    setSent(getSent() + members.size());
+                    if (normalInfoAsWarn) {
+                        logger.warn(text + Messages.getString("RequestInformation.Success") //$NON-NLS-1$
+                                + (taskRunner != null ? taskRunner.toShortString() : "")
+                                + "<REMOTE>" + host + "</REMOTE>");
+                    } else {
+                        logger.info(text + Messages.getString("RequestInformation.Success") //$NON-NLS-1$
+                                + (taskRunner != null ? taskRunner.toShortString() : "")
+                                + "<REMOTE>" + host + "</REMOTE>");
+                    }
+                    if (taskRunner != null && nolog) {
+                        try {
+                            taskRunner.delete();
+                        } catch (WaarpDatabaseException e) {
+                            logger.warn("Cannot apply nolog to     " + taskRunner.toShortString(), e);
+                        }
+                    }
+                } else {
+                    finalStatus = false;
+                    setError(getError() + members.size());
+                    logger.error(text + Messages.getString("RequestInformation.Failure") //$NON-NLS-1$
+                            + (taskRunner != null ? taskRunner.toShortString() : "")
+                            + "<REMOTE>" + host + "</REMOTE>", future.getCause());
+                }
+                if (taskRunner != null) {
+                    DbTaskRunner.removeNoDbSpecialId(taskRunner.getSpecialId());
+                }
+            }
+        } finally {
+            if (!bundle.delete()) {
+                logger.warn("Cannot delete bundle: " + bundle);
+            }
+        }
+        for (FileItem item : members) {
+            runner.finalizeBundled(item, finalStatus);
+        }
+    }
+
+    /**
+     * Periodic sending of the waiting files within one bundle
+     */
+    private class BundleFlush extends Thread {
+        @Override
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            try {
+                flushBundle();
+            } catch (RuntimeException e) {
+                logger.error("Error in SpooledDirectory bundle", e);
+            }
+            if (!stopped) {
+                Configuration.configuration.launchInFixedDelay(this, elapseTime,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
     public class SpooledRunner extends FileMonitorCommandRunnableFuture {
         public SpooledRunner(FileItem fileItem) {
             super(fileItem);
         }
 
         public void run(FileItem fileItem) {
+            if (bundleSize > 1 && !submit && !stopped && FileBundle.isBundleable(fileItem.file)) {
+                addToBundle(fileItem);
+                return;
+            }
+            transfer(fileItem);
+        }
+
+        /**
+         * Once sent within a bundle
+         * 
+         * @param fileItem
+         * @param status
+         */
+        private void finalizeBundled(FileItem fileItem, boolean status) {
+            this.setFileItem(fileItem);
+            finalize(status, DbConstant.ILLEGALVALUE);
+        }
+
+        /**
+         * Send this file alone
+         * 
+         * @param fileItem
+         */
+        private void transfer(FileItem fileItem) {
             this.setFileItem(fileItem);
             if (DbConstant.admin.getSession() != null && DbConstant.admin.getSession().isDisActive()) {
                 DbConstant.admin.getSession().checkConnectionNoException();
@@ -664,6 +865,7 @@ public class SpooledDirectoryTransfer implements Runnable {
         protected int limitParallel = 0;
         protected long minimalSize = 0;
         protected boolean logWarn = true;
+        protected int bundle = 0;
     }
 
     protected static final List<Arguments> arguments = new ArrayList<Arguments>();
@@ -690,6 +892,7 @@ public class SpooledDirectoryTransfer implements Runnable {
     private static final String XML_elapseWaarp = "elapseWaarp";
     private static final String XML_minimalSize = "minimalSize";
     private static final String XML_logWarn = "logWarn";
+    private static final String XML_bundle = "bundle";
 
     private static final XmlDecl[] subSpooled = {
             new XmlDecl(XmlType.STRING, XML_name),
@@ -709,7 +912,8 @@ public class SpooledDirectoryTransfer implements Runnable {
             new XmlDecl(XmlType.BOOLEAN, XML_nolog),
             new XmlDecl(XML_waarp, XmlType.STRING, XML_waarp, true),
             new XmlDecl(XmlType.LONG, XML_elapseWaarp),
-            new XmlDecl(XmlType.LONG, XML_minimalSize)
+            new XmlDecl(XmlType.LONG, XML_minimalSize),
+            new XmlDecl(XmlType.INTEGER, XML_bundle)
     };
     private static final XmlDecl[] spooled = {
             new XmlDecl(XmlType.STRING, XML_stopfile),
@@ -862,6 +1066,10 @@ public class SpooledDirectoryTransfer implements Runnable {
                 if (value != null && (!value.isEmpty())) {
                     arg.minimalSize = value.getLong();
                 }
+                value = subHash.get(XML_bundle);
+                if (value != null && (!value.isEmpty())) {
+                    arg.bundle = value.getInteger();
+                }
                 arguments.add(arg);
             }
         }
@@ -899,7 +1107,8 @@ public class SpooledDirectoryTransfer implements Runnable {
             }
             // Now set default values from configuration
             Arguments arg = new Arguments();
-            arg.block = Configuration.configuration.getBLOCKSIZE();
+            // 0 means not forced: tuned per partner or default one
+            arg.block = 0;
             int i = 1;
             try {
                 for (i = 1; i < args.length; i++) {
@@ -989,6 +1198,9 @@ public class SpooledDirectoryTransfer implements Runnable {
                         arg.isparallel = true;
                     } else if (args[i].equalsIgnoreCase("-sequential")) {
                         arg.isparallel = false;
+                    } else if (args[i].equalsIgnoreCase("-bundle")) {
+                        i++;
+                        arg.bundle = Integer.parseInt(args[i]);
                     }
                 }
             } catch (NumberFormatException e) {
@@ -1066,6 +1278,7 @@ public class SpooledDirectoryTransfer implements Runnable {
                                 arg.elapsedWaarp, arg.isparallel, arg.limitParallel, arg.waarphosts, arg.minimalSize,
                                 arg.logWarn,
                                 networkTransactionStatic);
+                spooled.setBundleSize(arg.bundle);
                 executorService.submit(spooled);
                 list.add(spooled);
             }
@@ -18,8 +18,10 @@
 package org.waarp.openr66.commander;
 
 import java.net.SocketAddress;
+import java.util.Comparator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.waarp.common.database.data.AbstractDbData;
 import org.waarp.common.database.data.AbstractDbData.UpdatedInfo;
@@ -38,14 +40,18 @@ import org.waarp.openr66.database.data.DbTaskRunner;
 import org.waarp.openr66.database.data.DbTaskRunner.TASKSTEP;
 import org.waarp.openr66.protocol.configuration.Configuration;
 import org.waarp.openr66.protocol.configuration.Messages;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolNetworkException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNoConnectionException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNotYetConnectionException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
 import org.waarp.openr66.protocol.localhandler.packet.RequestPacket;
+import org.waarp.openr66.protocol.networkhandler.BlockSizeTuner;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+import org.waarp.openr66.protocol.utils.BlockCompression;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
 import org.waarp.openr66.protocol.utils.R66Future;
+import org.waarp.openr66.protocol.utils.TransferPriority;
 import org.waarp.openr66.protocol.utils.TransferUtils;
 
 /**
@@ -77,11 +83,36 @@ public class ClientRunner extends Thread {
 
     private LocalChannelReference localChannelReference = null;
 
+    /**
+     * Order of creation, to keep the submission order between transfers of the same priority
+     */
+    private static final AtomicLong submissionOrder = new AtomicLong();
+
+    private final int priority;
+
+    private final long order;
+
+    /**
+     * Admission order of ClientRunners: highest priority first, then in submission order
+     */
+    public static final Comparator<Runnable> PRIORITY_ORDER = new Comparator<Runnable>() {
+        public int compare(Runnable o1, Runnable o2) {
+            ClientRunner runner1 = (ClientRunner) o1;
+            ClientRunner runner2 = (ClientRunner) o2;
+            if (runner1.priority != runner2.priority) {
+                return runner1.priority > runner2.priority ? -1 : 1;
+            }
+            return runner1.order < runner2.order ? -1 : (runner1.order == runner2.order ? 0 : 1);
+        }
+    };
+
     public ClientRunner(NetworkTransaction networkTransaction,
             DbTaskRunner taskRunner, R66Future futureRequest) {
         this.networkTransaction = networkTransaction;
         this.taskRunner = taskRunner;
         this.futureRequest = futureRequest;
+        this.priority = TransferPriority.getPriority(taskRunner);
+        this.order = submissionOrder.incrementAndGet();
     }
 
     public static String hashStatus() {
@@ -103,6 +134,13 @@ public class ClientRunner extends Thread {
         return taskRunner;
     }
 
+    /**
+     * @return the priority of the transfer
+     */
+    public int getPriority() {
+        return priority;
+    }
+
     /**
      * @return the localChannelReference
      */
@@ -342,6 +380,7 @@ public class ClientRunner extends Thread {
             }
             taskRunner.setSender(isSender);
             this.changeUpdatedInfo(UpdatedInfo.DONE, ErrorCode.CompleteOk, false);
+            BlockSizeTuner.transferDone(localChannelReference, taskRunner);
         } else {
             try {
                 taskRunner.select();
@@ -463,7 +502,7 @@ public class ClientRunner extends Thread {
         boolean isSSL = host.isSsl();
 
         LocalChannelReference localChannelReference = networkTransaction
-                .createConnectionWithRetry(socketAddress, isSSL, futureRequest);
+                .createConnectionWithRetry(socketAddress, isSSL, futureRequest, true);
         taskRunner.setLocalChannelReference(localChannelReference);
         if (localChannelReference == null) {
             // propose to redo
@@ -515,7 +554,7 @@ public class ClientRunner extends Thread {
             RequestPacket request = taskRunner.getRequest();
             logger.debug("Will send request {} ", request);
             localChannelReference.setClientRunner(this);
-            localChannelReference.sessionNewState(R66FiniteDualStates.REQUESTR);
+            sessionRequestState(localChannelReference);
             try {
                 ChannelUtils.writeAbstractLocalPacket(localChannelReference,
                         request, true);
@@ -530,6 +569,7 @@ public class ClientRunner extends Thread {
                 request = null;
                 throw e;
             }
+            checkPipelinedConnection(localChannelReference, host);
             logger.debug("Wait for request to {}", host);
             request = null;
             host = null;
@@ -550,9 +590,11 @@ public class ClientRunner extends Thread {
                             taskRunner.getRank() + " {}", taskRunner);
         }
         RequestPacket request = taskRunner.getRequest();
+        // ask for compression if allowed by both sides for this rule (negotiated on answer)
+        request.setCompression(BlockCompression.isAllowed(localChannelReference, request.getRulename()));
         logger.debug("Will send request {} {}", request, localChannelReference);
         localChannelReference.setClientRunner(this);
-        localChannelReference.sessionNewState(R66FiniteDualStates.REQUESTR);
+        sessionRequestState(localChannelReference);
         try {
             ChannelUtils.writeAbstractLocalPacket(localChannelReference,
                     request, true);
@@ -566,12 +608,51 @@ public class ClientRunner extends Thread {
             request = null;
             throw e;
         }
+        checkPipelinedConnection(localChannelReference, host);
         logger.debug("Wait for request to {}", host);
         request = null;
         host = null;
         return localChannelReference;
     }
 
+    /**
+     * Set the session to REQUESTR before sending the request, or once the connection is validated
+     * if the Authentication was sent without waiting for its answer (pipelined handshake)
+     * 
+     * @param localChannelReference
+     */
+    private void sessionRequestState(LocalChannelReference localChannelReference) {
+        if (localChannelReference.isPipelined()) {
+            localChannelReference.setPipelinedRequest();
+        } else {
+            localChannelReference.sessionNewState(R66FiniteDualStates.REQUESTR);
+        }
+    }
+
+    /**
+     * Once the request is sent within a pipelined handshake, wait for the answer to the
+     * Authentication. If refused, the transfer will be retried with the classic handshake.
+     * 
+     * @param localChannelReference
+     * @param host
+     * @throws OpenR66ProtocolNotYetConnectionException
+     */
+    private void checkPipelinedConnection(LocalChannelReference localChannelReference,
+            DbHostAuth host) throws OpenR66ProtocolNotYetConnectionException {
+        if (!localChannelReference.isPipelined()) {
+            return;
+        }
+        try {
+            networkTransaction.checkPipelinedConnection(localChannelReference);
+        } catch (OpenR66ProtocolNetworkException e) {
+            logger.info("Pipelined handshake refused by {}, will retry: {}", host, e.getMessage());
+            this.changeUpdatedInfo(UpdatedInfo.TOSUBMIT,
+                    ErrorCode.ConnectionImpossible, true);
+            throw new OpenR66ProtocolNotYetConnectionException(
+                    "Cannot validate connection to server " + host.toString() + " but will retry");
+        }
+    }
+
     /**
      * Change the UpdatedInfo of the current runner
      * 
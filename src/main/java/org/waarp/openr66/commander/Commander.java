@@ -17,6 +17,11 @@
  */
 package org.waarp.openr66.commander;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.data.AbstractDbData;
 import org.waarp.common.database.data.AbstractDbData.UpdatedInfo;
@@ -35,6 +40,7 @@ import org.waarp.openr66.database.data.DbRule;
 import org.waarp.openr66.database.data.DbTaskRunner;
 import org.waarp.openr66.protocol.configuration.Configuration;
 import org.waarp.openr66.protocol.utils.R66ShutdownHook;
+import org.waarp.openr66.protocol.utils.TransferPriority;
 
 /**
  * Commander is responsible to read from database updated data from time to time in order to achieve
@@ -52,6 +58,20 @@ public class Commander implements CommanderInterface {
 
     private static final int LIMITSUBMIT = 100;
 
+    /**
+     * Submission order of the runners found at each pass: highest priority first.<br>
+     * <br>
+     * The priority is kept in the transfer map of the runner, not in a column, so the rows are
+     * still selected in the database order, at most LIMITSUBMIT per pass: the order is only by
+     * pass, a higher priority transfer beyond these rows waiting for the next pass. Once
+     * submitted, the InternalRunner orders all transfers waiting for a thread.
+     */
+    private static final Comparator<DbTaskRunner> PRIORITY_ORDER = new Comparator<DbTaskRunner>() {
+        public int compare(DbTaskRunner o1, DbTaskRunner o2) {
+            return TransferPriority.getPriority(o2) - TransferPriority.getPriority(o1);
+        }
+    };
+
     private InternalRunner internalRunner = null;
     private DbPreparedStatement preparedStatementLock = null;
     private DbPreparedStatement preparedStatementConfig = null;
@@ -87,6 +107,7 @@ public class Commander implements CommanderInterface {
         if (fromStartup) {
             // Change RUNNING or INTERRUPTED to TOSUBMIT since they should be ready
             DbTaskRunner.resetToSubmit(DbConstant.admin.getSession());
+            Configuration.configuration.startCheckpointJournal();
         }
     }
 
@@ -459,6 +480,7 @@ public class Commander implements CommanderInterface {
                 DbTaskRunner.finishSelectOrCountPrepareStatement(preparedStatementRunner);
                 // No specific HA mode since the other servers will wait for the commit on Lock
                 preparedStatementRunner.executeQuery();
+                List<DbTaskRunner> toSubmit = new ArrayList<DbTaskRunner>();
                 while (preparedStatementRunner.getNext()) {
                     if (R66ShutdownHook.isShutdownStarting()) {
                         // no more task to submit
@@ -493,9 +515,15 @@ public class Commander implements CommanderInterface {
                     }
                     taskRunner.changeUpdatedInfo(UpdatedInfo.RUNNING);
                     taskRunner.forceSaveStatus();
-                    internalRunner.submitTaskRunner(taskRunner);
+                    toSubmit.add(taskRunner);
                     taskRunner = null;
                 }
+                // Submit by priority within this pass (stable sort so keeping the database
+                // order otherwise)
+                Collections.sort(toSubmit, PRIORITY_ORDER);
+                for (DbTaskRunner taskRunner : toSubmit) {
+                    internalRunner.submitTaskRunner(taskRunner);
+                }
             } catch (WaarpDatabaseNoConnectionException e) {
                 try {
                     DbConstant.admin.getDbModel().validConnection(DbConstant.admin.getSession());
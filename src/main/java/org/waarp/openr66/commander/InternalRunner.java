@@ -17,9 +17,8 @@
  */
 package org.waarp.openr66.commander;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -53,7 +52,15 @@ public class InternalRunner {
     private ScheduledFuture<?> scheduledFuture;
     private CommanderInterface commander = null;
     private volatile boolean isRunning = true;
+    /**
+     * Maximum number of transfers waiting for a runner thread
+     */
+    private static final int MAXIMAL_WAITING = 10;
     private final ThreadPoolExecutor threadPoolExecutor;
+    /**
+     * Transfers waiting for a runner thread, highest priority first
+     */
+    private final PriorityBlockingQueue<Runnable> workQueue;
     private final NetworkTransaction networkTransaction;
 
     /**
@@ -70,9 +77,12 @@ public class InternalRunner {
         }
         scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new WaarpThreadFactory("InternalRunner"));
         isRunning = true;
-        BlockingQueue<Runnable> workQueue = new ArrayBlockingQueue<Runnable>(10);
-        threadPoolExecutor = new ThreadPoolExecutor(10, Configuration.configuration.getRUNNER_THREAD(),
+        // Admission by priority: runners beyond RUNNER_THREAD wait in a priority queue
+        workQueue = new PriorityBlockingQueue<Runnable>(MAXIMAL_WAITING, ClientRunner.PRIORITY_ORDER);
+        threadPoolExecutor = new ThreadPoolExecutor(Configuration.configuration.getRUNNER_THREAD(),
+                Configuration.configuration.getRUNNER_THREAD(),
                 1000, TimeUnit.MILLISECONDS, workQueue);
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
         scheduledFuture = scheduledExecutorService.scheduleWithFixedDelay(commander,
                 Configuration.configuration.getDelayCommander(),
                 Configuration.configuration.getDelayCommander(), TimeUnit.MILLISECONDS);
@@ -90,14 +100,15 @@ public class InternalRunner {
      */
     public void submitTaskRunner(DbTaskRunner taskRunner) {
         if (isRunning || !Configuration.configuration.isShutdown()) {
-            if (threadPoolExecutor.getActiveCount() > Configuration.configuration.getRUNNER_THREAD()) {
-                // too many current active threads
+            ClientRunner runner = new ClientRunner(networkTransaction, taskRunner, null);
+            if (threadPoolExecutor.getActiveCount() >= Configuration.configuration.getRUNNER_THREAD()
+                    && workQueue.size() >= MAXIMAL_WAITING && !makeRoom(runner)) {
+                // too many current active threads and waiting transfers of higher priority
                 taskRunner.changeUpdatedInfo(UpdatedInfo.TOSUBMIT);
                 taskRunner.forceSaveStatus();
                 return;
             }
             logger.debug("Will run {}", taskRunner);
-            ClientRunner runner = new ClientRunner(networkTransaction, taskRunner, null);
             if (taskRunner.isSendThrough() && (taskRunner.isRescheduledTransfer()
                     || taskRunner.isPreTaskStarting())) {
                 runner.setSendThroughMode();
@@ -110,6 +121,29 @@ public class InternalRunner {
         }
     }
 
+    /**
+     * Give back to the Commander the waiting transfer of lowest priority if lower than this one
+     * 
+     * @param runner
+     * @return True if a waiting transfer was given back
+     */
+    private boolean makeRoom(ClientRunner runner) {
+        ClientRunner lowest = null;
+        for (Runnable waiting : workQueue) {
+            if (lowest == null || ClientRunner.PRIORITY_ORDER.compare(waiting, lowest) > 0) {
+                lowest = (ClientRunner) waiting;
+            }
+        }
+        if (lowest == null || lowest.getPriority() >= runner.getPriority()
+                || !workQueue.remove(lowest)) {
+            return false;
+        }
+        logger.debug("Submit later to run first a higher priority: {}", lowest.getTaskRunner());
+        lowest.getTaskRunner().changeUpdatedInfo(UpdatedInfo.TOSUBMIT);
+        lowest.getTaskRunner().forceSaveStatus();
+        return true;
+    }
+
     /**
      * First step while shutting down the service
      */
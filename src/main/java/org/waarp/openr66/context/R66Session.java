@@ -769,6 +769,11 @@ public class R66Session implements SessionInterface {
                     } catch (NoRestartException e) {
                         // length is not to be changed
                     }
+                    if (Configuration.configuration.isPreallocate() && this.runner.getOriginalSize() > 0) {
+                        // positional writes from now on, replayed blocks being simply rewritten
+                        file.preallocate(this.runner.getOriginalSize(),
+                                this.runner.getBlocksize(), this.runner.getRank());
+                    }
                 }
             } else {
                 try {
@@ -983,6 +988,15 @@ public class R66Session implements SessionInterface {
         return file;
     }
 
+    /**
+     * Change the current file (post tasks run on each member of a bundle)
+     * 
+     * @param file
+     */
+    public void setFile(R66File file) {
+        this.file = file;
+    }
+
     /**
      * 
      * @return True if the number of Error is still acceptable
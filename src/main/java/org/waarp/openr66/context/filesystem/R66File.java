@@ -23,33 +23,21 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.BitSet;
 
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.ByteBuf;
 
 import org.waarp.common.command.exception.CommandAbstractException;
-import org.waarp.common.digest.FilesystemBasedDigest;
-import org.waarp.common.exception.FileEndOfTransferException;
 import org.waarp.common.exception.FileTransferException;
 import org.waarp.common.file.DataBlock;
 import org.waarp.common.file.filesystembased.FilesystemBasedDirImpl;
 import org.waarp.common.file.filesystembased.FilesystemBasedFileImpl;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
-import org.waarp.openr66.context.ErrorCode;
-import org.waarp.openr66.context.R66Result;
 import org.waarp.openr66.context.R66Session;
-import org.waarp.openr66.context.task.exception.OpenR66RunnerErrorException;
 import org.waarp.openr66.database.data.DbTaskRunner;
-import org.waarp.openr66.protocol.configuration.Configuration;
-import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
-import org.waarp.openr66.protocol.exception.OpenR66ProtocolSystemException;
-import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
-import org.waarp.openr66.protocol.localhandler.RetrieveRunner;
-import org.waarp.openr66.protocol.utils.ChannelUtils;
-import org.waarp.openr66.protocol.utils.FileUtils;
 
 /**
  * File representation
@@ -69,6 +57,33 @@ public class R66File extends FilesystemBasedFileImpl {
      */
     private boolean isExternal = false;
 
+    /**
+     * File used for positional writes in receive mode (preallocated)
+     */
+    private RandomAccessFile positionalFile = null;
+
+    private volatile FileChannel positionalChannel = null;
+
+    /**
+     * Ranks written in positional mode (blocks being written out of order)
+     */
+    private final BitSet writtenRanks = new BitSet();
+
+    /**
+     * First rank not yet written in positional mode
+     */
+    private int contiguousRank = 0;
+
+    private int blocksize = 0;
+
+    private long preallocatedSize = 0;
+
+    /**
+     * End of the data contiguously written in positional mode, since the length of the file is
+     * preset
+     */
+    private volatile long writtenSize = 0;
+
     /**
      * @param session
      * @param dir
@@ -94,145 +109,169 @@ public class R66File extends FilesystemBasedFileImpl {
     }
 
     /**
-     * Start the retrieve (send to the remote host the local file)
      * 
-     * @param running
-     *            When false, should stop the runner
-     * @throws OpenR66RunnerErrorException
-     * @throws OpenR66ProtocolSystemException
+     * @return True if the file is ready to be sent
+     */
+    public boolean isReadyToSend() {
+        return isReady;
+    }
+
+    /**
+     * 
+     * @return the current position in the file (restart marker)
+     */
+    public long getSendPosition() {
+        return getPosition();
+    }
+
+    /**
+     * 
+     * @return a new FileChannel positioned at the current position, to be used for zero copy
+     *         sending (must be closed by the caller), or null if not possible
+     */
+    public FileChannel getSendFileChannel() {
+        return getFileChannel();
+    }
+
+    /**
+     * Switch this file (in receive mode) to positional writes: the file is extended to its final
+     * size once, then each block is written at its own position (rank x blocksize), such that a
+     * replayed block is simply written again at the same place, without any seek nor truncation.
+     * Once closed, the file is truncated back to the data contiguously written (blocks written out
+     * of order after a missing one being dropped), such that an interrupted transfer leaves a file
+     * whose length is the one of its received data.<br>
+     * <br>
+     * To be called only once the restart position and the available space are checked.
+     * 
+     * @param size
+     *            the final size of the file
+     * @param blocksize
+     *            the size of each block (rank x blocksize being the position of a block)
+     * @param rank
+     *            the restart rank: all blocks before are already written
+     * @return True if positional writes are now used
      */
-    public void retrieveBlocking(AtomicBoolean running) throws OpenR66RunnerErrorException,
-            OpenR66ProtocolSystemException {
-        boolean retrieveDone = false;
-        LocalChannelReference localChannelReference = getSession()
-                .getLocalChannelReference();
-        FilesystemBasedDigest digest = null;
-        logger.debug("File to retrieve: " + this.toString());
+    public boolean preallocate(long size, int blocksize, int rank) {
+        if (positionalChannel != null) {
+            return true;
+        }
+        File trueFile = getTrueFile();
+        if (trueFile == null || size <= 0 || blocksize <= 0) {
+            return false;
+        }
+        synchronized (writtenRanks) {
+            // the current content up to the restart rank is already written, whatever after
+            this.blocksize = blocksize;
+            preallocatedSize = size;
+            writtenRanks.clear();
+            contiguousRank = Math.max(rank, 0);
+            writtenRanks.set(0, contiguousRank);
+            writtenSize = Math.min((long) contiguousRank * blocksize, size);
+        }
         try {
-            if (!isReady) {
-                return;
-            }
-            DataBlock block = null;
-            try {
-                block = readDataBlock();
-            } catch (FileEndOfTransferException e) {
-                // Last block (in fact, no data to read)
-                retrieveDone = true;
-                return;
-            }
-            if (block == null) {
-                // Last block (in fact, no data to read)
-                retrieveDone = true;
-                return;
-            }
-            if (Configuration.configuration.isGlobalDigest()) {
-                try {
-                    digest = new FilesystemBasedDigest(Configuration.configuration.getDigest());
-                } catch (NoSuchAlgorithmException e2) {
-                    // ignore
-                }
+            positionalFile = new RandomAccessFile(trueFile, "rw");
+            if (positionalFile.length() != size) {
+                positionalFile.setLength(size);
             }
-            ChannelFuture future1 = null, future2 = null;
-            if ((block != null && (running.get()))) {
-                block.getBlock().retain();
-                future1 = RetrieveRunner.writeWhenPossible(
-                        block, localChannelReference);
-                if (Configuration.configuration.isGlobalDigest()) {
-                    FileUtils.computeGlobalHash(digest, block.getBlock());
+            positionalChannel = positionalFile.getChannel();
+        } catch (IOException e) {
+            logger.warn("Cannot preallocate file, sequential writes kept: " + e.getMessage());
+            closePositional();
+            return false;
+        }
+        logger.debug("File preallocated: {} for {}", trueFile, size);
+        return true;
+    }
+
+    /**
+     * 
+     * @return True if positional writes are used
+     */
+    public boolean isPositional() {
+        return positionalChannel != null;
+    }
+
+    /**
+     * 
+     * @return the end of the data contiguously written in positional mode (the file length
+     *         otherwise being preset), such that all data before is written
+     */
+    public long getWrittenSize() {
+        return writtenSize;
+    }
+
+    /**
+     * Write one block at the given position if positional writes are used, else at the current
+     * position
+     * 
+     * @param dataBlock
+     * @param position
+     *            the absolute position of this block in the file
+     * @throws FileTransferException
+     */
+    public void writeDataBlock(DataBlock dataBlock, long position) throws FileTransferException {
+        FileChannel fileChannel = positionalChannel;
+        if (fileChannel == null) {
+            writeDataBlock(dataBlock);
+            return;
+        }
+        ByteBuf buf = dataBlock.getBlock();
+        int rank = (int) (position / blocksize);
+        try {
+            for (ByteBuffer buffer : buf.nioBuffers()) {
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
                 }
             }
-            // While not last block
-            while (block != null && (!block.isEOF()) && (running.get())) {
-                try {
-                    future1.await();
-                } catch (InterruptedException e) {
-                }
-                if (!future1.isSuccess()) {
-                    return;
+            synchronized (writtenRanks) {
+                writtenRanks.set(rank);
+                if (rank == contiguousRank) {
+                    contiguousRank = writtenRanks.nextClearBit(rank);
+                    writtenSize = Math.min((long) contiguousRank * blocksize, preallocatedSize);
                 }
-                try {
-                    block = readDataBlock();
-                } catch (FileEndOfTransferException e) {
-                    // Wait for last write
-                    try {
-                        future1.await();
-                    } catch (InterruptedException e1) {
-                    }
-                    if (future1.isSuccess()) {
-                        retrieveDone = true;
-                    }
-                    return;
-                }
-                block.getBlock().retain();
-                future2 = RetrieveRunner.writeWhenPossible(
-                        block, localChannelReference);
-                if (Configuration.configuration.isGlobalDigest()) {
-                    FileUtils.computeGlobalHash(digest, block.getBlock());
-                }
-                future1 = future2;
-            }
-            if (!running.get()) {
-                // stopped
-                return;
             }
-            // Wait for last write
-            if (future1 != null) {
-                try {
-                    future1.await();
-                } catch (InterruptedException e) {
-                }
-                if (!future1.isSuccess()) {
-                    return;
+        } catch (IOException e) {
+            logger.error("Error during positional write: " + e.getMessage());
+            throw new FileTransferException("Error during positional write: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the positional file, truncating it to the data contiguously written if the transfer is
+     * not complete
+     */
+    private void closePositional() {
+        positionalChannel = null;
+        if (positionalFile != null) {
+            try {
+                long written = writtenSize;
+                if (positionalFile.length() > written) {
+                    logger.debug("File truncated to its written size: {}", written);
+                    positionalFile.setLength(written);
                 }
+            } catch (IOException e) {
+                logger.warn("Cannot truncate file to its written size: " + e.getMessage());
             }
-            if (block != null) {
-                block.getBlock().release();
-                block.clear();
+            try {
+                positionalFile.close();
+            } catch (IOException e) {
             }
-            retrieveDone = true;
-            return;
-        } catch (FileTransferException e) {
-            // An error occurs!
-            getSession()
-                    .setFinalizeTransfer(
-                            false,
-                            new R66Result(new OpenR66ProtocolSystemException(e),
-                                    getSession(), false, ErrorCode.TransferError, getSession()
-                                            .getRunner()));
-        } catch (OpenR66ProtocolPacketException e) {
-            // An error occurs!
-            getSession()
-                    .setFinalizeTransfer(
-                            false,
-                            new R66Result(e, getSession(), false,
-                                    ErrorCode.Internal, getSession().getRunner()));
+            positionalFile = null;
+        }
+    }
+
+    /**
+     * Force all written data of this file to the storage device (fsync). Since the synchronization
+     * applies to the file itself, a dedicated descriptor is used.
+     *
+     * @throws IOException
+     */
+    public void syncToDisk() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(getTrueFile(), "rw");
+        try {
+            raf.getFD().sync();
         } finally {
-            if (retrieveDone) {
-                String hash = null;
-                if (digest != null) {
-                    hash = FilesystemBasedDigest.getHex(digest.Final());
-                }
-                try {
-                    if (hash == null) {
-                        ChannelUtils.writeEndTransfer(localChannelReference);
-                    } else {
-                        ChannelUtils.writeEndTransfer(localChannelReference, hash);
-                    }
-                } catch (OpenR66ProtocolPacketException e) {
-                    // An error occurs!
-                    getSession().setFinalizeTransfer(
-                            false,
-                            new R66Result(e, getSession(), false,
-                                    ErrorCode.Internal, getSession().getRunner()));
-                }
-            } else {
-                // An error occurs!
-                getSession().setFinalizeTransfer(
-                        false,
-                        new R66Result(new OpenR66ProtocolSystemException("Transfer in error"),
-                                getSession(), false, ErrorCode.TransferError, getSession()
-                                        .getRunner()));
-            }
+            raf.close();
         }
     }
 
@@ -636,6 +675,7 @@ public class R66File extends FilesystemBasedFileImpl {
 
     @Override
     public boolean closeFile() throws CommandAbstractException {
+        closePositional();
         boolean status = super.closeFile();
         // FORCE re-open file
         isReady = true;
@@ -0,0 +1,555 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.database.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.data.AbstractDbData.UpdatedInfo;
+import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.database.data.DbTaskRunner.Columns;
+import org.waarp.openr66.protocol.configuration.Configuration;
+
+/**
+ * Local append only journal of the progress of the transfers.<br>
+ * <br>
+ * Each progress of a runner (rank, global step and status), and each synchronous save of a runner,
+ * is appended as one record into a memory mapped segment, such that the last position of every
+ * transfer survives a crash of the server without any access to the database. The records are
+ * compacted into the RUNNER table by the CheckpointService: once a segment is full, the journal
+ * goes on into the other one while all pending checkpoints are written in the background, then the
+ * full segment is cleared. If this compaction is late or failed when the other segment is full too,
+ * the active segment grows instead, such that neither a record is lost nor a block waits for the
+ * database. The records are forced to the storage at each flush of the CheckpointService, bounding
+ * the records lost by a crash of the system itself.<br>
+ * <br>
+ * At startup, the records of both segments are replayed into the RUNNER table (the last record of
+ * each running or interrupted runner, by sequence) before the interrupted transfers are submitted
+ * again, so that they restart from their exact last position.
+ *
+ * @author Frederic Bregier
+ */
+public class CheckpointJournal {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(CheckpointJournal.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Names of the two segments in the journal directory
+     */
+    private static final String[] SEGMENTS = { "checkpoint0.journal", "checkpoint1.journal" };
+
+    /**
+     * Minimum size of one segment
+     */
+    public static final int MINIMAL_SIZE = 0x10000;
+
+    /**
+     * Size of a record without its strings: length, sequence, specialId, rank, step, 4 string
+     * lengths, crc
+     */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 4 + 4 + 4 * 2 + 4;
+
+    private static final AtomicLong records = new AtomicLong();
+
+    private static final AtomicLong compactions = new AtomicLong();
+
+    private final CheckpointService checkpointService;
+
+    private final File[] files = new File[2];
+
+    private final MappedByteBuffer[] segments = new MappedByteBuffer[2];
+
+    /**
+     * True once a segment is compacted and cleared (the active one never is)
+     */
+    private final boolean[] cleared = { false, true };
+
+    /**
+     * True while the compaction of a segment is in progress
+     */
+    private final boolean[] compacting = { false, false };
+
+    /**
+     * Number of times each segment became the active one
+     */
+    private final int[] generations = { 0, 0 };
+
+    private int active = 0;
+
+    private long sequence = 0;
+
+    /**
+     * Sequence of the last record forced to the storage
+     */
+    private long forced = 0;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Record being appended, written at once into the segment
+     */
+    private byte[] record = new byte[256];
+
+    /**
+     * Last record of one runner at replay
+     */
+    static class Record {
+        final long sequence;
+        final String ownerRequest;
+        final String requester;
+        final String requested;
+        final long specialId;
+        final int rank;
+        final int step;
+        final String status;
+
+        Record(long sequence, String ownerRequest, String requester, String requested,
+                long specialId, int rank, int step, String status) {
+            this.sequence = sequence;
+            this.ownerRequest = ownerRequest;
+            this.requester = requester;
+            this.requested = requested;
+            this.specialId = specialId;
+            this.rank = rank;
+            this.step = step;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Create a new empty journal (the previous one being replayed before)
+     *
+     * @param directory
+     *            the directory of the segments
+     * @param size
+     *            the size of each segment in bytes
+     * @param checkpointService
+     *            the service compacting the records into the database
+     * @throws IOException
+     *             if the journal cannot be mapped or if a previous journal is not yet replayed
+     */
+    public CheckpointJournal(File directory, int size, CheckpointService checkpointService)
+            throws IOException {
+        this.checkpointService = checkpointService;
+        int segmentSize = Math.max(size, MINIMAL_SIZE);
+        for (String name : SEGMENTS) {
+            if (new File(directory, name).exists()) {
+                throw new IOException("Previous checkpoint journal not replayed: " + name);
+            }
+        }
+        directory.mkdirs();
+        for (int i = 0; i < SEGMENTS.length; i++) {
+            files[i] = new File(directory, SEGMENTS[i]);
+            segments[i] = map(files[i], segmentSize);
+            segments[i].putInt(0, 0);
+        }
+        checkpointService.setJournal(this);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // the mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Append the progress of this runner
+     *
+     * @param ownerRequest
+     * @param requester
+     * @param requested
+     * @param specialId
+     * @param rank
+     * @param step
+     *            the global step
+     * @param status
+     *            the code of the current status
+     */
+    public synchronized void append(String ownerRequest, String requester, String requested,
+            long specialId, int rank, int step, String status) {
+        byte[] owner = ownerRequest.getBytes(UTF8);
+        byte[] req = requester.getBytes(UTF8);
+        byte[] red = requested.getBytes(UTF8);
+        byte[] code = status.getBytes(UTF8);
+        int length = RECORD_OVERHEAD + owner.length + req.length + red.length + code.length;
+        MappedByteBuffer segment = segments[active];
+        // keep room for the end marker
+        if (segment.remaining() < length + 4) {
+            segment = switchSegment();
+            if (segment.remaining() < length + 4) {
+                logger.warn("Checkpoint journal full, record dropped: {}", length);
+                return;
+            }
+        }
+        if (record.length < length) {
+            record = new byte[Math.max(length, record.length * 2)];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(record, 0, length);
+        buffer.putInt(length);
+        buffer.putLong(++sequence);
+        buffer.putLong(specialId);
+        buffer.putInt(rank);
+        buffer.putInt(step);
+        putBytes(buffer, owner);
+        putBytes(buffer, req);
+        putBytes(buffer, red);
+        putBytes(buffer, code);
+        crc.reset();
+        crc.update(record, 4, length - 8);
+        buffer.putInt((int) crc.getValue());
+        segment.put(record, 0, length);
+        // end marker, overwritten by the next record
+        segment.putInt(segment.position(), 0);
+        records.incrementAndGet();
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Go on into the other segment, compacting the full one in the background. If the other one
+     * is not yet cleared (compaction late or failed), the active segment grows instead.
+     *
+     * @return the new active segment
+     */
+    private MappedByteBuffer switchSegment() {
+        int next = 1 - active;
+        if (!cleared[next]) {
+            // never wait for the database here: keep the records of both segments
+            scheduleCompaction(next);
+            return grow(active);
+        }
+        int full = active;
+        active = next;
+        generations[active]++;
+        cleared[active] = false;
+        MappedByteBuffer segment = segments[active];
+        segment.position(0);
+        segment.putInt(0, 0);
+        scheduleCompaction(full);
+        return segment;
+    }
+
+    /**
+     * Double the size of this segment, keeping its records
+     *
+     * @param index
+     * @return the grown segment, or the same one if it cannot grow
+     */
+    private MappedByteBuffer grow(int index) {
+        MappedByteBuffer segment = segments[index];
+        long size = (long) segment.capacity() * 2;
+        if (size > Integer.MAX_VALUE) {
+            return segment;
+        }
+        try {
+            MappedByteBuffer grown = map(files[index], (int) size);
+            grown.position(segment.position());
+            segments[index] = grown;
+            logger.info("Checkpoint journal grown to {} since not yet compacted", size);
+            return grown;
+        } catch (IOException e) {
+            logger.warn("Cannot grow the checkpoint journal: {}", e.getMessage());
+            return segment;
+        }
+    }
+
+    /**
+     * Compact in the background this segment no more active, then clear it if successful and still
+     * not active
+     *
+     * @param index
+     */
+    private void scheduleCompaction(final int index) {
+        if (compacting[index]) {
+            return;
+        }
+        compacting[index] = true;
+        final int generation = generations[index];
+        try {
+            launchCompaction(new Thread() {
+                @Override
+                public void run() {
+                    // outside of the lock such that appending goes on while writing
+                    boolean compacted = compact();
+                    synchronized (CheckpointJournal.this) {
+                        compacting[index] = false;
+                        if (compacted && generations[index] == generation && active != index) {
+                            clear(index);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // in shutdown: compacted at close
+            compacting[index] = false;
+        }
+    }
+
+    /**
+     * Run this compaction task as soon as possible (not in the caller thread)
+     *
+     * @param task
+     */
+    protected void launchCompaction(Thread task) {
+        Configuration.configuration.launchInFixedDelay(task, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write all pending checkpoints into the database, such that all records of a segment no
+     * more active are taken into account (by these checkpoints or by synchronous saves)
+     *
+     * @return True if compacted
+     */
+    private boolean compact() {
+        try {
+            checkpointService.compact();
+            compactions.incrementAndGet();
+            return true;
+        } catch (WaarpDatabaseException e) {
+            // the rank in the database stays behind (never ahead), the transfer restarting
+            // from there if the server stops before the next compaction
+            logger.warn("Cannot compact the checkpoint journal: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Clear this compacted segment
+     *
+     * @param index
+     */
+    private void clear(int index) {
+        MappedByteBuffer segment = segments[index];
+        segment.putInt(0, 0);
+        segment.position(0);
+        cleared[index] = true;
+    }
+
+    /**
+     * Write the last record of each runner found in the journal of the directory into the RUNNER
+     * table, then clear the journal
+     *
+     * @param session
+     * @param directory
+     *            the directory of the segments
+     * @return the number of replayed runners
+     */
+    public static int replay(DbSession session, File directory) {
+        Map<String, Record> last = new HashMap<String, Record>();
+        List<File> read = new ArrayList<File>(SEGMENTS.length);
+        for (String name : SEGMENTS) {
+            File file = new File(directory, name);
+            if (file.isFile()) {
+                try {
+                    read(file, last);
+                    read.add(file);
+                } catch (IOException e) {
+                    logger.warn("Cannot read the checkpoint journal {}: {}", file, e.getMessage());
+                }
+            }
+        }
+        if (last.isEmpty()) {
+            // nothing to replay (as after an idle run)
+            delete(read);
+            return 0;
+        }
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+        try {
+            preparedStatement.createPrepareStatement("UPDATE " + DbTaskRunner.table + " SET "
+                    + Columns.RANK.name() + " = ?, " + Columns.GLOBALSTEP.name() + " = ?, "
+                    + Columns.STEPSTATUS.name() + " = ? WHERE " + Columns.OWNERREQ.name()
+                    + " = ? AND " + Columns.REQUESTER.name() + " = ? AND "
+                    + Columns.REQUESTED.name() + " = ? AND " + Columns.SPECIALID.name() + " = ? AND ("
+                    + Columns.UPDATEDINFO.name() + " = " + UpdatedInfo.RUNNING.ordinal() + " OR "
+                    + Columns.UPDATEDINFO.name() + " = " + UpdatedInfo.INTERRUPTED.ordinal() + ")");
+            PreparedStatement statement = preparedStatement.getPreparedStatement();
+            for (Record record : last.values()) {
+                statement.setInt(1, record.rank);
+                statement.setInt(2, record.step);
+                statement.setString(3, record.status);
+                statement.setString(4, record.ownerRequest);
+                statement.setString(5, record.requester);
+                statement.setString(6, record.requested);
+                statement.setLong(7, record.specialId);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (WaarpDatabaseException e) {
+            logger.error("Cannot replay the checkpoint journal", e);
+            return 0;
+        } catch (SQLException e) {
+            logger.error("Cannot replay the checkpoint journal", e);
+            return 0;
+        } finally {
+            preparedStatement.realClose();
+        }
+        delete(read);
+        logger.info("Checkpoint journal replayed for {} transfers", last.size());
+        return last.size();
+    }
+
+    private static void delete(List<File> segments) {
+        for (File file : segments) {
+            if (!file.delete()) {
+                logger.warn("Cannot delete the checkpoint journal {}", file);
+            }
+        }
+    }
+
+    /**
+     * Read the valid records of one segment, up to the end marker or the first torn record
+     *
+     * @param file
+     * @param last
+     *            the last record of each runner, updated with the newer ones
+     * @throws IOException
+     */
+    static void read(File file, Map<String, Record> last) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length());
+            CRC32 check = new CRC32();
+            byte[] bytes = new byte[256];
+            while (segment.remaining() >= RECORD_OVERHEAD) {
+                int start = segment.position();
+                int length = segment.getInt();
+                if (length < RECORD_OVERHEAD || length - 4 > segment.remaining()) {
+                    // end marker or torn record
+                    return;
+                }
+                if (bytes.length < length) {
+                    bytes = new byte[length];
+                }
+                segment.position(start);
+                segment.get(bytes, 0, length);
+                ByteBuffer record = ByteBuffer.wrap(bytes, 0, length);
+                check.reset();
+                check.update(bytes, 4, length - 8);
+                if (record.getInt(length - 4) != (int) check.getValue()) {
+                    logger.warn("Torn record in checkpoint journal {} at {}", file, start);
+                    return;
+                }
+                try {
+                    record.position(4);
+                    long seq = record.getLong();
+                    long specialId = record.getLong();
+                    int rank = record.getInt();
+                    int step = record.getInt();
+                    String owner = getString(record);
+                    String requester = getString(record);
+                    String requested = getString(record);
+                    String status = getString(record);
+                    String key = requested + " " + requester + " " + specialId;
+                    Record previous = last.get(key);
+                    if (previous == null || previous.sequence < seq) {
+                        last.put(key, new Record(seq, owner, requester, requested, specialId,
+                                rank, step, status));
+                    }
+                } catch (BufferUnderflowException e) {
+                    return;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Force the records appended so far to the storage, appending going on meanwhile (at each
+     * flush of the CheckpointService)
+     */
+    public void force() {
+        MappedByteBuffer[] toForce;
+        synchronized (this) {
+            if (forced == sequence) {
+                return;
+            }
+            forced = sequence;
+            toForce = segments.clone();
+        }
+        for (MappedByteBuffer segment : toForce) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Force the records to the storage and compact them (at shutdown)
+     */
+    public synchronized void close() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        forced = sequence;
+        compact();
+    }
+
+    /**
+     * @return the number of records appended since startup
+     */
+    public static long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * @return the number of compactions of a full segment since startup
+     */
+    public static long getCompactions() {
+        return compactions.get();
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.database.data;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.database.DbConstant;
+import org.waarp.openr66.database.data.DbTaskRunner.Columns;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.utils.R66ShutdownHook;
+
+/**
+ * Write behind checkpoints of the progress of the transfers.<br>
+ * <br>
+ * While transferring, the rank and the status of a runner are only kept here (the last one per
+ * runner), then written to the RUNNER table in one JDBC batch, every delay or as soon as the batch
+ * size is reached. The synchronous saves (saveStatus) still write the full row immediately and
+ * replace any pending checkpoint of the runner.<br>
+ * <br>
+ * The rank of a checkpoint is only increased once the block is written, so the rank in the
+ * database is never ahead of the data: after a crash, a transfer restarts at most the blocks of
+ * the last delay before the crash.
+ *
+ * @author Frederic Bregier
+ */
+public class CheckpointService {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(CheckpointService.class);
+
+    /**
+     * Last checkpoint of one runner
+     */
+    static class Checkpoint {
+        final String ownerRequest;
+        final String requester;
+        final String requested;
+        final long specialId;
+        volatile int rank;
+        volatile String status;
+        volatile long time;
+        /**
+         * True once taken by a flush: not updated anymore (guarded by this)
+         */
+        boolean taken = false;
+
+        Checkpoint(String ownerRequest, String requester, String requested, long specialId) {
+            this.ownerRequest = ownerRequest;
+            this.requester = requester;
+            this.requested = requested;
+            this.specialId = specialId;
+        }
+    }
+
+    private static final AtomicLong checkpoints = new AtomicLong();
+
+    private static final AtomicLong writtenCheckpoints = new AtomicLong();
+
+    private static final AtomicLong batches = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Checkpoint> pending = new ConcurrentHashMap<String, Checkpoint>();
+
+    private final long delay;
+
+    private final int batchSize;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    /**
+     * Done once the last flush started has written its batch (checkpoints no more pending but not
+     * yet written before)
+     */
+    private volatile CountDownLatch flushDone = null;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Journal of the progress forced to the storage at each flush (if any)
+     */
+    private volatile CheckpointJournal journal = null;
+
+    private final Thread flushTask = new Thread() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flush();
+        }
+    };
+
+    /**
+     * @param delay
+     *            maximum delay in ms before a checkpoint is written
+     * @param batchSize
+     *            number of pending runners triggering a flush before the delay
+     */
+    public CheckpointService(long delay, int batchSize) {
+        this.delay = delay;
+        this.batchSize = batchSize < 1 ? 1 : batchSize;
+    }
+
+    /**
+     * Periodic flush
+     */
+    private class PeriodicFlush extends Thread {
+        @Override
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            flush();
+            if (!stopped && !R66ShutdownHook.isShutdownStarting()) {
+                Configuration.configuration.launchInFixedDelay(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Start the periodic flush
+     */
+    public void start() {
+        Configuration.configuration.launchInFixedDelay(new PeriodicFlush(), delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the periodic flush, writing the pending checkpoints
+     */
+    public void stop() {
+        stopped = true;
+        flush();
+    }
+
+    /**
+     * Keep the progress of this runner, to be written with the next batch
+     *
+     * @param key
+     *            the key of the runner
+     * @param ownerRequest
+     * @param requester
+     * @param requested
+     * @param specialId
+     * @param rank
+     * @param status
+     *            the code of the current status
+     */
+    void checkpoint(String key, String ownerRequest, String requester, String requested,
+            long specialId, int rank, String status) {
+        for (;;) {
+            Checkpoint checkpoint = pending.get(key);
+            if (checkpoint == null) {
+                Checkpoint newCheckpoint = new Checkpoint(ownerRequest, requester, requested,
+                        specialId);
+                checkpoint = pending.putIfAbsent(key, newCheckpoint);
+                if (checkpoint == null) {
+                    checkpoint = newCheckpoint;
+                }
+            }
+            synchronized (checkpoint) {
+                if (!checkpoint.taken) {
+                    checkpoint.rank = rank;
+                    checkpoint.status = status;
+                    checkpoint.time = System.currentTimeMillis();
+                    break;
+                }
+            }
+            // taken by a flush in the meantime (or put back by a failed one): use a new one
+            pending.remove(key, checkpoint);
+        }
+        checkpoints.incrementAndGet();
+        if (pending.size() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Drop the pending checkpoint of this runner before its full row is written synchronously,
+     * waiting for a flush taking it such that an older checkpoint cannot be written after the full
+     * row, nor be kept pending again by a failed batch
+     *
+     * @param key
+     *            the key of the runner
+     */
+    void forget(String key) {
+        CountDownLatch before = flushDone;
+        pending.remove(key);
+        CountDownLatch after = flushDone;
+        if (before == null && after == null) {
+            return;
+        }
+        // a flush in progress, or started meanwhile, may have taken this checkpoint
+        try {
+            if (before != null) {
+                before.await();
+            }
+            if (after != null && after != before) {
+                after.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // a failed batch puts back its checkpoints
+        pending.remove(key);
+    }
+
+    /**
+     * @param journal
+     *            the journal whose records are forced to the storage at each flush
+     */
+    void setJournal(CheckpointJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Run a flush as soon as possible (not in the caller thread)
+     */
+    protected void scheduleFlush() {
+        try {
+            Configuration.configuration.launchInFixedDelay(flushTask, 0, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // in shutdown, the periodic flush or the stop will write them
+            flushScheduled.set(false);
+        }
+    }
+
+    /**
+     * Force the journal if any, then write all pending checkpoints in one batch (checkpoints in
+     * error are kept pending unless replaced in the meantime)
+     *
+     * @return the number of written checkpoints
+     */
+    public int flush() {
+        CheckpointJournal current = journal;
+        if (current != null) {
+            // not within the lock of this service, taken by the journal while closing
+            current.force();
+        }
+        try {
+            return compact();
+        } catch (WaarpDatabaseException e) {
+            logger.warn("Cannot write checkpoints: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Write all pending checkpoints in one batch, such that all checkpoints taken before are in
+     * the database once done without error
+     *
+     * @return the number of written checkpoints
+     * @throws WaarpDatabaseException
+     *             if the batch is in error (checkpoints being kept pending unless replaced in the
+     *             meantime)
+     */
+    synchronized int compact() throws WaarpDatabaseException {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        flushDone = done;
+        try {
+            List<String> keys = new ArrayList<String>(pending.size());
+            List<Checkpoint> batch = new ArrayList<Checkpoint>(pending.size());
+            for (Entry<String, Checkpoint> entry : pending.entrySet()) {
+                Checkpoint checkpoint = entry.getValue();
+                if (pending.remove(entry.getKey(), checkpoint)) {
+                    // no more updated once taken, a new one being pending for the next batch
+                    synchronized (checkpoint) {
+                        checkpoint.taken = true;
+                    }
+                    keys.add(entry.getKey());
+                    batch.add(checkpoint);
+                }
+            }
+            if (batch.isEmpty()) {
+                return 0;
+            }
+            try {
+                writeBatch(batch);
+            } catch (WaarpDatabaseException e) {
+                for (int i = 0; i < batch.size(); i++) {
+                    pending.putIfAbsent(keys.get(i), batch.get(i));
+                }
+                throw e;
+            }
+            batches.incrementAndGet();
+            writtenCheckpoints.addAndGet(batch.size());
+            return batch.size();
+        } finally {
+            done.countDown();
+        }
+    }
+
+    /**
+     * Write this batch of checkpoints into the RUNNER table
+     *
+     * @param batch
+     * @throws WaarpDatabaseException
+     */
+    protected void writeBatch(List<Checkpoint> batch) throws WaarpDatabaseException {
+        if (DbConstant.admin == null || !DbConstant.admin.isActive()) {
+            throw new WaarpDatabaseSqlException("Database not available for checkpoints");
+        }
+        DbSession session = DbConstant.admin.getSession();
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+        try {
+            preparedStatement.createPrepareStatement("UPDATE " + DbTaskRunner.table + " SET "
+                    + Columns.RANK.name() + " = ?, " + Columns.STEPSTATUS.name() + " = ?, "
+                    + Columns.STOPTRANS.name() + " = ? WHERE " + Columns.OWNERREQ.name()
+                    + " = ? AND " + Columns.REQUESTER.name() + " = ? AND "
+                    + Columns.REQUESTED.name() + " = ? AND " + Columns.SPECIALID.name() + " = ?");
+            PreparedStatement statement = preparedStatement.getPreparedStatement();
+            for (Checkpoint checkpoint : batch) {
+                statement.setInt(1, checkpoint.rank);
+                statement.setString(2, checkpoint.status);
+                statement.setTimestamp(3, new Timestamp(checkpoint.time));
+                statement.setString(4, checkpoint.ownerRequest);
+                statement.setString(5, checkpoint.requester);
+                statement.setString(6, checkpoint.requested);
+                statement.setLong(7, checkpoint.specialId);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } catch (SQLException e) {
+            throw new WaarpDatabaseSqlException("Cannot write checkpoints batch", e);
+        } finally {
+            preparedStatement.realClose();
+        }
+    }
+
+    /**
+     * @return the number of pending checkpoints
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of checkpoints taken since startup
+     */
+    public static long getCheckpoints() {
+        return checkpoints.get();
+    }
+
+    /**
+     * @return the number of checkpoints written since startup (the others being coalesced)
+     */
+    public static long getWrittenCheckpoints() {
+        return writtenCheckpoints.get();
+    }
+
+    /**
+     * @return the number of batches written since startup
+     */
+    public static long getBatches() {
+        return batches.get();
+    }
+}
@@ -26,6 +26,7 @@ import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -77,6 +78,7 @@ import org.waarp.openr66.protocol.localhandler.packet.ErrorPacket;
 import org.waarp.openr66.protocol.localhandler.packet.RequestPacket;
 import org.waarp.openr66.protocol.localhandler.packet.RequestPacket.TRANSFERMODE;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
+import org.waarp.openr66.protocol.utils.FileBundle;
 import org.waarp.openr66.protocol.utils.NbAndSpecialId;
 import org.waarp.openr66.protocol.utils.R66Future;
 import org.xml.sax.SAXException;
@@ -101,6 +103,8 @@ public class DbTaskRunner extends AbstractDbData {
 
     public static final String JSON_RESCHEDULE = "RESCHEDULE";
 
+    public static final String JSON_PRIORITY = "PRIORITY";
+
     /**
      * Internal Logger
      */
@@ -269,6 +273,11 @@ public class DbTaskRunner extends AbstractDbData {
 
     private volatile boolean continueTransfer = true;
 
+    /**
+     * True while saves are deferred (post tasks of the members of a bundle)
+     */
+    private boolean deferSave = false;
+
     private boolean rescheduledTransfer = false;
 
     private LocalChannelReference localChannelReference = null;
@@ -1344,15 +1353,22 @@ public class DbTaskRunner extends AbstractDbData {
             }
         }
         // FIX SelfRequest
+        if (isUpdatedHere()) {
+            optimizedUpdate();
+        }
+    }
+
+    /**
+     * 
+     * @return True if this side updates the runner (for a SelfRequest, only one side does)
+     */
+    private boolean isUpdatedHere() {
         if (isSelfRequest()) {
-            if (RequestPacket.isCompatibleMode(mode,
+            return RequestPacket.isCompatibleMode(mode,
                     isSender ? RequestPacket.TRANSFERMODE.RECVMODE.ordinal() :
-                            RequestPacket.TRANSFERMODE.SENDMODE.ordinal())) {
-                optimizedUpdate();
-            }
-        } else {
-            optimizedUpdate();
+                            RequestPacket.TRANSFERMODE.SENDMODE.ordinal());
         }
+        return true;
     }
 
     /**
@@ -1361,6 +1377,11 @@ public class DbTaskRunner extends AbstractDbData {
      * @throws WaarpDatabaseException
      */
     protected void optimizedUpdate() throws WaarpDatabaseException {
+        CheckpointService checkpointService = Configuration.configuration.getCheckpointService();
+        if (checkpointService != null) {
+            // the full row replaces any pending checkpoint
+            checkpointService.forget(getKey());
+        }
         setToArray();
         // getting the preparedStatement
         if (preparedStatementUpdate == null) {
@@ -1377,6 +1398,12 @@ public class DbTaskRunner extends AbstractDbData {
                 throw new WaarpDatabaseNoDataException("No row found");
             }
             isSaved = true;
+            CheckpointJournal journal = Configuration.configuration.getCheckpointJournal();
+            if (journal != null) {
+                // newer than the previous records of this runner at replay
+                journal.append(ownerRequest, requesterHostId, requestedHostId, specialId, rank,
+                        globalstep, status.getCode());
+            }
         } finally {
             // preparedStatement.realClose();
         }
@@ -2334,6 +2361,9 @@ public class DbTaskRunner extends AbstractDbData {
      */
     public static void resetToSubmit(DbSession session)
             throws WaarpDatabaseNoConnectionException {
+        // First restore the exact positions of the transfers from the local journal
+        CheckpointJournal.replay(session,
+                Configuration.configuration.getCheckpointJournalDirectory());
         // Change RUNNING and INTERRUPTED to TOSUBMIT since they should be ready
         String request = "UPDATE " + table + " SET " +
                 Columns.UPDATEDINFO.name() + "=" +
@@ -2601,6 +2631,21 @@ public class DbTaskRunner extends AbstractDbData {
         }
     }
 
+    /**
+     * Set the final rank once all blocks are transferred, when some of them were not counted in the
+     * rank (multiple streams transfer)
+     * 
+     * @param rank
+     *            the total number of blocks
+     */
+    public void setRankAtEndOfTransfer(int rank) {
+        if (this.rank < rank) {
+            this.rank = rank;
+            allFields[Columns.RANK.ordinal()].setValue(this.rank);
+            isSaved = false;
+        }
+    }
+
     /**
      * @param filename
      *            the filename to set
@@ -2725,6 +2770,29 @@ public class DbTaskRunner extends AbstractDbData {
         setTransferInformation(JsonHandler.writeAsString(map));
     }
 
+    /**
+     * 
+     * @param priority
+     *            the priority requested for this transfer, overriding the one of the rule
+     */
+    public void setRequestedPriority(int priority) {
+        Map<String, Object> map = getTransferMap();
+        map.put(JSON_PRIORITY, priority);
+        setTransferMap(map);
+    }
+
+    /**
+     * 
+     * @return the priority requested for this transfer, or -1 if none (see TransferPriority)
+     */
+    public int getRequestedPriority() {
+        Object priority = getTransferMap().get(JSON_PRIORITY);
+        if (priority instanceof Number) {
+            return ((Number) priority).intValue();
+        }
+        return -1;
+    }
+
     /**
      * 
      * @param size the new size value to set in TransferMap
@@ -3340,6 +3408,14 @@ public class DbTaskRunner extends AbstractDbData {
                         if (localChannelReference.isPartialHash()) {
                             hash = null; // ignore
                         }
+                        File trueFile = file.getTrueFile();
+                        if (hash != null && !Configuration.configuration.isDigestVerify() && trueFile != null
+                                && localChannelReference.getHashComputeLength() >= 0
+                                && localChannelReference.getHashComputeLength() == trueFile.length()) {
+                            // complete hash computed during transfer on the whole file: no need to read it again
+                            logger.debug("Final digest computed during transfer kept: {}", file);
+                            hash = null;
+                        }
                         if (hash != null) {
                             // we can compute it once more
                             try {
@@ -3402,7 +3478,13 @@ public class DbTaskRunner extends AbstractDbData {
                 }
             }
             try {
-                this.run();
+                if (!this.isSender() && !isRecvThrough() && this.step == 0
+                        && Configuration.configuration.isBundleAccepted()
+                        && FileBundle.isBundle(fileInformation)) {
+                    runBundle(file);
+                } else {
+                    this.run();
+                }
             } catch (OpenR66RunnerErrorException e1) {
                 R66Result result = new R66Result(e1, this.session, false,
                         ErrorCode.ExternalOp, this);
@@ -3449,6 +3531,87 @@ public class DbTaskRunner extends AbstractDbData {
         }
     }
 
+    /**
+     * Run the post tasks once per member of a received bundle instead of once for the bundle
+     * itself. The members are extracted in a directory of their own next to the bundle, which is
+     * deleted once all members are done. Saves are deferred while running the members, their
+     * results being written at once in the TransferMap. On retry, the members already done are
+     * neither extracted nor run again.
+     * 
+     * @param file
+     *            the bundle
+     * @throws OpenR66RunnerErrorException
+     */
+    private void runBundle(R66File file) throws OpenR66RunnerErrorException {
+        File bundle = file.getTrueFile();
+        Map<String, Object> results = new LinkedHashMap<String, Object>();
+        Object previous = getTransferMap().get(FileBundle.JSON_BUNDLE);
+        if (previous instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) previous).entrySet()) {
+                if (ErrorCode.CompleteOk.name().equals(entry.getValue())) {
+                    results.put(entry.getKey().toString(), ErrorCode.CompleteOk.name());
+                }
+            }
+        }
+        File dir = FileBundle.getMemberDirectory(bundle, specialId);
+        List<File> members;
+        try {
+            members = FileBundle.extract(bundle, dir, results.keySet());
+        } catch (IOException e) {
+            throw new OpenR66RunnerErrorException("Cannot extract bundle: " + e.getMessage(), e);
+        }
+        logger.debug("Bundle {} with {} members to run, {} already done", bundle, members.size(),
+                results.size());
+        R66File bundleFile = session.getFile();
+        String bundleName = this.filename;
+        ErrorCode error = null;
+        deferSave = true;
+        try {
+            for (File member : members) {
+                session.setFile(new R66File(session, session.getDir(), member.getAbsolutePath()));
+                setFilename(member.getAbsolutePath());
+                step = 0;
+                status = ErrorCode.Running;
+                try {
+                    run();
+                    results.put(member.getName(), ErrorCode.CompleteOk.name());
+                } catch (OpenR66RunnerErrorException e) {
+                    error = infostatus;
+                    results.put(member.getName(), infostatus.name());
+                    logger.warn("Post task in error for bundle member " + member + ": "
+                            + e.getMessage());
+                }
+            }
+        } finally {
+            deferSave = false;
+            session.setFile(bundleFile);
+            setFilename(bundleName);
+        }
+        Map<String, Object> map = getTransferMap();
+        map.put(FileBundle.JSON_BUNDLE, results);
+        setTransferMap(map);
+        step = 0;
+        allFields[Columns.STEP.ordinal()].setValue(step);
+        if (error != null) {
+            infostatus = error;
+            allFields[Columns.INFOSTATUS.ordinal()].setValue(infostatus.getCode());
+            this.setErrorExecutionStatus(infostatus);
+            this.saveStatus();
+            throw new OpenR66RunnerErrorException("Runner is failed on bundle members: "
+                    + infostatus.mesg);
+        }
+        status = infostatus = ErrorCode.PostProcessingOk;
+        allFields[Columns.STEPSTATUS.ordinal()].setValue(status.getCode());
+        allFields[Columns.INFOSTATUS.ordinal()].setValue(infostatus.getCode());
+        isSaved = false;
+        this.saveStatus();
+        if (!bundle.delete()) {
+            logger.warn("Cannot delete bundle once extracted: " + bundle);
+        }
+        // only if the post tasks moved all the members
+        dir.delete();
+    }
+
     /**
      * Finalize a transfer in error
      * 
@@ -3545,14 +3708,45 @@ public class DbTaskRunner extends AbstractDbData {
      * @throws OpenR66ProtocolPacketException
      */
     public void incrementRank() throws OpenR66ProtocolPacketException {
-        rank++;
+        advanceRank(rank + 1);
+    }
+
+    /**
+     * Move the rank of the transfer forward to the given rank, as incrementRank does for one block
+     * (all the blocks before this rank being done, as for the sub streams of a multiple streams
+     * transfer)
+     * 
+     * @param newRank
+     * @throws OpenR66ProtocolPacketException
+     */
+    public void advanceRank(int newRank) throws OpenR66ProtocolPacketException {
+        if (newRank <= rank) {
+            return;
+        }
+        int oldRank = rank;
+        rank = newRank;
         allFields[Columns.RANK.ordinal()].setValue(rank);
         isSaved = false;
+        CheckpointService checkpointService = Configuration.configuration.getCheckpointService();
+        if (checkpointService != null && dbSession != null && !shallIgnoreSave()) {
+            // written with the next batch of checkpoints
+            if (isUpdatedHere()) {
+                checkpointService.checkpoint(getKey(), ownerRequest, requesterHostId,
+                        requestedHostId, specialId, rank, status.getCode());
+                // journaled once checkpointed, such that a compaction covers it
+                CheckpointJournal journal = Configuration.configuration.getCheckpointJournal();
+                if (journal != null) {
+                    journal.append(ownerRequest, requesterHostId, requestedHostId, specialId,
+                            rank, globalstep, status.getCode());
+                }
+            }
+            return;
+        }
         int modulo = 10;
         if (!DbConstant.admin.isCompatibleWithThreadSharedConnexion()) {
             modulo = 100; // Bug in JDBC MariaDB/MySQL which tends to consume more memory
         }
-        if (rank % modulo == 0) {
+        if (rank / modulo != oldRank / modulo) {
             // Save each 10 blocks
             try {
                 update();
@@ -3568,6 +3762,9 @@ public class DbTaskRunner extends AbstractDbData {
      * @throws OpenR66RunnerErrorException
      */
     public void saveStatus() throws OpenR66RunnerErrorException {
+        if (deferSave) {
+            return;
+        }
         try {
             update();
         } catch (WaarpDatabaseException e) {
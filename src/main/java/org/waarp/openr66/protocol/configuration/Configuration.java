@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -34,7 +35,9 @@ import java.util.concurrent.TimeUnit;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -74,6 +77,8 @@ import org.waarp.openr66.context.R66FiniteDualStates;
 import org.waarp.openr66.context.task.localexec.LocalExecClient;
 import org.waarp.openr66.database.DbConstant;
 import org.waarp.openr66.database.data.DbHostAuth;
+import org.waarp.openr66.database.data.CheckpointJournal;
+import org.waarp.openr66.database.data.CheckpointService;
 import org.waarp.openr66.database.data.DbTaskRunner;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNoDataException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNoSslException;
@@ -84,6 +89,7 @@ import org.waarp.openr66.protocol.http.adminssl.HttpSslInitializer;
 import org.waarp.openr66.protocol.http.rest.HttpRestR66Handler;
 import org.waarp.openr66.protocol.localhandler.LocalTransaction;
 import org.waarp.openr66.protocol.localhandler.Monitoring;
+import org.waarp.openr66.protocol.networkhandler.BandwidthClasses;
 import org.waarp.openr66.protocol.networkhandler.ChannelTrafficHandler;
 import org.waarp.openr66.protocol.networkhandler.GlobalTrafficHandler;
 import org.waarp.openr66.protocol.networkhandler.NetworkServerInitializer;
@@ -92,8 +98,10 @@ import org.waarp.openr66.protocol.networkhandler.R66ConstraintLimitHandler;
 import org.waarp.openr66.protocol.networkhandler.ssl.NetworkSslServerInitializer;
 import org.waarp.openr66.protocol.snmp.R66PrivateMib;
 import org.waarp.openr66.protocol.snmp.R66VariableFactory;
+import org.waarp.openr66.protocol.utils.BlockDigest;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
 import org.waarp.openr66.protocol.utils.R66ShutdownHook;
+import org.waarp.openr66.protocol.utils.TransferPriority;
 import org.waarp.openr66.protocol.utils.Version;
 import org.waarp.openr66.thrift.R66ThriftServerService;
 import org.waarp.snmp.WaarpMOFactory;
@@ -577,6 +585,166 @@ public class Configuration {
 
     private long timeLimitCache = 180000;
 
+    /**
+     * Number of data blocks in flight per sending transfer
+     */
+    private int senderWindow = 8;
+
+    /**
+     * Zero copy (FileRegion) send path allowed when possible
+     */
+    private boolean zeroCopy = true;
+
+    /**
+     * Direct dispatch of network packets to the local handlers (bypassing LocalChannel)
+     */
+    private boolean directDispatch = false;
+
+    /**
+     * Number of threads shared by all asynchronous senders
+     */
+    private int senderThreads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    /**
+     * Number of received blocks waiting to be written per transfer (0 for synchronous writes)
+     */
+    private int writeBehindQueue = 16;
+
+    /**
+     * Number of threads shared by all write behind disk writers
+     */
+    private int writeBehindThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Synchronize received files to disk at end of transfer
+     */
+    private boolean fsync = false;
+
+    /**
+     * Preallocate received files of known size and use positional writes
+     */
+    private boolean preallocate = false;
+
+    /**
+     * Maximum number of parallel streams for one transfer (1 = disabled)
+     */
+    private int multiStreams = 1;
+
+    /**
+     * Tune the block size per partner when not forced
+     */
+    private boolean blockSizeAuto = false;
+
+    /**
+     * Minimal block size chosen by the per partner tuning
+     */
+    private int blockSizeMin = 0x4000;
+
+    /**
+     * Maximal block size chosen by the per partner tuning
+     */
+    private int blockSizeMax = 0x100000;
+
+    /**
+     * Compress data blocks with partners supporting it
+     */
+    private boolean compression = false;
+
+    /**
+     * Rules allowed to use compression (empty for all rules)
+     */
+    private Set<String> compressionRules = new HashSet<String>();
+
+    /**
+     * Read again received files to check the global digest even if computed during the transfer
+     */
+    private boolean digestVerify = false;
+
+    /**
+     * Lightweight checksum used on each block in MD5 mode with partners accepting it (empty for none)
+     */
+    private String blockChecksum = "";
+
+    /**
+     * Maximum number of partners kept warm once used (0 for none)
+     */
+    private int warmPoolPartners = 0;
+
+    /**
+     * Delay in ms without transfer before a partner is no more kept warm
+     */
+    private long warmPoolIdle = 300000;
+
+    /**
+     * Host ids always kept warm
+     */
+    private Set<String> warmPoolHosts = new HashSet<String>();
+
+    /**
+     * Resume the previous SSL session with the same partner on outgoing connections
+     */
+    private boolean sslSessionResumption = true;
+
+    /**
+     * Size of the SSL session caches (0 for unlimited, negative for JSSE default)
+     */
+    private int sslSessionCacheSize = -1;
+
+    /**
+     * Timeout in seconds of the SSL sessions in cache (0 for unlimited, negative for JSSE default)
+     */
+    private int sslSessionTimeout = -1;
+
+    /**
+     * Send the request with the authentication on already authenticated network channels
+     */
+    private boolean pipelineHandshake = false;
+
+    /**
+     * Extract the bundles of small files received
+     */
+    private boolean bundleAccepted = true;
+
+    /**
+     * Low watermark of the write buffer of network channels
+     */
+    private int writeBufferLowWaterMark = 0x40000;
+
+    /**
+     * High watermark of the write buffer of network channels
+     */
+    private int writeBufferHighWaterMark = 0x100000;
+
+    /**
+     * Hierarchical shaping of sent data (global, partners, rules)
+     */
+    private final BandwidthClasses bandwidthClasses = new BandwidthClasses();
+
+    /**
+     * Default priority of transfers
+     */
+    private int defaultPriority = TransferPriority.LOWEST;
+
+    /**
+     * Priorities of rules
+     */
+    private final ConcurrentHashMap<String, Integer> rulePriorities = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Write behind checkpoints of the progress of transfers (null if disabled)
+     */
+    private CheckpointService checkpointService = null;
+
+    /**
+     * Size in bytes of each segment of the checkpoint journal (0 for no journal)
+     */
+    private int checkpointJournalSize = 0;
+
+    /**
+     * Local journal of the progress of transfers (null if disabled or not yet started)
+     */
+    private volatile CheckpointJournal checkpointJournal = null;
+
     public Configuration() {
         // Init signal handler
         getShutdownConfiguration().timeout = getTIMEOUTCON();
@@ -613,6 +781,98 @@ public class Configuration {
         if (getTimeLimitCache() < 1000) {
             setTimeLimitCache(1000);
         }
+        setSenderWindow(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_SENDER_WINDOW, 8));
+        if (getSenderWindow() < 1) {
+            setSenderWindow(1);
+        }
+        setZeroCopy(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_ZEROCOPY, true));
+        setDirectDispatch(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_DIRECT_DISPATCH, false));
+        setSenderThreads(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_SENDER_THREADS, getSenderThreads()));
+        if (getSenderThreads() < 1) {
+            setSenderThreads(1);
+        }
+        setWriteBehindQueue(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_WRITEBEHIND_QUEUE, 16));
+        if (getWriteBehindQueue() < 0) {
+            setWriteBehindQueue(0);
+        }
+        setWriteBehindThreads(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_WRITEBEHIND_THREADS,
+                getWriteBehindThreads()));
+        if (getWriteBehindThreads() < 1) {
+            setWriteBehindThreads(1);
+        }
+        setFsync(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_FSYNC, false));
+        setPreallocate(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_PREALLOCATE, false));
+        setMultiStreams(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_MULTISTREAM, 1));
+        if (getMultiStreams() < 1) {
+            setMultiStreams(1);
+        }
+        setBlockSizeAuto(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_BLOCKSIZE_AUTO, false));
+        setBlockSizeMin(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_BLOCKSIZE_MIN, 0x4000));
+        if (getBlockSizeMin() < 100) {
+            setBlockSizeMin(100);
+        }
+        setBlockSizeMax(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_BLOCKSIZE_MAX, 0x100000));
+        if (getBlockSizeMax() < getBlockSizeMin()) {
+            setBlockSizeMax(getBlockSizeMin());
+        }
+        setCompression(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_COMPRESSION, false));
+        String rules = SystemPropertyUtil.get(R66SystemProperties.OPENR66_COMPRESSION_RULES, "");
+        for (String rule : rules.split(",")) {
+            if (!rule.trim().isEmpty()) {
+                getCompressionRules().add(rule.trim());
+            }
+        }
+        setDigestVerify(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_DIGEST_VERIFY, false));
+        setBlockChecksum(SystemPropertyUtil.get(R66SystemProperties.OPENR66_BLOCK_CHECKSUM, "").trim().toUpperCase());
+        if (!getBlockChecksum().isEmpty() && !BlockDigest.isChecksum(getBlockChecksum())) {
+            logger.warn("Unknown block checksum: " + getBlockChecksum());
+            setBlockChecksum("");
+        }
+        setWarmPoolPartners(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_WARMPOOL_PARTNERS, 0));
+        if (getWarmPoolPartners() < 0) {
+            setWarmPoolPartners(0);
+        }
+        setWarmPoolIdle(SystemPropertyUtil.getLong(R66SystemProperties.OPENR66_WARMPOOL_IDLE, 300000));
+        if (getWarmPoolIdle() < getTIMEOUTCON()) {
+            setWarmPoolIdle(getTIMEOUTCON());
+        }
+        String hosts = SystemPropertyUtil.get(R66SystemProperties.OPENR66_WARMPOOL_HOSTS, "");
+        for (String host : hosts.split(",")) {
+            if (!host.trim().isEmpty()) {
+                getWarmPoolHosts().add(host.trim());
+            }
+        }
+        setSslSessionResumption(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_SSL_RESUMPTION, true));
+        setSslSessionCacheSize(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_SSL_SESSIONCACHE_SIZE, -1));
+        setSslSessionTimeout(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_SSL_SESSIONCACHE_TIMEOUT, -1));
+        setPipelineHandshake(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_HANDSHAKE_PIPELINE, false));
+        setBundleAccepted(SystemPropertyUtil.getBoolean(R66SystemProperties.OPENR66_BUNDLE, true));
+        setWriteBufferWaterMark(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_WRITEBUFFER_LOW, 0x40000),
+                SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_WRITEBUFFER_HIGH, 0x100000));
+        getBandwidthClasses().configure(SystemPropertyUtil.get(R66SystemProperties.OPENR66_BANDWIDTH_PARTNERS, ""),
+                SystemPropertyUtil.get(R66SystemProperties.OPENR66_BANDWIDTH_RULES, ""));
+        setDefaultPriority(SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_PRIORITY_DEFAULT,
+                TransferPriority.LOWEST));
+        rules = SystemPropertyUtil.get(R66SystemProperties.OPENR66_PRIORITY_RULES, "");
+        for (String rule : rules.split(",")) {
+            String[] values = rule.trim().split(":");
+            if (values.length == 2 && !values[0].trim().isEmpty()) {
+                try {
+                    getRulePriorities().put(values[0].trim(),
+                            TransferPriority.check(Integer.parseInt(values[1].trim())));
+                } catch (NumberFormatException e) {
+                    logger.warn("Incorrect rule priority: " + rule);
+                }
+            }
+        }
+        long checkpointDelay = SystemPropertyUtil.getLong(R66SystemProperties.OPENR66_CHECKPOINT_DELAY, 1000);
+        if (checkpointDelay > 0) {
+            checkpointService = new CheckpointService(checkpointDelay,
+                    SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_CHECKPOINT_BATCH, 100));
+            checkpointService.start();
+        }
+        setCheckpointJournalSize(
+                SystemPropertyUtil.getInt(R66SystemProperties.OPENR66_CHECKPOINT_JOURNAL, 0));
         DbTaskRunner.createLruCache(getLimitCache(), getTimeLimitCache());
         if (getLimitCache() > 0 && getTimeLimitCache() > 1000) {
             launchInFixedDelay(new CleanLruCache(), getTimeLimitCache(), TimeUnit.MILLISECONDS);
@@ -731,6 +991,7 @@ public class Configuration {
         if (isUseNOSSL()) {
             serverBootstrap = new ServerBootstrap();
             WaarpNettyUtil.setServerBootstrap(serverBootstrap, bossGroup, workerGroup, (int) getTIMEOUTCON());
+            serverBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, getWriteBufferWaterMark());
             networkServerInitializer = new NetworkServerInitializer(true);
             serverBootstrap.childHandler(networkServerInitializer);
             ChannelFuture future = serverBootstrap.bind(new InetSocketAddress(getSERVER_PORT())).awaitUninterruptibly();
@@ -748,6 +1009,7 @@ public class Configuration {
         if (isUseSSL() && getHOST_SSLID() != null) {
             serverSslBootstrap = new ServerBootstrap();
             WaarpNettyUtil.setServerBootstrap(serverSslBootstrap, bossGroup, workerGroup, (int) getTIMEOUTCON());
+            serverSslBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, getWriteBufferWaterMark());
             networkSslServerInitializer = new NetworkSslServerInitializer(false);
             serverSslBootstrap.childHandler(networkSslServerInitializer);
             ChannelFuture future = serverSslBootstrap.bind(new InetSocketAddress(getSERVER_SSLPORT()))
@@ -949,6 +1211,12 @@ public class Configuration {
      */
     public void serverStop() {
         WaarpSslUtility.forceCloseAllSslChannels();
+        if (checkpointJournal != null) {
+            checkpointJournal.close();
+        }
+        if (checkpointService != null) {
+            checkpointService.stop();
+        }
         if (internalRunner != null) {
             internalRunner.stopInternalRunner();
         }
@@ -982,6 +1250,9 @@ public class Configuration {
      */
     public void clientStop(boolean shutdownQuickly) {
         WaarpSslUtility.forceCloseAllSslChannels();
+        if (checkpointService != null) {
+            checkpointService.stop();
+        }
         if (!Configuration.configuration.isServer()) {
             ChannelUtils.stopLogger();
         }
@@ -1792,6 +2063,7 @@ public class Configuration {
      */
     public void setServerGlobalWriteLimit(long serverGlobalWriteLimit) {
         this.serverGlobalWriteLimit = serverGlobalWriteLimit;
+        bandwidthClasses.setGlobalLimit(serverGlobalWriteLimit);
     }
 
     /**
@@ -2368,6 +2640,446 @@ public class Configuration {
         this.r66BusinessFactory = r66BusinessFactory;
     }
 
+    /**
+     * @return the senderWindow
+     */
+    public int getSenderWindow() {
+        return senderWindow;
+    }
+
+    /**
+     * @param senderWindow the senderWindow to set
+     */
+    public void setSenderWindow(int senderWindow) {
+        this.senderWindow = senderWindow;
+    }
+
+    /**
+     * @return the zeroCopy
+     */
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    /**
+     * @param zeroCopy the zeroCopy to set
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * @return the directDispatch
+     */
+    public boolean isDirectDispatch() {
+        return directDispatch;
+    }
+
+    /**
+     * @param directDispatch the directDispatch to set
+     */
+    public void setDirectDispatch(boolean directDispatch) {
+        this.directDispatch = directDispatch;
+    }
+
+    /**
+     * @return the senderThreads
+     */
+    public int getSenderThreads() {
+        return senderThreads;
+    }
+
+    /**
+     * @param senderThreads the senderThreads to set
+     */
+    public void setSenderThreads(int senderThreads) {
+        this.senderThreads = senderThreads;
+    }
+
+    /**
+     * @return the writeBehindQueue
+     */
+    public int getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    /**
+     * @param writeBehindQueue the writeBehindQueue to set
+     */
+    public void setWriteBehindQueue(int writeBehindQueue) {
+        this.writeBehindQueue = writeBehindQueue;
+    }
+
+    /**
+     * @return the writeBehindThreads
+     */
+    public int getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+
+    /**
+     * @param writeBehindThreads the writeBehindThreads to set
+     */
+    public void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    /**
+     * @return the fsync
+     */
+    public boolean isFsync() {
+        return fsync;
+    }
+
+    /**
+     * @param fsync the fsync to set
+     */
+    public void setFsync(boolean fsync) {
+        this.fsync = fsync;
+    }
+
+    /**
+     * @return the preallocate
+     */
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    /**
+     * @param preallocate the preallocate to set
+     */
+    public void setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    /**
+     * @return the maximum number of parallel streams for one transfer
+     */
+    public int getMultiStreams() {
+        return multiStreams;
+    }
+
+    /**
+     * @param multiStreams the maximum number of parallel streams for one transfer to set
+     */
+    public void setMultiStreams(int multiStreams) {
+        this.multiStreams = multiStreams;
+    }
+
+    /**
+     * @return True if the block size is tuned per partner when not forced
+     */
+    public boolean isBlockSizeAuto() {
+        return blockSizeAuto;
+    }
+
+    /**
+     * @param blockSizeAuto the blockSizeAuto to set
+     */
+    public void setBlockSizeAuto(boolean blockSizeAuto) {
+        this.blockSizeAuto = blockSizeAuto;
+    }
+
+    /**
+     * @return the minimal block size chosen by the per partner tuning
+     */
+    public int getBlockSizeMin() {
+        return blockSizeMin;
+    }
+
+    /**
+     * @param blockSizeMin the blockSizeMin to set
+     */
+    public void setBlockSizeMin(int blockSizeMin) {
+        this.blockSizeMin = blockSizeMin;
+    }
+
+    /**
+     * @return the maximal block size chosen by the per partner tuning
+     */
+    public int getBlockSizeMax() {
+        return blockSizeMax;
+    }
+
+    /**
+     * @param blockSizeMax the blockSizeMax to set
+     */
+    public void setBlockSizeMax(int blockSizeMax) {
+        this.blockSizeMax = blockSizeMax;
+    }
+
+    /**
+     * @return True if data blocks are compressed with partners supporting it
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression the compression to set
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return the rules allowed to use compression (empty for all rules)
+     */
+    public Set<String> getCompressionRules() {
+        return compressionRules;
+    }
+
+    /**
+     * @return True if received files are read again to check the global digest
+     */
+    public boolean isDigestVerify() {
+        return digestVerify;
+    }
+
+    /**
+     * @param digestVerify the digestVerify to set
+     */
+    public void setDigestVerify(boolean digestVerify) {
+        this.digestVerify = digestVerify;
+    }
+
+    /**
+     * @return the lightweight checksum used on each block in MD5 mode (empty for none)
+     */
+    public String getBlockChecksum() {
+        return blockChecksum;
+    }
+
+    /**
+     * @param blockChecksum the blockChecksum to set
+     */
+    public void setBlockChecksum(String blockChecksum) {
+        this.blockChecksum = blockChecksum;
+    }
+
+    /**
+     * @return the maximum number of partners kept warm once used (0 for none)
+     */
+    public int getWarmPoolPartners() {
+        return warmPoolPartners;
+    }
+
+    /**
+     * @param warmPoolPartners the warmPoolPartners to set
+     */
+    public void setWarmPoolPartners(int warmPoolPartners) {
+        this.warmPoolPartners = warmPoolPartners;
+    }
+
+    /**
+     * @return the delay in ms without transfer before a partner is no more kept warm
+     */
+    public long getWarmPoolIdle() {
+        return warmPoolIdle;
+    }
+
+    /**
+     * @param warmPoolIdle the warmPoolIdle to set
+     */
+    public void setWarmPoolIdle(long warmPoolIdle) {
+        this.warmPoolIdle = warmPoolIdle;
+    }
+
+    /**
+     * @return the host ids always kept warm
+     */
+    public Set<String> getWarmPoolHosts() {
+        return warmPoolHosts;
+    }
+
+    /**
+     * @return True if outgoing SSL connections resume the previous session with the same partner
+     */
+    public boolean isSslSessionResumption() {
+        return sslSessionResumption;
+    }
+
+    /**
+     * @param sslSessionResumption the sslSessionResumption to set
+     */
+    public void setSslSessionResumption(boolean sslSessionResumption) {
+        this.sslSessionResumption = sslSessionResumption;
+    }
+
+    /**
+     * @return the size of the SSL session caches (0 for unlimited, negative for JSSE default)
+     */
+    public int getSslSessionCacheSize() {
+        return sslSessionCacheSize;
+    }
+
+    /**
+     * @param sslSessionCacheSize the sslSessionCacheSize to set
+     */
+    public void setSslSessionCacheSize(int sslSessionCacheSize) {
+        this.sslSessionCacheSize = sslSessionCacheSize;
+    }
+
+    /**
+     * @return the timeout in seconds of the SSL sessions in cache (0 for unlimited, negative for JSSE
+     *         default)
+     */
+    public int getSslSessionTimeout() {
+        return sslSessionTimeout;
+    }
+
+    /**
+     * @param sslSessionTimeout the sslSessionTimeout to set
+     */
+    public void setSslSessionTimeout(int sslSessionTimeout) {
+        this.sslSessionTimeout = sslSessionTimeout;
+    }
+
+    /**
+     * @return True if the request is sent with the authentication on already authenticated network
+     *         channels
+     */
+    public boolean isPipelineHandshake() {
+        return pipelineHandshake;
+    }
+
+    /**
+     * @param pipelineHandshake the pipelineHandshake to set
+     */
+    public void setPipelineHandshake(boolean pipelineHandshake) {
+        this.pipelineHandshake = pipelineHandshake;
+    }
+
+    /**
+     * @return True if the bundles of small files received are extracted
+     */
+    public boolean isBundleAccepted() {
+        return bundleAccepted;
+    }
+
+    /**
+     * @param bundleAccepted the bundleAccepted to set
+     */
+    public void setBundleAccepted(boolean bundleAccepted) {
+        this.bundleAccepted = bundleAccepted;
+    }
+
+    /**
+     * @return the watermarks of the write buffer of network channels
+     */
+    public WriteBufferWaterMark getWriteBufferWaterMark() {
+        return new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark);
+    }
+
+    /**
+     * Set the watermarks of the write buffer of network channels, applied to the next channels. The
+     * high watermark is raised to the low one if lower.
+     * 
+     * @param low
+     *            the low watermark in bytes
+     * @param high
+     *            the high watermark in bytes
+     */
+    public void setWriteBufferWaterMark(int low, int high) {
+        if (low < 0) {
+            low = 0;
+        }
+        if (high < low) {
+            high = low;
+        }
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+    }
+
+    /**
+     * @return the hierarchical shaping of sent data
+     */
+    public BandwidthClasses getBandwidthClasses() {
+        return bandwidthClasses;
+    }
+
+    /**
+     * @return the default priority of transfers
+     */
+    public int getDefaultPriority() {
+        return defaultPriority;
+    }
+
+    /**
+     * @param defaultPriority the defaultPriority to set
+     */
+    public void setDefaultPriority(int defaultPriority) {
+        this.defaultPriority = TransferPriority.check(defaultPriority);
+    }
+
+    /**
+     * @return the priorities of rules
+     */
+    public ConcurrentHashMap<String, Integer> getRulePriorities() {
+        return rulePriorities;
+    }
+
+    /**
+     * @return the write behind checkpoints of the progress of transfers (null if disabled)
+     */
+    public CheckpointService getCheckpointService() {
+        return checkpointService;
+    }
+
+    /**
+     * @return the size in bytes of each segment of the checkpoint journal (0 for no journal)
+     */
+    public int getCheckpointJournalSize() {
+        return checkpointJournalSize;
+    }
+
+    /**
+     * @param checkpointJournalSize
+     *            the size in bytes of each segment of the checkpoint journal (0 for no journal),
+     *            applied at the next start of the journal
+     */
+    public void setCheckpointJournalSize(int checkpointJournalSize) {
+        if (checkpointJournalSize > 0 && checkpointJournalSize < CheckpointJournal.MINIMAL_SIZE) {
+            checkpointJournalSize = CheckpointJournal.MINIMAL_SIZE;
+        }
+        this.checkpointJournalSize = checkpointJournalSize < 0 ? 0 : checkpointJournalSize;
+    }
+
+    /**
+     * @return the directory of the checkpoint journal
+     */
+    public File getCheckpointJournalDirectory() {
+        return new File(getBaseDirectory() + getWorkingPath());
+    }
+
+    /**
+     * @return the local journal of the progress of transfers (null if disabled or not yet
+     *         started)
+     */
+    public CheckpointJournal getCheckpointJournal() {
+        return checkpointJournal;
+    }
+
+    /**
+     * Start the checkpoint journal if configured (to be called once the previous one is replayed)
+     */
+    public void startCheckpointJournal() {
+        if (checkpointJournalSize <= 0 || checkpointJournal != null) {
+            return;
+        }
+        if (checkpointService == null) {
+            logger.warn("Checkpoint journal needs " + R66SystemProperties.OPENR66_CHECKPOINT_DELAY
+                    + " to be positive: no journal");
+            return;
+        }
+        try {
+            checkpointJournal = new CheckpointJournal(getCheckpointJournalDirectory(),
+                    checkpointJournalSize, checkpointService);
+        } catch (IOException e) {
+            logger.warn("Cannot start the checkpoint journal: " + e.getMessage());
+        }
+    }
+
     private static class CleanLruCache extends Thread {
 
         @Override
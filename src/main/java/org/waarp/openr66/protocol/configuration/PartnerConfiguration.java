@@ -68,7 +68,8 @@ public class PartnerConfiguration {
     public static enum FIELDS {
         HOSTID("nohostid"), VERSION(R66Versions.V2_4_12.getVersion()),
         DIGESTALGO(DigestAlgo.MD5.name), FILESIZE(false), FINALHASH(false),
-        PROXIFIED(false), SEPARATOR(BLANK_SEPARATOR_FIELD);
+        PROXIFIED(false), SEPARATOR(BLANK_SEPARATOR_FIELD), MULTISTREAM(1),
+        COMPRESSION(false), BLOCKCHECKSUM(""), PIPELINE(false), BUNDLE(false);
 
         String name;
         Object defaultValue;
@@ -153,6 +154,11 @@ public class PartnerConfiguration {
         JsonHandler.setValue(root, FIELDS.DIGESTALGO, Configuration.configuration.getDigest().name);
         JsonHandler.setValue(root, FIELDS.PROXIFIED, Configuration.configuration.isHostProxyfied());
         JsonHandler.setValue(root, FIELDS.SEPARATOR, getSEPARATOR_FIELD());
+        JsonHandler.setValue(root, FIELDS.MULTISTREAM, Configuration.configuration.getMultiStreams());
+        JsonHandler.setValue(root, FIELDS.COMPRESSION, Configuration.configuration.isCompression());
+        JsonHandler.setValue(root, FIELDS.BLOCKCHECKSUM, Configuration.configuration.getBlockChecksum());
+        JsonHandler.setValue(root, FIELDS.PIPELINE, Configuration.configuration.isPipelineHandshake());
+        JsonHandler.setValue(root, FIELDS.BUNDLE, Configuration.configuration.isBundleAccepted());
         useJson = true;
         logger.debug("Info HostId: " + root.toString());
     }
@@ -214,6 +220,47 @@ public class PartnerConfiguration {
         return root.path(FIELDS.SEPARATOR.name).asText();
     }
 
+    /**
+     * 
+     * @return the maximum number of parallel streams this Host accepts for one transfer (1 if none)
+     */
+    public int getMultiStreams() {
+        return root.path(FIELDS.MULTISTREAM.name).asInt((Integer) FIELDS.MULTISTREAM.defaultValue);
+    }
+
+    /**
+     * 
+     * @return True if this Host accepts compressed data blocks
+     */
+    public boolean isCompression() {
+        return root.path(FIELDS.COMPRESSION.name).asBoolean((Boolean) FIELDS.COMPRESSION.defaultValue);
+    }
+
+    /**
+     * 
+     * @return the lightweight checksum this Host accepts on each block in MD5 mode (empty if none)
+     */
+    public String getBlockChecksum() {
+        return root.path(FIELDS.BLOCKCHECKSUM.name).asText();
+    }
+
+    /**
+     * 
+     * @return True if this Host accepts the request sent just after the authentication, without
+     *         waiting for its answer
+     */
+    public boolean isPipeline() {
+        return root.path(FIELDS.PIPELINE.name).asBoolean((Boolean) FIELDS.PIPELINE.defaultValue);
+    }
+
+    /**
+     * 
+     * @return True if this Host accepts bundles of small files
+     */
+    public boolean isBundle() {
+        return root.path(FIELDS.BUNDLE.name).asBoolean((Boolean) FIELDS.BUNDLE.defaultValue);
+    }
+
     /**
      * @return the useJson
      */
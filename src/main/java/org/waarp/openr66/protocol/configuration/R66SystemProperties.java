@@ -90,5 +90,149 @@ public class R66SystemProperties {
      * Minimal value is 1000 ms (1s). If set to 1000, the value will not be regularly deleted.
      */
     public static final String OPENR66_CACHE_TIMELIMIT = "openr66.cache.timelimit";
+    /**
+     * Number of data blocks a sender may have in flight (written but not yet flushed) for one transfer before waiting
+     * (default = 8). Value 1 restores the original stop and wait behavior.
+     */
+    public static final String OPENR66_SENDER_WINDOW = "openr66.sender.window";
+    /**
+     * Shall the sender use the zero copy path (FileRegion) when neither SSL nor MD5 per block mode are in use (default = true)
+     */
+    public static final String OPENR66_ZEROCOPY = "openr66.zerocopy";
+    /**
+     * Shall packets received from network be dispatched directly to the local handler of the transfer, bypassing the
+     * LocalChannel hop and its second decode (default = false)
+     */
+    public static final String OPENR66_DIRECT_DISPATCH = "openr66.dispatch.direct";
+    /**
+     * Number of threads shared by all asynchronous senders (default = 2 x number of available processors, minimum 4)
+     */
+    public static final String OPENR66_SENDER_THREADS = "openr66.sender.threads";
+    /**
+     * Number of received data blocks that could wait to be written to disk per transfer, 0 meaning
+     * synchronous writes (default = 16)
+     */
+    public static final String OPENR66_WRITEBEHIND_QUEUE = "openr66.writebehind.queue";
+    /**
+     * Number of threads shared by all write behind disk writers (default = number of available processors, minimum 2)
+     */
+    public static final String OPENR66_WRITEBEHIND_THREADS = "openr66.writebehind.threads";
+    /**
+     * Shall received files be synchronized to disk (fsync) before validating the end of transfer (default = false)
+     */
+    public static final String OPENR66_FSYNC = "openr66.fsync";
+    /**
+     * Shall received files with a known size be preallocated and written with positional writes (default = false)
+     */
+    public static final String OPENR66_PREALLOCATE = "openr66.preallocate";
+    /**
+     * Maximum number of parallel streams used to send one large file to a partner supporting it (default = 1, no
+     * parallel streams)
+     */
+    public static final String OPENR66_MULTISTREAM = "openr66.multistream";
+    /**
+     * Shall the block size of transfers requested by this host be tuned per partner, when not forced (default = false)
+     */
+    public static final String OPENR66_BLOCKSIZE_AUTO = "openr66.blocksize.auto";
+    /**
+     * Minimal block size chosen by the per partner tuning (default = 16384)
+     */
+    public static final String OPENR66_BLOCKSIZE_MIN = "openr66.blocksize.min";
+    /**
+     * Maximal block size chosen by the per partner tuning (default = 1048576)
+     */
+    public static final String OPENR66_BLOCKSIZE_MAX = "openr66.blocksize.max";
+    /**
+     * Shall data blocks be compressed with partners supporting it (default = false)
+     */
+    public static final String OPENR66_COMPRESSION = "openr66.compression";
+    /**
+     * Comma separated list of rules allowed to use compression (default = empty, all rules)
+     */
+    public static final String OPENR66_COMPRESSION_RULES = "openr66.compression.rules";
+    /**
+     * Shall received files be read again to check the global digest even if computed completely during the
+     * transfer (default = false)
+     */
+    public static final String OPENR66_DIGEST_VERIFY = "openr66.digest.verify";
+    /**
+     * Lightweight checksum (CRC32 or ADLER32) used instead of the digest on each block in MD5 mode with partners
+     * accepting the same one (default = empty, none)
+     */
+    public static final String OPENR66_BLOCK_CHECKSUM = "openr66.block.checksum";
+    /**
+     * Maximum number of partners whose network connection is kept warm once used (default = 0, none)
+     */
+    public static final String OPENR66_WARMPOOL_PARTNERS = "openr66.warmpool.partners";
+    /**
+     * Delay in ms without transfer before a partner is no more kept warm (default = 300000)
+     */
+    public static final String OPENR66_WARMPOOL_IDLE = "openr66.warmpool.idle";
+    /**
+     * Comma separated list of host ids whose network connection is always kept warm (default = empty, none)
+     */
+    public static final String OPENR66_WARMPOOL_HOSTS = "openr66.warmpool.hosts";
+    /**
+     * Shall outgoing SSL connections resume the previous session with the same partner (default = true)
+     */
+    public static final String OPENR66_SSL_RESUMPTION = "openr66.ssl.resumption";
+    /**
+     * Size of the SSL session caches, 0 for unlimited (default = -1, JSSE default)
+     */
+    public static final String OPENR66_SSL_SESSIONCACHE_SIZE = "openr66.ssl.sessioncache.size";
+    /**
+     * Timeout in seconds of the SSL sessions in cache, 0 for unlimited (default = -1, JSSE default)
+     */
+    public static final String OPENR66_SSL_SESSIONCACHE_TIMEOUT = "openr66.ssl.sessioncache.timeout";
+    /**
+     * Shall the request of a transfer be sent with the authentication, without waiting for its answer, on network
+     * channels already authenticated with partners accepting it (default = false)
+     */
+    public static final String OPENR66_HANDSHAKE_PIPELINE = "openr66.handshake.pipeline";
+    /**
+     * Shall bundles of small files received be extracted, running the post tasks once per member (default = true)
+     */
+    public static final String OPENR66_BUNDLE = "openr66.bundle";
+    /**
+     * Low watermark in bytes of the write buffer of network channels: once pending writes go below it, the channel is
+     * writable again and the waiting local channels resume (default = 256 KB)
+     */
+    public static final String OPENR66_WRITEBUFFER_LOW = "openr66.network.writebuffer.low";
+    /**
+     * High watermark in bytes of the write buffer of network channels: once pending writes go above it, the channel is
+     * not writable and all local channels multiplexed on it wait (default = 1 MB)
+     */
+    public static final String OPENR66_WRITEBUFFER_HIGH = "openr66.network.writebuffer.high";
+    /**
+     * Bandwidth classes of partners as "hostid:limit[:assured]" separated by commas, in B/s (default = none)
+     */
+    public static final String OPENR66_BANDWIDTH_PARTNERS = "openr66.bandwidth.partners";
+    /**
+     * Bandwidth classes of rules as "ruleid:limit[:assured]" separated by commas, in B/s, applied under each partner
+     * (default = none)
+     */
+    public static final String OPENR66_BANDWIDTH_RULES = "openr66.bandwidth.rules";
+    /**
+     * Default priority of transfers, from 0 (lowest) to 9 (highest) (default = 0)
+     */
+    public static final String OPENR66_PRIORITY_DEFAULT = "openr66.priority.default";
+    /**
+     * Priorities of rules as "ruleid:priority" separated by commas, overridable per request (default = none)
+     */
+    public static final String OPENR66_PRIORITY_RULES = "openr66.priority.rules";
+    /**
+     * Maximum delay in ms before the progress of a transfer is written to the database, 0 to write
+     * it every few blocks as before (default = 1000)
+     */
+    public static final String OPENR66_CHECKPOINT_DELAY = "openr66.checkpoint.delay";
+    /**
+     * Number of transfers with a pending progress triggering a write before the delay (default = 100)
+     */
+    public static final String OPENR66_CHECKPOINT_BATCH = "openr66.checkpoint.batch";
+    /**
+     * Size in bytes of each of the 2 segments of the local checkpoint journal of a server, 0 for no
+     * journal (default = 0)
+     */
+    public static final String OPENR66_CHECKPOINT_JOURNAL = "openr66.checkpoint.journal";
 
 }
@@ -82,7 +82,7 @@ public class HttpRestBandwidthR66Handler extends HttpRestAbstractR66Handler {
         result.getAnswer().put(AbstractDbData.JSON_MODEL, RESTHANDLERS.Bandwidth.name());
         try {
             if (json instanceof BandwidthJsonPacket) {//
-                // setter, writeglobal, readglobal, writesession, readsession
+                // setter, writeglobal, readglobal, writesession, readsession, partner, rule, writeclass, assuredclass
                 BandwidthJsonPacket node = (BandwidthJsonPacket) json;
                 boolean setter = node.isSetter();
                 if (setter && arguments.getMethod() != METHOD.PUT) {
@@ -110,6 +110,12 @@ public class HttpRestBandwidthR66Handler extends HttpRestAbstractR66Handler {
                 node.setReadglobal(lresult[1]);
                 node.setWritesession(lresult[2]);
                 node.setReadsession(lresult[3]);
+                if (node.getPartner() != null || node.getRule() != null) {
+                    long[] cresult = serverHandler.bandwidthClass(setter, node.getPartner(),
+                            node.getRule(), node.getWriteclass(), node.getAssuredclass());
+                    node.setWriteclass(cresult[0]);
+                    node.setAssuredclass(cresult[1]);
+                }
                 setOk(handler, result, json, HttpResponseStatus.OK);
             } else {
                 logger.info("Validation is ignored: " + json);
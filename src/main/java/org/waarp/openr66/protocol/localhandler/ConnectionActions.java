@@ -34,7 +34,6 @@ import io.netty.channel.ChannelHandlerContext;
 
 import org.waarp.common.command.exception.Reply421Exception;
 import org.waarp.common.command.exception.Reply530Exception;
-import org.waarp.common.digest.FilesystemBasedDigest;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.openr66.commander.ClientRunner;
@@ -89,19 +88,25 @@ public abstract class ConnectionActions {
      */
     protected volatile LocalChannelReference localChannelReference;
     /**
-     * Global Digest in receive
+     * Global Digest in receive (partner and local algorithms)
      */
-    protected FilesystemBasedDigest globalDigest;
+    protected StreamingDigest streamingDigest;
     /**
-     * Global Digest in receive using local hash if necessary
+     * Write behind disk writer in receive
      */
-    protected FilesystemBasedDigest localDigest;
+    protected WriteBehindWriter writeBehind;
+
+    /**
+     * Sub stream of a multiple streams transfer in receive
+     */
+    protected MultiStreamReceiver.SubStream subStream;
 
     protected void setFrom(ConnectionActions handler) {
-        this.globalDigest = handler.globalDigest;
+        this.streamingDigest = handler.streamingDigest;
         this.localChannelReference = handler.localChannelReference;
-        this.localDigest = handler.localDigest;
         this.session = handler.session;
+        this.writeBehind = handler.writeBehind;
+        this.subStream = handler.subStream;
     }
 
     void businessError() {
@@ -124,17 +129,10 @@ public abstract class ConnectionActions {
     }
 
     /**
-     * @return the globalDigest
-     */
-    public FilesystemBasedDigest getGlobalDigest() {
-        return globalDigest;
-    }
-
-    /**
-     * @return the localDigest
+     * @return the streamingDigest
      */
-    public FilesystemBasedDigest getLocalDigest() {
-        return localDigest;
+    public StreamingDigest getStreamingDigest() {
+        return streamingDigest;
     }
 
     /**
@@ -142,7 +140,25 @@ public abstract class ConnectionActions {
      * 
      * @param e
      */
-    public void channelClosed(ChannelHandlerContext e) {
+    public void channelClosed(final ChannelHandlerContext e) {
+        if (writeBehind != null) {
+            // no more write once closed, the session is cleaned once the current write is over
+            WriteBehindWriter writer = writeBehind;
+            writeBehind = null;
+            writer.cancel();
+            if (!writer.isEmpty()) {
+                writer.drain(new Runnable() {
+                    public void run() {
+                        e.executor().execute(new Runnable() {
+                            public void run() {
+                                channelClosed(e);
+                            }
+                        });
+                    }
+                });
+                return;
+            }
+        }
         DbTaskRunner runner = session.getRunner();
         try {
             logger.debug("Local Server Channel Closed: {} {}",
@@ -475,6 +491,8 @@ public abstract class ConnectionActions {
         R66Result result = new R66Result(session, true, ErrorCode.InitOk, null);
         session.newState(AUTHENTD);
         localChannelReference.validateConnection(true, result);
+        // request possibly already sent (pipelined handshake)
+        localChannelReference.checkPipelinedRequest();
         logger.debug("Local Server Channel Validated: {} ",
                 (localChannelReference != null ? localChannelReference
                         : "no LocalChannelReference"));
@@ -0,0 +1,412 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+import org.waarp.openr66.protocol.utils.FileUtils;
+
+/**
+ * Global digest of a sent file, computed off the sending thread.<br>
+ * <br>
+ * Each block is submitted just before being written to the network: a block buffer is retained
+ * (through a duplicate, such that the network write does not move its indexes) until hashed, while
+ * a zero copy region is read again from the file by the hashing thread. Blocks are hashed serially,
+ * in order, by a small pool of threads shared by all transfers, so that hashing overlaps with
+ * network sends and only the final digest is waited for before EndTransfer.<br>
+ * <br>
+ * The number of blocks not yet hashed is bounded (twice the sender window): the sender must wait
+ * for room when full.
+ *
+ * @author Frederic Bregier
+ */
+public class HashingStage implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(HashingStage.class);
+
+    /**
+     * Number of blocks hashed
+     */
+    private static final AtomicLong hashedBlocks = new AtomicLong();
+    /**
+     * Cumulative time spent in hashing (ns)
+     */
+    private static final AtomicLong hashTime = new AtomicLong();
+    /**
+     * Cumulative time spent by senders waiting for the final digest once all blocks sent (ns)
+     */
+    private static final AtomicLong finalWaitTime = new AtomicLong();
+    /**
+     * Number of final digests computed
+     */
+    private static final AtomicLong finalDigests = new AtomicLong();
+
+    private final FilesystemBasedDigest digest;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentLinkedQueue<HashedBlock> queue = new ConcurrentLinkedQueue<HashedBlock>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final AtomicReference<Runnable> roomListener = new AtomicReference<Runnable>();
+
+    private final int limit;
+
+    /**
+     * Reusable buffer for zero copy regions (only used by the hashing thread)
+     */
+    private ByteBuffer regionBuffer;
+
+    private volatile boolean finishing;
+
+    private volatile boolean cancelled;
+
+    private volatile IOException error;
+
+    private volatile String hash;
+
+    private volatile Runnable finalListener;
+
+    /**
+     * Time spent in hashing for this transfer (ns)
+     */
+    private volatile long time;
+
+    private volatile long finishTime;
+
+    private volatile long waitTime;
+
+    /**
+     * One block waiting to be hashed
+     */
+    private static class HashedBlock {
+        private final ByteBuf buffer;
+        private final FileChannel fileChannel;
+        private final long position;
+        private final int length;
+
+        private HashedBlock(ByteBuf buffer, FileChannel fileChannel, long position, int length) {
+            this.buffer = buffer;
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param digest
+     *            the global digest to update
+     * @param window
+     *            the sender window
+     * @param executor
+     *            the shared hashing executor
+     */
+    public HashingStage(FilesystemBasedDigest digest, int window, ExecutorService executor) {
+        this.digest = digest;
+        this.limit = window < 1 ? 2 : window * 2;
+        this.executor = executor;
+    }
+
+    /**
+     *
+     * @param window
+     *            the sender window
+     * @return a new HashingStage using the global digest algorithm, or null if no global digest is
+     *         to be computed
+     */
+    public static HashingStage create(int window) {
+        if (!Configuration.configuration.isGlobalDigest()) {
+            return null;
+        }
+        try {
+            return new HashingStage(new FilesystemBasedDigest(Configuration.configuration.getDigest()),
+                    window, NetworkTransaction.getHashingExecutor());
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Digest algorithm not available: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Submit one block to be hashed, before writing it to the network. The block is retained until
+     * hashed.
+     *
+     * @param block
+     */
+    public void submit(ByteBuf block) {
+        block.retain();
+        add(new HashedBlock(block.duplicate(), null, 0, 0));
+    }
+
+    /**
+     * Submit one region of the file to be hashed (zero copy). The file channel must stay opened
+     * until the final digest is computed.
+     *
+     * @param fileChannel
+     * @param position
+     * @param length
+     */
+    public void submit(FileChannel fileChannel, long position, int length) {
+        add(new HashedBlock(null, fileChannel, position, length));
+    }
+
+    private void add(HashedBlock block) {
+        if (cancelled || finishing) {
+            release(block);
+            return;
+        }
+        pending.incrementAndGet();
+        queue.add(block);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                logger.warn("Hashing executor unavailable: " + e.getMessage());
+                scheduled.set(false);
+                error = new IOException("Hashing executor unavailable");
+                cancel();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            HashedBlock block = null;
+            while ((block = queue.poll()) != null) {
+                try {
+                    if (!cancelled && error == null) {
+                        long start = System.nanoTime();
+                        if (block.buffer != null) {
+                            FileUtils.computeGlobalHash(digest, block.buffer);
+                        } else {
+                            if (regionBuffer == null || regionBuffer.capacity() < block.length) {
+                                regionBuffer = ByteBuffer.allocate(block.length);
+                            }
+                            FileUtils.computeGlobalHash(digest, block.fileChannel, regionBuffer,
+                                    block.position, block.length);
+                        }
+                        long spent = System.nanoTime() - start;
+                        time += spent;
+                        hashTime.addAndGet(spent);
+                        hashedBlocks.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    logger.error("Global hash in error: " + e.getMessage());
+                    error = e;
+                } catch (RuntimeException e) {
+                    logger.error("Global hash in error: " + e.getMessage());
+                    error = new IOException(e.getMessage());
+                } finally {
+                    release(block);
+                    blockDone();
+                }
+            }
+            if (finishing && pending.get() == 0 && hash == null && !cancelled) {
+                finalDigest();
+            }
+        } finally {
+            scheduled.set(false);
+            if (!queue.isEmpty() || (finishing && hash == null && !cancelled && pending.get() == 0)) {
+                schedule();
+            }
+        }
+    }
+
+    private void release(HashedBlock block) {
+        if (block.buffer != null) {
+            block.buffer.release();
+        }
+    }
+
+    /**
+     * One block is hashed (or dropped): wake up a sender waiting for room
+     */
+    private void blockDone() {
+        if (pending.decrementAndGet() < limit) {
+            Runnable listener = roomListener.getAndSet(null);
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    private void finalDigest() {
+        if (error == null) {
+            hash = FilesystemBasedDigest.getHex(digest.Final());
+        } else {
+            hash = "";
+        }
+        waitTime = System.nanoTime() - finishTime;
+        finalWaitTime.addAndGet(waitTime);
+        finalDigests.incrementAndGet();
+        logger.debug("Global hash computed in {} ms, waited {} ms after last block sent",
+                getHashingTime(), getWaitTime());
+        Runnable listener = finalListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     *
+     * @return True if too many blocks are waiting to be hashed
+     */
+    public boolean isFull() {
+        return pending.get() >= limit;
+    }
+
+    /**
+     * Ask to be called once there is room again (called immediately if not full)
+     *
+     * @param listener
+     */
+    public void waitForRoom(Runnable listener) {
+        roomListener.set(listener);
+        if (!isFull() || cancelled) {
+            Runnable self = roomListener.getAndSet(null);
+            if (self != null) {
+                self.run();
+            }
+        }
+    }
+
+    /**
+     * All blocks are submitted: ask for the final digest (only first call is taken into account)
+     *
+     * @param listener
+     *            called once the final digest is computed (could be null)
+     */
+    public void finish(Runnable listener) {
+        if (finishing) {
+            return;
+        }
+        finalListener = listener;
+        finishTime = System.nanoTime();
+        finishing = true;
+        schedule();
+    }
+
+    /**
+     *
+     * @return True if the final digest is computed (or the stage cancelled)
+     */
+    public boolean isDone() {
+        return hash != null || cancelled;
+    }
+
+    /**
+     *
+     * @return the global hash, or null if not yet computed, in error or cancelled
+     */
+    public String getHash() {
+        if (cancelled || error != null) {
+            return null;
+        }
+        return hash;
+    }
+
+    /**
+     *
+     * @return True if the hash cannot be computed
+     */
+    public boolean isInError() {
+        return error != null;
+    }
+
+    /**
+     * Drop all blocks not yet hashed
+     */
+    public void cancel() {
+        cancelled = true;
+        HashedBlock block = null;
+        while ((block = queue.poll()) != null) {
+            release(block);
+            blockDone();
+        }
+    }
+
+    /**
+     *
+     * @return the time spent in hashing for this transfer in ms
+     */
+    public long getHashingTime() {
+        return time / 1000000;
+    }
+
+    /**
+     *
+     * @return the time waited for the final digest once all blocks sent in ms
+     */
+    public long getWaitTime() {
+        return waitTime / 1000000;
+    }
+
+    /**
+     *
+     * @return the number of blocks hashed off the sending threads
+     */
+    public static long getHashedBlocks() {
+        return hashedBlocks.get();
+    }
+
+    /**
+     *
+     * @return the average hashing time of one block in microseconds
+     */
+    public static long getAverageHashTime() {
+        long nb = hashedBlocks.get();
+        return nb == 0 ? 0 : hashTime.get() / nb / 1000;
+    }
+
+    /**
+     *
+     * @return the average wait for the final digest once all blocks sent in microseconds
+     */
+    public static long getAverageFinalWait() {
+        long nb = finalDigests.get();
+        return nb == 0 ? 0 : finalWaitTime.get() / nb / 1000;
+    }
+}
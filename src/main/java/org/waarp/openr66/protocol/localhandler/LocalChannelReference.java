@@ -17,7 +17,12 @@
  */
 package org.waarp.openr66.protocol.localhandler;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandler;
 import io.netty.channel.local.LocalChannel;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 
@@ -38,13 +43,19 @@ import org.waarp.openr66.protocol.configuration.Configuration;
 import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
 import org.waarp.openr66.protocol.exception.OpenR66Exception;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNoConnectionException;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolRemoteShutdownException;
+import org.waarp.openr66.protocol.localhandler.packet.AbstractLocalPacket;
+import org.waarp.openr66.protocol.localhandler.packet.LocalPacketCodec;
+import org.waarp.openr66.protocol.networkhandler.BandwidthClass;
+import org.waarp.openr66.protocol.networkhandler.FairShare;
 import org.waarp.openr66.protocol.networkhandler.NetworkChannelReference;
 import org.waarp.openr66.protocol.networkhandler.NetworkServerHandler;
 import org.waarp.openr66.protocol.networkhandler.NetworkServerInitializer;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
 import org.waarp.openr66.protocol.utils.R66Future;
 import org.waarp.openr66.protocol.utils.R66Versions;
+import org.waarp.openr66.protocol.utils.TransferPriority;
 
 /**
  * Reference of one object using Local Channel localId and containing local channel and network
@@ -146,6 +157,10 @@ public class LocalChannelReference {
      * To be able to check hash once all transfer is over once again
      */
     private String hashComputeDuringTransfer = null;
+    /**
+     * Number of bytes covered by the hash computed during transfer (-1 if unknown)
+     */
+    private long hashComputeLength = -1;
     /**
      * If partial hash, no global hash validation can be done
      */
@@ -160,6 +175,59 @@ public class LocalChannelReference {
      */
     private volatile DbSession noconcurrencyDbSession = null;
 
+    /**
+     * Listener informed of the completion of EndTransfer or Request futures
+     */
+    private volatile Runnable futureListener = null;
+
+    /**
+     * Direct dispatcher to the local handler if direct dispatch is enabled
+     */
+    private final LocalDirectDispatcher directDispatcher;
+
+    /**
+     * Receiver side of a multiple streams transfer if any (main local channel only)
+     */
+    private volatile MultiStreamReceiver multiStreamReceiver = null;
+
+    /**
+     * True if this local channel is a sub stream of a multiple streams transfer on sender side
+     */
+    private volatile boolean subStreamSender = false;
+    /**
+     * Are data blocks sent compressed (negotiated on request)
+     */
+    private volatile boolean compression = false;
+    /**
+     * Time spent computing the global hash while sending in ms (-1 if not computed)
+     */
+    private volatile long hashingTime = -1;
+    /**
+     * Time waited for the global hash once all blocks sent in ms (-1 if not computed)
+     */
+    private volatile long hashingWaitTime = -1;
+    /**
+     * True if the Authentication is sent without waiting for its answer before the request
+     * (pipelined handshake)
+     */
+    private volatile boolean pipelined = false;
+    /**
+     * True once the request is sent within a pipelined handshake
+     */
+    private volatile boolean pipelinedRequest = false;
+    /**
+     * Ensures the session goes only once to REQUESTR within a pipelined handshake
+     */
+    private final AtomicBoolean pipelinedRequestState = new AtomicBoolean(false);
+    /**
+     * Bandwidth class of the transfer (resolved on first use)
+     */
+    private volatile BandwidthClass bandwidthClass = null;
+    /**
+     * Share of the transfer in the writes of its network channel (resolved on first use)
+     */
+    private volatile FairShare fairShare = null;
+
     /**
      * 
      * @param localChannel
@@ -196,6 +264,11 @@ public class LocalChannelReference {
         } else {
             this.noconcurrencyDbSession = null;
         }
+        if (Configuration.configuration.isDirectDispatch()) {
+            directDispatcher = new LocalDirectDispatcher();
+        } else {
+            directDispatcher = null;
+        }
         networkChannelRef.add(this);
     }
 
@@ -209,6 +282,7 @@ public class LocalChannelReference {
         localId = 0;
         this.futureRequest = new R66Future(true);
         cts = null;
+        directDispatcher = null;
     }
 
     /**
@@ -216,6 +290,9 @@ public class LocalChannelReference {
      */
     public void close() {
         Configuration.configuration.getLocalTransaction().remove(this);
+        if (directDispatcher != null) {
+            directDispatcher.clear();
+        }
         // Now force the close of the database after a wait
         if (noconcurrencyDbSession != null && DbConstant.admin != null && DbConstant.admin.getSession() != null
                 && !noconcurrencyDbSession.equals(DbConstant.admin.getSession())) {
@@ -273,6 +350,60 @@ public class LocalChannelReference {
         return networkServerHandler;
     }
 
+    /**
+     * 
+     * @return True if packets from network are dispatched directly to the local handler
+     */
+    public boolean isDirectDispatch() {
+        return directDispatcher != null;
+    }
+
+    /**
+     * Decode once the buffer received from network and dispatch the packet directly to the local
+     * handler, without going through the LocalChannel. The buffer is released.
+     * 
+     * @param buffer
+     * @throws OpenR66ProtocolPacketException
+     */
+    public void dispatchDirect(ByteBuf buffer) throws OpenR66ProtocolPacketException {
+        AbstractLocalPacket packet = null;
+        try {
+            packet = LocalPacketCodec.decodeNetworkPacket(buffer);
+        } finally {
+            buffer.release();
+        }
+        if (packet == null) {
+            throw new OpenR66ProtocolPacketException("Incomplete packet received");
+        }
+        directDispatcher.dispatch(packet);
+    }
+
+    /**
+     * Stop or resume reading the packets of this session (backpressure without blocking the event
+     * loop): through the LocalChannel by its autoRead and, if enabled, through the direct dispatch.
+     * Packets already received are kept until resumed.
+     * 
+     * @param autoRead
+     */
+    public void setAutoRead(boolean autoRead) {
+        getLocalChannel().config().setAutoRead(autoRead);
+        if (autoRead && directDispatcher != null) {
+            directDispatcher.resume();
+        }
+    }
+
+    /**
+     * Register the local handler for direct dispatch (if enabled)
+     * 
+     * @param ctx
+     * @param handler
+     */
+    void registerDirectHandler(ChannelHandlerContext ctx, ChannelInboundHandler handler) {
+        if (directDispatcher != null) {
+            directDispatcher.register(ctx, handler);
+        }
+    }
+
     /**
      * 
      * @return the actual dbSession
@@ -460,6 +591,7 @@ public class LocalChannelReference {
                 futureEndTransfer.getResult().setAnswered(finalValue.isAnswered());
             }
         }
+        notifyFutureListener();
     }
 
     /**
@@ -562,6 +694,7 @@ public class LocalChannelReference {
                 }
             }
         }
+        notifyFutureListener();
     }
 
     /**
@@ -595,6 +728,43 @@ public class LocalChannelReference {
                 futureRequest.getResult().setAnswered(finalValue.isAnswered());
             }
         }
+        notifyFutureListener();
+    }
+
+    /**
+     * Validate the request as accepted by the partner, before the transfer itself (as the answer to
+     * the attachment of a sub stream)
+     * 
+     * @param finalValue
+     */
+    public void validateValidRequest(R66Result finalValue) {
+        if (!futureValidRequest.isDone()) {
+            futureValidRequest.setResult(finalValue);
+            futureValidRequest.setSuccess();
+        }
+        notifyFutureListener();
+    }
+
+    /**
+     * Set the listener to be informed of the completion of EndTransfer or Request futures (as the
+     * asynchronous sender), or of the ValidRequest future once validated by validateValidRequest.
+     * Note that the listener could be called several times.
+     * 
+     * @param futureListener
+     *            the listener, or null to remove it
+     */
+    public void setFutureListener(Runnable futureListener) {
+        this.futureListener = futureListener;
+        if (futureListener != null && (futureEndTransfer.isDone() || futureRequest.isDone())) {
+            futureListener.run();
+        }
+    }
+
+    private void notifyFutureListener() {
+        Runnable listener = futureListener;
+        if (listener != null) {
+            listener.run();
+        }
     }
 
     @Override
@@ -630,6 +800,9 @@ public class LocalChannelReference {
      */
     public void setRecvThroughHandler(RecvThroughHandler recvThroughHandler) {
         this.recvThroughHandler = recvThroughHandler;
+        if (recvThroughHandler != null) {
+            recvThroughHandler.setLocalChannelReference(this);
+        }
     }
 
     /**
@@ -673,6 +846,77 @@ public class LocalChannelReference {
         }
     }
 
+    /**
+     * 
+     * @return the bandwidth class of the transfer (partner and rule), the global one if not yet
+     *         known
+     */
+    public BandwidthClass getBandwidthClass() {
+        if (bandwidthClass == null) {
+            DbTaskRunner runner = session != null ? session.getRunner() : null;
+            if (runner == null) {
+                return Configuration.configuration.getBandwidthClasses().getGlobal();
+            }
+            String partnerId = runner.isSelfRequested() ? runner.getRequester() : runner.getRequested();
+            bandwidthClass = Configuration.configuration.getBandwidthClasses().getBandwidthClass(
+                    partnerId, runner.getRuleId());
+        }
+        return bandwidthClass;
+    }
+
+    /**
+     * 
+     * @return the share of the transfer in the writes of its network channel, by its priority
+     *         (the default one if not yet known)
+     */
+    public FairShare getFairShare() {
+        if (fairShare == null) {
+            DbTaskRunner runner = session != null ? session.getRunner() : null;
+            if (runner == null) {
+                return new FairShare(Configuration.configuration.getDefaultPriority());
+            }
+            fairShare = new FairShare(TransferPriority.getPriority(runner));
+        }
+        return fairShare;
+    }
+
+    /**
+     * 
+     * @return True if the Authentication is sent without waiting for its answer before the request
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * @param pipelined
+     *            True if the Authentication is sent without waiting for its answer before the
+     *            request
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * The request is sent within a pipelined handshake: the session goes to REQUESTR once the
+     * connection is validated (now or when the answer to the Authentication comes)
+     */
+    public void setPipelinedRequest() {
+        pipelinedRequest = true;
+        checkPipelinedRequest();
+    }
+
+    /**
+     * To be called once the connection is validated: if the request is already sent within a
+     * pipelined handshake, the session goes to REQUESTR
+     */
+    public void checkPipelinedRequest() {
+        if (pipelinedRequest && futureConnection.isDone() && futureConnection.isSuccess()
+                && pipelinedRequestState.compareAndSet(false, true)) {
+            sessionNewState(R66FiniteDualStates.REQUESTR);
+        }
+    }
+
     /**
      * 
      * @return the current state or TEST if no session exists
@@ -699,6 +943,24 @@ public class LocalChannelReference {
         this.hashComputeDuringTransfer = hashComputeDuringTransfer;
     }
 
+    /**
+     * @param hashComputeDuringTransfer
+     *            the hashComputeDuringTransfer to set
+     * @param length
+     *            the number of bytes covered by this hash
+     */
+    public void setHashComputeDuringTransfer(String hashComputeDuringTransfer, long length) {
+        this.hashComputeDuringTransfer = hashComputeDuringTransfer;
+        this.hashComputeLength = length;
+    }
+
+    /**
+     * @return the number of bytes covered by the hash computed during transfer (-1 if unknown)
+     */
+    public long getHashComputeLength() {
+        return hashComputeLength;
+    }
+
     public void setPartialHash() {
         this.partialHash = true;
     }
@@ -741,4 +1003,74 @@ public class LocalChannelReference {
         this.requestId = requestId;
     }
 
+    /**
+     * @return the receiver side of a multiple streams transfer if any
+     */
+    public MultiStreamReceiver getMultiStreamReceiver() {
+        return multiStreamReceiver;
+    }
+
+    /**
+     * @param multiStreamReceiver
+     *            the receiver side of a multiple streams transfer to set
+     */
+    public void setMultiStreamReceiver(MultiStreamReceiver multiStreamReceiver) {
+        this.multiStreamReceiver = multiStreamReceiver;
+    }
+
+    /**
+     * @return True if this local channel is a sub stream on sender side
+     */
+    public boolean isSubStreamSender() {
+        return subStreamSender;
+    }
+
+    /**
+     * @param subStreamSender
+     *            True if this local channel is a sub stream on sender side
+     */
+    public void setSubStreamSender(boolean subStreamSender) {
+        this.subStreamSender = subStreamSender;
+    }
+
+    /**
+     * @return True if data blocks are sent compressed
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression
+     *            True if data blocks are sent compressed
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return the time spent computing the global hash while sending in ms (-1 if not computed)
+     */
+    public long getHashingTime() {
+        return hashingTime;
+    }
+
+    /**
+     * @return the time waited for the global hash once all blocks sent in ms (-1 if not computed)
+     */
+    public long getHashingWaitTime() {
+        return hashingWaitTime;
+    }
+
+    /**
+     * @param hashingTime
+     *            the time spent computing the global hash while sending in ms
+     * @param hashingWaitTime
+     *            the time waited for the global hash once all blocks sent in ms
+     */
+    public void setHashingTime(long hashingTime, long hashingWaitTime) {
+        this.hashingTime = hashingTime;
+        this.hashingWaitTime = hashingWaitTime;
+    }
+
 }
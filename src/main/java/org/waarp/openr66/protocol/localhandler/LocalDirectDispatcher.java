@@ -0,0 +1,144 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandler;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.localhandler.packet.AbstractLocalPacket;
+
+/**
+ * Direct dispatch of already decoded packets to the local handler of one session, bypassing the
+ * LocalChannel hop (queue, event loop handoff and second decode).<br>
+ * <br>
+ * Packets are queued until the local handler is registered (once the StartupPacket is handled),
+ * then executed serially, in order, on the event loop of the local handler, such that they are
+ * never handled concurrently with events coming through the LocalChannel pipeline itself. As for
+ * the LocalChannel, packets are kept while the autoRead of the local channel is off, until
+ * resumed.
+ *
+ * @author Frederic Bregier
+ */
+public class LocalDirectDispatcher implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(LocalDirectDispatcher.class);
+
+    private final ConcurrentLinkedQueue<AbstractLocalPacket> queue = new ConcurrentLinkedQueue<AbstractLocalPacket>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private volatile ChannelHandlerContext ctx;
+
+    private volatile ChannelInboundHandler handler;
+
+    /**
+     * Register the local handler and its context, starting the dispatch of already queued packets
+     *
+     * @param ctx
+     * @param handler
+     */
+    public void register(ChannelHandlerContext ctx, ChannelInboundHandler handler) {
+        if (this.handler != null) {
+            return;
+        }
+        this.ctx = ctx;
+        this.handler = handler;
+        schedule();
+    }
+
+    /**
+     *
+     * @return True if the local handler is registered
+     */
+    public boolean isRegistered() {
+        return handler != null;
+    }
+
+    /**
+     * Dispatch one decoded packet to the local handler
+     *
+     * @param packet
+     */
+    public void dispatch(AbstractLocalPacket packet) {
+        queue.add(packet);
+        schedule();
+    }
+
+    /**
+     * Resume the dispatch once the autoRead of the local channel is on again
+     */
+    public void resume() {
+        schedule();
+    }
+
+    private boolean isReading() {
+        return ctx.channel().config().isAutoRead();
+    }
+
+    private void schedule() {
+        if (handler != null && isReading() && scheduled.compareAndSet(false, true)) {
+            ctx.executor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            AbstractLocalPacket packet = null;
+            while (isReading() && (packet = queue.poll()) != null) {
+                if (!ctx.channel().isActive()) {
+                    logger.debug("Local handler no more active, packet ignored: {}", packet);
+                    packet.clear();
+                    continue;
+                }
+                try {
+                    handler.channelRead(ctx, packet);
+                } catch (Throwable e) {
+                    try {
+                        handler.exceptionCaught(ctx, e);
+                    } catch (Exception e1) {
+                        logger.warn("Exception while handling exception: " + e1.getMessage());
+                    }
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Clear all pending packets
+     */
+    public void clear() {
+        AbstractLocalPacket packet = null;
+        while ((packet = queue.poll()) != null) {
+            packet.clear();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.util.concurrent.EventExecutor;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+import org.waarp.openr66.protocol.localhandler.packet.ConnectionErrorPacket;
+import org.waarp.openr66.protocol.networkhandler.NetworkServerHandler;
+import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacket;
+import org.waarp.openr66.protocol.utils.R66ShutdownHook;
+
+/**
+ * Mailbox of the packets received for one LocalId not yet registered.<br>
+ * <br>
+ * All operations of a mailbox (adding packets, delivering them, checking the timeout) are executed
+ * by the executor handling the network channel the packets come from, so that no lock is needed and
+ * the order of the packets is kept, including with packets received once the LocalChannelReference
+ * is registered (they go through the mailbox as long as it is not empty). The registration of the
+ * LocalChannelReference wakes up the mailbox immediately, a periodic check being kept as a fallback
+ * and for the timeout.<br>
+ * <br>
+ * The memory used is bounded, per mailbox and for all mailboxes: when full, the packets are dropped
+ * and an error is sent back to the partner, as on timeout.
+ *
+ * @author Frederic Bregier
+ */
+public class LocalMailbox implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(LocalMailbox.class);
+
+    /**
+     * Maximum number of packets waiting in one mailbox
+     */
+    public static final int MAXIMAL_PACKETS = 256;
+    /**
+     * Maximum number of packets waiting in all mailboxes
+     */
+    public static final int MAXIMAL_GLOBAL_PACKETS = 4096;
+    /**
+     * Maximum number of checks (every WAITFORNETOP ms) before giving up
+     */
+    private static final int MAXIMAL_STEPS = 10000;
+
+    /**
+     * Number of packets waiting in all mailboxes
+     */
+    private static final AtomicInteger globalPackets = new AtomicInteger();
+
+    private final ConcurrentHashMap<Integer, LocalMailbox> mailboxes;
+
+    private final ConcurrentHashMap<Integer, LocalChannelReference> localChannels;
+
+    private final Channel networkChannel;
+
+    private final SocketAddress remoteAddress;
+
+    private final EventExecutor executor;
+
+    private final Integer localId;
+
+    private final ConcurrentLinkedQueue<ByteBuf> packets = new ConcurrentLinkedQueue<ByteBuf>();
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    private volatile LocalChannelReference target;
+
+    /**
+     * Only used within the executor
+     */
+    private Integer remoteId;
+    private int size = 0;
+    private int step = 0;
+    private boolean closed = false;
+
+    /**
+     * @param mailboxes
+     *            the mailboxes this one belongs to
+     * @param localChannels
+     *            the registered LocalChannelReferences
+     * @param networkChannel
+     * @param executor
+     *            the executor handling the network channel
+     * @param remoteId
+     * @param localId
+     */
+    LocalMailbox(ConcurrentHashMap<Integer, LocalMailbox> mailboxes,
+            ConcurrentHashMap<Integer, LocalChannelReference> localChannels, Channel networkChannel,
+            EventExecutor executor, Integer remoteId, Integer localId) {
+        this.mailboxes = mailboxes;
+        this.localChannels = localChannels;
+        this.networkChannel = networkChannel;
+        this.remoteAddress = networkChannel.remoteAddress();
+        this.executor = executor;
+        this.remoteId = remoteId;
+        this.localId = localId;
+    }
+
+    /**
+     * Start the periodic check
+     */
+    void start() {
+        schedule();
+    }
+
+    private void schedule() {
+        try {
+            executor.schedule(this, Configuration.WAITFORNETOP, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // in shutdown
+            close();
+        }
+    }
+
+    /**
+     * Add one packet (to be called within the executor). The buffer of the packet is retained.
+     *
+     * @param remoteId
+     * @param packet
+     * @return False if this mailbox is already closed (packet not taken)
+     */
+    boolean offer(Integer remoteId, NetworkPacket packet) {
+        if (closed) {
+            return false;
+        }
+        this.remoteId = remoteId;
+        if (size >= MAXIMAL_PACKETS || globalPackets.incrementAndGet() > MAXIMAL_GLOBAL_PACKETS) {
+            if (size < MAXIMAL_PACKETS) {
+                globalPackets.decrementAndGet();
+            }
+            logger.warn("Too many packets waiting for LocalId: " + localId);
+            fail();
+            return true;
+        }
+        packet.getBuffer().retain();
+        packets.add(packet.getBuffer());
+        size++;
+        if (target != null) {
+            drain();
+        }
+        return true;
+    }
+
+    /**
+     * The LocalChannelReference is registered: deliver the waiting packets (from any thread)
+     *
+     * @param localChannelReference
+     */
+    void ready(LocalChannelReference localChannelReference) {
+        target = localChannelReference;
+        try {
+            executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+            // in shutdown, periodic check will not run either
+            logger.debug("Mailbox executor unavailable for LocalId: {}", localId);
+        }
+    }
+
+    /**
+     * Periodic check
+     */
+    public void run() {
+        if (closed) {
+            return;
+        }
+        if (target == null) {
+            target = localChannels.get(localId);
+        }
+        if (target != null) {
+            drain();
+            return;
+        }
+        step++;
+        if (step > MAXIMAL_STEPS) {
+            logger.warn("Cannot get LocalChannel: due to LocalId not found: " + localId);
+            fail();
+            return;
+        }
+        schedule();
+    }
+
+    /**
+     * Deliver all waiting packets in order, then close this mailbox (within the executor)
+     */
+    private void drain() {
+        if (closed) {
+            return;
+        }
+        LocalChannelReference localChannelReference = target;
+        if (localChannelReference.getRemoteId().compareTo(remoteId) != 0) {
+            localChannelReference.setRemoteId(remoteId);
+        }
+        LocalChannel localChannel = localChannelReference.getLocalChannel();
+        boolean direct = localChannelReference.isDirectDispatch();
+        ByteBuf buf = null;
+        while ((buf = packets.poll()) != null) {
+            size--;
+            globalPackets.decrementAndGet();
+            if (direct) {
+                try {
+                    localChannelReference.dispatchDirect(buf);
+                } catch (OpenR66ProtocolPacketException e) {
+                    logger.error("Cannot decode packet for direct dispatch: " + e.getMessage());
+                }
+            } else {
+                localChannel.write(buf);
+            }
+        }
+        if (!direct) {
+            localChannel.flush();
+        }
+        // next packets will go directly to the local channel
+        close();
+    }
+
+    /**
+     * Drop all waiting packets and send back an error if not in shutdown (within the executor)
+     */
+    private void fail() {
+        close();
+        ByteBuf buf = null;
+        while ((buf = packets.poll()) != null) {
+            size--;
+            globalPackets.decrementAndGet();
+            buf.release();
+        }
+        if (NetworkTransaction.isShuttingdownNetworkChannel(remoteAddress)
+                || R66ShutdownHook.isShutdownStarting()) {
+            // ignore
+            return;
+        }
+        final ConnectionErrorPacket error = new ConnectionErrorPacket(
+                "Cannot get localChannel since localId is not found anymore", "" + localId);
+        NetworkServerHandler.writeError(networkChannel, remoteId, localId, error);
+    }
+
+    private void close() {
+        closed = true;
+        mailboxes.remove(localId, this);
+    }
+
+    /**
+     *
+     * @return the number of packets waiting in all mailboxes
+     */
+    public static int getGlobalPackets() {
+        return globalPackets.get();
+    }
+}
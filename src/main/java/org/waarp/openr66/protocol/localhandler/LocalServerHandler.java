@@ -109,6 +109,10 @@ class LocalServerHandler extends SimpleChannelInboundHandler<AbstractLocalPacket
         final AbstractLocalPacket packet = msg;
         if (packet.getType() == LocalPacketFactory.STARTUPPACKET) {
             serverHandler.startup(ctx.channel(), (StartupPacket) packet);
+            if (serverHandler.getLocalChannelReference() != null) {
+                // From now, packets could be dispatched directly to this handler
+                serverHandler.getLocalChannelReference().registerDirectHandler(ctx, this);
+            }
         } else {
             if (serverHandler.getLocalChannelReference() == null) {
                 logger.error("No LocalChannelReference at " +
@@ -137,8 +141,10 @@ class LocalServerHandler extends SimpleChannelInboundHandler<AbstractLocalPacket
                     if (((DataPacket) packet).getPacketRank() % 100 == 1
                             || serverHandler.getSession().getState() != R66FiniteDualStates.DATAR) {
                         serverHandler.getSession().newState(DATAR);
+                        // no runner on a sub stream
                         logger.debug("DATA RANK: " + ((DataPacket) packet).getPacketRank() + " : " +
-                                serverHandler.getSession().getRunner().getRank());
+                                (serverHandler.getSession().getRunner() != null ?
+                                        serverHandler.getSession().getRunner().getRank() : -1));
                     }
                     serverHandler.data(ctx.channel(), (DataPacket) packet);
                     break;
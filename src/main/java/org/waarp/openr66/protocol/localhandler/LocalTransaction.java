@@ -17,14 +17,9 @@
  */
 package org.waarp.openr66.protocol.localhandler;
 
-import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
@@ -37,6 +32,7 @@ import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.local.LocalAddress;
 import io.netty.channel.local.LocalChannel;
 import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.concurrent.EventExecutor;
 
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
@@ -52,13 +48,10 @@ import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolRemoteShutdownException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolShutdownException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolSystemException;
-import org.waarp.openr66.protocol.localhandler.packet.ConnectionErrorPacket;
 import org.waarp.openr66.protocol.localhandler.packet.LocalPacketFactory;
 import org.waarp.openr66.protocol.localhandler.packet.StartupPacket;
 import org.waarp.openr66.protocol.localhandler.packet.ValidPacket;
 import org.waarp.openr66.protocol.networkhandler.NetworkChannelReference;
-import org.waarp.openr66.protocol.networkhandler.NetworkServerHandler;
-import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
 import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacket;
 import org.waarp.openr66.protocol.utils.R66Future;
 import org.waarp.openr66.protocol.utils.R66ShutdownHook;
@@ -84,6 +77,12 @@ public class LocalTransaction {
      */
     private final ConcurrentHashMap<String, LocalChannelReference> localChannelHashMapIdBased = new ConcurrentHashMap<String, LocalChannelReference>();
 
+    /**
+     * Mailboxes of packets received before their LocalChannelReference is registered, using
+     * LocalChannelId
+     */
+    private final ConcurrentHashMap<Integer, LocalMailbox> mailboxes = new ConcurrentHashMap<Integer, LocalMailbox>();
+
     private final ServerBootstrap serverBootstrap = new ServerBootstrap();
 
     private final Channel serverChannel;
@@ -122,7 +121,9 @@ public class LocalTransaction {
 
     public String hashStatus() {
         return "LocalTransaction: [localChannelHashMap: " + localChannelHashMap.size()
-                + " localChannelHashMapIdBased: " + localChannelHashMapIdBased.size() + "] ";
+                + " localChannelHashMapIdBased: " + localChannelHashMapIdBased.size()
+                + " mailboxes: " + mailboxes.size() + " waitingPackets: "
+                + LocalMailbox.getGlobalPackets() + "] ";
     }
 
     /**
@@ -146,87 +147,66 @@ public class LocalTransaction {
                 "Cannot find LocalChannelReference");
     }
 
-    private static class SendLater extends Thread {
-        private static Map<Integer, SendLater> sendLaters = new ConcurrentHashMap<Integer, SendLater>();
-        final LocalTransaction lt;
-        final Channel networkChannel;
-        final SocketAddress remoteAddress;
-        Integer remoteId;
-        final Integer localId;
-        final Queue<NetworkPacket> packets = new ConcurrentLinkedQueue<NetworkPacket>();
-        int step = 0;
-        
-        private SendLater(LocalTransaction lt, Channel nc, Integer remoteId, Integer localId) {
-            this.lt = lt;
-            this.networkChannel = nc;
-            this.remoteId = remoteId;
-            this.localId = localId;
-            remoteAddress = networkChannel.remoteAddress();
-        }
-        
-        private void add(NetworkPacket packet) {
-            if (packets.isEmpty()) {
-                packets.add(packet);
-                Configuration.configuration.launchInFixedDelay(this, Configuration.WAITFORNETOP, TimeUnit.MILLISECONDS);
-            }
-            packets.add(packet);
+    /**
+     * Get the corresponding LocalChannelReference without waiting and set the remoteId if different
+     * 
+     * @param remoteId
+     * @param localId
+     * @return the LocalChannelReference, or null if not yet registered
+     */
+    public LocalChannelReference getClientNoWait(Integer remoteId, Integer localId) {
+        LocalChannelReference localChannelReference = localChannelHashMap.get(localId);
+        if (localChannelReference != null
+                && localChannelReference.getRemoteId().compareTo(remoteId) != 0) {
+            localChannelReference.setRemoteId(remoteId);
         }
+        return localChannelReference;
+    }
 
-        public void run() {
-            synchronized (sendLaters) {
-                LocalChannelReference localChannelReference = lt.localChannelHashMap.get(localId);
-                if (localChannelReference != null) {
-                    if (localChannelReference.getRemoteId().compareTo(remoteId) != 0) {
-                        localChannelReference.setRemoteId(remoteId);
-                    }
-                    NetworkPacket networkPacket = packets.poll();
-                    LocalChannel localChannel = localChannelReference.getLocalChannel();
-                    while (networkPacket != null) {
-                        localChannel.write(networkPacket.getBuffer());
-                        networkPacket = packets.poll();
-                    }
-                    localChannel.flush();
-                    sendLaters.remove(localId);
-                } else {
-                    step ++;
-                    if (step > 10000) {
-                        if (NetworkTransaction.isShuttingdownNetworkChannel(remoteAddress)
-                                || R66ShutdownHook.isShutdownStarting()) {
-                            // ignore
-                            sendLaters.remove(localId);
-                            packets.clear();
-                            return;
-                        }
-                        logger.warn("Cannot get LocalChannel: due to LocalId not found: " + localId);
-                        final ConnectionErrorPacket error = new ConnectionErrorPacket(
-                                "Cannot get localChannel since localId is not found anymore", "" + localId);
-                        NetworkServerHandler.writeError(networkChannel, remoteId, localId, error);
-                        sendLaters.remove(localId);
-                        packets.clear();
-                    } else {
-                        Configuration.configuration.launchInFixedDelay(this, Configuration.WAITFORNETOP, TimeUnit.MILLISECONDS);
-                    }
-                }
-            }
-        }
+    /**
+     * 
+     * @param localId
+     * @return True if some packets are still waiting for this LocalId
+     */
+    public boolean hasMailbox(Integer localId) {
+        return mailboxes.containsKey(localId);
     }
+
     /**
-     * Get the corresponding LocalChannelReference and set the remoteId if different
+     * Keep the packet in the mailbox of this LocalId until the LocalChannelReference is registered.
+     * Must be called by the executor of the network channel (order of packets being kept by this
+     * executor). The buffer of the packet is retained if kept.
      * 
+     * @param networkChannel
+     * @param executor
+     *            the executor of the network channel
      * @param remoteId
      * @param localId
-     * @throws OpenR66ProtocolSystemException
+     * @param packet
      */
-    public void sendLaterToClient(Channel networkChannel, Integer remoteId, Integer localId, NetworkPacket packet) {
-        synchronized (SendLater.sendLaters) {
-            SendLater sendLater = SendLater.sendLaters.get(localId);
-            if (sendLater == null) {
-                sendLater = new SendLater(this, networkChannel, remoteId, localId);
-                SendLater.sendLaters.put(localId, sendLater);
-                sendLater.setDaemon(true);
+    public void sendLaterToClient(Channel networkChannel, EventExecutor executor, Integer remoteId,
+            Integer localId, NetworkPacket packet) {
+        for (;;) {
+            LocalMailbox mailbox = mailboxes.get(localId);
+            if (mailbox == null) {
+                LocalMailbox newMailbox = new LocalMailbox(mailboxes, localChannelHashMap,
+                        networkChannel, executor, remoteId, localId);
+                mailbox = mailboxes.putIfAbsent(localId, newMailbox);
+                if (mailbox == null) {
+                    mailbox = newMailbox;
+                    mailbox.start();
+                    LocalChannelReference localChannelReference = localChannelHashMap.get(localId);
+                    if (localChannelReference != null) {
+                        // registered in between
+                        mailbox.ready(localChannelReference);
+                    }
+                }
+            }
+            if (mailbox.offer(remoteId, packet)) {
+                return;
             }
-            sendLater.remoteId = remoteId;
-            sendLater.add(packet);
+            // closed in between: retry with a new one
+            mailboxes.remove(localId, mailbox);
         }
     }
 
@@ -281,6 +261,10 @@ public class LocalTransaction {
                 final LocalChannelReference localChannelReference = new LocalChannelReference(
                         channel, networkChannelReference, remoteId, futureRequest);
                 localChannelHashMap.put(channel.id().hashCode(), localChannelReference);
+                LocalMailbox mailbox = mailboxes.get(localChannelReference.getLocalId());
+                if (mailbox != null) {
+                    mailbox.ready(localChannelReference);
+                }
                 logger.debug("Db connection done and Create LocalChannel entry: " + i + " {}",
                         localChannelReference);
                 logger.info("Add one localChannel to a Network Channel: " + channel.id());
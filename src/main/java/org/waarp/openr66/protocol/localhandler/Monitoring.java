@@ -17,6 +17,9 @@
  */
 package org.waarp.openr66.protocol.localhandler;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import io.netty.handler.traffic.TrafficCounter;
 import org.joda.time.DateTime;
 import org.waarp.common.database.DbAdmin;
@@ -31,10 +34,15 @@ import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.openr66.commander.CommanderNoDb;
 import org.waarp.openr66.context.ErrorCode;
 import org.waarp.openr66.database.DbConstant;
+import org.waarp.openr66.database.data.CheckpointJournal;
+import org.waarp.openr66.database.data.CheckpointService;
 import org.waarp.openr66.database.data.DbTaskRunner;
 import org.waarp.openr66.database.data.DbTaskRunner.TASKSTEP;
 import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.networkhandler.BandwidthClass;
+import org.waarp.openr66.protocol.networkhandler.ssl.SslSessionCache;
 import org.waarp.openr66.protocol.snmp.R66PrivateMib;
+import org.waarp.openr66.protocol.utils.BlockCompression;
 import org.waarp.snmp.WaarpSnmpAgent;
 import org.waarp.snmp.interf.WaarpInterfaceMonitor;
 import org.waarp.snmp.r66.WaarpPrivateMib.MibLevel;
@@ -66,6 +74,38 @@ public class Monitoring implements WaarpInterfaceMonitor {
     public long bandwidthIn = 0;
     public long bandwidthOut = 0;
 
+    // write behind disk writers
+    public long nbWriteBehindQueued = 0;
+    public long nbWriteBehindMaxQueued = 0;
+    public long nbWriteBehindWritten = 0;
+    public long writeBehindWriteTime = 0;
+    public long writeBehindLatency = 0;
+
+    // compression of data blocks
+    public long nbCompressedBlocks = 0;
+    public long nbCompressionSkipped = 0;
+    public long nbDecompressedBlocks = 0;
+    public long compressionRatio = 100;
+
+    // global digest of sent files (times in microseconds)
+    public long nbHashedBlocks = 0;
+    public long hashingTime = 0;
+    public long hashingFinalWait = 0;
+
+    // SSL handshakes
+    public long nbSslResumed = 0;
+    public long nbSslFull = 0;
+
+    // Write behind checkpoints of transfer progress
+    public long nbCheckpoints = 0;
+    public long nbCheckpointsWritten = 0;
+    public long nbCheckpointBatches = 0;
+    public long nbJournalRecords = 0;
+    public long nbJournalCompactions = 0;
+
+    // Bandwidth classes (global, partners, rules)
+    public List<BandwidthClass> bandwidthClasses = new ArrayList<BandwidthClass>();
+
     // Internal data
     private long startMonitor = System.currentTimeMillis();
     private long pastLimit = 0;
@@ -372,6 +412,26 @@ public class Monitoring implements WaarpInterfaceMonitor {
             } else {
                 nbMs = nbSecond * 1000;
             }
+            nbWriteBehindQueued = WriteBehindWriter.getQueuedBlocks();
+            nbWriteBehindMaxQueued = WriteBehindWriter.getAndResetMaxQueuedBlocks();
+            nbWriteBehindWritten = WriteBehindWriter.getWrittenBlocks();
+            writeBehindWriteTime = WriteBehindWriter.getAverageWriteTime();
+            writeBehindLatency = WriteBehindWriter.getAverageLatency();
+            nbCompressedBlocks = BlockCompression.getCompressedBlocks();
+            nbCompressionSkipped = BlockCompression.getSkippedBlocks();
+            nbDecompressedBlocks = BlockCompression.getDecompressedBlocks();
+            compressionRatio = BlockCompression.getCompressionRatio();
+            nbHashedBlocks = HashingStage.getHashedBlocks();
+            hashingTime = HashingStage.getAverageHashTime();
+            hashingFinalWait = HashingStage.getAverageFinalWait();
+            nbSslResumed = SslSessionCache.getResumedHandshakes();
+            nbSslFull = SslSessionCache.getFullHandshakes();
+            nbCheckpoints = CheckpointService.getCheckpoints();
+            nbCheckpointsWritten = CheckpointService.getWrittenCheckpoints();
+            nbCheckpointBatches = CheckpointService.getBatches();
+            nbJournalRecords = CheckpointJournal.getRecords();
+            nbJournalCompactions = CheckpointJournal.getCompactions();
+            bandwidthClasses = Configuration.configuration.getBandwidthClasses().checkThroughput();
             if (dbSession != null && dbSession.isDisActive()) {
                 dbSession.checkConnectionNoException();
             }
@@ -629,6 +689,106 @@ public class Monitoring implements WaarpInterfaceMonitor {
                 .append(bandwidthOut)
                 .append("</OutBandwidth>")
 
+                // Write behind disk writers (times in microseconds)
+                .append("<DISKWRITER>")
+                .append("<Queued>")
+                .append(nbWriteBehindQueued)
+                .append("</Queued>")
+                .append("<MaxQueued>")
+                .append(nbWriteBehindMaxQueued)
+                .append("</MaxQueued>")
+                .append("<Written>")
+                .append(nbWriteBehindWritten)
+                .append("</Written>")
+                .append("<WriteTime>")
+                .append(writeBehindWriteTime)
+                .append("</WriteTime>")
+                .append("<Latency>")
+                .append(writeBehindLatency)
+                .append("</Latency>")
+                .append("</DISKWRITER>")
+
+                // Compression of data blocks (ratio in percent of original size)
+                .append("<COMPRESSION>")
+                .append("<Compressed>")
+                .append(nbCompressedBlocks)
+                .append("</Compressed>")
+                .append("<Skipped>")
+                .append(nbCompressionSkipped)
+                .append("</Skipped>")
+                .append("<Decompressed>")
+                .append(nbDecompressedBlocks)
+                .append("</Decompressed>")
+                .append("<Ratio>")
+                .append(compressionRatio)
+                .append("</Ratio>")
+                .append("</COMPRESSION>")
+
+                // Global digest of sent files computed off the senders (times in microseconds)
+                .append("<HASHING>")
+                .append("<Hashed>")
+                .append(nbHashedBlocks)
+                .append("</Hashed>")
+                .append("<HashTime>")
+                .append(hashingTime)
+                .append("</HashTime>")
+                .append("<FinalWait>")
+                .append(hashingFinalWait)
+                .append("</FinalWait>")
+                .append("</HASHING>")
+
+                // SSL handshakes resuming a previous session or full
+                .append("<SSL>")
+                .append("<Resumed>")
+                .append(nbSslResumed)
+                .append("</Resumed>")
+                .append("<Full>")
+                .append(nbSslFull)
+                .append("</Full>")
+                .append("</SSL>")
+
+                // Write behind checkpoints of transfer progress (taken, written after coalescing, batches)
+                .append("<CHECKPOINT>")
+                .append("<Taken>")
+                .append(nbCheckpoints)
+                .append("</Taken>")
+                .append("<Written>")
+                .append(nbCheckpointsWritten)
+                .append("</Written>")
+                .append("<Batches>")
+                .append(nbCheckpointBatches)
+                .append("</Batches>")
+                .append("<Journaled>")
+                .append(nbJournalRecords)
+                .append("</Journaled>")
+                .append("<Compactions>")
+                .append(nbJournalCompactions)
+                .append("</Compactions>")
+                .append("</CHECKPOINT>");
+
+        // Bandwidth classes (limits and throughput in B/s)
+        builder.append("<BANDWIDTH>");
+        for (BandwidthClass bandwidthClass : bandwidthClasses) {
+            builder.append("<CLASS>")
+                    .append("<Name>")
+                    .append(bandwidthClass.getName())
+                    .append("</Name>")
+                    .append("<Limit>")
+                    .append(bandwidthClass.getLimit())
+                    .append("</Limit>")
+                    .append("<Assured>")
+                    .append(bandwidthClass.getAssured())
+                    .append("</Assured>")
+                    .append("<Throughput>")
+                    .append(bandwidthClass.getThroughput())
+                    .append("</Throughput>")
+                    .append("<Transferred>")
+                    .append(bandwidthClass.getTransferred())
+                    .append("</Transferred>")
+                    .append("</CLASS>");
+        }
+        builder.append("</BANDWIDTH>")
+
                 // Overall status including past, future and current transfers
                 .append("<OVERALL>")
                 .append("<AllTransfer>")
@@ -838,8 +998,52 @@ public class Monitoring implements WaarpInterfaceMonitor {
         node.put("InBandwidth", bandwidthIn);
         node.put("OutBandwidth", bandwidthOut);
 
+        // Write behind disk writers (times in microseconds)
+        ObjectNode node2 = node.putObject("DISKWRITER");
+        node2.put("Queued", nbWriteBehindQueued);
+        node2.put("MaxQueued", nbWriteBehindMaxQueued);
+        node2.put("Written", nbWriteBehindWritten);
+        node2.put("WriteTime", writeBehindWriteTime);
+        node2.put("Latency", writeBehindLatency);
+
+        // Compression of data blocks (ratio in percent of original size)
+        node2 = node.putObject("COMPRESSION");
+        node2.put("Compressed", nbCompressedBlocks);
+        node2.put("Skipped", nbCompressionSkipped);
+        node2.put("Decompressed", nbDecompressedBlocks);
+        node2.put("Ratio", compressionRatio);
+
+        // Global digest of sent files computed off the senders (times in microseconds)
+        node2 = node.putObject("HASHING");
+        node2.put("Hashed", nbHashedBlocks);
+        node2.put("HashTime", hashingTime);
+        node2.put("FinalWait", hashingFinalWait);
+
+        // SSL handshakes resuming a previous session or full
+        node2 = node.putObject("SSL");
+        node2.put("Resumed", nbSslResumed);
+        node2.put("Full", nbSslFull);
+
+        // Write behind checkpoints of transfer progress (taken, written after coalescing, batches)
+        node2 = node.putObject("CHECKPOINT");
+        node2.put("Taken", nbCheckpoints);
+        node2.put("Written", nbCheckpointsWritten);
+        node2.put("Batches", nbCheckpointBatches);
+        node2.put("Journaled", nbJournalRecords);
+        node2.put("Compactions", nbJournalCompactions);
+
+        // Bandwidth classes (limits and throughput in B/s)
+        node2 = node.putObject("BANDWIDTH");
+        for (BandwidthClass bandwidthClass : bandwidthClasses) {
+            ObjectNode node3 = node2.putObject(bandwidthClass.getName());
+            node3.put("Limit", bandwidthClass.getLimit());
+            node3.put("Assured", bandwidthClass.getAssured());
+            node3.put("Throughput", bandwidthClass.getThroughput());
+            node3.put("Transferred", bandwidthClass.getTransferred());
+        }
+
         // Overall status including past, future and current transfers
-        ObjectNode node2 = node.putObject("OVERALL");
+        node2 = node.putObject("OVERALL");
         node2.put("AllTransfer", nbCountStepAllTransfer);
         node2.put("Unknown", nbCountInfoUnknown);
         node2.put("NotUpdated", nbCountInfoNotUpdated);
@@ -0,0 +1,301 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.context.R66Session;
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolBusinessException;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+import org.waarp.openr66.protocol.localhandler.packet.DataPacket;
+import org.waarp.openr66.protocol.localhandler.packet.RequestPacket;
+import org.waarp.openr66.protocol.localhandler.packet.json.SubStreamJsonPacket;
+import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+
+/**
+ * Receiver side of a multiple streams transfer.<br>
+ * <br>
+ * The main session keeps receiving its own range of blocks as usual, while each sub stream (a
+ * distinct local channel, attached through a SubStreamJsonPacket) carries another range of blocks,
+ * written at their final position into the file of the main session (preallocated) by a write
+ * behind writer of its own, such that the event loop never waits for the disk (the reading of the
+ * sub stream being suspended while its queue is full). The rank of the main transfer counts its own
+ * contiguous blocks, then, once its range is done, follows the written blocks of the sub streams
+ * as long as they are contiguous, such that a restart is always safe; once all ranges are
+ * received, the rank is set to the total number of blocks.
+ *
+ * @author Frederic Bregier
+ */
+public class MultiStreamReceiver {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(MultiStreamReceiver.class);
+
+    private final LocalChannelReference localChannelReference;
+
+    private final R66Session session;
+
+    private final int totalRank;
+
+    private final List<SubStream> subStreams = new ArrayList<SubStream>();
+
+    /**
+     * One range of blocks received through a sub stream
+     */
+    public class SubStream {
+        private final int startRank;
+        private final int endRank;
+        private final WriteBehindWriter writer;
+        /**
+         * Only used by the handler of the sub stream
+         */
+        private int nextRank;
+        /**
+         * Rank of the next block to write (all blocks before being written)
+         */
+        private volatile int writtenRank;
+        private volatile boolean complete = false;
+
+        private SubStream(final LocalChannelReference subChannel, int startRank, int endRank) {
+            this.startRank = startRank;
+            this.endRank = endRank;
+            this.nextRank = startRank;
+            this.writtenRank = startRank;
+            int size = Configuration.configuration.getWriteBehindQueue();
+            if (size < 1) {
+                size = Configuration.configuration.getSenderWindow();
+            }
+            this.writer = new WriteBehindWriter(session, size,
+                    NetworkTransaction.getWriteBehindExecutor()) {
+                @Override
+                protected void written(DataPacket packet) throws OpenR66ProtocolPacketException {
+                    writtenRank = packet.getPacketRank() + 1;
+                    checkpoint();
+                }
+
+                @Override
+                protected LocalChannelReference getReadChannel() {
+                    return subChannel;
+                }
+            };
+        }
+
+        /**
+         * Submit one received block to be written at its position in the file of the main session.
+         * The packet is cleared in all cases.
+         *
+         * @param packet
+         * @throws OpenR66ProtocolBusinessException
+         *             if the block is not the expected one, or if a previous write failed
+         */
+        public void data(DataPacket packet) throws OpenR66ProtocolBusinessException {
+            int rank = packet.getPacketRank();
+            if (rank != nextRank || rank >= endRank) {
+                packet.clear();
+                throw new OpenR66ProtocolBusinessException("Bad rank on sub stream: " + rank
+                        + " while expecting " + nextRank + " before " + endRank);
+            }
+            DbTaskRunner runner = session.getRunner();
+            if (RequestPacket.isMD5Mode(runner.getMode())) {
+                DigestAlgo algo = localChannelReference.getPartner().getDigestAlgo();
+                if (!packet.isKeyValid(localChannelReference, algo)) {
+                    packet.clear();
+                    throw new OpenR66ProtocolBusinessException(
+                            "Bad Hash on sub stream data packet (" + algo.name + ")");
+                }
+            }
+            // the packet is released by the writer once written
+            if (!writer.submit(packet)) {
+                throw new OpenR66ProtocolBusinessException("Write in error on sub stream: "
+                        + (writer.getError() != null ? writer.getError().getMessage() : "cancelled"));
+            }
+            nextRank++;
+        }
+
+        /**
+         * End of this sub stream: the reading is suspended and the listener is run once all its
+         * blocks are written (see isComplete), without waiting
+         *
+         * @param listener
+         */
+        public void endTransfer(final Runnable listener) {
+            writer.drain(new Runnable() {
+                public void run() {
+                    complete = !writer.isInError() && writtenRank == endRank;
+                    logger.debug("Sub stream [{}, {}) ended: {}", startRank, endRank, complete);
+                    listener.run();
+                }
+            });
+        }
+
+        /**
+         *
+         * @return True once ended if all the blocks of its range were received and written
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Drop the blocks not yet written of this sub stream in error
+         */
+        public void cancel() {
+            writer.cancel();
+        }
+    }
+
+    private MultiStreamReceiver(LocalChannelReference localChannelReference, int totalRank) {
+        this.localChannelReference = localChannelReference;
+        this.session = localChannelReference.getSession();
+        this.totalRank = totalRank;
+    }
+
+    /**
+     * Attach a new sub stream to the receiving transfer it refers to
+     *
+     * @param subSession
+     *            the (authenticated) session of the sub stream
+     * @param request
+     * @return the new sub stream, or null if the request is not acceptable
+     */
+    public static SubStream attach(R66Session subSession, SubStreamJsonPacket request) {
+        if (Configuration.configuration.getMultiStreams() <= 1) {
+            logger.info("Multiple streams transfer not allowed");
+            return null;
+        }
+        String key = request.getRequested() + " " + request.getRequester() + " "
+                + request.getSpecialId();
+        LocalChannelReference main = Configuration.configuration.getLocalTransaction()
+                .getFromRequest(key);
+        if (main == null || main.getSession() == null) {
+            logger.info("No transfer for sub stream: {}", key);
+            return null;
+        }
+        R66Session mainSession = main.getSession();
+        DbTaskRunner runner = mainSession.getRunner();
+        if (runner == null || runner.isSender() || runner.isRecvThrough() || !mainSession.isReady()) {
+            logger.info("Transfer not compatible with sub stream: {}", key);
+            return null;
+        }
+        if (subSession.getAuth() == null || mainSession.getAuth() == null
+                || !subSession.getAuth().getUser().equals(mainSession.getAuth().getUser())) {
+            logger.warn("Sub stream not from the partner of the transfer: {}", key);
+            return null;
+        }
+        long size = runner.getOriginalSize();
+        if (size <= 0) {
+            return null;
+        }
+        MultiStreamReceiver receiver = null;
+        synchronized (main) {
+            receiver = main.getMultiStreamReceiver();
+            if (receiver == null) {
+                int blocksize = runner.getBlocksize();
+                if (!mainSession.getFile().preallocate(size, blocksize, runner.getRank())) {
+                    return null;
+                }
+                receiver = new MultiStreamReceiver(main, (int) ((size + blocksize - 1) / blocksize));
+                main.setMultiStreamReceiver(receiver);
+            }
+        }
+        return receiver.addSubStream(subSession.getLocalChannelReference(), request.getStartRank(),
+                request.getEndRank());
+    }
+
+    private synchronized SubStream addSubStream(LocalChannelReference subChannel, int startRank,
+            int endRank) {
+        if (startRank < 0 || startRank >= endRank || endRank > totalRank) {
+            logger.warn("Bad range for sub stream: [" + startRank + ", " + endRank + ") on "
+                    + totalRank);
+            return null;
+        }
+        for (SubStream subStream : subStreams) {
+            if (startRank < subStream.endRank && subStream.startRank < endRank) {
+                logger.warn("Overlapping range for sub stream: [" + startRank + ", " + endRank + ")");
+                return null;
+            }
+        }
+        SubStream subStream = new SubStream(subChannel, startRank, endRank);
+        subStreams.add(subStream);
+        return subStream;
+    }
+
+    /**
+     *
+     * @return the total number of blocks of the transfer
+     */
+    public int getTotalRank() {
+        return totalRank;
+    }
+
+    /**
+     * Once the main session has received its own range, move the rank of the transfer forward to
+     * the first block not yet written, following the contiguous written blocks of the sub streams
+     */
+    private synchronized void checkpoint() throws OpenR66ProtocolPacketException {
+        DbTaskRunner runner = session.getRunner();
+        int rank = runner.getRank();
+        // no sub stream covers the range of the main session while it is receiving it
+        int cursor = rank;
+        boolean progress = true;
+        while (cursor < totalRank && progress) {
+            progress = false;
+            for (SubStream subStream : subStreams) {
+                if (subStream.startRank <= cursor && cursor < subStream.endRank
+                        && subStream.writtenRank > cursor) {
+                    progress = subStream.writtenRank == subStream.endRank;
+                    cursor = subStream.writtenRank;
+                    break;
+                }
+            }
+        }
+        if (cursor > rank) {
+            runner.advanceRank(cursor);
+        }
+    }
+
+    /**
+     * Check that all blocks are received: the contiguous blocks of the main session (its rank)
+     * followed by the ranges of the completed sub streams must reach the total number of blocks
+     *
+     * @return True if the whole file is received
+     */
+    public synchronized boolean isComplete() {
+        int cursor = session.getRunner().getRank();
+        boolean progress = true;
+        while (cursor < totalRank && progress) {
+            progress = false;
+            for (SubStream subStream : subStreams) {
+                if (subStream.complete && subStream.startRank <= cursor && cursor < subStream.endRank) {
+                    cursor = subStream.endRank;
+                    progress = true;
+                }
+            }
+        }
+        logger.debug("Multiple streams received up to {} on {}", cursor, totalRank);
+        return cursor >= totalRank;
+    }
+}
@@ -0,0 +1,819 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketAddress;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.context.ErrorCode;
+import org.waarp.openr66.context.R66FiniteDualStates;
+import org.waarp.openr66.context.R66Result;
+import org.waarp.openr66.context.R66Session;
+import org.waarp.openr66.context.authentication.R66Auth;
+import org.waarp.openr66.database.DbConstant;
+import org.waarp.openr66.database.data.DbHostAuth;
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+import org.waarp.openr66.protocol.localhandler.packet.DataPacket;
+import org.waarp.openr66.protocol.localhandler.packet.ErrorPacket;
+import org.waarp.openr66.protocol.localhandler.packet.JsonCommandPacket;
+import org.waarp.openr66.protocol.localhandler.packet.LocalPacketFactory;
+import org.waarp.openr66.protocol.localhandler.packet.RequestPacket;
+import org.waarp.openr66.protocol.localhandler.packet.json.SubStreamJsonPacket;
+import org.waarp.openr66.protocol.networkhandler.BandwidthClass;
+import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+import org.waarp.openr66.protocol.utils.BlockDigest;
+import org.waarp.openr66.protocol.utils.ChannelUtils;
+import org.waarp.openr66.protocol.utils.R66Future;
+
+/**
+ * Sender side of a multiple streams transfer.<br>
+ * <br>
+ * The blocks remaining to send are split in K contiguous ranges: the first one is sent by the
+ * RetrieveRunner of the main session as usual, while each other range is sent through its own sub
+ * stream (a new local channel to the partner, attached to the main transfer through a
+ * SubStreamJsonPacket). The sub streams are opened concurrently and attached without waiting for
+ * the answers of the partner, all of them within the connection timeout. Each sub stream is sent
+ * asynchronously, as the RetrieveRunner does, by the small shared pool of NetworkTransaction
+ * reading the file with positional reads: up to the sender window of blocks in flight, the
+ * completion of a write or the end of a bandwidth wait scheduling the next blocks, such that no
+ * thread ever waits for the network. Once the range of the main
+ * session is sent, the rank of the transfer follows the contiguous blocks sent by the sub streams.
+ * Once all sub streams are validated by the partner, the global hash of the file is computed (if
+ * needed) and the main session can send its EndTransfer.<br>
+ * <br>
+ * Multiple streams are only used if both partners allow it (see PartnerConfiguration), when this
+ * host is the requester and the file is large enough (MINIMAL_BLOCKS per stream).
+ *
+ * @author Frederic Bregier
+ */
+public class MultiStreamSender {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(MultiStreamSender.class);
+
+    /**
+     * Minimal number of blocks for each stream
+     */
+    public static final int MINIMAL_BLOCKS = 64;
+
+    private final R66Session session;
+
+    private final NetworkTransaction networkTransaction;
+
+    private final DbHostAuth host;
+
+    private final File file;
+
+    private final int totalRank;
+
+    /**
+     * bounds[i] is the first rank of stream i, bounds[K] is the total number of blocks
+     */
+    private final int[] bounds;
+
+    private final List<SubSender> subSenders = new CopyOnWriteArrayList<SubSender>();
+
+    /**
+     * Number of sub streams not yet ended
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Listener of finish(), once all sub streams are ended (guarded by this)
+     */
+    private Runnable finishListener = null;
+
+    private boolean finishing = false;
+
+    /**
+     * Number of sub streams not yet attached
+     */
+    private final AtomicInteger attaching = new AtomicInteger();
+
+    /**
+     * True once the opening of the sub streams is over (all attached or not)
+     */
+    private final AtomicBoolean openDone = new AtomicBoolean(false);
+
+    /**
+     * Listener of start()
+     */
+    private volatile Runnable startListener = null;
+
+    /**
+     * All sub streams must be attached in time
+     */
+    private final Thread openTimeout = new Thread() {
+        @Override
+        public void run() {
+            if (!openDone.get()) {
+                logger.info("Sub streams not attached in time");
+                opened(false);
+            }
+        }
+    };
+
+    private volatile boolean opened = false;
+
+    private volatile boolean started = false;
+
+    private volatile boolean finished = false;
+
+    private volatile boolean success = false;
+
+    private volatile boolean cancelled = false;
+
+    private volatile String hash = null;
+
+    /**
+     * Sender of one range of blocks through one sub stream
+     */
+    private class SubSender implements Runnable {
+        private final LocalChannelReference localChannelReference;
+        private final int startRank;
+        private final int endRank;
+        private volatile boolean subSuccess = false;
+        private final int window;
+        private final BandwidthClass bandwidthClass;
+        private final int weight;
+        private final AtomicBoolean ended = new AtomicBoolean(false);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicBoolean shaping = new AtomicBoolean(false);
+        private final AtomicInteger inflight = new AtomicInteger();
+        private volatile boolean sending = false;
+        private volatile boolean failed = false;
+        /**
+         * Rank of the next block to write (all blocks before being written to the network)
+         */
+        private volatile int sentRank;
+        /**
+         * Only used by the running sender
+         */
+        private RandomAccessFile randomAccessFile = null;
+        private FileChannel fileChannel = null;
+        private long length;
+        private int rank;
+        private boolean endSent = false;
+
+        /**
+         * Wake up once the bandwidth could be available
+         */
+        private final Thread shapingWakeUp = new Thread() {
+            @Override
+            public void run() {
+                shaping.set(false);
+                schedule();
+            }
+        };
+
+        /**
+         * Called once EndTransfer is answered by the partner, or the sub stream is in error
+         */
+        private final Runnable endListener = new Runnable() {
+            public void run() {
+                R66Future endTransfer = localChannelReference.getFutureEndTransfer();
+                if (endTransfer.isDone()) {
+                    end(endTransfer.isSuccess());
+                } else if (localChannelReference.getFutureRequest().isDone()) {
+                    end(false);
+                }
+            }
+        };
+
+        /**
+         * Sub stream in error if EndTransfer is not answered in time
+         */
+        private final Thread endTimeout = new Thread() {
+            @Override
+            public void run() {
+                endListener.run();
+                if (!ended.get()) {
+                    logger.warn("No answer to the end of a sub stream");
+                    end(false);
+                }
+            }
+        };
+
+        private SubSender(LocalChannelReference localChannelReference, int startRank, int endRank) {
+            this.localChannelReference = localChannelReference;
+            this.startRank = startRank;
+            this.endRank = endRank;
+            this.sentRank = startRank;
+            int senderWindow = Configuration.configuration.getSenderWindow();
+            this.window = senderWindow < 1 ? 1 : senderWindow;
+            this.bandwidthClass = session.getLocalChannelReference().getBandwidthClass();
+            this.weight = session.getLocalChannelReference().getFairShare().getWeight();
+        }
+
+        /**
+         * Ask the partner to attach this sub stream to the transfer, without waiting for the
+         * answer (see attached)
+         */
+        private void attach() {
+            DbTaskRunner runner = session.getRunner();
+            SubStreamJsonPacket request = new SubStreamJsonPacket();
+            request.setRequester(runner.getRequester());
+            request.setRequested(runner.getRequested());
+            request.setSpecialId(runner.getSpecialId());
+            request.setStartRank(startRank);
+            request.setEndRank(endRank);
+            request.setRequestUserPacket();
+            JsonCommandPacket packet = new JsonCommandPacket(request, LocalPacketFactory.SUBSTREAMPACKET);
+            localChannelReference.setSubStreamSender(true);
+            // same compression as negotiated by the main transfer
+            localChannelReference.setCompression(session.getLocalChannelReference().isCompression());
+            localChannelReference.sessionNewState(R66FiniteDualStates.REQUESTR);
+            final AtomicBoolean answered = new AtomicBoolean(false);
+            Runnable attachListener = new Runnable() {
+                public void run() {
+                    R66Future valid = localChannelReference.getFutureValidRequest();
+                    if (valid.isDone() && answered.compareAndSet(false, true)) {
+                        localChannelReference.setFutureListener(null);
+                        attached(valid.isSuccess());
+                    }
+                }
+            };
+            localChannelReference.setFutureListener(attachListener);
+            try {
+                ChannelUtils.writeAbstractLocalPacket(localChannelReference, packet, false);
+            } catch (OpenR66ProtocolPacketException e) {
+                if (answered.compareAndSet(false, true)) {
+                    localChannelReference.setFutureListener(null);
+                    attached(false);
+                }
+                return;
+            }
+            // the answer could have come before the listener was set
+            attachListener.run();
+        }
+
+        /**
+         * Start sending the range of blocks
+         */
+        private void start() {
+            sending = true;
+            try {
+                randomAccessFile = new RandomAccessFile(file, "r");
+                fileChannel = randomAccessFile.getChannel();
+                length = fileChannel.size();
+            } catch (IOException e) {
+                logger.warn("Sub stream in error: " + e.getMessage());
+                end(false);
+                return;
+            }
+            rank = startRank;
+            localChannelReference.sessionNewState(R66FiniteDualStates.DATAS);
+            schedule();
+        }
+
+        /**
+         * Run the sender in the shared pool if not already scheduled
+         */
+        private void schedule() {
+            if (ended.get() || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                NetworkTransaction.getMultiStreamExecutor().execute(this);
+            } catch (RejectedExecutionException e) {
+                // in shutdown
+                scheduled.set(false);
+                end(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                // out of the event loop since the runner could be saved
+                checkpoint();
+                if (!shaping.get()) {
+                    sendBlocks();
+                }
+            } catch (IOException e) {
+                logger.warn("Sub stream in error: " + e.getMessage());
+                end(false);
+            } catch (OpenR66ProtocolPacketException e) {
+                logger.warn("Sub stream in error: " + e.getMessage());
+                end(false);
+            } finally {
+                scheduled.set(false);
+            }
+            // a completion could have come while running
+            if (isReady()) {
+                schedule();
+            }
+        }
+
+        /**
+         * 
+         * @return True if the sender has something to do now
+         */
+        private boolean isReady() {
+            if (ended.get() || shaping.get()) {
+                return false;
+            }
+            if (failed || cancelled || localChannelReference.getFutureRequest().isDone()) {
+                return true;
+            }
+            if (endSent) {
+                return false;
+            }
+            return rank < endRank ? inflight.get() < window : inflight.get() == 0;
+        }
+
+        /**
+         * Send the next blocks up to the window, then EndTransfer once all blocks are written
+         */
+        private void sendBlocks() throws IOException, OpenR66ProtocolPacketException {
+            if (ended.get()) {
+                return;
+            }
+            if (failed || cancelled || localChannelReference.getFutureRequest().isDone()) {
+                end(false);
+                return;
+            }
+            if (endSent) {
+                return;
+            }
+            DbTaskRunner runner = session.getRunner();
+            boolean md5 = RequestPacket.isMD5Mode(runner.getMode());
+            int blocksize = runner.getBlocksize();
+            while (rank < endRank && inflight.get() < window) {
+                long position = (long) rank * blocksize;
+                int size = (int) Math.min(blocksize, length - position);
+                if (size <= 0) {
+                    logger.warn("File shorter than expected for sub stream: " + file);
+                    end(false);
+                    return;
+                }
+                // same bandwidth class than the main transfer
+                long wait = bandwidthClass.reserve(size, weight);
+                if (wait > 0) {
+                    if (shaping.compareAndSet(false, true)) {
+                        Configuration.configuration.launchInFixedDelay(shapingWakeUp, wait,
+                                TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                ByteBuf buf = RetrieveRunner.readBlock(fileChannel, position, size,
+                        localChannelReference.getNetworkChannel().alloc());
+                if (buf == null) {
+                    end(false);
+                    return;
+                }
+                ByteBuf key = Unpooled.EMPTY_BUFFER;
+                if (md5) {
+                    key = BlockDigest.getKey(localChannelReference, buf,
+                            localChannelReference.getNetworkChannel().alloc());
+                }
+                inflight.incrementAndGet();
+                final int sent = rank;
+                rank++;
+                ChannelUtils.writeAbstractLocalPacket(localChannelReference,
+                        new DataPacket(sent, buf, key), false).addListener(
+                        new ChannelFutureListener() {
+                            public void operationComplete(ChannelFuture future) {
+                                if (future.isSuccess()) {
+                                    sentRank = sent + 1;
+                                } else {
+                                    failed = true;
+                                }
+                                inflight.decrementAndGet();
+                                schedule();
+                            }
+                        });
+            }
+            if (rank == endRank && inflight.get() == 0) {
+                endSent = true;
+                ChannelUtils.writeEndTransferAsync(localChannelReference, null);
+                // ended once answered by the partner (or in error)
+                Configuration.configuration.launchInFixedDelay(endTimeout,
+                        Configuration.configuration.getTIMEOUTCON(), TimeUnit.MILLISECONDS);
+                localChannelReference.setFutureListener(endListener);
+            }
+        }
+
+        /**
+         * Close this sub stream, informing the partner in case of error
+         *
+         * @param ok
+         */
+        private void end(boolean ok) {
+            if (!ended.compareAndSet(false, true)) {
+                return;
+            }
+            localChannelReference.setFutureListener(null);
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                }
+            }
+            subSuccess = ok;
+            R66Result result = new R66Result(localChannelReference.getSession(), true,
+                    ok ? ErrorCode.TransferOk : ErrorCode.TransferError, null);
+            if (ok) {
+                localChannelReference.validateRequest(result);
+            } else {
+                if (!localChannelReference.getFutureRequest().isDone()) {
+                    ErrorPacket error = new ErrorPacket("Sub stream in error",
+                            ErrorCode.TransferError.getCode(), ErrorPacket.FORWARDCLOSECODE);
+                    try {
+                        ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
+                    } catch (OpenR66ProtocolPacketException e) {
+                    }
+                }
+                localChannelReference.invalidateRequest(result);
+            }
+            ChannelUtils.close(localChannelReference.getLocalChannel());
+            if (sending) {
+                subSenderDone();
+            }
+        }
+    }
+
+    private MultiStreamSender(R66Session session, NetworkTransaction networkTransaction,
+            DbHostAuth host, int totalRank, int[] bounds) {
+        this.session = session;
+        this.networkTransaction = networkTransaction;
+        this.host = host;
+        this.file = session.getFile().getTrueFile();
+        this.totalRank = totalRank;
+        this.bounds = bounds;
+    }
+
+    /**
+     * 
+     * @param session
+     * @param localChannelReference
+     *            the main local channel of the transfer
+     * @return a new MultiStreamSender if this transfer shall use multiple streams, else null
+     */
+    public static MultiStreamSender create(R66Session session,
+            LocalChannelReference localChannelReference) {
+        int streams = Configuration.configuration.getMultiStreams();
+        if (streams <= 1) {
+            return null;
+        }
+        DbTaskRunner runner = session.getRunner();
+        if (runner == null || !runner.isSender() || runner.isSelfRequested() || runner.isSendThrough()
+                || localChannelReference.isSendThroughMode()) {
+            return null;
+        }
+        PartnerConfiguration partner = localChannelReference.getPartner();
+        if (partner == null || partner.getMultiStreams() <= 1) {
+            return null;
+        }
+        streams = Math.min(streams, partner.getMultiStreams());
+        NetworkTransaction networkTransaction = null;
+        if (localChannelReference.getClientRunner() != null) {
+            networkTransaction = localChannelReference.getClientRunner().getNetworkTransaction();
+        } else if (Configuration.configuration.getInternalRunner() != null) {
+            networkTransaction = Configuration.configuration.getInternalRunner().getNetworkTransaction();
+        }
+        File file = session.getFile().getTrueFile();
+        if (networkTransaction == null || file == null) {
+            return null;
+        }
+        int blocksize = runner.getBlocksize();
+        long size = file.length();
+        if (blocksize <= 0 || size <= 0) {
+            return null;
+        }
+        int totalRank = (int) ((size + blocksize - 1) / blocksize);
+        int startRank = runner.getRank();
+        int remaining = totalRank - startRank;
+        streams = Math.min(streams, remaining / MINIMAL_BLOCKS);
+        if (streams <= 1) {
+            return null;
+        }
+        DbHostAuth host = R66Auth.getServerAuth(DbConstant.admin.getSession(), runner.getRequested());
+        if (host == null || host.isClient()) {
+            return null;
+        }
+        int[] bounds = new int[streams + 1];
+        int perStream = (remaining + streams - 1) / streams;
+        for (int i = 0; i < streams; i++) {
+            bounds[i] = Math.min(totalRank, startRank + i * perStream);
+        }
+        bounds[streams] = totalRank;
+        logger.debug("Multiple streams transfer: {} streams for {} blocks", streams, remaining);
+        return new MultiStreamSender(session, networkTransaction, host, totalRank, bounds);
+    }
+
+    /**
+     * Open and attach all sub streams concurrently, then start them, asynchronously: the opening
+     * fails if any sub stream is refused or if they are not all attached in time
+     * 
+     * @param listener
+     *            called once done (see isStarted())
+     */
+    public void start(Runnable listener) {
+        startListener = listener;
+        final SocketAddress socketAddress;
+        try {
+            socketAddress = host.getSocketAddress();
+        } catch (IllegalArgumentException e) {
+            opened(false);
+            return;
+        }
+        attaching.set(bounds.length - 2);
+        Configuration.configuration.launchInFixedDelay(openTimeout,
+                Configuration.configuration.getTIMEOUTCON(), TimeUnit.MILLISECONDS);
+        for (int i = 1; i < bounds.length - 1; i++) {
+            final int startRank = bounds[i];
+            final int endRank = bounds[i + 1];
+            try {
+                NetworkTransaction.getMultiStreamExecutor().execute(new Runnable() {
+                    public void run() {
+                        open(socketAddress, startRank, endRank);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                opened(false);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Open one sub stream and ask the partner to attach it
+     * 
+     * @param socketAddress
+     * @param startRank
+     * @param endRank
+     */
+    private void open(SocketAddress socketAddress, int startRank, int endRank) {
+        if (openDone.get() || cancelled) {
+            return;
+        }
+        LocalChannelReference localChannelReference = networkTransaction
+                .createConnectionWithRetry(socketAddress, host.isSsl(), new R66Future(true));
+        if (localChannelReference == null) {
+            attached(false);
+            return;
+        }
+        SubSender subSender = new SubSender(localChannelReference, startRank, endRank);
+        subSenders.add(subSender);
+        if (openDone.get()) {
+            // opening already over (in error)
+            subSender.end(false);
+            return;
+        }
+        subSender.attach();
+    }
+
+    /**
+     * One sub stream is attached or refused
+     * 
+     * @param ok
+     */
+    private void attached(boolean ok) {
+        if (!ok) {
+            opened(false);
+        } else if (attaching.decrementAndGet() == 0) {
+            opened(true);
+        }
+    }
+
+    /**
+     * End of the opening: start all sub streams if all are attached, else end them
+     * 
+     * @param ok
+     */
+    private void opened(boolean ok) {
+        if (!openDone.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (!ok || cancelled) {
+                logger.info("Sub streams cannot be all attached, single stream kept");
+                for (SubSender subSender : subSenders) {
+                    subSender.end(false);
+                }
+                subSenders.clear();
+                return;
+            }
+            running.set(subSenders.size());
+            for (SubSender subSender : subSenders) {
+                subSender.start();
+            }
+            started = true;
+        } finally {
+            opened = true;
+            Runnable listener = startListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Once all sub streams are ended, compute the global hash if needed, asynchronously
+     * 
+     * @param listener
+     *            called once done (see isSuccess())
+     */
+    public void finish(Runnable listener) {
+        synchronized (this) {
+            finishListener = listener;
+        }
+        checkFinished();
+    }
+
+    /**
+     * One sub stream is ended
+     */
+    private void subSenderDone() {
+        running.decrementAndGet();
+        checkFinished();
+    }
+
+    /**
+     * Compute the global hash and call the listener of finish() once all sub streams are ended
+     */
+    private void checkFinished() {
+        final Runnable listener;
+        synchronized (this) {
+            if (finishListener == null || finishing || running.get() > 0) {
+                return;
+            }
+            finishing = true;
+            listener = finishListener;
+        }
+        try {
+            NetworkTransaction.getMultiStreamExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        success = allSubSendersDone() && computeHash();
+                    } finally {
+                        finished = true;
+                        listener.run();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finished = true;
+            listener.run();
+        }
+    }
+
+    private boolean allSubSendersDone() {
+        for (SubSender subSender : subSenders) {
+            if (!subSender.subSuccess) {
+                return false;
+            }
+        }
+        return !cancelled;
+    }
+
+    /**
+     * Once the main session has sent its own range, move the rank of the transfer forward to the
+     * first block not yet written to the network, following the contiguous blocks of the sub
+     * streams
+     */
+    private synchronized void checkpoint() {
+        DbTaskRunner runner = session.getRunner();
+        int rank = runner.getRank();
+        // no sub stream covers the range of the main session while it is sending it
+        int cursor = rank;
+        boolean progress = true;
+        while (cursor < totalRank && progress) {
+            progress = false;
+            for (SubSender subSender : subSenders) {
+                if (subSender.startRank <= cursor && cursor < subSender.endRank
+                        && subSender.sentRank > cursor) {
+                    progress = subSender.sentRank == subSender.endRank;
+                    cursor = subSender.sentRank;
+                    break;
+                }
+            }
+        }
+        if (cursor > rank) {
+            try {
+                runner.advanceRank(cursor);
+            } catch (OpenR66ProtocolPacketException e) {
+                logger.warn("Cannot checkpoint the rank of the sub streams: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean computeHash() {
+        if (!Configuration.configuration.isGlobalDigest()) {
+            return true;
+        }
+        try {
+            hash = FilesystemBasedDigest.getHex(FilesystemBasedDigest.getHash(file, true,
+                    Configuration.configuration.getDigest()));
+            return true;
+        } catch (IOException e) {
+            logger.warn("Cannot compute global hash: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stop all sub streams
+     */
+    public void cancel() {
+        cancelled = true;
+        opened(false);
+        for (SubSender subSender : subSenders) {
+            subSender.schedule();
+        }
+    }
+
+    /**
+     * 
+     * @return True once start() is over
+     */
+    public boolean isOpened() {
+        return opened;
+    }
+
+    /**
+     * 
+     * @return True if all sub streams are attached and started
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * 
+     * @return True once finish() is over
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 
+     * @return True if all sub streams were validated by the partner (and the global hash computed)
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * 
+     * @return the global hash of the file, or null if none
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * 
+     * @return the rank (excluded) where the main session shall stop
+     */
+    public int getMainEndRank() {
+        return bounds[1];
+    }
+
+    /**
+     * 
+     * @return the total number of blocks of the file
+     */
+    public int getTotalRank() {
+        return totalRank;
+    }
+}
@@ -17,11 +17,23 @@
  */
 package org.waarp.openr66.protocol.localhandler;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.local.LocalChannel;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 
 import org.waarp.common.file.DataBlock;
 import org.waarp.common.logging.WaarpLogger;
@@ -30,6 +42,7 @@ import org.waarp.openr66.context.ErrorCode;
 import org.waarp.openr66.context.R66FiniteDualStates;
 import org.waarp.openr66.context.R66Result;
 import org.waarp.openr66.context.R66Session;
+import org.waarp.openr66.context.filesystem.R66File;
 import org.waarp.openr66.context.task.exception.OpenR66RunnerErrorException;
 import org.waarp.openr66.database.data.DbTaskRunner.TASKSTEP;
 import org.waarp.openr66.protocol.configuration.Configuration;
@@ -38,21 +51,37 @@ import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolSystemException;
 import org.waarp.openr66.protocol.localhandler.packet.EndRequestPacket;
 import org.waarp.openr66.protocol.localhandler.packet.ErrorPacket;
+import org.waarp.openr66.protocol.networkhandler.FairShare;
+import org.waarp.openr66.protocol.networkhandler.NetworkChannelReference;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
+import org.waarp.openr66.protocol.utils.TransferPriority;
 
 /**
- * Retrieve transfer runner
+ * Retrieve transfer runner.<br>
+ * <br>
+ * This is an asynchronous state machine: each call to run() executes one step, then returns. Steps
+ * are triggered again by write completions, by the network channel becoming writable again, and by
+ * the completion of the EndTransfer and Request futures, such that all outgoing transfers are
+ * served by the small fixed pool of NetworkTransaction.getRetrieveExecutor() without blocking a
+ * thread per transfer.
  * 
  * @author Frederic Bregier
  * 
  */
-public class RetrieveRunner extends Thread {
+public class RetrieveRunner implements Runnable {
     /**
      * Internal Logger
      */
     private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(RetrieveRunner.class);
 
+    /**
+     * Steps of the state machine
+     */
+    private static enum State {
+        START, STARTSUBSTREAMS, SENDING, WAITHASH, WAITSUBSTREAMS, WAITENDTRANSFER, WAITENDREQUEST, DONE
+    }
+
     private final R66Session session;
 
     private final LocalChannelReference localChannelReference;
@@ -63,6 +92,84 @@ public class RetrieveRunner extends Thread {
 
     protected AtomicBoolean running = new AtomicBoolean(true);
 
+    /**
+     * Number of pending wake up, to serialize steps
+     */
+    private final AtomicInteger wakeUp = new AtomicInteger();
+
+    private volatile boolean timeoutEndRequest = false;
+
+    private State state = State.START;
+
+    private final LinkedList<ChannelFuture> inflight = new LinkedList<ChannelFuture>();
+
+    private int window = 1;
+
+    /**
+     * Global digest computed off this runner if any
+     */
+    private HashingStage hashing = null;
+
+    private boolean eof = false;
+
+    private FileChannel fileChannel = null;
+
+    /**
+     * True if the blocks are sent from the file channel without being read (zero copy)
+     */
+    private boolean zeroCopy = false;
+
+    private long position = 0;
+
+    private long size = 0;
+
+    /**
+     * Sub streams of a multiple streams transfer if any
+     */
+    private MultiStreamSender multiStream = null;
+
+    /**
+     * Rank (excluded) where this runner stops when other ranges are sent by sub streams, else -1
+     */
+    private int endRank = -1;
+
+    /**
+     * Listener used to wake up this runner
+     */
+    private final ChannelFutureListener wakeUpListener = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) throws Exception {
+            wakeUp();
+        }
+    };
+
+    private final Runnable wakeUpRunnable = new Runnable() {
+        public void run() {
+            wakeUp();
+        }
+    };
+
+    /**
+     * Once the validation is written, the answer of the partner is awaited up to the timeout
+     */
+    private final ChannelFutureListener endRequestWrittenListener = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) throws Exception {
+            startEndRequestTimeout();
+        }
+    };
+
+    /**
+     * True while a wake up is scheduled since the bandwidth class of the transfer is exhausted
+     */
+    private final AtomicBoolean shapingScheduled = new AtomicBoolean(false);
+
+    private final Thread shapingWakeUp = new Thread() {
+        @Override
+        public void run() {
+            shapingScheduled.set(false);
+            wakeUp();
+        }
+    };
+
     protected RetrieveRunner() {
         // empty constructor
         this.session = null;
@@ -82,98 +189,527 @@ public class RetrieveRunner extends Thread {
         this.channel = channel;
     }
 
+    /**
+     * Start this runner (asynchronously)
+     */
+    public void startRetrieve() {
+        localChannelReference.setFutureListener(wakeUpRunnable);
+        wakeUp();
+    }
+
     /**
      * Try to stop the runner
      */
     public void stopRunner() {
         running.set(false);
+        wakeUp();
+    }
+
+    /**
+     * Ask for a new step to be executed
+     */
+    private void wakeUp() {
+        if (wakeUp.getAndIncrement() == 0) {
+            try {
+                NetworkTransaction.getRetrieveExecutor().execute(this);
+            } catch (RejectedExecutionException e) {
+                // in shutdown
+                wakeUp.set(0);
+            }
+        }
     }
 
     @Override
     public void run() {
-        boolean requestValidDone = false;
-        try {
-            Thread.currentThread().setName("RetrieveRunner: " + channel.id());
-            try {
-                if (session.getRunner().getGloballaststep() == TASKSTEP.POSTTASK.ordinal()) {
-                    logger.debug("Restart from POSTTASK: EndTransfer");
-                    // restart from PostTask global step so just end now
-                    try {
-                        ChannelUtils.writeEndTransfer(localChannelReference);
-                    } catch (OpenR66ProtocolPacketException e) {
-                        transferInError(e);
-                        logger.error("End Retrieve in Error");
-                        return;
-                    }
-                } else {
-                    logger.debug("Start retrieve operation (send)");
-                    session.getFile().retrieveBlocking(running);
+        int missed = 1;
+        for (;;) {
+            if (state != State.DONE) {
+                try {
+                    step();
+                } catch (OpenR66Exception e) {
+                    transferInError(e);
+                } catch (Exception e) {
+                    transferInError(new OpenR66RunnerErrorException(e));
                 }
-            } catch (OpenR66RunnerErrorException e) {
-                transferInError(e);
-                logger.info("End Retrieve in Error");
+                if (state == State.DONE) {
+                    endRetrieve();
+                }
+            }
+            missed = wakeUp.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Execute as much as possible without blocking
+     * 
+     * @throws OpenR66Exception
+     */
+    private void step() throws OpenR66Exception {
+        switch (state) {
+            case START:
+                firstStep();
+                break;
+            case STARTSUBSTREAMS:
+                checkSubStreamsStarted();
+                break;
+            case SENDING:
+                sendBlocks();
+                break;
+            case WAITHASH:
+                checkHashDone();
+                break;
+            case WAITSUBSTREAMS:
+                checkSubStreamsDone();
+                break;
+            case WAITENDTRANSFER:
+                checkEndTransfer();
+                break;
+            case WAITENDREQUEST:
+                checkEndRequest();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void firstStep() throws OpenR66Exception {
+        if (session.getRunner().getGloballaststep() == TASKSTEP.POSTTASK.ordinal()) {
+            logger.debug("Restart from POSTTASK: EndTransfer");
+            // restart from PostTask global step so just end now
+            state = State.WAITENDTRANSFER;
+            ChannelUtils.writeEndTransferAsync(localChannelReference, null)
+                    .addListener(wakeUpListener);
+            return;
+        }
+        logger.debug("Start retrieve operation (send)");
+        R66File file = session.getFile();
+        if (!file.isReadyToSend()) {
+            sendingDone(false);
+            return;
+        }
+        window = Configuration.configuration.getSenderWindow();
+        if (window < 1) {
+            window = 1;
+        }
+        hashing = HashingStage.create(window);
+        multiStream = MultiStreamSender.create(session, localChannelReference);
+        if (multiStream != null) {
+            // sub streams are attached before sending anything
+            state = State.STARTSUBSTREAMS;
+            multiStream.start(wakeUpRunnable);
+            return;
+        }
+        startSending();
+    }
+
+    /**
+     * Sub streams are attached (or not): start sending
+     * 
+     * @throws OpenR66Exception
+     */
+    private void checkSubStreamsStarted() throws OpenR66Exception {
+        if (!multiStream.isOpened()) {
+            if (!running.get()) {
+                multiStream.cancel();
+            }
+            // will be waked up once done
+            return;
+        }
+        if (!running.get()) {
+            multiStream.cancel();
+            multiStream = null;
+            sendingDone(false);
+            return;
+        }
+        if (multiStream.isStarted()) {
+            endRank = multiStream.getMainEndRank();
+            // global hash is computed on the whole file once all streams are done
+            hashing = null;
+        } else {
+            multiStream = null;
+        }
+        startSending();
+    }
+
+    /**
+     * Start sending the blocks of this runner
+     * 
+     * @throws OpenR66Exception
+     */
+    private void startSending() throws OpenR66Exception {
+        R66File file = session.getFile();
+        fileChannel = file.getSendFileChannel();
+        if (fileChannel == null) {
+            throw new OpenR66ProtocolSystemException("Cannot open the file to send: " + file);
+        }
+        zeroCopy = ChannelUtils.isZeroCopyAllowed(localChannelReference);
+        try {
+            position = file.getSendPosition();
+            size = fileChannel.size();
+        } catch (IOException e) {
+            throw new OpenR66ProtocolSystemException(e);
+        }
+        if (endRank >= 0) {
+            // end of the range of this runner
+            size = Math.min(size, (long) endRank * session.getBlockSize());
+        }
+        state = State.SENDING;
+        sendBlocks();
+    }
+
+    /**
+     * Send blocks while the window is not full and the network channel is writable
+     * 
+     * @throws OpenR66Exception
+     */
+    private void sendBlocks() throws OpenR66Exception {
+        // First get rid of already done writes
+        while (!inflight.isEmpty() && inflight.getFirst().isDone()) {
+            if (!inflight.removeFirst().isSuccess()) {
+                sendingDone(false);
                 return;
-            } catch (OpenR66ProtocolSystemException e) {
-                transferInError(e);
-                logger.info("End Retrieve in Error");
+            }
+        }
+        if (!running.get()) {
+            // stopped
+            sendingDone(false);
+            return;
+        }
+        if (eof) {
+            if (inflight.isEmpty()) {
+                sendingDone(true);
+            }
+            // else wait for last writes
+            return;
+        }
+        Channel networkChannel = localChannelReference.getNetworkChannel();
+        FairShare share = localChannelReference.getFairShare();
+        // Burst limited to the window weighted by the priority to be fair with other transfers
+        int burst = Math.max(1, window * share.getWeight() / TransferPriority.MAX_WEIGHT);
+        share.setTurnBytes(burst * session.getBlockSize());
+        while (!eof && inflight.size() < window && burst > 0) {
+            if (!networkChannel.isWritable() && !inflight.isEmpty()) {
+                // write completion will wake up this runner, as writability change
+                localChannelReference.getNetworkChannelObject().waitForWritability(wakeUpRunnable,
+                        share);
                 return;
             }
-            if (running.get()) {
-                try {
-                    localChannelReference.getFutureEndTransfer().await();
-                } catch (InterruptedException e1) {
-                }
+            if (hashing != null && hashing.isFull()) {
+                // end of hashing of a block will wake up this runner
+                hashing.waitForRoom(wakeUpRunnable);
+                return;
             }
-            logger.debug("Await future End Transfer done: " +
-                    localChannelReference.getFutureEndTransfer().isSuccess());
-            if (localChannelReference.getFutureEndTransfer().isDone() &&
-                    localChannelReference.getFutureEndTransfer().isSuccess()) {
-                // send a validation
-                requestValidDone = true;
-                localChannelReference.sessionNewState(R66FiniteDualStates.ENDREQUESTS);
-                EndRequestPacket validPacket = new EndRequestPacket(ErrorCode.CompleteOk.ordinal());
-                if (session.getExtendedProtocol() &&
-                        session.getBusinessObject() != null &&
-                        session.getBusinessObject().getInfo(session) != null) {
-                    validPacket.setOptional(session.getBusinessObject().getInfo(session));
-                }
-                try {
-                    ChannelUtils.writeAbstractLocalPacket(localChannelReference, validPacket, true);
-                } catch (OpenR66ProtocolPacketException e) {
-                }
-                if (!localChannelReference.getFutureRequest().awaitUninterruptibly(
-                        Configuration.configuration.getTIMEOUTCON())) {
-                    // valid it however
-                    session.getRunner().setAllDone();
-                    try {
-                        session.getRunner().saveStatus();
-                    } catch (OpenR66RunnerErrorException e) {
-                        // ignore
-                    }
-                    localChannelReference.validateRequest(localChannelReference
-                            .getFutureEndTransfer().getResult());
-                }
-                if (session.getRunner() != null && session.getRunner().isSelfRequested()) {
-                    ChannelUtils.close(localChannelReference.getLocalChannel());
-                }
-                done = true;
-            } else {
-                if (localChannelReference.getFutureEndTransfer().isDone()) {
-                    // Done and Not Success => error
-                    if (!localChannelReference.getFutureEndTransfer().getResult().isAnswered()) {
-                        localChannelReference.sessionNewState(R66FiniteDualStates.ERROR);
-                        ErrorPacket error = new ErrorPacket(
-                                localChannelReference.getErrorMessage(),
-                                localChannelReference.getFutureEndTransfer().getResult().getCode()
-                                        .getCode(),
-                                ErrorPacket.FORWARDCLOSECODE);
-                        try {
-                            ChannelUtils.writeAbstractLocalPacket(localChannelReference, error,
-                                    true);
-                        } catch (OpenR66ProtocolPacketException e) {
-                        }
-                    }
+            if (!reserveBandwidth(share)) {
+                // the timer will wake up this runner
+                return;
+            }
+            ChannelFuture future = sendOneBlock();
+            burst--;
+            if (future != null) {
+                inflight.addLast(future);
+                future.addListener(wakeUpListener);
+            }
+        }
+        if (eof && inflight.isEmpty()) {
+            sendingDone(true);
+        } else if (burst == 0 && inflight.size() < window) {
+            // let other transfers on the same network channel go on according to their share
+            localChannelReference.getNetworkChannelObject().waitForWritability(wakeUpRunnable, share);
+        }
+    }
+
+    /**
+     * Reserve the bandwidth of the next block in the bandwidth class of the transfer
+     * 
+     * @param share
+     *            the share of the transfer (a lower weight waits longer before trying again)
+     * @return True if reserved, else this runner will be waked up once the bandwidth could be
+     *         available
+     */
+    private boolean reserveBandwidth(FairShare share) {
+        long wait = localChannelReference.getBandwidthClass().reserve(session.getBlockSize(),
+                share.getWeight());
+        if (wait <= 0) {
+            return true;
+        }
+        if (shapingScheduled.compareAndSet(false, true)) {
+            Configuration.configuration.launchInFixedDelay(shapingWakeUp, wait, TimeUnit.MILLISECONDS);
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @return the future of the write of the next block, or null if end of file
+     * @throws OpenR66Exception
+     */
+    private ChannelFuture sendOneBlock() throws OpenR66Exception {
+        if (position >= size) {
+            eof = true;
+            return null;
+        }
+        int length = (int) Math.min(session.getBlockSize(), size - position);
+        if (zeroCopy) {
+            if (hashing != null) {
+                hashing.submit(fileChannel, position, length);
+            }
+            ChannelFuture future = ChannelUtils.writeBackDataRegion(localChannelReference,
+                    fileChannel, position, length);
+            position += length;
+            return future;
+        }
+        ByteBuf buffer;
+        try {
+            buffer = readBlock(fileChannel, position, length,
+                    localChannelReference.getNetworkChannel().alloc());
+        } catch (IOException e) {
+            throw new OpenR66ProtocolSystemException(e);
+        }
+        if (buffer == null) {
+            throw new OpenR66ProtocolSystemException("File shorter than expected: " +
+                    session.getFile());
+        }
+        position += length;
+        DataBlock block = new DataBlock();
+        block.setBlock(buffer);
+        if (position >= size) {
+            block.setEOF(true);
+        }
+        if (hashing != null) {
+            // retained until hashed, while written
+            hashing.submit(buffer);
+        }
+        return writeWhenPossible(block, localChannelReference);
+    }
+
+    /**
+     * Read one block into a fresh buffer of the given allocator: several blocks being in flight
+     * within the window (or hashed), each block owns its buffer, released once written.
+     * 
+     * @param fileChannel
+     * @param position
+     *            the absolute position of the block in the file
+     * @param length
+     * @param allocator
+     *            the allocator of the network channel
+     * @return the block, or null if the file is shorter than expected
+     * @throws IOException
+     */
+    static ByteBuf readBlock(FileChannel fileChannel, long position, int length,
+            ByteBufAllocator allocator) throws IOException {
+        ByteBuf buffer = allocator.ioBuffer(length);
+        try {
+            while (buffer.writerIndex() < length) {
+                if (buffer.writeBytes(fileChannel, position + buffer.writerIndex(),
+                        length - buffer.writerIndex()) < 0) {
+                    buffer.release();
+                    return null;
                 }
+            }
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Sending part is over: send EndTransfer if OK, or finalize in error
+     * 
+     * @param retrieveDone
+     * @throws OpenR66Exception
+     */
+    private void sendingDone(boolean retrieveDone) throws OpenR66Exception {
+        releaseTurn();
+        if (multiStream != null) {
+            closeFileChannel();
+            if (retrieveDone) {
+                // wait for the sub streams and the global hash
+                state = State.WAITSUBSTREAMS;
+                multiStream.finish(wakeUpRunnable);
+                return;
+            }
+            multiStream.cancel();
+            multiStream = null;
+        }
+        if (retrieveDone && hashing != null) {
+            // only wait for the final digest (file channel still used by hashing in zero copy)
+            state = State.WAITHASH;
+            hashing.finish(wakeUpRunnable);
+            checkHashDone();
+            return;
+        }
+        closeFileChannel();
+        if (hashing != null) {
+            hashing.cancel();
+            hashing = null;
+        }
+        endSending(retrieveDone, null);
+    }
+
+    /**
+     * No more data sent by this runner: let the next transfers waiting for writability go on
+     */
+    private void releaseTurn() {
+        NetworkChannelReference networkChannelReference = localChannelReference
+                .getNetworkChannelObject();
+        if (networkChannelReference != null) {
+            networkChannelReference.notifyWritability();
+        }
+    }
+
+    /**
+     * Once the final digest is computed, send EndTransfer if OK, or finalize in error
+     * 
+     * @throws OpenR66Exception
+     */
+    private void checkHashDone() throws OpenR66Exception {
+        if (!hashing.isDone()) {
+            if (running.get()) {
+                // will be waked up once done
+                return;
+            }
+            hashing.cancel();
+        }
+        closeFileChannel();
+        String hash = hashing.getHash();
+        boolean retrieveDone = running.get() && hash != null;
+        localChannelReference.setHashingTime(hashing.getHashingTime(), hashing.getWaitTime());
+        hashing = null;
+        endSending(retrieveDone, hash);
+    }
+
+    /**
+     * Once all sub streams are done, send EndTransfer if OK, or finalize in error
+     * 
+     * @throws OpenR66Exception
+     */
+    private void checkSubStreamsDone() throws OpenR66Exception {
+        if (!multiStream.isFinished()) {
+            if (!running.get()) {
+                multiStream.cancel();
+            }
+            // will be waked up once done
+            return;
+        }
+        boolean retrieveDone = running.get() && multiStream.isSuccess();
+        if (retrieveDone) {
+            session.getRunner().setRankAtEndOfTransfer(multiStream.getTotalRank());
+        }
+        String hash = multiStream.getHash();
+        multiStream = null;
+        endSending(retrieveDone, hash);
+    }
+
+    /**
+     * Send EndTransfer if OK, or finalize in error
+     * 
+     * @param retrieveDone
+     * @param hash
+     *            the global hash if any
+     * @throws OpenR66Exception
+     */
+    private void endSending(boolean retrieveDone, String hash) throws OpenR66Exception {
+        state = State.WAITENDTRANSFER;
+        if (retrieveDone) {
+            try {
+                ChannelUtils.writeEndTransferAsync(localChannelReference, hash)
+                        .addListener(wakeUpListener);
+            } catch (OpenR66ProtocolPacketException e) {
+                // An error occurs!
+                session.setFinalizeTransfer(false,
+                        new R66Result(e, session, false, ErrorCode.Internal, session.getRunner()));
+            }
+        } else {
+            // An error occurs!
+            session.setFinalizeTransfer(false,
+                    new R66Result(new OpenR66ProtocolSystemException("Transfer in error"),
+                            session, false, ErrorCode.TransferError, session.getRunner()));
+        }
+        checkEndTransfer();
+    }
+
+    /**
+     * Once EndTransfer future is over, send EndRequest if OK, else send error
+     */
+    private void checkEndTransfer() {
+        if (running.get() && !localChannelReference.getFutureEndTransfer().isDone()) {
+            // will be waked up once done
+            return;
+        }
+        logger.debug("Await future End Transfer done: " +
+                localChannelReference.getFutureEndTransfer().isSuccess());
+        if (localChannelReference.getFutureEndTransfer().isDone() &&
+                localChannelReference.getFutureEndTransfer().isSuccess()) {
+            // send a validation
+            localChannelReference.sessionNewState(R66FiniteDualStates.ENDREQUESTS);
+            EndRequestPacket validPacket = new EndRequestPacket(ErrorCode.CompleteOk.ordinal());
+            if (session.getExtendedProtocol() &&
+                    session.getBusinessObject() != null &&
+                    session.getBusinessObject().getInfo(session) != null) {
+                validPacket.setOptional(session.getBusinessObject().getInfo(session));
+            }
+            state = State.WAITENDREQUEST;
+            try {
+                ChannelUtils.writeAbstractLocalPacket(localChannelReference, validPacket, false)
+                        .addListener(endRequestWrittenListener);
+            } catch (OpenR66ProtocolPacketException e) {
+                startEndRequestTimeout();
+            }
+            checkEndRequest();
+        } else {
+            sendError();
+            logger.info("End Retrieve in Error");
+        }
+    }
+
+    /**
+     * Wake up this runner once the answer to the validation is not received in time
+     */
+    private void startEndRequestTimeout() {
+        Configuration.configuration.getTimerClose().newTimeout(new TimerTask() {
+            public void run(Timeout timeout) throws Exception {
+                timeoutEndRequest = true;
+                wakeUp();
+            }
+        }, Configuration.configuration.getTIMEOUTCON(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Once Request future is over (or timeout), finish the request
+     */
+    private void checkEndRequest() {
+        if (!localChannelReference.getFutureRequest().isDone()) {
+            if (!timeoutEndRequest) {
+                // will be waked up once done
+                return;
+            }
+            // valid it however
+            session.getRunner().setAllDone();
+            try {
+                session.getRunner().saveStatus();
+            } catch (OpenR66RunnerErrorException e) {
+                // ignore
+            }
+            localChannelReference.validateRequest(localChannelReference
+                    .getFutureEndTransfer().getResult());
+        }
+        if (session.getRunner() != null && session.getRunner().isSelfRequested()) {
+            ChannelUtils.close(localChannelReference.getLocalChannel());
+        }
+        done = true;
+        state = State.DONE;
+    }
+
+    /**
+     * Done and Not Success => error
+     */
+    private void sendError() {
+        Runnable invalidate = new Runnable() {
+            public void run() {
                 if (!localChannelReference.getFutureRequest().isDone()) {
                     R66Result result = localChannelReference.getFutureEndTransfer().getResult();
                     if (result == null) {
@@ -183,83 +719,97 @@ public class RetrieveRunner extends Thread {
                     }
                     localChannelReference.invalidateRequest(result);
                 }
-                done = true;
-                logger.info("End Retrieve in Error");
             }
-        } finally {
-            if (!done) {
-                if (localChannelReference.getFutureEndTransfer().isDone() &&
-                        localChannelReference.getFutureEndTransfer().isSuccess()) {
-                    if (!requestValidDone) {
-                        localChannelReference.sessionNewState(R66FiniteDualStates.ENDREQUESTS);
-                        EndRequestPacket validPacket = new EndRequestPacket(
-                                ErrorCode.CompleteOk.ordinal());
-                        if (session.getExtendedProtocol() &&
-                                session.getBusinessObject() != null &&
-                                session.getBusinessObject().getInfo(session) != null) {
-                            validPacket.setOptional(session.getBusinessObject().getInfo(session));
-                        }
-                        try {
-                            ChannelUtils.writeAbstractLocalPacket(localChannelReference,
-                                    validPacket, true);
-                        } catch (OpenR66ProtocolPacketException e) {
-                        }
-                    }
-                    session.getRunner().setAllDone();
-                    try {
-                        session.getRunner().saveStatus();
-                    } catch (OpenR66RunnerErrorException e) {
-                        // ignore
-                    }
-                    localChannelReference.validateRequest(localChannelReference
-                            .getFutureEndTransfer().getResult());
-                    if (session.getRunner() != null && session.getRunner().isSelfRequested()) {
-                        ChannelUtils.close(localChannelReference.getLocalChannel());
-                    }
-                } else {
-                    if (localChannelReference.getFutureEndTransfer().isDone()) {
-                        if (!localChannelReference.getFutureEndTransfer().getResult().isAnswered()) {
-                            localChannelReference.sessionNewState(R66FiniteDualStates.ERROR);
-                            ErrorPacket error = new ErrorPacket(
-                                    localChannelReference.getErrorMessage(),
-                                    localChannelReference.getFutureEndTransfer().getResult().getCode()
-                                            .getCode(),
-                                    ErrorPacket.FORWARDCLOSECODE);
-                            try {
-                                ChannelUtils.writeAbstractLocalPacket(localChannelReference, error,
-                                        true);
-                            } catch (OpenR66ProtocolPacketException e) {
-                            }
-                        }
-                    } else {
-                        R66Result result = localChannelReference.getFutureEndTransfer().getResult();
-                        if (result == null) {
-                            result =
-                                    new R66Result(session, false, ErrorCode.TransferError,
-                                            session.getRunner());
+        };
+        done = true;
+        state = State.DONE;
+        if (localChannelReference.getFutureEndTransfer().isDone()) {
+            if (!localChannelReference.getFutureEndTransfer().getResult().isAnswered()) {
+                localChannelReference.sessionNewState(R66FiniteDualStates.ERROR);
+                ErrorPacket error = new ErrorPacket(
+                        localChannelReference.getErrorMessage(),
+                        localChannelReference.getFutureEndTransfer().getResult().getCode()
+                                .getCode(),
+                        ErrorPacket.FORWARDCLOSECODE);
+                writeError(error, invalidate);
+                return;
+            }
+        }
+        invalidate.run();
+    }
+
+    /**
+     * Write the error to the partner without waiting
+     * 
+     * @param error
+     * @param next
+     *            run once the error is written (or not)
+     */
+    private void writeError(ErrorPacket error, final Runnable next) {
+        try {
+            ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, false)
+                    .addListener(new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            next.run();
                         }
-                        localChannelReference.invalidateRequest(result);
-                    }
-                }
+                    });
+            return;
+        } catch (OpenR66ProtocolPacketException e) {
+        }
+        next.run();
+    }
+
+    private void closeFileChannel() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
             }
-            NetworkTransaction.normalEndRetrieve(localChannelReference);
+            fileChannel = null;
+        }
+    }
+
+    /**
+     * Final step
+     */
+    private void endRetrieve() {
+        releaseTurn();
+        if (hashing != null) {
+            hashing.cancel();
+            hashing = null;
+        }
+        closeFileChannel();
+        if (multiStream != null) {
+            multiStream.cancel();
+            multiStream = null;
         }
+        localChannelReference.setFutureListener(null);
+        NetworkTransaction.normalEndRetrieve(localChannelReference);
     }
 
     private void transferInError(OpenR66Exception e) {
-        R66Result result = new R66Result(e, session, true,
+        final R66Result result = new R66Result(e, session, true,
                 ErrorCode.TransferError, session.getRunner());
         logger.error("Transfer in error", e);
         session.newState(R66FiniteDualStates.ERROR);
         ErrorPacket error = new ErrorPacket("Transfer in error",
                 ErrorCode.TransferError.getCode(), ErrorPacket.FORWARDCLOSECODE);
-        try {
-            ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
-        } catch (OpenR66ProtocolPacketException e1) {
-        }
-        localChannelReference.invalidateRequest(result);
-        ChannelUtils.close(channel);
         done = true;
+        state = State.DONE;
+        writeError(error, new Runnable() {
+            public void run() {
+                localChannelReference.invalidateRequest(result);
+                ChannelUtils.close(channel);
+            }
+        });
+    }
+
+    /**
+     * 
+     * @return True if this runner is finished
+     */
+    public boolean isDone() {
+        return done;
     }
 
     /**
@@ -277,20 +827,6 @@ public class RetrieveRunner extends Thread {
             throws OpenR66ProtocolPacketException, OpenR66RunnerErrorException,
             OpenR66ProtocolSystemException {
         return ChannelUtils.writeBackDataBlock(localChannelReference, block);
-        // XXX Keep this in case the bug comes back
-        /*
-         * // Test if channel is writable in order to prevent OOM if (!
-         * localChannelReference.getNetworkChannel().isWritable()) { return
-         * ChannelUtils.writeBackDataBlock(localChannelReference, block); } else if
-         * (Configuration.configuration.anyBandwidthLimitation) { // Patch to limit the impact when
-         * no real reason to wait for writing // double computation of traffic but ok long wait =
-         * ChannelUtils.willBeWaitingWriting(localChannelReference, block.getByteCount()); if (wait
-         * == 0) { ChannelUtils.writeBackDataBlock(localChannelReference, block); return
-         * Channels.succeededFuture(localChannelReference.getNetworkChannel()); } return
-         * ChannelUtils.writeBackDataBlock(localChannelReference, block); } else {
-         * ChannelUtils.writeBackDataBlock(localChannelReference, block); return
-         * Channels.succeededFuture(localChannelReference.getNetworkChannel()); }
-         */
     }
 
     /**
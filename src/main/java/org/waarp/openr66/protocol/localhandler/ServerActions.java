@@ -95,8 +95,10 @@ import org.waarp.openr66.protocol.localhandler.packet.json.LogResponseJsonPacket
 import org.waarp.openr66.protocol.localhandler.packet.json.ShutdownOrBlockJsonPacket;
 import org.waarp.openr66.protocol.localhandler.packet.json.ShutdownRequestJsonPacket;
 import org.waarp.openr66.protocol.localhandler.packet.json.StopOrCancelJsonPacket;
+import org.waarp.openr66.protocol.localhandler.packet.json.SubStreamJsonPacket;
 import org.waarp.openr66.protocol.localhandler.packet.json.RestartTransferJsonPacket;
 import org.waarp.openr66.protocol.localhandler.packet.json.TransferRequestJsonPacket;
+import org.waarp.openr66.protocol.networkhandler.BandwidthClasses;
 import org.waarp.openr66.protocol.networkhandler.NetworkChannelReference;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
 import org.waarp.openr66.protocol.utils.ChannelCloseTimer;
@@ -998,7 +1000,7 @@ public class ServerActions extends ConnectionActions {
                 break;
             }
             case LocalPacketFactory.BANDWIDTHPACKET: {
-                // setter, writeglobal, readglobal, writesession, readsession
+                // setter, writeglobal, readglobal, writesession, readsession, partner, rule, writeclass, assuredclass
                 BandwidthJsonPacket node = (BandwidthJsonPacket) json;
                 boolean setter = node.isSetter();
                 // request of current values or set new values
@@ -1011,6 +1013,12 @@ public class ServerActions extends ConnectionActions {
                 node.setReadglobal(lresult[1]);
                 node.setWritesession(lresult[2]);
                 node.setReadsession(lresult[3]);
+                if (node.getPartner() != null || node.getRule() != null) {
+                    long[] cresult = bandwidthClass(setter, node.getPartner(), node.getRule(),
+                            node.getWriteclass(), node.getAssuredclass());
+                    node.setWriteclass(cresult[0]);
+                    node.setAssuredclass(cresult[1]);
+                }
                 R66Result result = new R66Result(session, true, ErrorCode.CompleteOk, null);
                 JsonCommandPacket valid = new JsonCommandPacket(node, result.getCode().getCode(),
                         LocalPacketFactory.REQUESTUSERPACKET);
@@ -1023,6 +1031,45 @@ public class ServerActions extends ConnectionActions {
                 channel.close();
                 break;
             }
+            case LocalPacketFactory.SUBSTREAMPACKET: {
+                SubStreamJsonPacket node = (SubStreamJsonPacket) json;
+                if (localChannelReference.isSubStreamSender()) {
+                    // answer to our own request of sub stream
+                    R66Result result = new R66Result(session, true,
+                            node.isValidated() ? ErrorCode.InitOk : ErrorCode.IncorrectCommand, null);
+                    if (node.isValidated()) {
+                        session.newState(REQUESTD);
+                        localChannelReference.validateValidRequest(result);
+                    } else {
+                        localChannelReference.invalidateRequest(result);
+                    }
+                    break;
+                }
+                session.newState(REQUESTR);
+                subStream = MultiStreamReceiver.attach(session, node);
+                node.setValidated(subStream != null);
+                ErrorCode code = subStream != null ? ErrorCode.InitOk : ErrorCode.IncorrectCommand;
+                JsonCommandPacket valid = new JsonCommandPacket(node, code.getCode(),
+                        LocalPacketFactory.SUBSTREAMPACKET);
+                if (subStream != null) {
+                    session.newState(REQUESTD);
+                    localChannelReference.getFutureValidRequest().setSuccess();
+                    try {
+                        ChannelUtils.writeAbstractLocalPacket(localChannelReference, valid, false);
+                    } catch (OpenR66ProtocolPacketException e) {
+                    }
+                } else {
+                    session.newState(ERROR);
+                    R66Result result = new R66Result(session, true, code, null);
+                    localChannelReference.invalidateRequest(result);
+                    try {
+                        ChannelUtils.writeAbstractLocalPacket(localChannelReference, valid, true);
+                    } catch (OpenR66ProtocolPacketException e) {
+                    }
+                    ChannelCloseTimer.closeFutureChannel(channel);
+                }
+                break;
+            }
             case LocalPacketFactory.TESTPACKET: {
                 session.newState(VALIDOTHER);
                 logger.info("Valid TEST MESSAGE: " + packet.toString());
@@ -1113,18 +1160,7 @@ public class ServerActions extends ConnectionActions {
             long writeglobal, long readglobal,
             long writesession, long readsession)
             throws OpenR66ProtocolNotAuthenticatedException {
-        // Authentication must be the local server or LIMIT authorization
-        try {
-            if (!session.getAuth().getUser().equals(
-                    Configuration.configuration.getHostId(session.getAuth().isSsl()))
-                    && !session.getAuth().isValidRole(ROLE.LIMIT)) {
-                throw new OpenR66ProtocolNotAuthenticatedException(
-                        "Not correctly authenticated");
-            }
-        } catch (OpenR66ProtocolNoSslException e1) {
-            throw new OpenR66ProtocolNotAuthenticatedException(
-                    "Not correctly authenticated since SSL is not supported", e1);
-        }
+        checkLimitAuthent();
         if (!setter) {
             // request of current values
             // Now answer
@@ -1165,6 +1201,62 @@ public class ServerActions extends ConnectionActions {
         }
     }
 
+    /**
+     * Get or Set the limits of one bandwidth class: the one of the rule if given (applied under each
+     * partner), else the one of the partner
+     * 
+     * @param setter
+     * @param partner
+     * @param rule
+     * @param writelimit
+     *            the write limit in B/s (0 for none, negative to keep the current one)
+     * @param assured
+     *            the assured write throughput in B/s (0 for none, negative to keep the current one)
+     * @return the 2 current values for the class (in the same order)
+     * @throws OpenR66ProtocolNotAuthenticatedException
+     */
+    public final long[] bandwidthClass(boolean setter, String partner, String rule,
+            long writelimit, long assured)
+            throws OpenR66ProtocolNotAuthenticatedException {
+        checkLimitAuthent();
+        BandwidthClasses classes = Configuration.configuration.getBandwidthClasses();
+        if (!setter) {
+            return rule != null ? classes.getRuleLimits(rule) : classes.getPartnerLimits(partner);
+        }
+        long wcl = writelimit < 0 ? -1 : (writelimit / 10) * 10;
+        long acl = assured < 0 ? -1 : (assured / 10) * 10;
+        if (Configuration.configuration.getR66Mib() != null) {
+            Configuration.configuration.getR66Mib().notifyWarning(
+                    "Change Bandwidth Class Order received: " +
+                            (rule != null ? "Rule " + rule : "Partner " + partner) +
+                            " " + wcl + ":" + acl + " (W:Assured)",
+                    session.getAuth().getUser());
+        }
+        if (rule != null) {
+            return classes.setRuleLimits(rule, wcl, acl);
+        }
+        return classes.setPartnerLimits(partner, wcl, acl);
+    }
+
+    /**
+     * Authentication must be the local server or LIMIT authorization
+     * 
+     * @throws OpenR66ProtocolNotAuthenticatedException
+     */
+    private void checkLimitAuthent() throws OpenR66ProtocolNotAuthenticatedException {
+        try {
+            if (!session.getAuth().getUser().equals(
+                    Configuration.configuration.getHostId(session.getAuth().isSsl()))
+                    && !session.getAuth().isValidRole(ROLE.LIMIT)) {
+                throw new OpenR66ProtocolNotAuthenticatedException(
+                        "Not correctly authenticated");
+            }
+        } catch (OpenR66ProtocolNoSslException e1) {
+            throw new OpenR66ProtocolNotAuthenticatedException(
+                    "Not correctly authenticated since SSL is not supported", e1);
+        }
+    }
+
     /**
      * Import configuration from files as parameter
      * 
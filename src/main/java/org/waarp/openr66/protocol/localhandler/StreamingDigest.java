@@ -0,0 +1,238 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.configuration.Configuration;
+
+/**
+ * Global digest of a received file, computed while receiving.<br>
+ * <br>
+ * The digest with the algorithm of the partner (to check its final hash) and, if different, the
+ * digest with the local algorithm (kept for the final check after the transfer) are updated in one
+ * pass: each chunk of a block is given to both algorithms in turn while still in cache, and a block
+ * not backed by an array is copied only once.<br>
+ * <br>
+ * On restart, the digest is rebuilt once from the part of the file already received, such that the
+ * final hash is still a complete one.
+ *
+ * @author Frederic Bregier
+ */
+public class StreamingDigest {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(StreamingDigest.class);
+
+    /**
+     * Size of the chunks given in turn to each algorithm
+     */
+    private static final int CHUNK = 0x4000;
+
+    private final FilesystemBasedDigest globalDigest;
+
+    private final FilesystemBasedDigest localDigest;
+
+    private byte[] chunk;
+
+    private long length = 0;
+
+    private String globalHash;
+
+    private String localHash;
+
+    /**
+     * @param globalDigest
+     *            digest using the algorithm of the partner
+     * @param localDigest
+     *            digest using the local algorithm if different (else null)
+     */
+    private StreamingDigest(FilesystemBasedDigest globalDigest, FilesystemBasedDigest localDigest) {
+        this.globalDigest = globalDigest;
+        this.localDigest = localDigest;
+    }
+
+    /**
+     *
+     * @param localChannelReference
+     * @return the new StreamingDigest according to the partner of this transfer, or null if the
+     *         algorithm is not available
+     */
+    public static StreamingDigest create(LocalChannelReference localChannelReference) {
+        DigestAlgo local = Configuration.configuration.getDigest();
+        DigestAlgo algo = local;
+        if (localChannelReference.getPartner() != null
+                && localChannelReference.getPartner().useFinalHash()) {
+            algo = localChannelReference.getPartner().getDigestAlgo();
+        }
+        try {
+            if (algo != local) {
+                return new StreamingDigest(new FilesystemBasedDigest(algo),
+                        new FilesystemBasedDigest(local));
+            }
+            return new StreamingDigest(new FilesystemBasedDigest(local), null);
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Digest algorithm not available: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Update the digests with the readable bytes of the buffer (buffer not modified)
+     *
+     * @param buffer
+     */
+    public void update(ByteBuf buffer) {
+        int size = buffer.readableBytes();
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), size);
+            return;
+        }
+        if (chunk == null) {
+            chunk = new byte[CHUNK];
+        }
+        int index = buffer.readerIndex();
+        int still = size;
+        while (still > 0) {
+            int len = still > CHUNK ? CHUNK : still;
+            buffer.getBytes(index, chunk, 0, len);
+            update(chunk, 0, len);
+            index += len;
+            still -= len;
+        }
+    }
+
+    /**
+     * Update the digests
+     *
+     * @param bytes
+     * @param offset
+     * @param size
+     */
+    public void update(byte[] bytes, int offset, int size) {
+        int position = offset;
+        int end = offset + size;
+        while (position < end) {
+            int len = end - position > CHUNK ? CHUNK : end - position;
+            globalDigest.Update(bytes, position, len);
+            if (localDigest != null) {
+                localDigest.Update(bytes, position, len);
+            }
+            position += len;
+        }
+        length += size;
+    }
+
+    /**
+     * Rebuild the digests from the beginning of the file already received (restart)
+     *
+     * @param file
+     * @param prefix
+     *            the length already received
+     * @return True if the whole prefix was read
+     */
+    public boolean prime(File file, long prefix) {
+        if (file == null || file.length() < prefix) {
+            return false;
+        }
+        byte[] bytes = new byte[0x10000];
+        FileInputStream inputStream = null;
+        long still = prefix;
+        try {
+            inputStream = new FileInputStream(file);
+            while (still > 0) {
+                int read = inputStream.read(bytes, 0, still > bytes.length ? bytes.length : (int) still);
+                if (read < 0) {
+                    break;
+                }
+                update(bytes, 0, read);
+                still -= read;
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot rebuild digest from received file: " + e.getMessage());
+            return false;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        logger.debug("Digest rebuilt from {} bytes already received", prefix - still);
+        return still == 0;
+    }
+
+    /**
+     * Finalize the digests (no more update possible)
+     */
+    public void finish() {
+        if (globalHash != null) {
+            return;
+        }
+        globalHash = FilesystemBasedDigest.getHex(globalDigest.Final());
+        if (localDigest != null) {
+            localHash = FilesystemBasedDigest.getHex(localDigest.Final());
+        } else {
+            localHash = globalHash;
+        }
+    }
+
+    /**
+     *
+     * @return the hash using the algorithm of the partner (once finished)
+     */
+    public String getGlobalHash() {
+        return globalHash;
+    }
+
+    /**
+     *
+     * @return the hash using the local algorithm (once finished)
+     */
+    public String getLocalHash() {
+        return localHash;
+    }
+
+    /**
+     *
+     * @return True if the local algorithm is different from the one of the partner
+     */
+    public boolean isDifferentAlgo() {
+        return localDigest != null;
+    }
+
+    /**
+     *
+     * @return the number of bytes taken into account
+     */
+    public long getLength() {
+        return length;
+    }
+}
@@ -22,7 +22,9 @@ package org.waarp.openr66.protocol.localhandler;
 
 import static org.waarp.openr66.context.R66FiniteDualStates.*;
 
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 import io.netty.channel.Channel;
 import io.netty.channel.local.LocalChannel;
@@ -67,9 +69,9 @@ import org.waarp.openr66.protocol.localhandler.packet.RequestPacket;
 import org.waarp.openr66.protocol.localhandler.packet.ValidPacket;
 import org.waarp.openr66.protocol.localhandler.packet.json.RequestJsonPacket;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+import org.waarp.openr66.protocol.utils.BlockCompression;
 import org.waarp.openr66.protocol.utils.ChannelCloseTimer;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
-import org.waarp.openr66.protocol.utils.FileUtils;
 import org.waarp.openr66.protocol.utils.R66Future;
 
 /**
@@ -226,6 +228,7 @@ public class TransferActions extends ServerActions {
                 throw new OpenR66ProtocolNotAuthenticatedException(
                         Messages.getString("LocalServerHandler.10")); //$NON-NLS-1$
             }
+            boolean compression = packet.isCompression();
             // Check if the blocksize is greater than local value
             if (Configuration.configuration.getBLOCKSIZE() < blocksize) {
                 blocksize = Configuration.configuration.getBLOCKSIZE();
@@ -234,7 +237,11 @@ public class TransferActions extends ServerActions {
                         packet.getFilename(), blocksize, packet.getRank(),
                         packet.getSpecialId(), packet.getFileInformation(), packet.getOriginalSize(), sep);
             }
+            // Compression asked by the requester is accepted only if allowed locally for this rule
+            packet.setCompression(compression
+                    && BlockCompression.isAllowed(localChannelReference, packet.getRulename()));
         }
+        localChannelReference.setCompression(packet.isCompression());
         if (!RequestPacket.isCompatibleMode(rule.getMode(), packet.getMode())) {
             // not compatible Rule and mode in request
             throw new OpenR66ProtocolNotAuthenticatedException(
@@ -580,8 +587,21 @@ public class TransferActions extends ServerActions {
      * @param channel
      * @throws OpenR66ProtocolPacketException
      */
-    private final void errorToSend(String message, ErrorCode code, Channel channel, int status)
-            throws OpenR66ProtocolPacketException {
+    private final void errorToSend(final String message, final ErrorCode code, final Channel channel,
+            final int status) throws OpenR66ProtocolPacketException {
+        if (writeBehind != null) {
+            // the file is finalized only once the current write if any is over
+            WriteBehindWriter writer = writeBehind;
+            writeBehind = null;
+            writer.cancel();
+            afterWriteBehind(writer, channel, new Callable<Void>() {
+                public Void call() throws OpenR66ProtocolPacketException {
+                    errorToSend(message, code, channel, status);
+                    return null;
+                }
+            });
+            return;
+        }
         session.newState(ERROR);
         try {
             session.setFinalizeTransfer(false, new R66Result(
@@ -602,6 +622,34 @@ public class TransferActions extends ServerActions {
         ChannelCloseTimer.closeFutureChannel(channel);
     }
 
+    /**
+     * Run the next step once all the blocks submitted to the write behind writer are written (or
+     * dropped), in the event loop of the channel, without waiting for the writer: the reading of
+     * the packets is suspended meanwhile
+     * 
+     * @param writer
+     * @param channel
+     * @param next
+     */
+    private final void afterWriteBehind(final WriteBehindWriter writer, final Channel channel,
+            final Callable<Void> next) {
+        writer.drain(new Runnable() {
+            public void run() {
+                channel.eventLoop().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            next.call();
+                        } catch (Exception e) {
+                            channel.pipeline().fireExceptionCaught(e);
+                        } finally {
+                            writer.resumeReading();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Receive a data block
      * 
@@ -611,7 +659,7 @@ public class TransferActions extends ServerActions {
      * @throws OpenR66ProtocolBusinessException
      * @throws OpenR66ProtocolPacketException
      */
-    public void data(Channel channel, DataPacket packet)
+    public void data(final Channel channel, final DataPacket packet)
             throws OpenR66ProtocolNotAuthenticatedException,
             OpenR66ProtocolBusinessException, OpenR66ProtocolPacketException {
         if (!session.isAuthenticated()) {
@@ -620,6 +668,14 @@ public class TransferActions extends ServerActions {
             throw new OpenR66ProtocolNotAuthenticatedException(
                     "Not authenticated while Data received");
         }
+        if (subStream != null) {
+            try {
+                subStream.data(packet);
+            } catch (OpenR66ProtocolBusinessException e) {
+                subStreamError(channel, e.getMessage());
+            }
+            return;
+        }
         if (!session.isReady()) {
             logger.debug("No request prepared");
             packet.clear();
@@ -643,7 +699,26 @@ public class TransferActions extends ServerActions {
             packet.clear();
             return;
         }
-        if (packet.getPacketRank() != session.getRunner().getRank()) {
+        if (writeBehind != null) {
+            if (writeBehind.isInError()) {
+                errorToSend("Transfer in error", ErrorCode.TransferError, channel, 22);
+                packet.clear();
+                return;
+            }
+            if (packet.getPacketRank() != writeBehind.getNextRank() && !writeBehind.isEmpty()) {
+                // rank correction needs the file position and the rank to be up to date: this
+                // packet is handled again once all previous blocks are written
+                afterWriteBehind(writeBehind, channel, new Callable<Void>() {
+                    public Void call() throws OpenR66Exception {
+                        data(channel, packet);
+                        return null;
+                    }
+                });
+                return;
+            }
+        }
+        int expectedRank = writeBehind != null ? writeBehind.getNextRank() : session.getRunner().getRank();
+        if (packet.getPacketRank() != expectedRank) {
             logger.debug("Issue on rank: " + packet.getPacketRank() + ":" + session.getRunner().getRank());
             if (!session.addError()) {
                 // cannot continue
@@ -662,15 +737,21 @@ public class TransferActions extends ServerActions {
                 session.getRestart().restartMarker(
                         session.getRunner().getBlocksize() *
                                 session.getRunner().getRank());
-                try {
-                    session.getFile().restartMarker(session.getRestart());
-                } catch (CommandAbstractException e) {
-                    logger.error("Bad RANK: " + packet.getPacketRank() + " : " +
-                            session.getRunner().getRank());
-                    errorToSend("Bad Rank in transmission even after retry: " +
-                            packet.getPacketRank(), ErrorCode.TransferError, channel, 96);
-                    packet.clear();
-                    return;
+                if (!session.getFile().isPositional()) {
+                    // positional writes do not need any seek
+                    try {
+                        session.getFile().restartMarker(session.getRestart());
+                    } catch (CommandAbstractException e) {
+                        logger.error("Bad RANK: " + packet.getPacketRank() + " : " +
+                                session.getRunner().getRank());
+                        errorToSend("Bad Rank in transmission even after retry: " +
+                                packet.getPacketRank(), ErrorCode.TransferError, channel, 96);
+                        packet.clear();
+                        return;
+                    }
+                }
+                if (writeBehind != null) {
+                    writeBehind.resetRank();
                 }
             } else {
                 // really bad
@@ -686,7 +767,8 @@ public class TransferActions extends ServerActions {
         // Check global size
         long originalSize = session.getRunner().getOriginalSize();
         if (originalSize >= 0) {
-            if (session.getRunner().getBlocksize() * (session.getRunner().getRank() - 1) > originalSize) {
+            expectedRank = writeBehind != null ? writeBehind.getNextRank() : session.getRunner().getRank();
+            if (session.getRunner().getBlocksize() * (expectedRank - 1) > originalSize) {
                 // cannot continue
                 logger.error(Messages.getString("LocalServerHandler.16") + packet.getPacketRank() + " : " + //$NON-NLS-1$
                         (originalSize / session.getRunner().getBlocksize() + 1) + " from {}", session.getRunner());
@@ -701,7 +783,7 @@ public class TransferActions extends ServerActions {
             logger.debug("AlgoDigest: "
                     + (localChannelReference.getPartner() != null ? localChannelReference.getPartner().getDigestAlgo()
                             : "usual algo"));
-            if (!packet.isKeyValid(localChannelReference.getPartner().getDigestAlgo())) {
+            if (!packet.isKeyValid(localChannelReference, localChannelReference.getPartner().getDigestAlgo())) {
                 // Wrong packet
                 logger.error(
                         Messages.getString("LocalServerHandler.17"), packet, localChannelReference.getPartner().getDigestAlgo().name); //$NON-NLS-1$
@@ -713,36 +795,24 @@ public class TransferActions extends ServerActions {
             }
         }
         if (Configuration.configuration.isGlobalDigest()) {
-            if (globalDigest == null) {
-                try {
-                    // check if first block, since if not, digest will be only partial
-                    if (session.getRunner().getRank() > 0) {
+            if (streamingDigest == null) {
+                streamingDigest = StreamingDigest.create(localChannelReference);
+                // check if first block, since if not, digest must be rebuilt from the file or will
+                // be only partial
+                int rank = session.getRunner().getRank();
+                if (streamingDigest != null && rank > 0) {
+                    if (session.getRunner().isRecvThrough() || !streamingDigest.prime(
+                            session.getFile().getTrueFile(), (long) rank * session.getRunner().getBlocksize())) {
                         localChannelReference.setPartialHash();
                     }
-                    if (localChannelReference.getPartner() != null) {
-                        if (localChannelReference.getPartner().useFinalHash()) {
-                            DigestAlgo algo = localChannelReference.getPartner().getDigestAlgo();
-                            if (algo != Configuration.configuration.getDigest()) {
-                                globalDigest = new FilesystemBasedDigest(algo);
-                                localDigest = new FilesystemBasedDigest(Configuration.configuration.getDigest());
-                            }
-                        }
-                    }
-                    if (globalDigest == null) {
-                        globalDigest = new FilesystemBasedDigest(Configuration.configuration.getDigest());
-                        localDigest = null;
-                    }
-                } catch (NoSuchAlgorithmException e) {
                 }
                 logger.debug("GlobalDigest: " + localChannelReference.getPartner().getDigestAlgo() + " different? "
-                        + (localDigest != null));
+                        + (streamingDigest != null && streamingDigest.isDifferentAlgo()));
             }
-            FileUtils.computeGlobalHash(globalDigest, packet.getData());
-            if (localDigest != null) {
-                FileUtils.computeGlobalHash(localDigest, packet.getData());
+            if (streamingDigest != null) {
+                streamingDigest.update(packet.getData());
             }
         }
-        DataBlock dataBlock = new DataBlock();
         if (session.getRunner().isRecvThrough() && localChannelReference.isRecvThroughMode()) {
             try {
                 localChannelReference.getRecvThroughHandler().writeByteBuf(packet.getData());
@@ -754,10 +824,28 @@ public class TransferActions extends ServerActions {
             } finally {
                 packet.clear();
             }
+        } else if (Configuration.configuration.getWriteBehindQueue() > 0) {
+            if (writeBehind == null) {
+                writeBehind = new WriteBehindWriter(session,
+                        Configuration.configuration.getWriteBehindQueue(),
+                        NetworkTransaction.getWriteBehindExecutor());
+            }
+            int rank = packet.getPacketRank();
+            // the packet is released by the writer once written
+            if (!writeBehind.submit(packet)) {
+                errorToSend("Transfer in error",
+                        ErrorCode.TransferError, channel, 22);
+                return;
+            }
+            if (rank % 100 == 1) {
+                logger.debug("Good RANK: " + rank + " : " + writeBehind.getNextRank());
+            }
         } else {
+            DataBlock dataBlock = new DataBlock();
             dataBlock.setBlock(packet.getData());
             try {
-                session.getFile().writeDataBlock(dataBlock);
+                session.getFile().writeDataBlock(dataBlock,
+                        (long) packet.getPacketRank() * session.getRunner().getBlocksize());
                 session.getRunner().incrementRank();
                 if (packet.getPacketRank() % 100 == 1) {
                     logger.debug("Good RANK: " + packet.getPacketRank() + " : " +
@@ -783,13 +871,81 @@ public class TransferActions extends ServerActions {
      * @throws OpenR66ProtocolSystemException
      * @throws OpenR66ProtocolNotAuthenticatedException
      */
-    public void endTransfer(Channel channel, EndTransferPacket packet)
+    public void endTransfer(final Channel channel, final EndTransferPacket packet)
             throws OpenR66RunnerErrorException, OpenR66ProtocolSystemException,
             OpenR66ProtocolNotAuthenticatedException {
         if (!session.isAuthenticated()) {
             throw new OpenR66ProtocolNotAuthenticatedException(
                     "Not authenticated while EndTransfer received");
         }
+        if (subStream != null) {
+            subStreamEndTransfer(channel, packet);
+            return;
+        }
+        if (localChannelReference.isSubStreamSender()) {
+            // validation of one of our sub streams
+            session.newState(ENDTRANSFERR);
+            localChannelReference.validateEndTransfer(new R66Result(session, false,
+                    ErrorCode.TransferOk, null));
+            return;
+        }
+        if (writeBehind != null) {
+            // all received blocks must be on disk before checking the end of transfer
+            final WriteBehindWriter writer = writeBehind;
+            writeBehind = null;
+            afterWriteBehind(writer, channel, new Callable<Void>() {
+                public Void call() throws OpenR66Exception {
+                    if (writer.isInError()) {
+                        errorToSend("Transfer in error", ErrorCode.TransferError, channel, 22);
+                        return null;
+                    }
+                    endTransferWritten(channel, packet);
+                    return null;
+                }
+            });
+            return;
+        }
+        endTransferWritten(channel, packet);
+    }
+
+    /**
+     * End of Transfer once all received blocks are written
+     * 
+     * @param channel
+     * @param packet
+     * @throws OpenR66RunnerErrorException
+     * @throws OpenR66ProtocolSystemException
+     */
+    private final void endTransferWritten(Channel channel, EndTransferPacket packet)
+            throws OpenR66RunnerErrorException, OpenR66ProtocolSystemException {
+        MultiStreamReceiver multiStream = localChannelReference.getMultiStreamReceiver();
+        if (multiStream != null && packet.isToValidate()) {
+            if (!multiStream.isComplete()) {
+                try {
+                    errorToSend("Transfer in error since not all streams were received",
+                            ErrorCode.TransferError, channel, 23);
+                } catch (OpenR66ProtocolPacketException e) {
+                }
+                return;
+            }
+            session.getRunner().setRankAtEndOfTransfer(multiStream.getTotalRank());
+            // the streaming digest only covers the blocks of the main stream
+            streamingDigest = null;
+        }
+        if (packet.isToValidate() && Configuration.configuration.isFsync()
+                && !session.getRunner().isSender() && !session.getRunner().isRecvThrough()) {
+            try {
+                session.getFile().syncToDisk();
+            } catch (IOException e) {
+                logger.error("Cannot synchronize file to disk: " + e.getMessage());
+                try {
+                    errorToSend("Transfer in error since file cannot be synchronized to disk",
+                            ErrorCode.TransferError, channel, 23);
+                } catch (OpenR66ProtocolPacketException e1) {
+                }
+                return;
+            }
+        }
         // Check end of transfer
         long originalSize = session.getRunner().getOriginalSize();
         logger.debug("OSize: " + originalSize + " isSender: " + session.getRunner().isSender());
@@ -798,7 +954,9 @@ public class TransferActions extends ServerActions {
             if (originalSize > 0) {
                 try {
                     if (!session.getRunner().isRecvThrough() && session.getFile().length() != originalSize ||
-                            session.getFile().length() == 0) {
+                            session.getFile().length() == 0 ||
+                            (session.getFile().isPositional()
+                                    && session.getFile().getWrittenSize() < originalSize)) {
                         R66Result result = new R66Result(new OpenR66RunnerErrorException(
                                 Messages.getString("LocalServerHandler.18")), //$NON-NLS-1$
                                 session, true, ErrorCode.TransferError, session.getRunner());
@@ -825,58 +983,40 @@ public class TransferActions extends ServerActions {
             // check if possible Global Digest
             String hash = packet.getOptional();
             logger.debug("GlobalDigest: " + localChannelReference.getPartner().getDigestAlgo() + " different? "
-                    + (localDigest != null) + " remoteHash? " + (hash != null));
-            if (hash != null && globalDigest != null) {
-                String localhash = FilesystemBasedDigest.getHex(globalDigest.Final());
-                globalDigest = null;
+                    + (streamingDigest != null && streamingDigest.isDifferentAlgo()) + " remoteHash? "
+                    + (hash != null));
+            if (hash != null && multiStream != null && Configuration.configuration.isGlobalDigest()) {
+                // blocks came through several streams: the hash is computed on the file itself
+                streamingDigest = null;
+                checkFileHash(channel, packet, hash);
+                return;
+            } else if (hash != null && streamingDigest != null) {
+                streamingDigest.finish();
+                String localhash = streamingDigest.getGlobalHash();
                 if (!localhash.equalsIgnoreCase(hash)) {
                     // bad global Hash
                     //session.getRunner().setRankAtStartup(0);
-                    R66Result result = new R66Result(new OpenR66RunnerErrorException(
-                            Messages.getString("LocalServerHandler.19") + //$NON-NLS-1$
-                                    localChannelReference.getPartner().getDigestAlgo().name + ")"),
-                            session, true, ErrorCode.MD5Error, session.getRunner());
-                    try {
-                        session.setFinalizeTransfer(false, result);
-                    } catch (OpenR66RunnerErrorException e) {
-                    } catch (OpenR66ProtocolSystemException e) {
-                    }
-                    ErrorPacket error = new ErrorPacket(
-                            "Global Hash in error, transfer in error and rank should be reset to 0 (using " +
-                                    localChannelReference.getPartner().getDigestAlgo().name + ")",
-                            ErrorCode.MD5Error.getCode(), ErrorPacket.FORWARDCLOSECODE);
-                    try {
-                        ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
-                    } catch (OpenR66ProtocolPacketException e) {
-                    }
-                    session.setStatus(23);
-                    ChannelCloseTimer.closeFutureChannel(channel);
+                    streamingDigest = null;
+                    globalHashError(channel);
                     return;
                 } else {
-                    if (localDigest != null) {
-                        localhash = FilesystemBasedDigest.getHex(localDigest.Final());
-                    }
-                    localChannelReference.setHashComputeDuringTransfer(localhash);
+                    localChannelReference.setHashComputeDuringTransfer(streamingDigest.getLocalHash(),
+                            streamingDigest.getLength());
                     logger.debug("Global digest ok");
                 }
-            } else if (globalDigest != null) {
-                String localhash = null;
-                if (localDigest != null) {
-                    localhash = FilesystemBasedDigest.getHex(localDigest.Final());
-                } else {
-                    localhash = FilesystemBasedDigest.getHex(globalDigest.Final());
-                }
-                globalDigest = null;
-                localChannelReference.setHashComputeDuringTransfer(localhash);
+            } else if (streamingDigest != null) {
+                streamingDigest.finish();
+                localChannelReference.setHashComputeDuringTransfer(streamingDigest.getLocalHash(),
+                        streamingDigest.getLength());
             }
-            localDigest = null;
-            globalDigest = null;
-            session.newState(ENDTRANSFERS);
+            streamingDigest = null;
+            endTransferValidated(channel, packet);
+        } else {
+            session.newState(ENDTRANSFERR);
             if (!localChannelReference.getFutureRequest().isDone()) {
-                // Finish with post Operation
+                // Validation of end of transfer
                 R66Result result = new R66Result(session, false,
                         ErrorCode.TransferOk, session.getRunner());
-                session.newState(ENDTRANSFERR);
                 try {
                     session.setFinalizeTransfer(true, result);
                 } catch (OpenR66RunnerErrorException e) {
@@ -922,75 +1062,241 @@ public class TransferActions extends ServerActions {
                     ChannelCloseTimer.closeFutureChannel(channel);
                     return;
                 }
-                // Now can send validation
-                packet.validate();
+            }
+        }
+    }
+
+    /**
+     * End of Transfer to validate once the received file is checked: finalize the transfer and
+     * send back the validation
+     * 
+     * @param channel
+     * @param packet
+     */
+    private final void endTransferValidated(Channel channel, EndTransferPacket packet) {
+        session.newState(ENDTRANSFERS);
+        if (!localChannelReference.getFutureRequest().isDone()) {
+            // Finish with post Operation
+            R66Result result = new R66Result(session, false,
+                    ErrorCode.TransferOk, session.getRunner());
+            session.newState(ENDTRANSFERR);
+            try {
+                session.setFinalizeTransfer(true, result);
+            } catch (OpenR66RunnerErrorException e) {
+                // TODO
+                session.newState(ERROR);
+                ErrorPacket error = null;
+                if (localChannelReference.getFutureRequest().getResult() != null) {
+                    result = localChannelReference.getFutureRequest().getResult();
+                    error = new ErrorPacket(
+                            "Error while finalizing transfer: " + result.getMessage(),
+                            result.getCode().getCode(), ErrorPacket.FORWARDCLOSECODE);
+                } else {
+                    error = new ErrorPacket(
+                            "Error while finalizing transfer",
+                            ErrorCode.FinalOp.getCode(), ErrorPacket.FORWARDCLOSECODE);
+                }
                 try {
-                    ChannelUtils.writeAbstractLocalPacket(localChannelReference,
-                            packet, false);
-                } catch (OpenR66ProtocolPacketException e) {
-                    // ignore
+                    ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
+                } catch (OpenR66ProtocolPacketException e1) {
+                }
+                session.setStatus(23);
+                ChannelCloseTimer.closeFutureChannel(channel);
+                return;
+            } catch (OpenR66ProtocolSystemException e) {
+                // TODO
+                session.newState(ERROR);
+                ErrorPacket error = null;
+                if (localChannelReference.getFutureRequest().getResult() != null) {
+                    result = localChannelReference.getFutureRequest().getResult();
+                    error = new ErrorPacket(
+                            "Error while finalizing transfer: " + result.getMessage(),
+                            result.getCode().getCode(), ErrorPacket.FORWARDCLOSECODE);
+                } else {
+                    error = new ErrorPacket(
+                            "Error while finalizing transfer",
+                            ErrorCode.FinalOp.getCode(), ErrorPacket.FORWARDCLOSECODE);
+                }
+                try {
+                    ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
+                } catch (OpenR66ProtocolPacketException e1) {
                 }
-            } else {
-                // in error due to a previous status (like bad MD5)
-                logger
-                        .error(Messages.getString("LocalServerHandler.20")); //$NON-NLS-1$
                 session.setStatus(23);
-                channel.close();
+                ChannelCloseTimer.closeFutureChannel(channel);
                 return;
             }
+            // Now can send validation
+            packet.validate();
+            try {
+                ChannelUtils.writeAbstractLocalPacket(localChannelReference,
+                        packet, false);
+            } catch (OpenR66ProtocolPacketException e) {
+                // ignore
+            }
         } else {
-            session.newState(ENDTRANSFERR);
-            if (!localChannelReference.getFutureRequest().isDone()) {
-                // Validation of end of transfer
-                R66Result result = new R66Result(session, false,
-                        ErrorCode.TransferOk, session.getRunner());
-                try {
-                    session.setFinalizeTransfer(true, result);
-                } catch (OpenR66RunnerErrorException e) {
-                    // TODO
-                    session.newState(ERROR);
-                    ErrorPacket error = null;
-                    if (localChannelReference.getFutureRequest().getResult() != null) {
-                        result = localChannelReference.getFutureRequest().getResult();
-                        error = new ErrorPacket(
-                                "Error while finalizing transfer: " + result.getMessage(),
-                                result.getCode().getCode(), ErrorPacket.FORWARDCLOSECODE);
-                    } else {
-                        error = new ErrorPacket(
-                                "Error while finalizing transfer",
-                                ErrorCode.FinalOp.getCode(), ErrorPacket.FORWARDCLOSECODE);
-                    }
-                    try {
-                        ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
-                    } catch (OpenR66ProtocolPacketException e1) {
-                    }
-                    session.setStatus(23);
-                    ChannelCloseTimer.closeFutureChannel(channel);
-                    return;
-                } catch (OpenR66ProtocolSystemException e) {
-                    // TODO
-                    session.newState(ERROR);
-                    ErrorPacket error = null;
-                    if (localChannelReference.getFutureRequest().getResult() != null) {
-                        result = localChannelReference.getFutureRequest().getResult();
-                        error = new ErrorPacket(
-                                "Error while finalizing transfer: " + result.getMessage(),
-                                result.getCode().getCode(), ErrorPacket.FORWARDCLOSECODE);
-                    } else {
-                        error = new ErrorPacket(
-                                "Error while finalizing transfer",
-                                ErrorCode.FinalOp.getCode(), ErrorPacket.FORWARDCLOSECODE);
-                    }
-                    try {
-                        ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
-                    } catch (OpenR66ProtocolPacketException e1) {
-                    }
-                    session.setStatus(23);
-                    ChannelCloseTimer.closeFutureChannel(channel);
-                    return;
+            // in error due to a previous status (like bad MD5)
+            logger
+                    .error(Messages.getString("LocalServerHandler.20")); //$NON-NLS-1$
+            session.setStatus(23);
+            channel.close();
+            return;
+        }
+    }
+
+    /**
+     * Send the error of a bad global hash and finalize the transfer in error
+     * 
+     * @param channel
+     */
+    private final void globalHashError(Channel channel) {
+        R66Result result = new R66Result(new OpenR66RunnerErrorException(
+                Messages.getString("LocalServerHandler.19") + //$NON-NLS-1$
+                        localChannelReference.getPartner().getDigestAlgo().name + ")"),
+                session, true, ErrorCode.MD5Error, session.getRunner());
+        try {
+            session.setFinalizeTransfer(false, result);
+        } catch (OpenR66RunnerErrorException e) {
+        } catch (OpenR66ProtocolSystemException e) {
+        }
+        ErrorPacket error = new ErrorPacket(
+                "Global Hash in error, transfer in error and rank should be reset to 0 (using " +
+                        localChannelReference.getPartner().getDigestAlgo().name + ")",
+                ErrorCode.MD5Error.getCode(), ErrorPacket.FORWARDCLOSECODE);
+        try {
+            ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
+        } catch (OpenR66ProtocolPacketException e) {
+        }
+        session.setStatus(23);
+        ChannelCloseTimer.closeFutureChannel(channel);
+    }
+
+    /**
+     * 
+     * @return the global hash of the received file, using the algorithm of the partner if any
+     */
+    private final String computeFileHash() {
+        DigestAlgo algo = Configuration.configuration.getDigest();
+        if (localChannelReference.getPartner() != null && localChannelReference.getPartner().useFinalHash()) {
+            algo = localChannelReference.getPartner().getDigestAlgo();
+        }
+        try {
+            return FilesystemBasedDigest.getHex(FilesystemBasedDigest.getHash(
+                    session.getFile().getTrueFile(), true, algo));
+        } catch (IOException e) {
+            logger.error("Cannot compute global hash: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check the global hash of the received file out of the event loop (the reading of the packets
+     * being suspended meanwhile), then validate the end of transfer from the event loop
+     * 
+     * @param channel
+     * @param packet
+     * @param hash
+     *            the global hash sent by the partner
+     */
+    private final void checkFileHash(final Channel channel, final EndTransferPacket packet,
+            final String hash) {
+        localChannelReference.setAutoRead(false);
+        try {
+            NetworkTransaction.getHashingExecutor().execute(new Runnable() {
+                public void run() {
+                    final String fileHash = computeFileHash();
+                    channel.eventLoop().execute(new Runnable() {
+                        public void run() {
+                            try {
+                                if (!hash.equalsIgnoreCase(fileHash)) {
+                                    globalHashError(channel);
+                                    return;
+                                }
+                                logger.debug("Global digest ok");
+                                endTransferValidated(channel, packet);
+                            } finally {
+                                localChannelReference.setAutoRead(true);
+                            }
+                        }
+                    });
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.error("Cannot compute global hash: " + e.getMessage());
+            localChannelReference.setAutoRead(true);
+            globalHashError(channel);
+        }
+    }
+
+    /**
+     * Error on a sub stream in receive: the sub stream is closed, the main transfer will be in error
+     * at its end since incomplete
+     * 
+     * @param channel
+     * @param message
+     */
+    private final void subStreamError(Channel channel, String message) {
+        logger.error("Sub stream in error: " + message);
+        if (subStream != null) {
+            subStream.cancel();
+        }
+        subStream = null;
+        session.newState(ERROR);
+        localChannelReference.invalidateRequest(new R66Result(
+                new OpenR66ProtocolBusinessException(message), session, true,
+                ErrorCode.TransferError, null));
+        ErrorPacket error = new ErrorPacket(message,
+                ErrorCode.TransferError.getCode(), ErrorPacket.FORWARDCLOSECODE);
+        try {
+            ChannelUtils.writeAbstractLocalPacket(localChannelReference, error, true);
+        } catch (OpenR66ProtocolPacketException e) {
+        }
+        ChannelCloseTimer.closeFutureChannel(channel);
+    }
+
+    /**
+     * End of a sub stream in receive: validate it once all its blocks are written, if all were
+     * received
+     * 
+     * @param channel
+     * @param packet
+     */
+    private final void subStreamEndTransfer(final Channel channel, final EndTransferPacket packet) {
+        session.newState(ENDTRANSFERS);
+        final MultiStreamReceiver.SubStream ended = subStream;
+        ended.endTransfer(new Runnable() {
+            public void run() {
+                channel.eventLoop().execute(new Runnable() {
+                    public void run() {
+                        subStreamEnded(channel, packet, ended);
+                    }
+                });
             }
+        });
+    }
+
+    /**
+     * Once all the blocks of the sub stream are written, validate it if complete
+     * 
+     * @param channel
+     * @param packet
+     * @param ended
+     */
+    private final void subStreamEnded(Channel channel, EndTransferPacket packet,
+            MultiStreamReceiver.SubStream ended) {
+        if (!ended.isComplete()) {
+            subStreamError(channel, "Sub stream incomplete");
+            return;
         }
+        subStream = null;
+        session.newState(ENDTRANSFERR);
+        localChannelReference.validateRequest(new R66Result(session, true,
+                ErrorCode.TransferOk, null));
+        packet.validate();
+        try {
+            ChannelUtils.writeAbstractLocalPacket(localChannelReference, packet, true);
+        } catch (OpenR66ProtocolPacketException e) {
+        }
+        ChannelCloseTimer.closeFutureChannel(channel);
     }
 
     /**
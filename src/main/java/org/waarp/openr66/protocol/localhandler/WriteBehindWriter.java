@@ -0,0 +1,447 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.waarp.common.exception.FileTransferException;
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.context.R66Session;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+import org.waarp.openr66.protocol.localhandler.packet.DataPacket;
+
+/**
+ * Write behind disk writer for one receiving transfer.<br>
+ * <br>
+ * Received data blocks are queued (bounded queue) and written serially, in order, by a small pool
+ * of I/O threads shared by all transfers, such that a slow disk does not stall the event loop
+ * handling the network (and so all other transfers sharing it). The rank of the transfer is
+ * incremented by the I/O thread only once the block is written, so that a checkpoint never refers
+ * to data not yet on disk. When the queue is full, the reading of the packets of this transfer is
+ * suspended (autoRead off) until a block is written, without blocking the event loop (back
+ * pressure).<br>
+ * <br>
+ * Any write error is kept and reported to the handler on the next block or at the end of transfer.
+ * The handler never waits for the writer: when it needs all blocks written (end of transfer, rank
+ * correction, error), it suspends the reading and gives a listener run once the queue is empty.
+ *
+ * @author Frederic Bregier
+ */
+public class WriteBehindWriter implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(WriteBehindWriter.class);
+
+    /**
+     * Number of blocks currently waiting to be written, all transfers included
+     */
+    private static final AtomicLong queuedBlocks = new AtomicLong();
+    /**
+     * Maximum number of blocks waiting since last reset
+     */
+    private static final AtomicLong maxQueuedBlocks = new AtomicLong();
+    /**
+     * Number of blocks written
+     */
+    private static final AtomicLong writtenBlocks = new AtomicLong();
+    /**
+     * Cumulative time spent in writes (ns)
+     */
+    private static final AtomicLong writeTime = new AtomicLong();
+    /**
+     * Cumulative time spent by blocks from submission to end of write (ns)
+     */
+    private static final AtomicLong latencyTime = new AtomicLong();
+
+    private final R66Session session;
+
+    private final ExecutorService executor;
+
+    private final ConcurrentLinkedQueue<QueuedBlock> queue = new ConcurrentLinkedQueue<QueuedBlock>();
+
+    /**
+     * Number of blocks waiting before suspending the reading
+     */
+    private final int size;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * True while the reading of the packets is suspended (guarded by suspendLock)
+     */
+    private boolean suspended = false;
+
+    /**
+     * True while the reading is kept suspended until the listener of drain resumes it (guarded by
+     * suspendLock)
+     */
+    private boolean draining = false;
+
+    private final Object suspendLock = new Object();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final AtomicReference<Runnable> drainListener = new AtomicReference<Runnable>();
+
+    private volatile FileTransferException error;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Rank of the next block to submit (only used by the submitter)
+     */
+    private int nextRank;
+
+    /**
+     * One block waiting to be written
+     */
+    private static class QueuedBlock {
+        private final DataPacket packet;
+        private final long submitTime;
+
+        private QueuedBlock(DataPacket packet) {
+            this.packet = packet;
+            this.submitTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param session
+     *            the session of the receiving transfer
+     * @param size
+     *            the maximum number of blocks waiting to be written
+     * @param executor
+     *            the shared I/O executor
+     */
+    public WriteBehindWriter(R66Session session, int size, ExecutorService executor) {
+        this.session = session;
+        this.executor = executor;
+        this.size = size < 1 ? 1 : size;
+        this.nextRank = session.getRunner().getRank();
+    }
+
+    /**
+     *
+     * @return the rank expected for the next submitted block
+     */
+    public int getNextRank() {
+        return nextRank;
+    }
+
+    /**
+     * Reset the expected rank to the current rank of the transfer, after a rank correction (the
+     * writer must have been drained first)
+     */
+    public void resetRank() {
+        nextRank = session.getRunner().getRank();
+    }
+
+    /**
+     *
+     * @return True if a write previously failed
+     */
+    public boolean isInError() {
+        return error != null;
+    }
+
+    /**
+     *
+     * @return the write error if any
+     */
+    public FileTransferException getError() {
+        return error;
+    }
+
+    /**
+     * Submit one block to be written, without blocking. The packet is owned by the writer from now
+     * on and cleared once written (or dropped). Once the queue is full, the reading of the packets
+     * of this transfer is suspended until a block is written.
+     *
+     * @param packet
+     * @return False if the writer is in error or cancelled (packet being cleared)
+     */
+    public boolean submit(DataPacket packet) {
+        if (cancelled || error != null) {
+            packet.clear();
+            return false;
+        }
+        nextRank = packet.getPacketRank() + 1;
+        if (pending.incrementAndGet() >= size) {
+            suspend();
+        }
+        long depth = queuedBlocks.incrementAndGet();
+        long max = maxQueuedBlocks.get();
+        while (depth > max && !maxQueuedBlocks.compareAndSet(max, depth)) {
+            max = maxQueuedBlocks.get();
+        }
+        queue.add(new QueuedBlock(packet));
+        schedule();
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                logger.warn("Write behind executor unavailable: " + e.getMessage());
+                scheduled.set(false);
+                error = new FileTransferException("Write behind executor unavailable");
+                dropAll();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            QueuedBlock block = null;
+            while ((block = queue.poll()) != null) {
+                if (cancelled || error != null) {
+                    done(block);
+                    continue;
+                }
+                DataBlock dataBlock = new DataBlock();
+                dataBlock.setBlock(block.packet.getData());
+                try {
+                    long start = System.nanoTime();
+                    session.getFile().writeDataBlock(dataBlock,
+                            (long) block.packet.getPacketRank() * session.getRunner().getBlocksize());
+                    written(block.packet);
+                    long end = System.nanoTime();
+                    writeTime.addAndGet(end - start);
+                    latencyTime.addAndGet(end - block.submitTime);
+                    writtenBlocks.incrementAndGet();
+                } catch (FileTransferException e) {
+                    logger.error("Write behind in error for {}: " + e.getMessage(), session.getRunner());
+                    error = e;
+                } catch (OpenR66ProtocolPacketException e) {
+                    logger.error("Write behind in error for {}: " + e.getMessage(), session.getRunner());
+                    error = new FileTransferException("Rank in error: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    logger.error("Write behind in error for {}: " + e.getMessage(), session.getRunner());
+                    error = new FileTransferException("Write in error: " + e.getMessage());
+                } finally {
+                    dataBlock.clear();
+                    done(block);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Release the resources of one block, written or not
+     *
+     * @param block
+     */
+    private void done(QueuedBlock block) {
+        block.packet.clear();
+        queuedBlocks.decrementAndGet();
+        int left = pending.decrementAndGet();
+        if (left < size) {
+            resume();
+        }
+        if (left == 0) {
+            fireDrained();
+        }
+    }
+
+    /**
+     * Run the listener of drain if any, once
+     */
+    private void fireDrained() {
+        Runnable listener = drainListener.getAndSet(null);
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                logger.error("Write behind drain listener in error for {}: " + e.getMessage(),
+                        session.getRunner());
+            }
+        }
+    }
+
+    /**
+     * Suspend the reading of the packets while the queue is full
+     */
+    private void suspend() {
+        synchronized (suspendLock) {
+            if (!suspended && pending.get() >= size) {
+                logger.debug("Write behind queue full, reading suspended for {}",
+                        session.getRunner());
+                suspended = true;
+                setAutoRead(false);
+            }
+        }
+    }
+
+    /**
+     * Resume the reading of the packets if suspended and the queue is no more full
+     */
+    private void resume() {
+        synchronized (suspendLock) {
+            if (suspended && !draining && pending.get() < size) {
+                suspended = false;
+                setAutoRead(true);
+            }
+        }
+    }
+
+    /**
+     * Called by the I/O thread once the block is written (in order): increments the rank of the
+     * transfer
+     * 
+     * @param packet
+     * @throws OpenR66ProtocolPacketException
+     */
+    protected void written(DataPacket packet) throws OpenR66ProtocolPacketException {
+        session.getRunner().incrementRank();
+    }
+
+    /**
+     * 
+     * @return the local channel receiving the blocks, whose reading is suspended while the queue
+     *         is full
+     */
+    protected LocalChannelReference getReadChannel() {
+        return session.getLocalChannelReference();
+    }
+
+    private void setAutoRead(boolean autoRead) {
+        LocalChannelReference localChannelReference = getReadChannel();
+        if (localChannelReference != null) {
+            localChannelReference.setAutoRead(autoRead);
+        }
+    }
+
+    private void dropAll() {
+        QueuedBlock block = null;
+        while ((block = queue.poll()) != null) {
+            done(block);
+        }
+    }
+
+    /**
+     *
+     * @return True if no submitted block is waiting to be written
+     */
+    public boolean isEmpty() {
+        return pending.get() == 0;
+    }
+
+    /**
+     * Suspend the reading of the packets, then run the listener once all submitted blocks are
+     * written, without waiting: immediately if none is waiting, else from the I/O thread writing
+     * the last one. The reading stays suspended until resumeReading is called.
+     *
+     * @param listener
+     *            checks isInError to know if all blocks were written
+     */
+    public void drain(Runnable listener) {
+        synchronized (suspendLock) {
+            draining = true;
+            if (!suspended) {
+                suspended = true;
+                setAutoRead(false);
+            }
+        }
+        drainListener.set(listener);
+        if (pending.get() == 0) {
+            fireDrained();
+        }
+    }
+
+    /**
+     * Resume the reading of the packets suspended by drain
+     */
+    public void resumeReading() {
+        synchronized (suspendLock) {
+            draining = false;
+            if (suspended) {
+                suspended = false;
+                setAutoRead(true);
+            }
+        }
+    }
+
+    /**
+     * Cancel all not yet written blocks (the current write if any goes on: use drain to know when
+     * it is over)
+     */
+    public void cancel() {
+        cancelled = true;
+        dropAll();
+    }
+
+    /**
+     *
+     * @return the number of blocks currently waiting to be written (all transfers)
+     */
+    public static long getQueuedBlocks() {
+        return queuedBlocks.get();
+    }
+
+    /**
+     *
+     * @return the maximum number of blocks waiting to be written since last call, then reset
+     */
+    public static long getAndResetMaxQueuedBlocks() {
+        return maxQueuedBlocks.getAndSet(queuedBlocks.get());
+    }
+
+    /**
+     *
+     * @return the number of blocks written
+     */
+    public static long getWrittenBlocks() {
+        return writtenBlocks.get();
+    }
+
+    /**
+     *
+     * @return the average write time of one block in microseconds
+     */
+    public static long getAverageWriteTime() {
+        long nb = writtenBlocks.get();
+        return nb == 0 ? 0 : writeTime.get() / nb / 1000;
+    }
+
+    /**
+     *
+     * @return the average latency (from reception to end of write) of one block in microseconds
+     */
+    public static long getAverageLatency() {
+        long nb = writtenBlocks.get();
+        return nb == 0 ? 0 : latencyTime.get() / nb / 1000;
+    }
+}
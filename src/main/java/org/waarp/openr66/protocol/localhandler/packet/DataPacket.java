@@ -18,16 +18,22 @@
 package org.waarp.openr66.protocol.localhandler.packet;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
-import org.waarp.openr66.protocol.utils.FileUtils;
+import org.waarp.openr66.protocol.utils.BlockCompression;
+import org.waarp.openr66.protocol.utils.BlockDigest;
 
 /**
  * Data packet
  * 
- * header = packetRank middle = data end = key
+ * header = packetRank middle = data end = key<br>
+ * <br>
+ * When compression is negotiated for the transfer, a compressed block has a longer header:
+ * packetRank, compression flag and uncompressed length, the middle being the compressed data.
  * 
  * @author frederic bregier
  */
@@ -40,6 +46,16 @@ public class DataPacket extends AbstractLocalPacket {
 
     private ByteBuf key;
 
+    /**
+     * True if the data is sent compressed
+     */
+    private boolean compressed = false;
+
+    /**
+     * Flag in header for a compressed block
+     */
+    private static final byte COMPRESSED = 1;
+
     /**
      * @param headerLength
      * @param middleLength
@@ -58,8 +74,18 @@ public class DataPacket extends AbstractLocalPacket {
             throw new OpenR66ProtocolPacketException("Not enough data");
         }
         int packetRank = buf.readInt();
-        ByteBuf data = buf.readSlice(middleLength);
-        data.retain();
+        ByteBuf data;
+        if (headerLength - 1 > 4) {
+            byte flag = buf.readByte();
+            int length = buf.readInt();
+            if (flag != COMPRESSED) {
+                throw new OpenR66ProtocolPacketException("Unknown block format: " + flag);
+            }
+            data = BlockCompression.decompress(buf.readSlice(middleLength), length);
+        } else {
+            data = buf.readSlice(middleLength);
+            data.retain();
+        }
         ByteBuf key;
         if (endLength > 0) {
             key = buf.readSlice(endLength);
@@ -89,15 +115,52 @@ public class DataPacket extends AbstractLocalPacket {
 
     @Override
     public void createHeader(LocalChannelReference lcr) throws OpenR66ProtocolPacketException {
-        header = Unpooled.buffer(4);
-        header.writeInt(packetRank);
+        // The rank is written directly within the fixed part of the header (see getLocalPacket)
+        header = null;
     }
 
     @Override
     public void createMiddle(LocalChannelReference lcr) throws OpenR66ProtocolPacketException {
+        if (lcr != null && lcr.isCompression()) {
+            ByteBuf compressedData = BlockCompression.compress(data);
+            if (compressedData != null) {
+                // data is owned by this packet and not sent
+                data.release();
+                data = compressedData;
+                compressed = true;
+            }
+        }
         middle = data;
     }
 
+    @Override
+    public ByteBuf getLocalPacket(LocalChannelReference lcr) throws OpenR66ProtocolPacketException {
+        // 3 header lengths + type + rank (+ flag and length if compressed) in one buffer, data and
+        // key are not copied
+        ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+        Channel networkChannel = lcr != null ? lcr.getNetworkChannel() : null;
+        if (networkChannel != null) {
+            allocator = networkChannel.alloc();
+        }
+        final ByteBuf buf = allocator.buffer(4 * 3 + 1 + 4 + 1 + 4);
+        if (middle == null) {
+            createMiddle(lcr);
+        }
+        if (end == null) {
+            createEnd(lcr);
+        }
+        buf.writeInt(4 * 2 + 1 + 4 + (compressed ? 1 + 4 : 0));
+        buf.writeInt(middle.readableBytes());
+        buf.writeInt(end.readableBytes());
+        buf.writeByte(getType());
+        buf.writeInt(packetRank);
+        if (compressed) {
+            buf.writeByte(COMPRESSED);
+            buf.writeInt(lengthPacket);
+        }
+        return Unpooled.wrappedBuffer(buf, middle, end);
+    }
+
     @Override
     public byte getType() {
         return LocalPacketFactory.DATAPACKET;
@@ -141,13 +204,23 @@ public class DataPacket extends AbstractLocalPacket {
      * @return True if the Hashed key is valid (or no key is set)
      */
     public boolean isKeyValid(DigestAlgo algo) {
+        return isKeyValid(null, algo);
+    }
+
+    /**
+     * 
+     * @param lcr
+     *            the LocalChannelReference, to know if a lightweight checksum is used (could be
+     *            null)
+     * @param algo
+     *            the digest algorithm of the partner
+     * @return True if the Hashed key is valid (or no key is set)
+     */
+    public boolean isKeyValid(LocalChannelReference lcr, DigestAlgo algo) {
         if (key == null || key == Unpooled.EMPTY_BUFFER) {
             return true;
         }
-        ByteBuf newbufkey = FileUtils.getHash(data, algo);
-        boolean check = key.equals(newbufkey);
-        newbufkey.release();
-        return check;
+        return BlockDigest.isValid(lcr, data, key, algo);
     }
 
     public void clear() {
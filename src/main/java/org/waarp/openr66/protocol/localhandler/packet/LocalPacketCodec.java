@@ -21,29 +21,52 @@ import java.util.List;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.channel.CombinedChannelDuplexHandler;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 
 /**
- * Local Packet Decoder
+ * Local Packet Decoder and Encoder (the encoder does not copy the packet)
  * 
  * @author Frederic Bregier
  */
-public class LocalPacketCodec extends ByteToMessageCodec<AbstractLocalPacket> {
+public class LocalPacketCodec extends
+        CombinedChannelDuplexHandler<LocalPacketCodec.Decoder, LocalPacketCodec.Encoder> {
 
-    @Override
-    protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
-        // Make sure if the length field was received.
-        if (buf.readableBytes() < 4) {
-            // The length field was not received yet - return null.
-            // This method will be invoked again when more packets are
-            // received and appended to the buffer.
-            return;
+    public LocalPacketCodec() {
+        super(new Decoder(), new Encoder());
+    }
+
+    /**
+     * Local Packet Decoder
+     */
+    static class Decoder extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
+            // Make sure if the length field was received.
+            if (buf.readableBytes() < 4) {
+                // The length field was not received yet - return null.
+                // This method will be invoked again when more packets are
+                // received and appended to the buffer.
+                return;
+            }
+            AbstractLocalPacket newbuf = decodeNetworkPacket(buf);
+            if (newbuf != null) {
+                out.add(newbuf);
+            }
         }
-        AbstractLocalPacket newbuf = decodeNetworkPacket(buf);
-        if (newbuf != null) {
-            out.add(newbuf);
+    }
+
+    /**
+     * Local Packet Encoder: the packet is written as is (composite buffer)
+     */
+    static class Encoder extends MessageToMessageEncoder<AbstractLocalPacket> {
+        @Override
+        protected void encode(ChannelHandlerContext ctx, AbstractLocalPacket msg, List<Object> out)
+                throws Exception {
+            out.add(msg.getLocalPacket(null));
         }
     }
 
@@ -72,15 +95,4 @@ public class LocalPacketCodec extends ByteToMessageCodec<AbstractLocalPacket> {
                 middleLength, endLength, buf);
     }
 
-    @Override
-    protected void encode(ChannelHandlerContext ctx, AbstractLocalPacket msg, ByteBuf out) throws Exception {
-        /*if (msg instanceof ByteBuf) {
-            out.writeBytes((ByteBuf) msg);
-            return;
-        }*/
-        final ByteBuf buf = msg.getLocalPacket(null);
-        out.writeBytes(buf);
-        buf.release();
-    }
-
 }
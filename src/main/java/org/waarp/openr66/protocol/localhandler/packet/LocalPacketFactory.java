@@ -77,6 +77,9 @@ public class LocalPacketFactory {
 
     public static final byte JSONREQUESTPACKET = 25;
 
+    // Only used as JsonCommandPacket type: attach a sub stream to a multiple streams transfer
+    public static final byte SUBSTREAMPACKET = 26;
+
     /**
      * This method create a Packet from the ByteBuf.
      * 
@@ -57,7 +57,7 @@ public class RequestPacket extends AbstractLocalPacket {
     }
 
     protected static enum FIELDS {
-        rule, mode, filename, block, rank, id, code, length
+        rule, mode, filename, block, rank, id, code, length, compression
     }
 
     protected static final byte REQVALIDATE = 0;
@@ -86,6 +86,12 @@ public class RequestPacket extends AbstractLocalPacket {
 
     protected String separator = PartnerConfiguration.getSEPARATOR_FIELD();
 
+    /**
+     * Compression of data blocks asked by the requester and accepted (or not) by the requested
+     * (JSON only)
+     */
+    protected boolean compression = false;
+
     /**
      * 
      * @param mode
@@ -231,12 +237,15 @@ public class RequestPacket extends AbstractLocalPacket {
             logger.debug("Request is using JSON");
             ObjectNode map = JsonHandler.getFromString(sheader);
             ObjectNode map2 = JsonHandler.getFromString(smiddle);
-            return new RequestPacket(map.path(FIELDS.rule.name()).asText(), map.path(FIELDS.mode.name()).asInt(),
+            RequestPacket request = new RequestPacket(map.path(FIELDS.rule.name()).asText(),
+                    map.path(FIELDS.mode.name()).asInt(),
                     map2.path(FIELDS.filename.name()).asText(), map2.path(FIELDS.block.name()).asInt(),
                     map2.path(FIELDS.rank.name()).asInt(), map2.path(FIELDS.id.name()).asLong(),
                     valid, send,
                     (char) map2.path(FIELDS.code.name()).asInt(), map2.path(FIELDS.length.name()).asLong(),
                     PartnerConfiguration.BAR_JSON_FIELD);
+            request.compression = map2.path(FIELDS.compression.name()).asBoolean(false);
+            return request;
         }
 
         String[] aheader = sheader.split(PartnerConfiguration.BLANK_SEPARATOR_FIELD);
@@ -356,6 +365,9 @@ public class RequestPacket extends AbstractLocalPacket {
             JsonHandler.setValue(node, FIELDS.id, specialId);
             JsonHandler.setValue(node, FIELDS.code, code);
             JsonHandler.setValue(node, FIELDS.length, originalSize);
+            if (compression) {
+                JsonHandler.setValue(node, FIELDS.compression, true);
+            }
             middle = Unpooled.wrappedBuffer(away, JsonHandler.writeAsString(node).getBytes());
         } else {
             middle = Unpooled.wrappedBuffer(away, filename.getBytes(),
@@ -507,4 +519,19 @@ public class RequestPacket extends AbstractLocalPacket {
         this.code = code;
     }
 
+    /**
+     * @return True if compression of data blocks is asked (or accepted in the answer)
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression
+     *            True to ask (or accept in the answer) compression of data blocks
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
 }
@@ -32,6 +32,8 @@ public class BandwidthJsonPacket extends JsonPacket {
 
     protected boolean setter;
     protected long writeglobal = -10, readglobal = -10, writesession = -10, readsession = -10;
+    protected String partner, rule;
+    protected long writeclass = -10, assuredclass = -10;
 
     /**
      * @return the setter
@@ -108,6 +110,66 @@ public class BandwidthJsonPacket extends JsonPacket {
         this.readsession = readsession;
     }
 
+    /**
+     * @return the partner of the bandwidth class (null if none)
+     */
+    public String getPartner() {
+        return partner;
+    }
+
+    /**
+     * @param partner
+     *            the partner of the bandwidth class to set
+     */
+    public void setPartner(String partner) {
+        this.partner = partner;
+    }
+
+    /**
+     * @return the rule of the bandwidth class (null if none)
+     */
+    public String getRule() {
+        return rule;
+    }
+
+    /**
+     * @param rule
+     *            the rule of the bandwidth class to set
+     */
+    public void setRule(String rule) {
+        this.rule = rule;
+    }
+
+    /**
+     * @return the write limit of the bandwidth class
+     */
+    public long getWriteclass() {
+        return writeclass;
+    }
+
+    /**
+     * @param writeclass
+     *            the write limit of the bandwidth class to set
+     */
+    public void setWriteclass(long writeclass) {
+        this.writeclass = writeclass;
+    }
+
+    /**
+     * @return the assured write throughput of the bandwidth class
+     */
+    public long getAssuredclass() {
+        return assuredclass;
+    }
+
+    /**
+     * @param assuredclass
+     *            the assured write throughput of the bandwidth class to set
+     */
+    public void setAssuredclass(long assuredclass) {
+        this.assuredclass = assuredclass;
+    }
+
     @Override
     public void fromJson(JsonPacket other) {
         super.fromJson(other);
@@ -118,6 +180,10 @@ public class BandwidthJsonPacket extends JsonPacket {
             this.readglobal = other2.readglobal;
             this.writesession = other2.writeglobal;
             this.readsession = other2.readsession;
+            this.partner = other2.partner;
+            this.rule = other2.rule;
+            this.writeclass = other2.writeclass;
+            this.assuredclass = other2.assuredclass;
         }
     }
 
@@ -0,0 +1,150 @@
+/**
+   This file is part of Waarp Project.
+
+   Copyright 2009, Frederic Bregier, and individual contributors by the @author
+   tags. See the COPYRIGHT.txt in the distribution for a full listing of
+   individual contributors.
+
+   All Waarp Project is free software: you can redistribute it and/or 
+   modify it under the terms of the GNU General Public License as published 
+   by the Free Software Foundation, either version 3 of the License, or
+   (at your option) any later version.
+
+   Waarp is distributed in the hope that it will be useful,
+   but WITHOUT ANY WARRANTY; without even the implied warranty of
+   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+   GNU General Public License for more details.
+
+   You should have received a copy of the GNU General Public License
+   along with Waarp .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.localhandler.packet.json;
+
+import org.waarp.openr66.protocol.localhandler.packet.LocalPacketFactory;
+
+/**
+ * Sub stream attachment JSON packet: a new local channel asks to carry the blocks from startRank
+ * (included) to endRank (excluded) of an already running transfer, identified as for a request
+ * (requester, requested and specialId)
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class SubStreamJsonPacket extends JsonPacket {
+
+    protected String requester;
+    protected String requested;
+    protected long specialId;
+    protected int startRank;
+    protected int endRank;
+    protected boolean validated;
+
+    /**
+     * @return the requester
+     */
+    public String getRequester() {
+        return requester;
+    }
+
+    /**
+     * @param requester
+     *            the requester to set
+     */
+    public void setRequester(String requester) {
+        this.requester = requester;
+    }
+
+    /**
+     * @return the requested
+     */
+    public String getRequested() {
+        return requested;
+    }
+
+    /**
+     * @param requested
+     *            the requested to set
+     */
+    public void setRequested(String requested) {
+        this.requested = requested;
+    }
+
+    /**
+     * @return the specialId
+     */
+    public long getSpecialId() {
+        return specialId;
+    }
+
+    /**
+     * @param specialId
+     *            the specialId to set
+     */
+    public void setSpecialId(long specialId) {
+        this.specialId = specialId;
+    }
+
+    /**
+     * @return the startRank
+     */
+    public int getStartRank() {
+        return startRank;
+    }
+
+    /**
+     * @param startRank
+     *            the startRank to set
+     */
+    public void setStartRank(int startRank) {
+        this.startRank = startRank;
+    }
+
+    /**
+     * @return the endRank
+     */
+    public int getEndRank() {
+        return endRank;
+    }
+
+    /**
+     * @param endRank
+     *            the endRank to set
+     */
+    public void setEndRank(int endRank) {
+        this.endRank = endRank;
+    }
+
+    /**
+     * @return the validated
+     */
+    public boolean isValidated() {
+        return validated;
+    }
+
+    /**
+     * @param validated
+     *            the validated to set
+     */
+    public void setValidated(boolean validated) {
+        this.validated = validated;
+    }
+
+    @Override
+    public void fromJson(JsonPacket other) {
+        super.fromJson(other);
+        if (other instanceof SubStreamJsonPacket) {
+            SubStreamJsonPacket other2 = (SubStreamJsonPacket) other;
+            this.requester = other2.requester;
+            this.requested = other2.requested;
+            this.specialId = other2.specialId;
+            this.startRank = other2.startRank;
+            this.endRank = other2.endRank;
+            this.validated = other2.validated;
+        }
+    }
+
+    public void setRequestUserPacket() {
+        super.setRequestUserPacket(LocalPacketFactory.SUBSTREAMPACKET);
+    }
+
+}
@@ -0,0 +1,259 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.openr66.protocol.utils.TransferPriority;
+
+/**
+ * One class of the hierarchical shaping of sent data (see BandwidthClasses).<br>
+ * <br>
+ * Each class has a limit (the maximum throughput of the class, whatever its parent has available)
+ * and an assured throughput. While under its assured throughput, a class sends without asking its
+ * parent; above it, it borrows from its parent, which lends only if itself is under its own assured
+ * throughput or can borrow from its own parent. A class without assured throughput always borrows.
+ * Both are token buckets refilled continuously, allowing a burst of one second, and allowed to go
+ * in debt by one block such that blocks bigger than the bucket are still sent.
+ *
+ * @author Frederic Bregier
+ */
+public class BandwidthClass {
+    /**
+     * Maximum wait in ms before checking again (such that live changes apply quickly)
+     */
+    private static final long MAXIMAL_WAIT = 1000;
+
+    private final BandwidthClasses hierarchy;
+
+    private final String name;
+
+    private final BandwidthClass parent;
+
+    /**
+     * Maximum throughput in B/s (0 for no limit at this level)
+     */
+    private volatile long limit = 0;
+
+    /**
+     * Assured throughput in B/s (0 for always borrowing from the parent)
+     */
+    private volatile long assured = 0;
+
+    private long limitTokens = 0;
+
+    private long assuredTokens = 0;
+
+    private long lastRefill = System.currentTimeMillis();
+
+    private final AtomicLong transferred = new AtomicLong();
+
+    private long lastTransferred = 0;
+
+    private long lastCheck = System.currentTimeMillis();
+
+    private volatile long throughput = 0;
+
+    /**
+     * @param hierarchy
+     *            the hierarchy, used as lock of all token buckets
+     * @param name
+     * @param parent
+     *            null for the global class
+     */
+    BandwidthClass(BandwidthClasses hierarchy, String name, BandwidthClass parent) {
+        this.hierarchy = hierarchy;
+        this.name = name;
+        this.parent = parent;
+    }
+
+    /**
+     * @return the name of this class
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the parent class (null for the global class)
+     */
+    public BandwidthClass getParent() {
+        return parent;
+    }
+
+    /**
+     * @return the maximum throughput in B/s (0 for no limit at this level)
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the assured throughput in B/s (0 for always borrowing from the parent)
+     */
+    public long getAssured() {
+        return assured;
+    }
+
+    /**
+     * @return the number of bytes sent through this class
+     */
+    public long getTransferred() {
+        return transferred.get();
+    }
+
+    /**
+     * @return the throughput in B/s computed at the last check
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Change the limits of this class, applied immediately
+     *
+     * @param limit
+     *            the maximum throughput in B/s (0 for no limit at this level)
+     * @param assured
+     *            the assured throughput in B/s (0 for always borrowing from the parent)
+     */
+    void setLimits(long limit, long assured) {
+        synchronized (hierarchy) {
+            this.limit = limit > 0 ? limit : 0;
+            this.assured = assured > 0 ? assured : 0;
+            limitTokens = Math.min(limitTokens, this.limit);
+            assuredTokens = Math.min(assuredTokens, this.assured);
+        }
+    }
+
+    /**
+     * Reserve the bandwidth to send this size (nothing is reserved if a wait is needed)
+     *
+     * @param size
+     *            in bytes
+     * @return 0 if the size could be sent now, else the delay in ms before trying again
+     */
+    public long reserve(long size) {
+        if (!hierarchy.isShaping()) {
+            for (BandwidthClass current = this; current != null; current = current.parent) {
+                current.transferred.addAndGet(size);
+            }
+            return 0;
+        }
+        synchronized (hierarchy) {
+            long now = System.currentTimeMillis();
+            long wait = 0;
+            long borrowWait = MAXIMAL_WAIT;
+            boolean allowed = false;
+            for (BandwidthClass current = this; current != null; current = current.parent) {
+                current.refill(now);
+                if (current.parent != null && current.limit > 0 && current.limitTokens < 0) {
+                    // limit of this level reached, whatever borrowing (the global class is
+                    // limited by its assured throughput, such that borrowing never prevents
+                    // its children from their own assured throughput)
+                    wait = Math.max(wait, -current.limitTokens * 1000 / current.limit + 1);
+                }
+                if (!allowed) {
+                    if (current.assured > 0) {
+                        if (current.assuredTokens >= 0) {
+                            allowed = true;
+                        } else {
+                            // else borrow from the parent
+                            borrowWait = Math.min(borrowWait,
+                                    -current.assuredTokens * 1000 / current.assured + 1);
+                        }
+                    } else if (current.parent == null) {
+                        // global class without limit
+                        allowed = true;
+                    }
+                }
+            }
+            if (!allowed) {
+                wait = Math.max(wait, borrowWait);
+            }
+            if (wait > 0) {
+                return Math.min(wait, MAXIMAL_WAIT);
+            }
+            for (BandwidthClass current = this; current != null; current = current.parent) {
+                if (current.limit > 0) {
+                    current.limitTokens -= size;
+                }
+                if (current.assured > 0) {
+                    current.assuredTokens -= size;
+                }
+                current.transferred.addAndGet(size);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Reserve the bandwidth to send this size for a transfer of this weight (see reserve): while
+     * the class is exhausted, a lower weight waits longer before trying again, such that transfers
+     * get the bandwidth in proportion of their weight
+     *
+     * @param size
+     *            in bytes
+     * @param weight
+     *            from 1 to TransferPriority.MAX_WEIGHT
+     * @return 0 if the size could be sent now, else the delay in ms before trying again
+     */
+    public long reserve(long size, int weight) {
+        long wait = reserve(size);
+        if (wait <= 0 || weight >= TransferPriority.MAX_WEIGHT) {
+            return wait;
+        }
+        return Math.min(wait * TransferPriority.MAX_WEIGHT / Math.max(1, weight), MAXIMAL_WAIT);
+    }
+
+    private void refill(long now) {
+        long delay = now - lastRefill;
+        if (delay <= 0) {
+            return;
+        }
+        lastRefill = now;
+        if (limit > 0) {
+            limitTokens = Math.min(limitTokens + limit * delay / 1000, limit);
+        }
+        if (assured > 0) {
+            assuredTokens = Math.min(assuredTokens + assured * delay / 1000, assured);
+        }
+    }
+
+    /**
+     * Compute the throughput since the previous check
+     *
+     * @param now
+     *            time in ms
+     */
+    void checkThroughput(long now) {
+        long delay = now - lastCheck;
+        if (delay <= 0) {
+            return;
+        }
+        long current = transferred.get();
+        throughput = (current - lastTransferred) * 1000 / delay;
+        lastTransferred = current;
+        lastCheck = now;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (limit: " + limit + " assured: " + assured + " throughput: " + throughput + ")";
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Hierarchical shaping of the data sent by transfers.<br>
+ * <br>
+ * The global class is limited by the global write limit. Under it, one class per partner (the
+ * remote host of the transfer), then under each partner one class per rule used with this partner.
+ * The limits of the partners and of the rules are given as "id:limit[:assured]" separated by
+ * commas, limit and assured being in B/s (see BandwidthClass for borrowing), and could be changed
+ * while running. The limits of a rule apply to each of its classes (one per partner).<br>
+ * <br>
+ * As long as no limit is set, reserving bandwidth only counts the sent bytes per class.
+ *
+ * @author Frederic Bregier
+ */
+public class BandwidthClasses {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(BandwidthClasses.class);
+
+    /**
+     * Name of the global class
+     */
+    public static final String GLOBAL = "GLOBAL";
+
+    private final BandwidthClass global = new BandwidthClass(this, GLOBAL, null);
+
+    private final ConcurrentHashMap<String, BandwidthClass> partners =
+            new ConcurrentHashMap<String, BandwidthClass>();
+
+    private final ConcurrentHashMap<String, BandwidthClass> rules =
+            new ConcurrentHashMap<String, BandwidthClass>();
+
+    /**
+     * Limits of partners as {limit, assured}
+     */
+    private final ConcurrentHashMap<String, long[]> partnerLimits =
+            new ConcurrentHashMap<String, long[]>();
+
+    /**
+     * Limits of rules as {limit, assured}
+     */
+    private final ConcurrentHashMap<String, long[]> ruleLimits =
+            new ConcurrentHashMap<String, long[]>();
+
+    private volatile boolean shaping = false;
+
+    /**
+     * Set the limits of partners and rules from their configuration
+     *
+     * @param partnerConfig
+     *            "hostid:limit[:assured]" separated by commas
+     * @param ruleConfig
+     *            "ruleid:limit[:assured]" separated by commas
+     */
+    public void configure(String partnerConfig, String ruleConfig) {
+        parse(partnerConfig, partnerLimits);
+        parse(ruleConfig, ruleLimits);
+        updateShaping();
+    }
+
+    private static void parse(String config, ConcurrentHashMap<String, long[]> limits) {
+        if (config == null) {
+            return;
+        }
+        for (String item : config.split(",")) {
+            String[] values = item.trim().split(":");
+            if (values.length < 2 || values[0].trim().isEmpty()) {
+                continue;
+            }
+            try {
+                long limit = Long.parseLong(values[1].trim());
+                long assured = values.length > 2 ? Long.parseLong(values[2].trim()) : 0;
+                limits.put(values[0].trim(), new long[] { limit, assured });
+            } catch (NumberFormatException e) {
+                logger.warn("Incorrect bandwidth class: " + item);
+            }
+        }
+    }
+
+    /**
+     * @return True if any limit is set
+     */
+    boolean isShaping() {
+        return shaping;
+    }
+
+    private void updateShaping() {
+        boolean any = global.getLimit() > 0;
+        for (long[] limits : partnerLimits.values()) {
+            any |= limits[0] > 0 || limits[1] > 0;
+        }
+        for (long[] limits : ruleLimits.values()) {
+            any |= limits[0] > 0 || limits[1] > 0;
+        }
+        shaping = any;
+    }
+
+    /**
+     * @return the global class
+     */
+    public BandwidthClass getGlobal() {
+        return global;
+    }
+
+    /**
+     * @param partner
+     *            the remote host (could be null)
+     * @param rule
+     *            the rule (could be null)
+     * @return the class of the transfers with this partner and this rule
+     */
+    public BandwidthClass getBandwidthClass(String partner, String rule) {
+        if (partner == null) {
+            return global;
+        }
+        BandwidthClass partnerClass = partners.get(partner);
+        if (partnerClass == null) {
+            BandwidthClass newClass = new BandwidthClass(this, partner, global);
+            long[] limits = partnerLimits.get(partner);
+            if (limits != null) {
+                newClass.setLimits(limits[0], limits[1]);
+            }
+            partnerClass = partners.putIfAbsent(partner, newClass);
+            if (partnerClass == null) {
+                partnerClass = newClass;
+            }
+        }
+        if (rule == null) {
+            return partnerClass;
+        }
+        String key = partner + "/" + rule;
+        BandwidthClass ruleClass = rules.get(key);
+        if (ruleClass == null) {
+            BandwidthClass newClass = new BandwidthClass(this, key, partnerClass);
+            long[] limits = ruleLimits.get(rule);
+            if (limits != null) {
+                newClass.setLimits(limits[0], limits[1]);
+            }
+            ruleClass = rules.putIfAbsent(key, newClass);
+            if (ruleClass == null) {
+                ruleClass = newClass;
+            }
+        }
+        return ruleClass;
+    }
+
+    /**
+     * Change the limit of the global class (the global write limit)
+     *
+     * @param limit
+     *            in B/s, 0 for no limit
+     */
+    public void setGlobalLimit(long limit) {
+        global.setLimits(limit, limit);
+        updateShaping();
+    }
+
+    /**
+     * Change the limits of one partner, applied immediately
+     *
+     * @param partner
+     * @param limit
+     *            in B/s, 0 for no limit, negative to keep the current one
+     * @param assured
+     *            in B/s, 0 for always borrowing, negative to keep the current one
+     * @return the new limits as {limit, assured}
+     */
+    public long[] setPartnerLimits(String partner, long limit, long assured) {
+        long[] limits = merge(partnerLimits.get(partner), limit, assured);
+        partnerLimits.put(partner, limits);
+        BandwidthClass partnerClass = partners.get(partner);
+        if (partnerClass != null) {
+            partnerClass.setLimits(limits[0], limits[1]);
+        }
+        updateShaping();
+        return limits;
+    }
+
+    /**
+     * Change the limits of one rule (for all partners), applied immediately
+     *
+     * @param rule
+     * @param limit
+     *            in B/s, 0 for no limit, negative to keep the current one
+     * @param assured
+     *            in B/s, 0 for always borrowing, negative to keep the current one
+     * @return the new limits as {limit, assured}
+     */
+    public long[] setRuleLimits(String rule, long limit, long assured) {
+        long[] limits = merge(ruleLimits.get(rule), limit, assured);
+        ruleLimits.put(rule, limits);
+        String suffix = "/" + rule;
+        for (Entry<String, BandwidthClass> entry : rules.entrySet()) {
+            if (entry.getKey().endsWith(suffix)) {
+                entry.getValue().setLimits(limits[0], limits[1]);
+            }
+        }
+        updateShaping();
+        return limits;
+    }
+
+    private static long[] merge(long[] current, long limit, long assured) {
+        long[] limits = current == null ? new long[] { 0, 0 } : current.clone();
+        if (limit >= 0) {
+            limits[0] = limit;
+        }
+        if (assured >= 0) {
+            limits[1] = assured;
+        }
+        return limits;
+    }
+
+    /**
+     * @param partner
+     * @return the limits of this partner as {limit, assured}
+     */
+    public long[] getPartnerLimits(String partner) {
+        long[] limits = partnerLimits.get(partner);
+        return limits == null ? new long[] { 0, 0 } : limits.clone();
+    }
+
+    /**
+     * @param rule
+     * @return the limits of this rule as {limit, assured}
+     */
+    public long[] getRuleLimits(String rule) {
+        long[] limits = ruleLimits.get(rule);
+        return limits == null ? new long[] { 0, 0 } : limits.clone();
+    }
+
+    /**
+     * Compute the throughput of all classes since the previous check
+     *
+     * @return all classes, the global one first, then each partner followed by its rules
+     */
+    public List<BandwidthClass> checkThroughput() {
+        long now = System.currentTimeMillis();
+        List<BandwidthClass> list = new ArrayList<BandwidthClass>();
+        synchronized (this) {
+            global.checkThroughput(now);
+            list.add(global);
+            for (BandwidthClass partnerClass : partners.values()) {
+                partnerClass.checkThroughput(now);
+                list.add(partnerClass);
+                for (BandwidthClass ruleClass : rules.values()) {
+                    if (ruleClass.getParent() == partnerClass) {
+                        ruleClass.checkThroughput(now);
+                        list.add(ruleClass);
+                    }
+                }
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,347 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.TrafficCounter;
+
+import org.apache.commons.io.FileUtils;
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Per partner block size tuning.<br>
+ * <br>
+ * At the end of each transfer requested by this host, the round trip time with the partner
+ * (measured on KeepAlive exchanges, or on the Startup exchange as a first estimate) and the achieved
+ * throughput (transfer duration and traffic counters) are smoothed per partner host id. The block
+ * size is then chosen such that the sender window covers the bandwidth delay product (measured
+ * throughput times the minimal RTT), rounded to a power of 2 within the configured bounds.<br>
+ * <br>
+ * Since the measured throughput is itself limited by the current window, it cannot reveal a larger
+ * capacity: when a transfer used its whole window while the RTT stayed close to its minimal value
+ * (no queue building up on the path), the link is considered under used and the block size is
+ * doubled (probe). Once the RTT rises, the block size goes back to the bandwidth delay product.<br>
+ * <br>
+ * The tuned values are kept in a JSON file in the configuration directory, and used by clients
+ * when they do not force a block size.
+ *
+ * @author Frederic Bregier
+ */
+public class BlockSizeTuner {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(BlockSizeTuner.class);
+
+    /**
+     * Name of the file keeping the tuned values in the configuration directory
+     */
+    public static final String BLOCKSIZE_FILENAME = "r66blocksizes.json";
+    /**
+     * Minimal number of blocks for a transfer to be taken into account
+     */
+    public static final int MINIMAL_BLOCKS = 16;
+    /**
+     * RTT (in percent of the minimal RTT) under which the RTT is considered flat
+     */
+    public static final int FLAT_RTT_PERCENT = 125;
+    /**
+     * Part of the window (in percent) in flight for a transfer to be considered window limited
+     */
+    public static final int WINDOW_LIMITED_PERCENT = 50;
+
+    private static final String JSON_RTT = "rtt";
+    private static final String JSON_MINRTT = "minrtt";
+    private static final String JSON_THROUGHPUT = "throughput";
+    private static final String JSON_BLOCKSIZE = "blocksize";
+
+    private static final ConcurrentHashMap<String, PartnerStats> partners = new ConcurrentHashMap<String, PartnerStats>();
+
+    private static volatile boolean loaded = false;
+
+    /**
+     * Smoothed measures for one partner
+     */
+    private static class PartnerStats {
+        /**
+         * Round trip time in ms
+         */
+        private long rtt;
+        /**
+         * Minimal round trip time in ms (without queuing)
+         */
+        private long minRtt;
+        /**
+         * Throughput in bytes/s
+         */
+        private long throughput;
+        /**
+         * Tuned block size (0 if not yet tuned)
+         */
+        private volatile int blocksize;
+    }
+
+    private BlockSizeTuner() {
+    }
+
+    /**
+     *
+     * @param hostId
+     *            the partner host id
+     * @return the block size to use with this partner when not forced
+     */
+    public static int getBlockSize(String hostId) {
+        int blocksize = Configuration.configuration.getBLOCKSIZE();
+        if (!Configuration.configuration.isBlockSizeAuto() || hostId == null) {
+            return blocksize;
+        }
+        load();
+        PartnerStats stats = partners.get(hostId);
+        if (stats != null && stats.blocksize > 0) {
+            blocksize = stats.blocksize;
+        }
+        return blocksize;
+    }
+
+    /**
+     * Take into account the measures of one transfer successfully finished
+     *
+     * @param localChannelReference
+     *            the LocalChannelReference of the transfer (could be null)
+     * @param runner
+     *            the finished task
+     */
+    public static void transferDone(LocalChannelReference localChannelReference, DbTaskRunner runner) {
+        if (!Configuration.configuration.isBlockSizeAuto() || runner == null
+                || runner.getRank() < MINIMAL_BLOCKS) {
+            return;
+        }
+        String hostId = runner.isSelfRequested() ? runner.getRequester() : runner.getRequested();
+        long size = runner.getOriginalSize();
+        if (size <= 0) {
+            size = (long) runner.getRank() * runner.getBlocksize();
+        }
+        long throughput = 0;
+        Timestamp start = runner.getStart();
+        Timestamp stop = runner.getStop();
+        if (start != null && stop != null) {
+            long duration = stop.getTime() - start.getTime();
+            if (duration > 0) {
+                throughput = size * 1000 / duration;
+            }
+        }
+        long rtt = 0;
+        if (localChannelReference != null) {
+            ChannelTrafficShapingHandler cts = localChannelReference.getChannelTrafficShapingHandler();
+            if (cts != null) {
+                TrafficCounter counter = cts.trafficCounter();
+                throughput = Math.max(throughput,
+                        Math.max(counter.lastReadThroughput(), counter.lastWriteThroughput()));
+            }
+            NetworkChannelReference networkChannelReference = localChannelReference.getNetworkChannelObject();
+            if (networkChannelReference != null) {
+                rtt = networkChannelReference.getRtt();
+            }
+        }
+        update(hostId, rtt, throughput, runner.getBlocksize());
+    }
+
+    /**
+     * Add new measures for one partner
+     *
+     * @param hostId
+     * @param rtt
+     *            round trip time in ms (0 if unknown)
+     * @param throughput
+     *            throughput in bytes/s (0 if unknown)
+     * @param used
+     *            the block size used for these measures (0 if unknown)
+     */
+    public static void update(String hostId, long rtt, long throughput, int used) {
+        if (hostId == null || (rtt <= 0 && throughput <= 0)) {
+            return;
+        }
+        load();
+        PartnerStats stats = new PartnerStats();
+        PartnerStats old = partners.putIfAbsent(hostId, stats);
+        if (old != null) {
+            stats = old;
+        }
+        boolean changed = false;
+        synchronized (stats) {
+            if (rtt > 0) {
+                stats.rtt = stats.rtt == 0 ? rtt : (stats.rtt * 3 + rtt) / 4;
+                stats.minRtt = stats.minRtt == 0 ? rtt : Math.min(stats.minRtt, rtt);
+            }
+            if (throughput > 0) {
+                stats.throughput = stats.throughput == 0 ? throughput : (stats.throughput * 3 + throughput) / 4;
+            }
+            if (stats.minRtt > 0 && stats.throughput > 0) {
+                int window = Configuration.configuration.getSenderWindow();
+                if (window < 1) {
+                    window = 1;
+                }
+                int blocksize = computeBlockSize(stats.throughput * stats.minRtt / 1000, window);
+                if (used > 0 && rtt > 0 && throughput > 0
+                        && rtt * 100 <= stats.minRtt * FLAT_RTT_PERCENT
+                        && throughput * rtt / 1000 * 100 >= (long) used * window
+                                * WINDOW_LIMITED_PERCENT) {
+                    // window limited while no queue builds up: probe a larger block size
+                    blocksize = Math.max(blocksize, computeBlockSize((long) used * 2 * window,
+                            window));
+                }
+                if (blocksize != stats.blocksize) {
+                    logger.info("Block size for " + hostId + " tuned from " + stats.blocksize + " to " + blocksize
+                            + " (RTT: " + stats.rtt + " ms, min " + stats.minRtt + " ms, Throughput: "
+                            + stats.throughput + " B/s)");
+                    stats.blocksize = blocksize;
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     *
+     * @param bdp
+     *            the bandwidth delay product in bytes
+     * @param window
+     *            the number of blocks in flight
+     * @return the block size such that the window covers the bandwidth delay product, as a power of
+     *         2 within the configured bounds
+     */
+    public static int computeBlockSize(long bdp, int window) {
+        int min = Configuration.configuration.getBlockSizeMin();
+        int max = Configuration.configuration.getBlockSizeMax();
+        long target = bdp / (window < 1 ? 1 : window);
+        long blocksize = Integer.highestOneBit(min);
+        while (blocksize < target && blocksize < max) {
+            blocksize <<= 1;
+        }
+        if (blocksize < min) {
+            blocksize = min;
+        }
+        if (blocksize > max) {
+            blocksize = max;
+        }
+        return (int) blocksize;
+    }
+
+    private static File getFile() {
+        String path = Configuration.configuration.getConfigPath();
+        if (path == null) {
+            return null;
+        }
+        return new File(path, BLOCKSIZE_FILENAME);
+    }
+
+    /**
+     * Load once the previously tuned values
+     */
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (partners) {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            File file = getFile();
+            if (file == null || !file.canRead()) {
+                return;
+            }
+            try {
+                ObjectNode root = JsonHandler.getFromString(FileUtils.readFileToString(file, "UTF-8"));
+                if (root == null) {
+                    return;
+                }
+                Iterator<Entry<String, JsonNode>> iterator = root.fields();
+                while (iterator.hasNext()) {
+                    Entry<String, JsonNode> entry = iterator.next();
+                    PartnerStats stats = new PartnerStats();
+                    stats.rtt = entry.getValue().path(JSON_RTT).asLong();
+                    stats.minRtt = entry.getValue().path(JSON_MINRTT).asLong(stats.rtt);
+                    stats.throughput = entry.getValue().path(JSON_THROUGHPUT).asLong();
+                    stats.blocksize = entry.getValue().path(JSON_BLOCKSIZE).asInt();
+                    partners.putIfAbsent(entry.getKey(), stats);
+                }
+                logger.debug("Tuned block sizes loaded for {} partners", partners.size());
+            } catch (IOException e) {
+                logger.warn("Cannot read tuned block sizes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Save the tuned values
+     */
+    private static void save() {
+        File file = getFile();
+        if (file == null) {
+            return;
+        }
+        ObjectNode root = toJson();
+        synchronized (partners) {
+            try {
+                FileUtils.writeStringToFile(file, JsonHandler.writeAsString(root), "UTF-8");
+            } catch (IOException e) {
+                logger.warn("Cannot save tuned block sizes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the current tuned values as Json
+     */
+    public static ObjectNode toJson() {
+        load();
+        ObjectNode root = JsonHandler.createObjectNode();
+        for (Entry<String, PartnerStats> entry : partners.entrySet()) {
+            PartnerStats stats = entry.getValue();
+            ObjectNode node = root.putObject(entry.getKey());
+            synchronized (stats) {
+                node.put(JSON_RTT, stats.rtt);
+                node.put(JSON_MINRTT, stats.minRtt);
+                node.put(JSON_THROUGHPUT, stats.throughput);
+                node.put(JSON_BLOCKSIZE, stats.blocksize);
+            }
+        }
+        return root;
+    }
+}
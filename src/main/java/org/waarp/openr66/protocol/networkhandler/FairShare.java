@@ -0,0 +1,92 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler;
+
+import org.waarp.openr66.protocol.utils.TransferPriority;
+
+/**
+ * Share of one transfer in the weighted fair queuing of the writes on its network channel (see
+ * NetworkChannelReference.waitForWritability).<br>
+ * <br>
+ * Each time the transfer waits for writability, its turn is tagged QUANTUM / weight after its
+ * previous one (or after the current virtual time if idle since), such that while the channel is
+ * saturated, transfers get turns in proportion of their weight.
+ *
+ * @author Frederic Bregier
+ */
+public class FairShare {
+    /**
+     * Virtual time of one turn for weight 1 (divisible by all weights)
+     */
+    static final long QUANTUM = 2520;
+
+    private final int weight;
+
+    /**
+     * Tag of the last turn (guarded by the waiters of the network channel)
+     */
+    long lastTag = 0;
+
+    /**
+     * Bytes written by the transfer in one turn
+     */
+    private volatile int turnBytes = 0;
+
+    /**
+     * @param priority
+     *            the priority of the transfer
+     */
+    public FairShare(int priority) {
+        this.weight = TransferPriority.getWeight(priority);
+    }
+
+    /**
+     * @return the weight of this share (from 1 to TransferPriority.MAX_WEIGHT)
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the bytes written by the transfer in one turn, charged against the room of the write
+     *         buffer before the next waiter is released
+     */
+    public int getTurnBytes() {
+        return turnBytes;
+    }
+
+    /**
+     * @param turnBytes
+     *            the bytes written by the transfer in one turn
+     */
+    public void setTurnBytes(int turnBytes) {
+        this.turnBytes = turnBytes;
+    }
+
+    /**
+     * @return the virtual duration of one turn of this share
+     */
+    long getQuantum() {
+        return QUANTUM / weight;
+    }
+
+    @Override
+    public String toString() {
+        return "FairShare: " + weight;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.waarp.common.future.WaarpLock;
+
+/**
+ * Striped locks on remote addresses.<br>
+ * <br>
+ * A fixed number of stripes (power of 2) is used, each lock being created lazily by a CAS on
+ * first use, so that getting the lock of an address never takes a global lock and never allocates
+ * once the stripe exists. Two addresses may share the same stripe: this only serializes their
+ * connection setups, the registries themselves being keyed by the real address. Since stripes are
+ * never removed, a lock is always the same for a given address, without any eviction to handle.
+ *
+ * @author Frederic Bregier
+ */
+public class NetworkChannelLocks {
+    /**
+     * Default number of stripes
+     */
+    public static final int DEFAULT_STRIPES = 1024;
+
+    private final AtomicReferenceArray<WaarpLock> locks;
+
+    private final int mask;
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    /**
+     * @param stripes
+     *            the number of stripes (rounded up to a power of 2)
+     */
+    public NetworkChannelLocks(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        locks = new AtomicReferenceArray<WaarpLock>(size);
+        mask = size - 1;
+    }
+
+    /**
+     *
+     * @param address
+     *            the remote address (not null)
+     * @return the lock associated with this address
+     */
+    public WaarpLock getLock(SocketAddress address) {
+        int index = index(address.hashCode());
+        WaarpLock lock = locks.get(index);
+        if (lock != null) {
+            return lock;
+        }
+        WaarpLock newLock = new WaarpLock(true);
+        if (locks.compareAndSet(index, null, newLock)) {
+            created.incrementAndGet();
+            return newLock;
+        }
+        return locks.get(index);
+    }
+
+    /**
+     * Spread the hash code such that close addresses (same host, following ports) use different
+     * stripes
+     *
+     * @param hash
+     * @return the index of the stripe
+     */
+    private int index(int hash) {
+        int h = hash * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    /**
+     *
+     * @return the number of stripes
+     */
+    public int getStripes() {
+        return mask + 1;
+    }
+
+    /**
+     *
+     * @return the number of locks created so far
+     */
+    public int size() {
+        return created.get();
+    }
+}
@@ -20,6 +20,8 @@ package org.waarp.openr66.protocol.networkhandler;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.netty.channel.Channel;
 import io.netty.channel.group.ChannelGroup;
@@ -77,6 +79,19 @@ public class NetworkChannelReference {
      * Remote Host Id
      */
     private String hostId;
+    /**
+     * True once a local channel is authenticated by the remote host through this channel
+     */
+    private volatile boolean authenticated = false;
+    /**
+     * Packets following a pipelined authentication, using the RemoteId of the partner
+     */
+    private final ConcurrentHashMap<Integer, PipelinedStartup> pipelinedStartups =
+            new ConcurrentHashMap<Integer, PipelinedStartup>();
+    /**
+     * Number of pipelined startups whose waiting packets are full: reading is suspended until none
+     */
+    private int suspendedReads = 0;
     /**
      * ClientNetworkChannels object that contains this NetworkChannelReference
      */
@@ -85,10 +100,26 @@ public class NetworkChannelReference {
      * Associated lock
      */
     protected final WaarpLock lock;
+    /**
+     * Tasks waiting for the network channel to be writable again
+     */
+    private final PriorityQueue<WritabilityWaiter> writabilityWaiters = new PriorityQueue<WritabilityWaiter>();
+    /**
+     * Virtual time of the weighted fair queuing (tag of the last task run)
+     */
+    private long virtualTime = 0;
+    /**
+     * Order of registration of the waiting tasks, between tasks of the same tag
+     */
+    private long waiterSequence = 0;
     /**
      * Last Time in ms this channel was used by a LocalChannel
      */
     private long lastTimeUsed = System.currentTimeMillis();
+    /**
+     * Smoothed round trip time in ms with the remote host (0 if not yet measured)
+     */
+    private volatile long rtt = 0;
 
     public NetworkChannelReference(Channel networkChannel, WaarpLock lock) {
         this.channel = networkChannel;
@@ -117,6 +148,121 @@ public class NetworkChannelReference {
         localChannels.add(localChannel.getLocalChannel());
     }
 
+    /**
+     * Register a task to be run once the network channel is writable again (immediately if already
+     * writable), without any share (such task is run before the ones of the transfers). The task
+     * must not block.
+     * 
+     * @param task
+     */
+    public void waitForWritability(Runnable task) {
+        waitForWritability(task, null);
+    }
+
+    /**
+     * Register a task to be run once the network channel is writable again (immediately if already
+     * writable). The task must not block.<br>
+     * <br>
+     * Tasks are run by weighted fair queuing, as long as the channel stays writable: each task is
+     * tagged one turn of its share after the previous turn of this share, and the lowest tag runs
+     * first. So a local channel filling the write buffer again gets its next turn after the other
+     * local channels multiplexed on this network channel, more often if its weight is higher.
+     * 
+     * @param task
+     * @param share
+     *            the share of the transfer (null to run before the transfers)
+     */
+    public void waitForWritability(Runnable task, FairShare share) {
+        enqueue(task, share);
+        if (isWritable()) {
+            notifyWritability();
+        }
+    }
+
+    private void enqueue(Runnable task, FairShare share) {
+        synchronized (writabilityWaiters) {
+            long tag = virtualTime;
+            if (share != null) {
+                tag = Math.max(virtualTime, share.lastTag) + share.getQuantum();
+                share.lastTag = tag;
+            }
+            writabilityWaiters.add(new WritabilityWaiter(task, tag, waiterSequence++,
+                    share == null ? 0 : share.getTurnBytes()));
+        }
+    }
+
+    /**
+     * Run the tasks waiting for writability, lowest tag first, while the write buffer has room.<br>
+     * <br>
+     * A task only writes once run by its executor, so the write buffer does not fill up while the
+     * waiters are released: each released task is charged the bytes of its turn (see
+     * FairShare.getTurnBytes) against the room left before the channel becomes not writable, and
+     * the next ones are kept waiting once this room is used (at least one is released at each
+     * call). They are released at the next writability change, or when a released transfer waits
+     * again or ends its sending.
+     */
+    public void notifyWritability() {
+        if (!isWritable()) {
+            return;
+        }
+        long room = Long.MAX_VALUE;
+        if (channel != null && channel.isActive()) {
+            room = channel.bytesBeforeUnwritable();
+        }
+        boolean first = true;
+        for (;;) {
+            WritabilityWaiter waiter;
+            synchronized (writabilityWaiters) {
+                waiter = writabilityWaiters.peek();
+                if (waiter == null || (!first && waiter.charge > room)) {
+                    return;
+                }
+                writabilityWaiters.poll();
+                room -= waiter.charge;
+                virtualTime = Math.max(virtualTime, waiter.tag);
+            }
+            first = false;
+            waiter.task.run();
+        }
+    }
+
+    /**
+     * Task waiting for writability with its tag of weighted fair queuing
+     */
+    private static class WritabilityWaiter implements Comparable<WritabilityWaiter> {
+        private final Runnable task;
+        private final long tag;
+        private final long sequence;
+        /**
+         * Bytes to be written in this turn
+         */
+        private final long charge;
+
+        private WritabilityWaiter(Runnable task, long tag, long sequence, long charge) {
+            this.task = task;
+            this.tag = tag;
+            this.sequence = sequence;
+            this.charge = charge;
+        }
+
+        @Override
+        public int compareTo(WritabilityWaiter o) {
+            if (tag != o.tag) {
+                return tag < o.tag ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 
+     * @return True if the network channel could be written (writable, or closed such that writes
+     *         fail immediately instead of being buffered)
+     */
+    private boolean isWritable() {
+        return channel == null || channel.isWritable() || !channel.isActive();
+    }
+
     /**
      * To set the last time used
      */
@@ -149,6 +295,10 @@ public class NetworkChannelReference {
             localChannel.getLocalChannel().close();
         }
         localChannelReferences.remove(localChannel);
+        PipelinedStartup pipelinedStartup = pipelinedStartups.get(localChannel.getRemoteId());
+        if (pipelinedStartup != null && pipelinedStartup.getLocalChannelReference() == localChannel) {
+            pipelinedStartups.remove(localChannel.getRemoteId(), pipelinedStartup);
+        }
         //Do not since it prevents shutdown: lastTimeUsed = System.currentTimeMillis();
     }
 
@@ -238,6 +388,23 @@ public class NetworkChannelReference {
         return this.hostAddress.hashCode();
     }
 
+    /**
+     * 
+     * @return the global remote network address
+     */
+    public SocketAddress getNetworkAddress() {
+        return this.networkAddress;
+    }
+
+    /**
+     * Used for BlackList
+     * 
+     * @return the remote IP address
+     */
+    public String getHostAddress() {
+        return this.hostAddress;
+    }
+
     /**
      * Check if the last time used is ok with a delay applied to the current time (timeout)
      * 
@@ -277,6 +444,71 @@ public class NetworkChannelReference {
         this.hostId = hostId;
     }
 
+    /**
+     * @return True once a local channel is authenticated by the remote host through this channel
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * @param authenticated
+     *            the authenticated status to set
+     */
+    public void setAuthenticated(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
+
+    /**
+     * A partner's local channel starts with an authentication: following packets without LocalId
+     * will wait for the LocalChannelReference created from it
+     * 
+     * @param remoteId
+     * @return the new PipelinedStartup
+     */
+    public PipelinedStartup newPipelinedStartup(Integer remoteId) {
+        PipelinedStartup pipelinedStartup = new PipelinedStartup(remoteId, this);
+        pipelinedStartups.put(remoteId, pipelinedStartup);
+        return pipelinedStartup;
+    }
+
+    /**
+     * 
+     * @param remoteId
+     * @return the PipelinedStartup associated with this RemoteId, or null
+     */
+    public PipelinedStartup getPipelinedStartup(Integer remoteId) {
+        return pipelinedStartups.get(remoteId);
+    }
+
+    /**
+     * 
+     * @param pipelinedStartup
+     *            the PipelinedStartup to remove (failed)
+     */
+    public void removePipelinedStartup(PipelinedStartup pipelinedStartup) {
+        pipelinedStartup.fail();
+        pipelinedStartups.remove(pipelinedStartup.getRemoteId(), pipelinedStartup);
+    }
+
+    /**
+     * Stop reading from the network channel until resumed, as many times as suspended
+     */
+    synchronized void suspendReading() {
+        if (suspendedReads++ == 0) {
+            channel.config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Resume reading from the network channel once no more suspended
+     */
+    synchronized void resumeReading() {
+        if (suspendedReads > 0 && --suspendedReads == 0) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
     /**
      * @return the lock
      */
@@ -291,4 +523,25 @@ public class NetworkChannelReference {
         return lastTimeUsed;
     }
 
+    /**
+     * Add one round trip time measure (smoothed as in TCP)
+     * 
+     * @param measure
+     *            the round trip time measured in ms
+     */
+    public void updateRtt(long measure) {
+        if (measure <= 0) {
+            measure = 1;
+        }
+        long old = rtt;
+        rtt = old == 0 ? measure : (old * 7 + measure) / 8;
+    }
+
+    /**
+     * @return the smoothed round trip time in ms with the remote host (0 if not yet measured)
+     */
+    public long getRtt() {
+        return rtt;
+    }
+
 }
@@ -42,6 +42,7 @@ import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolRemoteShutdownException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolSystemException;
 import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+import org.waarp.openr66.protocol.localhandler.LocalTransaction;
 import org.waarp.openr66.protocol.localhandler.packet.AbstractLocalPacket;
 import org.waarp.openr66.protocol.localhandler.packet.ConnectionErrorPacket;
 import org.waarp.openr66.protocol.localhandler.packet.KeepAlivePacket;
@@ -89,6 +90,10 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
      * To handle the keep alive
      */
     private volatile int keepAlivedSent = 0;
+    /**
+     * Time (ns) when the last KeepAlive was sent, to measure the round trip time
+     */
+    private volatile long keepAliveSentTime = 0;
     /**
      * Is this network connection being refused (black listed)
      */
@@ -105,6 +110,8 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         if (networkChannelReference != null) {
+            // wake up senders waiting for writability, they will see the channel is closed
+            networkChannelReference.notifyWritability();
             if (networkChannelReference.nbLocalChannels() > 0) {
                 logger.info("Network Channel Closed: {} LocalChannels Left: {}",
                         ctx.channel().id(),
@@ -174,6 +181,14 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
         logger.debug("Network Channel Connected: {} ", ctx.channel().id());
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable() && networkChannelReference != null) {
+            networkChannelReference.notifyWritability();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
         if (Configuration.configuration.isShutdown())
@@ -205,6 +220,7 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
                         new NetworkPacket(ChannelUtils.NOCHANNEL,
                                 ChannelUtils.NOCHANNEL, keepAlivePacket, null);
                 logger.info("Write KAlive");
+                keepAliveSentTime = System.nanoTime();
                 ctx.channel().writeAndFlush(response);
             }
         }
@@ -268,6 +284,11 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
                     ctx.channel().writeAndFlush(response);
                 } else {
                     logger.info("Get KAlive");
+                    long sent = keepAliveSentTime;
+                    if (sent != 0 && networkChannelReference != null) {
+                        keepAliveSentTime = 0;
+                        networkChannelReference.updateRtt((System.nanoTime() - sent) / 1000000);
+                    }
                 }
             } catch (OpenR66ProtocolPacketException e1) {
             }
@@ -278,6 +299,19 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
         this.networkChannelReference.use();
         LocalChannelReference localChannelReference = null;
         if (packet.getLocalId() == ChannelUtils.NOCHANNEL) {
+            if (Configuration.configuration.isPipelineHandshake()) {
+                if (packet.getCode() == LocalPacketFactory.AUTHENTPACKET) {
+                    // following packets could be sent before the answer (pipelined handshake)
+                    this.networkChannelReference.newPipelinedStartup(packet.getRemoteId());
+                } else {
+                    PipelinedStartup pipelinedStartup =
+                            this.networkChannelReference.getPipelinedStartup(packet.getRemoteId());
+                    if (pipelinedStartup != null && pipelinedStartup.offer(packet)) {
+                        packet.clear();
+                        return;
+                    }
+                }
+            }
             logger.debug("NetworkRecv Create: {} {}", packet,
                     channel.id());
             NetworkTransaction.createConnectionFromNetworkChannelStartup(
@@ -323,11 +357,11 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
                 }
                 // OK continue and send to the local channel
             } else {
-                try {
-                    localChannelReference = Configuration.configuration
-                            .getLocalTransaction().getClient(packet.getRemoteId(),
-                                    packet.getLocalId());
-                } catch (OpenR66ProtocolSystemException e1) {
+                LocalTransaction localTransaction = Configuration.configuration.getLocalTransaction();
+                localChannelReference = localTransaction.getClientNoWait(packet.getRemoteId(),
+                        packet.getLocalId());
+                if (localChannelReference == null || localTransaction.hasMailbox(packet.getLocalId())) {
+                    // not yet registered or previous packets still waiting: keep order
                     if (remoteAddress == null) {
                         remoteAddress = channel.remoteAddress();
                     }
@@ -338,13 +372,8 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
                         return;
                     }
                     // try to send later
-                    Configuration.configuration.getLocalTransaction()
-                        .sendLaterToClient(channel, packet.getRemoteId(), packet.getLocalId(), packet);
-                    /*logger.debug("Cannot get LocalChannel: " + packet + " due to " +
-                            e1.getMessage());
-                    final ConnectionErrorPacket error = new ConnectionErrorPacket(
-                            "Cannot get localChannel since localId is not found anymore", "" + packet.getLocalId());
-                    writeError(channel, packet.getRemoteId(), packet.getLocalId(), error);*/
+                    localTransaction.sendLaterToClient(channel, ctx.executor(), packet.getRemoteId(),
+                            packet.getLocalId(), packet);
                     packet.clear();
                     return;
                 }
@@ -360,7 +389,16 @@ public class NetworkServerHandler extends SimpleChannelInboundHandler<NetworkPac
             return;
         }
         ByteBuf buf = packet.getBuffer();
-        localChannelReference.getLocalChannel().writeAndFlush(buf);
+        if (localChannelReference.isDirectDispatch()) {
+            try {
+                localChannelReference.dispatchDirect(buf);
+            } catch (OpenR66ProtocolPacketException e) {
+                logger.error("Cannot decode packet for direct dispatch: " + packet + " due to "
+                        + e.getMessage());
+            }
+        } else {
+            localChannelReference.getLocalChannel().writeAndFlush(buf);
+        }
     }
 
     @Override
@@ -27,13 +27,13 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelId;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipelineException;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
@@ -48,7 +48,6 @@ import org.waarp.common.digest.FilesystemBasedDigest;
 import org.waarp.common.future.WaarpLock;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
-import org.waarp.common.lru.SynchronizedLruCache;
 import org.waarp.common.utility.WaarpNettyUtil;
 import org.waarp.common.utility.WaarpThreadFactory;
 import org.waarp.openr66.context.ErrorCode;
@@ -57,6 +56,7 @@ import org.waarp.openr66.context.R66Session;
 import org.waarp.openr66.context.task.exception.OpenR66RunnerErrorException;
 import org.waarp.openr66.database.data.DbHostAuth;
 import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
 import org.waarp.openr66.protocol.exception.OpenR66Exception;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNetworkException;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolNoConnectionException;
@@ -69,9 +69,11 @@ import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
 import org.waarp.openr66.protocol.localhandler.RetrieveRunner;
 import org.waarp.openr66.protocol.localhandler.packet.AuthentPacket;
 import org.waarp.openr66.protocol.localhandler.packet.ConnectionErrorPacket;
+import org.waarp.openr66.protocol.localhandler.packet.LocalPacketFactory;
 import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacket;
 import org.waarp.openr66.protocol.networkhandler.ssl.NetworkSslServerHandler;
 import org.waarp.openr66.protocol.networkhandler.ssl.NetworkSslServerInitializer;
+import org.waarp.openr66.protocol.networkhandler.ssl.SslSessionCache;
 import org.waarp.openr66.protocol.utils.ChannelUtils;
 import org.waarp.openr66.protocol.utils.R66Future;
 import org.waarp.openr66.protocol.utils.R66ShutdownHook;
@@ -92,30 +94,26 @@ public class NetworkTransaction {
      */
     private static final WaarpLock emptyLock = new WaarpLock();
     /**
-     * Lock for Lock management operations
+     * Striped locks based on remote address (no global lock)
      */
-    private static final ReentrantLock lockOfLock = new ReentrantLock();
+    private static final NetworkChannelLocks socketLocks =
+            new NetworkChannelLocks(NetworkChannelLocks.DEFAULT_STRIPES);
     /**
-     * Hashmap for lock based on remote address
+     * Hashmap for Currently Shutdown remote host based on socketAddress
      */
-    private static final SynchronizedLruCache<Integer, WaarpLock> reentrantLockOnSocketAddressConcurrentHashMap =
-            new SynchronizedLruCache<Integer, WaarpLock>(20000, 180000);
+    private static final ConcurrentHashMap<SocketAddress, NetworkChannelReference> networkChannelShutdownOnSocketAddressConcurrentHashMap =
+            new ConcurrentHashMap<SocketAddress, NetworkChannelReference>();
     /**
-     * Hashmap for Currently Shutdown remote host based on socketAddress.hashCode()
+     * Hashmap for Currently blacklisted remote host based on IP address
      */
-    private static final ConcurrentHashMap<Integer, NetworkChannelReference> networkChannelShutdownOnSocketAddressConcurrentHashMap =
-            new ConcurrentHashMap<Integer, NetworkChannelReference>();
-    /**
-     * Hashmap for Currently blacklisted remote host based on IP address(String).hashCode()
-     */
-    private static final ConcurrentHashMap<Integer, NetworkChannelReference> networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap =
-            new ConcurrentHashMap<Integer, NetworkChannelReference>();
+    private static final ConcurrentHashMap<String, NetworkChannelReference> networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap =
+            new ConcurrentHashMap<String, NetworkChannelReference>();
 
     /**
-     * Hashmap for currently active remote host based on socketAddress.hashCode()
+     * Hashmap for currently active remote host based on socketAddress
      */
-    private static final ConcurrentHashMap<Integer, NetworkChannelReference> networkChannelOnSocketAddressConcurrentHashMap =
-            new ConcurrentHashMap<Integer, NetworkChannelReference>();
+    private static final ConcurrentHashMap<SocketAddress, NetworkChannelReference> networkChannelOnSocketAddressConcurrentHashMap =
+            new ConcurrentHashMap<SocketAddress, NetworkChannelReference>();
     /**
      * Remote Client NetworkChannels: used to centralize remote requester hosts (possible different address used)
      */
@@ -128,14 +126,42 @@ public class NetworkTransaction {
             new ConcurrentHashMap<Integer, RetrieveRunner>();
 
     /**
-     * ExecutorService for RetrieveOperation
+     * ExecutorService for RetrieveOperation: small fixed pool shared by all asynchronous senders
      */
     private static final ExecutorService retrieveExecutor = Executors
-            .newCachedThreadPool(new WaarpThreadFactory("RetrieveExecutor"));
+            .newFixedThreadPool(Configuration.configuration.getSenderThreads(),
+                    new WaarpThreadFactory("RetrieveExecutor"));
+
+    /**
+     * ExecutorService for disk writes of received blocks: small fixed pool shared by all write behind writers
+     */
+    private static final ExecutorService writeBehindExecutor = Executors
+            .newFixedThreadPool(Configuration.configuration.getWriteBehindThreads(),
+                    new WaarpThreadFactory("WriteBehindExecutor"));
+
+    /**
+     * ExecutorService for sub streams of multiple streams transfers: small fixed pool shared by all
+     * asynchronous sub stream senders (attach, read of the blocks and final digest)
+     */
+    private static final ExecutorService multiStreamExecutor = Executors
+            .newFixedThreadPool(Math.max(Configuration.configuration.getSenderThreads(),
+                    Configuration.configuration.getMultiStreams()),
+                    new WaarpThreadFactory("MultiStreamSender"));
+
+    /**
+     * ExecutorService for global digests of sent files: small fixed pool shared by all hashing stages
+     */
+    private static final ExecutorService hashingExecutor = Executors
+            .newFixedThreadPool(Configuration.configuration.getSenderThreads(),
+                    new WaarpThreadFactory("HashingExecutor"));
 
     private final Bootstrap clientBootstrap;
     private final Bootstrap clientSslBootstrap;
     private final ChannelGroup networkChannelGroup;
+    /**
+     * Warm connections to hot partners (null if not enabled)
+     */
+    private final WarmConnectionPool warmPool;
 
     public NetworkTransaction() {
         networkChannelGroup = new DefaultChannelGroup("NetworkChannels", Configuration.configuration.getSubTaskGroup()
@@ -144,12 +170,16 @@ public class NetworkTransaction {
         clientBootstrap = new Bootstrap();
         WaarpNettyUtil.setBootstrap(clientBootstrap, Configuration.configuration.getNetworkWorkerGroup(),
                 (int) Configuration.configuration.getTIMEOUTCON());
+        clientBootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                Configuration.configuration.getWriteBufferWaterMark());
         clientBootstrap.handler(networkServerInitializer);
         clientSslBootstrap = new Bootstrap();
         if (Configuration.configuration.isUseSSL() && Configuration.configuration.getHOST_SSLID() != null) {
             NetworkSslServerInitializer networkSslServerInitializer = new NetworkSslServerInitializer(true);
             WaarpNettyUtil.setBootstrap(clientSslBootstrap, Configuration.configuration.getNetworkWorkerGroup(),
                     (int) Configuration.configuration.getTIMEOUTCON());
+            clientSslBootstrap.option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                    Configuration.configuration.getWriteBufferWaterMark());
             clientSslBootstrap.handler(networkSslServerInitializer);
         } else {
             if (Configuration.configuration.isWarnOnStartup()) {
@@ -158,6 +188,14 @@ public class NetworkTransaction {
                 logger.info("No SSL support configured");
             }
         }
+        if (Configuration.configuration.getWarmPoolPartners() > 0
+                || !Configuration.configuration.getWarmPoolHosts().isEmpty()) {
+            warmPool = new WarmConnectionPool(this, Configuration.configuration.getWarmPoolPartners(),
+                    Configuration.configuration.getWarmPoolIdle());
+            warmPool.start();
+        } else {
+            warmPool = null;
+        }
     }
 
     public static String hashStatus() {
@@ -176,109 +214,117 @@ public class NetworkTransaction {
             nb += ncr.nbLocalChannels();
         }
         partial += "\n NetworkChannels: " + networkChannelOnSocketAddressConcurrentHashMap.size() +
-                " LockOnSocketAddress: " + reentrantLockOnSocketAddressConcurrentHashMap.size() +
-                " Sum of NetworkChannels LocalClients: " + nb + "] ";
+                " LockOnSocketAddress: " + socketLocks.size() + "/" + socketLocks.getStripes() +
+                " Sum of NetworkChannels LocalClients: " + nb +
+                "\n WarmConnections Hits: " + WarmConnectionPool.getHits() +
+                " Misses: " + WarmConnectionPool.getMisses() +
+                " Warmed: " + WarmConnectionPool.getWarmed() +
+                " Evicted: " + WarmConnectionPool.getEvicted() + "] ";
         return partial;
     }
 
-    private static final WaarpLock getLockNCR(SocketAddress sa) {
-        return reentrantLockOnSocketAddressConcurrentHashMap.get(sa.hashCode());
-    }
-
-    private static final void addLockNCR(SocketAddress sa, WaarpLock lock) {
-        reentrantLockOnSocketAddressConcurrentHashMap.put(sa.hashCode(), lock);
-    }
-
     private static final void addNCR(NetworkChannelReference ncr) {
-        networkChannelOnSocketAddressConcurrentHashMap.put(ncr.getSocketHashCode(), ncr);
+        networkChannelOnSocketAddressConcurrentHashMap.put(ncr.getNetworkAddress(), ncr);
     }
 
-    private static final NetworkChannelReference removeNCR(NetworkChannelReference ncr) {
-        return networkChannelOnSocketAddressConcurrentHashMap.remove(ncr.getSocketHashCode());
+    private static final boolean removeNCR(NetworkChannelReference ncr) {
+        // only this one, not a newer connection to the same address
+        return networkChannelOnSocketAddressConcurrentHashMap.remove(ncr.getNetworkAddress(), ncr);
     }
 
     private static final NetworkChannelReference getNCR(SocketAddress sa) {
-        return networkChannelOnSocketAddressConcurrentHashMap.get(sa.hashCode());
+        return networkChannelOnSocketAddressConcurrentHashMap.get(sa);
     }
 
     private static final boolean containsNCR(SocketAddress address) {
-        return networkChannelOnSocketAddressConcurrentHashMap.containsKey(address.hashCode());
+        return networkChannelOnSocketAddressConcurrentHashMap.containsKey(address);
     }
 
     private static final void addShutdownNCR(NetworkChannelReference ncr) {
-        networkChannelShutdownOnSocketAddressConcurrentHashMap.put(ncr.getSocketHashCode(), ncr);
+        networkChannelShutdownOnSocketAddressConcurrentHashMap.put(ncr.getNetworkAddress(), ncr);
     }
 
-    private static final NetworkChannelReference removeShutdownNCR(NetworkChannelReference ncr) {
-        return networkChannelShutdownOnSocketAddressConcurrentHashMap.remove(ncr.getSocketHashCode());
+    /**
+     * Remove this reference only, not a newer one registered since under the same address
+     */
+    private static final boolean removeShutdownNCR(NetworkChannelReference ncr) {
+        return networkChannelShutdownOnSocketAddressConcurrentHashMap.remove(ncr.getNetworkAddress(), ncr);
     }
 
     private static final boolean containsShutdownNCR(NetworkChannelReference ncr) {
-        return networkChannelShutdownOnSocketAddressConcurrentHashMap.containsKey(ncr.getSocketHashCode());
+        return networkChannelShutdownOnSocketAddressConcurrentHashMap.containsKey(ncr.getNetworkAddress());
     }
 
     private static final boolean containsShutdownNCR(SocketAddress sa) {
-        return networkChannelShutdownOnSocketAddressConcurrentHashMap.containsKey(sa.hashCode());
+        return networkChannelShutdownOnSocketAddressConcurrentHashMap.containsKey(sa);
     }
 
     private static final NetworkChannelReference getShutdownNCR(SocketAddress sa) {
-        return networkChannelShutdownOnSocketAddressConcurrentHashMap.get(sa.hashCode());
+        return networkChannelShutdownOnSocketAddressConcurrentHashMap.get(sa);
     }
 
     private static final void addBlacklistNCR(NetworkChannelReference ncr) {
-        networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.put(ncr.getAddressHashCode(), ncr);
+        networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.put(ncr.getHostAddress(), ncr);
     }
 
-    private static final NetworkChannelReference removeBlacklistNCR(NetworkChannelReference ncr) {
-        return networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.remove(ncr.getAddressHashCode());
+    private static final boolean removeBlacklistNCR(NetworkChannelReference ncr) {
+        return networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.remove(ncr.getHostAddress(), ncr);
     }
 
     private static final boolean containsBlacklistNCR(NetworkChannelReference ncr) {
-        return networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.containsKey(ncr.getAddressHashCode());
+        return networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.containsKey(ncr.getHostAddress());
     }
 
     private static final boolean containsBlacklistNCR(SocketAddress address) {
-        return networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.containsKey(address.hashCode());
+        String hostAddress = getHostAddress(address);
+        return hostAddress != null &&
+                networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.containsKey(hostAddress);
     }
 
     private static final NetworkChannelReference getBlacklistNCR(SocketAddress sa) {
+        String hostAddress = getHostAddress(sa);
+        if (hostAddress == null) {
+            return null;
+        }
+        return networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.get(hostAddress);
+    }
+
+    /**
+     * 
+     * @param sa
+     * @return the IP address of this socket address, or null if none
+     */
+    private static final String getHostAddress(SocketAddress sa) {
+        if (!(sa instanceof InetSocketAddress)) {
+            return null;
+        }
         InetAddress address = ((InetSocketAddress) sa).getAddress();
         if (address == null) {
             return null;
         }
-
-        return networkChannelBlacklistedOnInetSocketAddressConcurrentHashMap.get(
-                address.getHostAddress().hashCode()
-        );
+        return address.getHostAddress();
     }
 
     private static final WaarpLock getChannelLock(SocketAddress socketAddress) {
-        lockOfLock.lock();
-        try {
-            if (socketAddress == null) {
-                // should not
-                logger.info("SocketAddress empty here !");
-                return emptyLock;
-            }
-            WaarpLock socketLock = getLockNCR(socketAddress);
-            if (socketLock == null) {
-                socketLock = new WaarpLock(true);
-            }
-            // update TTL
-            addLockNCR(socketAddress, socketLock);
-            return socketLock;
-        } finally {
-            lockOfLock.unlock();
+        if (socketAddress == null) {
+            // should not
+            logger.info("SocketAddress empty here !");
+            return emptyLock;
         }
+        return socketLocks.getLock(socketAddress);
     }
 
-    private static void removeChannelLock() {
-        lockOfLock.lock();
-        try {
-            reentrantLockOnSocketAddressConcurrentHashMap.forceClearOldest();
-        } finally {
-            lockOfLock.unlock();
-        }
+    /**
+     * Create a connection to the specified socketAddress with multiple retries
+     * 
+     * @param socketAddress
+     * @param isSSL
+     * @param futureRequest
+     * @return the LocalChannelReference
+     */
+    public LocalChannelReference createConnectionWithRetry(SocketAddress socketAddress,
+            boolean isSSL, R66Future futureRequest) {
+        return createConnectionWithRetry(socketAddress, isSSL, futureRequest, false);
     }
 
     /**
@@ -287,10 +333,15 @@ public class NetworkTransaction {
      * @param socketAddress
      * @param isSSL
      * @param futureRequest
+     * @param pipelined
+     *            True if the request could be sent without waiting for the answer to the
+     *            Authentication (if the partner supports it), in which case the caller must call
+     *            checkPipelinedConnection once the request is sent (see
+     *            LocalChannelReference.isPipelined())
      * @return the LocalChannelReference
      */
     public LocalChannelReference createConnectionWithRetry(SocketAddress socketAddress,
-            boolean isSSL, R66Future futureRequest) {
+            boolean isSSL, R66Future futureRequest, boolean pipelined) {
         LocalChannelReference localChannelReference = null;
         OpenR66Exception lastException = null;
         for (int i = 0; i < Configuration.RETRYNB; i++) {
@@ -300,7 +351,7 @@ public class NetworkTransaction {
             }
             try {
                 localChannelReference =
-                        createConnection(socketAddress, isSSL, futureRequest);
+                        createConnection(socketAddress, isSSL, futureRequest, pipelined);
                 break;
             } catch (OpenR66ProtocolRemoteShutdownException e1) {
                 lastException = e1;
@@ -335,13 +386,14 @@ public class NetworkTransaction {
      * @param socketAddress
      * @param isSSL
      * @param futureRequest
+     * @param pipelined
      * @return the LocalChannelReference
      * @throws OpenR66ProtocolNetworkException
      * @throws OpenR66ProtocolRemoteShutdownException
      * @throws OpenR66ProtocolNoConnectionException
      */
     private LocalChannelReference createConnection(SocketAddress socketAddress, boolean isSSL,
-            R66Future futureRequest)
+            R66Future futureRequest, boolean pipelined)
             throws OpenR66ProtocolNetworkException,
             OpenR66ProtocolRemoteShutdownException,
             OpenR66ProtocolNoConnectionException {
@@ -368,9 +420,11 @@ public class NetworkTransaction {
                         "Cannot connect to remote server due to local overload");
             }
         }
+        long startup = 0;
         try {
             networkChannelReference = createNewConnection(socketAddress, isSSL);
             try {
+                startup = System.nanoTime();
                 localChannelReference = Configuration.configuration
                         .getLocalTransaction().createNewClient(networkChannelReference,
                                 ChannelUtils.NOCHANNEL, futureRequest);
@@ -391,7 +445,22 @@ public class NetworkTransaction {
         }
         if (localChannelReference.getFutureValidateStartup().isDone() &&
                 localChannelReference.getFutureValidateStartup().isSuccess()) {
-            sendValidationConnection(localChannelReference);
+            if (networkChannelReference.getRtt() == 0) {
+                // first estimate from the Startup exchange until KeepAlive ones
+                networkChannelReference.updateRtt((System.nanoTime() - startup) / 1000000);
+            }
+            if (pipelined && isPipelineable(networkChannelReference)) {
+                // answer checked once the request is sent
+                localChannelReference.setPartner(networkChannelReference.getHostId());
+                localChannelReference.setPipelined(true);
+                sendAuthent(localChannelReference);
+            } else {
+                sendValidationConnection(localChannelReference);
+                networkChannelReference.setAuthenticated(true);
+            }
+            if (warmPool != null) {
+                warmPool.used(socketAddress, isSSL);
+            }
         } else {
             OpenR66ProtocolNetworkException exc =
                     new OpenR66ProtocolNetworkException("Startup is invalid");
@@ -429,9 +498,11 @@ public class NetworkTransaction {
             }
             if (networkChannelReference != null) {
                 networkChannelReference.use();
+                WarmConnectionPool.hit();
                 logger.info("Already Connected: {}", networkChannelReference);
                 return networkChannelReference;
             }
+            WarmConnectionPool.miss();
             logger.debug("NEW PHYSICAL CONNECTION REQUIRED");
             ChannelFuture channelFuture = null;
             for (int i = 0; i < Configuration.RETRYNB; i++) {
@@ -441,7 +512,10 @@ public class NetworkTransaction {
                 try {
                     if (isSSL) {
                         if (Configuration.configuration.getHOST_SSLID() != null) {
-                            channelFuture = clientSslBootstrap.connect(socketServerAddress);
+                            // partner known by the SSL engine for session resumption
+                            Bootstrap sslBootstrap = clientSslBootstrap.clone();
+                            sslBootstrap.attr(SslSessionCache.PARTNER, socketServerAddress);
+                            channelFuture = sslBootstrap.connect(socketServerAddress);
                         } else {
                             throw new OpenR66ProtocolNoConnectionException("No SSL support");
                         }
@@ -498,6 +572,49 @@ public class NetworkTransaction {
         }
     }
 
+    /**
+     * Open in background the network channel to this partner if not already opened, without any
+     * local channel (closed as usual once unused)
+     * 
+     * @param socketServerAddress
+     * @param isSSL
+     * @throws OpenR66ProtocolNetworkException
+     * @throws OpenR66ProtocolRemoteShutdownException
+     * @throws OpenR66ProtocolNoConnectionException
+     */
+    void openWarmConnection(SocketAddress socketServerAddress, boolean isSSL)
+            throws OpenR66ProtocolNetworkException,
+            OpenR66ProtocolRemoteShutdownException,
+            OpenR66ProtocolNoConnectionException {
+        NetworkChannelReference networkChannelReference = createNewConnection(socketServerAddress, isSSL);
+        checkClosingNetworkChannel(networkChannelReference, null);
+    }
+
+    /**
+     * Mark the network channel to this address as used if opened and valid
+     * 
+     * @param address
+     * @return True if the network channel is opened and valid
+     */
+    static boolean keepWarm(SocketAddress address) {
+        NetworkChannelReference networkChannelReference = getNCR(address);
+        if (networkChannelReference == null || networkChannelReference.isShuttingDown
+                || networkChannelReference.channel() == null
+                || !networkChannelReference.channel().isActive()) {
+            return false;
+        }
+        networkChannelReference.use();
+        return true;
+    }
+
+    /**
+     * 
+     * @return the warm connections to hot partners (null if not enabled)
+     */
+    public WarmConnectionPool getWarmPool() {
+        return warmPool;
+    }
+
     /**
      * Create the LocalChannelReference when a remote local channel starts its connection
      * 
@@ -527,6 +644,10 @@ public class NetworkTransaction {
         public void run() {
             setName("Connect_" + startupPacket.getRemoteId());
             Channel channel = networkChannelReference.channel();
+            PipelinedStartup pipelinedStartup = null;
+            if (startupPacket.getCode() == LocalPacketFactory.AUTHENTPACKET) {
+                pipelinedStartup = networkChannelReference.getPipelinedStartup(startupPacket.getRemoteId());
+            }
             LocalChannelReference lcr = null;
             try {
                 lcr = Configuration.configuration
@@ -540,11 +661,17 @@ public class NetworkTransaction {
                 NetworkServerHandler
                         .writeError(channel, startupPacket.getRemoteId(), startupPacket.getLocalId(), error);
                 NetworkTransaction.checkClosingNetworkChannel(this.networkChannelReference, null);
+                if (pipelinedStartup != null) {
+                    networkChannelReference.removePipelinedStartup(pipelinedStartup);
+                }
                 startupPacket.clear();
                 return;
             } catch (OpenR66ProtocolRemoteShutdownException e1) {
                 logger.info("Will Close Local from Network Channel");
                 WaarpSslUtility.closingSslChannel(channel);
+                if (pipelinedStartup != null) {
+                    networkChannelReference.removePipelinedStartup(pipelinedStartup);
+                }
                 startupPacket.clear();
                 return;
             } catch (OpenR66ProtocolNoConnectionException e1) {
@@ -555,11 +682,26 @@ public class NetworkTransaction {
                 NetworkServerHandler
                         .writeError(channel, startupPacket.getRemoteId(), startupPacket.getLocalId(), error);
                 NetworkTransaction.checkClosingNetworkChannel(this.networkChannelReference, null);
+                if (pipelinedStartup != null) {
+                    networkChannelReference.removePipelinedStartup(pipelinedStartup);
+                }
                 startupPacket.clear();
                 return;
             }
             ByteBuf buf = startupPacket.getBuffer();
-            lcr.getLocalChannel().writeAndFlush(buf);
+            if (pipelinedStartup != null) {
+                // authentication then packets received meanwhile, in order
+                pipelinedStartup.ready(lcr, buf);
+            } else if (lcr.isDirectDispatch()) {
+                try {
+                    lcr.dispatchDirect(buf);
+                } catch (OpenR66ProtocolPacketException e) {
+                    logger.error("Cannot decode first packet for: " + startupPacket + " due to "
+                            + e.getMessage());
+                }
+            } else {
+                lcr.getLocalChannel().writeAndFlush(buf);
+            }
         }
     }
 
@@ -574,6 +716,18 @@ public class NetworkTransaction {
             LocalChannelReference localChannelReference)
             throws OpenR66ProtocolNetworkException,
             OpenR66ProtocolRemoteShutdownException {
+        sendAuthent(localChannelReference);
+        waitValidationConnection(localChannelReference);
+    }
+
+    /**
+     * Send the Authentication, without waiting for its answer
+     * 
+     * @param localChannelReference
+     * @throws OpenR66ProtocolNetworkException
+     */
+    private void sendAuthent(LocalChannelReference localChannelReference)
+            throws OpenR66ProtocolNetworkException {
         AuthentPacket authent;
 
         try {
@@ -623,6 +777,16 @@ public class NetworkTransaction {
             localChannelReference.getLocalChannel().close();
             throw new OpenR66ProtocolNetworkException("Bad packet", e);
         }
+    }
+
+    /**
+     * Wait for the answer to the Authentication
+     * 
+     * @param localChannelReference
+     * @throws OpenR66ProtocolNetworkException
+     */
+    private void waitValidationConnection(LocalChannelReference localChannelReference)
+            throws OpenR66ProtocolNetworkException {
         R66Future future = localChannelReference.getFutureValidateConnection();
         if (future.isFailed()) {
             logger.debug("Will close NETWORK channel since Future cancelled: {}",
@@ -649,6 +813,45 @@ public class NetworkTransaction {
         }
     }
 
+    /**
+     * Wait for the answer to the Authentication sent with the request (pipelined handshake). On
+     * failure, next connections to this partner will not be pipelined until authenticated again.
+     * 
+     * @param localChannelReference
+     * @throws OpenR66ProtocolNetworkException
+     */
+    public void checkPipelinedConnection(LocalChannelReference localChannelReference)
+            throws OpenR66ProtocolNetworkException {
+        try {
+            waitValidationConnection(localChannelReference);
+        } catch (OpenR66ProtocolNetworkException e) {
+            NetworkChannelReference networkChannelReference =
+                    localChannelReference.getNetworkChannelObject();
+            if (networkChannelReference != null) {
+                networkChannelReference.setAuthenticated(false);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Check if the request could be sent with the Authentication on this network channel: enabled
+     * locally, partner already authenticated on this channel and supporting it
+     * 
+     * @param networkChannelReference
+     * @return True if the handshake could be pipelined
+     */
+    private static boolean isPipelineable(NetworkChannelReference networkChannelReference) {
+        if (!Configuration.configuration.isPipelineHandshake()
+                || !networkChannelReference.isAuthenticated()
+                || networkChannelReference.getHostId() == null) {
+            return false;
+        }
+        PartnerConfiguration partner = Configuration.configuration.getVersions()
+                .get(networkChannelReference.getHostId());
+        return partner != null && partner.useJson() && partner.isPipeline();
+    }
+
     /**
      * Add a new NetworkChannel from connection
      * 
@@ -881,24 +1084,20 @@ public class NetworkTransaction {
         if (networkChannelReference == null) {
             return;
         }
-        try {
-            if (!networkChannelReference.isShuttingDown) {
-                networkChannelReference.shutdownAllLocalChannels();
-            }
-            logger.debug("NC left: {}", networkChannelReference);
-            removeNCR(networkChannelReference);
-            if (networkChannelReference.clientNetworkChannels != null) {
-                String requester = networkChannelReference.clientNetworkChannels.getHostId();
-                removeClient(networkChannelReference, requester, networkChannelReference.clientNetworkChannels);
-            } else if (networkChannelReference.getHostId() != null) {
-                String requester = networkChannelReference.getHostId();
-                ClientNetworkChannels clientNetworkChannels = clientNetworkChannelsPerHostId.get(requester);
-                if (clientNetworkChannels != null) {
-                    removeClient(networkChannelReference, requester, clientNetworkChannels);
-                }
+        if (!networkChannelReference.isShuttingDown) {
+            networkChannelReference.shutdownAllLocalChannels();
+        }
+        logger.debug("NC left: {}", networkChannelReference);
+        removeNCR(networkChannelReference);
+        if (networkChannelReference.clientNetworkChannels != null) {
+            String requester = networkChannelReference.clientNetworkChannels.getHostId();
+            removeClient(networkChannelReference, requester, networkChannelReference.clientNetworkChannels);
+        } else if (networkChannelReference.getHostId() != null) {
+            String requester = networkChannelReference.getHostId();
+            ClientNetworkChannels clientNetworkChannels = clientNetworkChannelsPerHostId.get(requester);
+            if (clientNetworkChannels != null) {
+                removeClient(networkChannelReference, requester, clientNetworkChannels);
             }
-        } finally {
-            removeChannelLock();
         }
     }
 
@@ -912,7 +1111,7 @@ public class NetworkTransaction {
             return;
         }
         NetworkChannelReference networkChannelReference =
-                networkChannelOnSocketAddressConcurrentHashMap.get(address.hashCode());
+                networkChannelOnSocketAddressConcurrentHashMap.get(address);
         closedNetworkChannel(networkChannelReference);
     }
 
@@ -1008,9 +1207,9 @@ public class NetworkTransaction {
      */
     public static int nbAttachedConnection(SocketAddress address, String host) {
         logger.debug("nbAttachedConnection: "
-                + networkChannelOnSocketAddressConcurrentHashMap.containsKey(address.hashCode()) + ":"
+                + networkChannelOnSocketAddressConcurrentHashMap.containsKey(address) + ":"
                 + getNumberClients(host));
-        return (networkChannelOnSocketAddressConcurrentHashMap.containsKey(address.hashCode()) ? 1
+        return (networkChannelOnSocketAddressConcurrentHashMap.containsKey(address) ? 1
                 : 0)
                 + getNumberClients(host);
     }
@@ -1158,6 +1357,18 @@ public class NetworkTransaction {
         return retrieveExecutor;
     }
 
+    public static ExecutorService getWriteBehindExecutor() {
+        return writeBehindExecutor;
+    }
+
+    public static ExecutorService getMultiStreamExecutor() {
+        return multiStreamExecutor;
+    }
+
+    public static ExecutorService getHashingExecutor() {
+        return hashingExecutor;
+    }
+
     public static ConcurrentHashMap<Integer, RetrieveRunner> getRetrieveRunnerConcurrentHashMap() {
         return retrieveRunnerConcurrentHashMap;
     }
@@ -1172,8 +1383,7 @@ public class NetworkTransaction {
         RetrieveRunner retrieveRunner = new RetrieveRunner(session, channel);
         retrieveRunnerConcurrentHashMap.put(session.getLocalChannelReference().getLocalId(),
                 retrieveRunner);
-        retrieveRunner.setDaemon(true);
-        Configuration.configuration.getLocalWorkerGroup().execute(retrieveRunner);
+        retrieveRunner.startRetrieve();
     }
 
     /**
@@ -1199,10 +1409,13 @@ public class NetworkTransaction {
     }
 
     /**
-     * Stop all Retrieve Executors
+     * Stop all Retrieve, Write Behind, Multiple Streams and Hashing Executors
      */
     public static void closeRetrieveExecutors() {
         retrieveExecutor.shutdownNow();
+        writeBehindExecutor.shutdownNow();
+        multiStreamExecutor.shutdownNow();
+        hashingExecutor.shutdownNow();
     }
 
     /**
@@ -1219,6 +1432,9 @@ public class NetworkTransaction {
         if (!Configuration.configuration.isServer()) {
             R66ShutdownHook.shutdownHook.launchFinalExit();
         }
+        if (warmPool != null) {
+            warmPool.stop();
+        }
         closeRetrieveExecutors();
         networkChannelGroup.close();
         try {
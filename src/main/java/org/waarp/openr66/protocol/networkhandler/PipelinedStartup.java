@@ -0,0 +1,172 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler;
+
+import java.util.ArrayList;
+
+import io.netty.buffer.ByteBuf;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacket;
+
+/**
+ * Packets sent by a partner just after its authentication, before knowing the LocalId created for
+ * it (pipelined handshake).<br>
+ * <br>
+ * Such packets come with no LocalId, as the authentication itself, but with the same RemoteId. They
+ * are kept until the LocalChannelReference created from the authentication is ready, then delivered
+ * in order after the authentication, and afterwards delivered directly. Once too many packets are
+ * waiting, the network channel stops reading until the LocalChannelReference is ready (or failed).
+ *
+ * @author Frederic Bregier
+ */
+public class PipelinedStartup {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(PipelinedStartup.class);
+
+    /**
+     * Number of waiting packets from which the network channel stops reading
+     */
+    private static final int MAXIMAL_PACKETS = 16;
+
+    private final Integer remoteId;
+
+    private final NetworkChannelReference networkChannelReference;
+
+    private final ArrayList<ByteBuf> packets = new ArrayList<ByteBuf>();
+
+    private LocalChannelReference localChannelReference;
+
+    private boolean failed = false;
+
+    /**
+     * True while the network channel stops reading because of this startup
+     */
+    private boolean suspended = false;
+
+    /**
+     * @param remoteId
+     *            the RemoteId of the partner's local channel
+     * @param networkChannelReference
+     *            the network channel receiving the packets
+     */
+    PipelinedStartup(Integer remoteId, NetworkChannelReference networkChannelReference) {
+        this.remoteId = remoteId;
+        this.networkChannelReference = networkChannelReference;
+    }
+
+    /**
+     * @return the RemoteId of the partner's local channel
+     */
+    public Integer getRemoteId() {
+        return remoteId;
+    }
+
+    /**
+     * Keep or deliver one packet following the authentication. The buffer of the packet is
+     * retained.
+     *
+     * @param packet
+     * @return False if the LocalChannelReference could not be created
+     */
+    synchronized boolean offer(NetworkPacket packet) {
+        if (failed) {
+            return false;
+        }
+        ByteBuf buf = packet.getBuffer();
+        if (localChannelReference != null) {
+            buf.retain();
+            deliver(buf);
+            return true;
+        }
+        buf.retain();
+        packets.add(buf);
+        if (packets.size() >= MAXIMAL_PACKETS && !suspended) {
+            // packets already read are still kept, but no more is read until ready
+            logger.debug("Too many pipelined packets for: {}, reading suspended", remoteId);
+            suspended = true;
+            networkChannelReference.suspendReading();
+        }
+        return true;
+    }
+
+    /**
+     * The LocalChannelReference is created: deliver the authentication then the waiting packets
+     *
+     * @param localChannelReference
+     * @param authent
+     *            the buffer of the authentication
+     */
+    public synchronized void ready(LocalChannelReference localChannelReference, ByteBuf authent) {
+        this.localChannelReference = localChannelReference;
+        deliver(authent);
+        for (ByteBuf buf : packets) {
+            deliver(buf);
+        }
+        packets.clear();
+        resume();
+    }
+
+    /**
+     * The LocalChannelReference cannot be created: drop the waiting packets
+     */
+    public synchronized void fail() {
+        failed = true;
+        for (ByteBuf buf : packets) {
+            buf.release();
+        }
+        packets.clear();
+        resume();
+    }
+
+    private void resume() {
+        if (suspended) {
+            suspended = false;
+            networkChannelReference.resumeReading();
+        }
+    }
+
+    /**
+     * @return the associated LocalChannelReference (null if not yet created)
+     */
+    synchronized LocalChannelReference getLocalChannelReference() {
+        return localChannelReference;
+    }
+
+    private void deliver(ByteBuf buf) {
+        if (!localChannelReference.getLocalChannel().isActive()) {
+            buf.release();
+            return;
+        }
+        if (localChannelReference.isDirectDispatch()) {
+            try {
+                localChannelReference.dispatchDirect(buf);
+            } catch (OpenR66ProtocolPacketException e) {
+                logger.error("Cannot decode pipelined packet for: " + remoteId + " due to "
+                        + e.getMessage());
+            }
+        } else {
+            localChannelReference.getLocalChannel().writeAndFlush(buf);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler;
+
+import java.net.SocketAddress;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.database.DbConstant;
+import org.waarp.openr66.database.data.DbHostAuth;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.exception.OpenR66Exception;
+import org.waarp.openr66.protocol.utils.R66ShutdownHook;
+
+/**
+ * Warm network connections to hot partners.<br>
+ * <br>
+ * Each partner to which an outgoing connection is done (and each partner listed in the
+ * configuration) is kept warm: its network channel (TCP and SSL handshakes done) is kept opened
+ * even without any transfer, and opened again in background if closed, such that the next transfer
+ * reuses it immediately. Since all transfers to one partner are multiplexed on one network channel,
+ * one idle channel per partner is kept.<br>
+ * <br>
+ * A periodic check (every TIMEOUTCON) marks warm channels as used, so that they are not closed as
+ * unused and KeepAlive packets keep checking their health (a channel not answering is closed by the
+ * usual KeepAlive handling, then opened again by the next check). A partner not used for longer than
+ * the idle delay is evicted, its channel then being closed as usual when unused.
+ *
+ * @author Frederic Bregier
+ */
+public class WarmConnectionPool {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(WarmConnectionPool.class);
+
+    /**
+     * Number of connections that reused an already opened network channel
+     */
+    private static final AtomicLong hits = new AtomicLong();
+    /**
+     * Number of connections that needed a new network channel
+     */
+    private static final AtomicLong misses = new AtomicLong();
+    /**
+     * Number of network channels opened in background
+     */
+    private static final AtomicLong warmed = new AtomicLong();
+    /**
+     * Number of partners evicted since idle
+     */
+    private static final AtomicLong evicted = new AtomicLong();
+
+    private final NetworkTransaction networkTransaction;
+
+    private final ConcurrentHashMap<SocketAddress, WarmPartner> partners =
+            new ConcurrentHashMap<SocketAddress, WarmPartner>();
+
+    private final int maxPartners;
+
+    private final long idleDelay;
+
+    private volatile boolean configuredLoaded = false;
+
+    private volatile int configuredCount = 0;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * One partner kept warm
+     */
+    private static class WarmPartner {
+        private final SocketAddress address;
+        private final boolean isSSL;
+        private final boolean configured;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private WarmPartner(SocketAddress address, boolean isSSL, boolean configured) {
+            this.address = address;
+            this.isSSL = isSSL;
+            this.configured = configured;
+        }
+    }
+
+    /**
+     * Periodic check
+     */
+    private class WarmCheck extends Thread {
+        @Override
+        public void run() {
+            if (stopped || R66ShutdownHook.isShutdownStarting()) {
+                return;
+            }
+            try {
+                check();
+            } catch (RuntimeException e) {
+                logger.warn("Warm connection check in error: " + e.getMessage());
+            }
+            if (!stopped) {
+                Configuration.configuration.launchInFixedDelay(this,
+                        Configuration.configuration.getTIMEOUTCON(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @param networkTransaction
+     *            the NetworkTransaction used to open the connections
+     * @param maxPartners
+     *            maximum number of partners kept warm once used (in addition to the configured
+     *            ones)
+     * @param idleDelay
+     *            delay in ms without transfer before a partner is evicted
+     */
+    public WarmConnectionPool(NetworkTransaction networkTransaction, int maxPartners, long idleDelay) {
+        this.networkTransaction = networkTransaction;
+        this.maxPartners = maxPartners;
+        this.idleDelay = idleDelay;
+    }
+
+    /**
+     * Start the periodic check
+     */
+    public void start() {
+        Configuration.configuration.launchInFixedDelay(new WarmCheck(),
+                Configuration.configuration.getTIMEOUTCON(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the periodic check (channels are closed as usual)
+     */
+    public void stop() {
+        stopped = true;
+        partners.clear();
+    }
+
+    /**
+     * One outgoing connection is done to this partner: keep it warm
+     *
+     * @param address
+     * @param isSSL
+     */
+    public void used(SocketAddress address, boolean isSSL) {
+        if (stopped || address == null) {
+            return;
+        }
+        WarmPartner partner = partners.get(address);
+        if (partner == null) {
+            if (maxPartners <= 0) {
+                return;
+            }
+            if (partners.size() - configuredCount >= maxPartners) {
+                evictOldest();
+            }
+            WarmPartner newPartner = new WarmPartner(address, isSSL, false);
+            partner = partners.putIfAbsent(address, newPartner);
+            if (partner == null) {
+                logger.debug("Partner kept warm: {}", address);
+                return;
+            }
+        }
+        partner.lastUsed = System.currentTimeMillis();
+    }
+
+    private void evictOldest() {
+        WarmPartner oldest = null;
+        for (WarmPartner partner : partners.values()) {
+            if (!partner.configured && (oldest == null || partner.lastUsed < oldest.lastUsed)) {
+                oldest = partner;
+            }
+        }
+        if (oldest != null && partners.remove(oldest.address, oldest)) {
+            evicted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Load the partners listed in the configuration (once the database is available)
+     */
+    private void loadConfigured() {
+        for (String hostId : Configuration.configuration.getWarmPoolHosts()) {
+            DbHostAuth host;
+            try {
+                host = new DbHostAuth(DbConstant.admin.getSession(), hostId);
+            } catch (WaarpDatabaseException e) {
+                logger.warn("Cannot find host to keep warm: " + hostId);
+                continue;
+            }
+            if (host.isClient() || !host.isActive()) {
+                logger.warn("Cannot keep warm a client or inactive host: " + hostId);
+                continue;
+            }
+            SocketAddress address;
+            try {
+                address = host.getSocketAddress();
+            } catch (IllegalArgumentException e) {
+                logger.warn("Cannot keep warm a host without address: " + hostId);
+                continue;
+            }
+            partners.put(address, new WarmPartner(address, host.isSsl(), true));
+            configuredCount++;
+        }
+        configuredLoaded = true;
+    }
+
+    /**
+     * Evict idle partners, keep others warm and open again the closed channels
+     */
+    private void check() {
+        if (!configuredLoaded && DbConstant.admin != null) {
+            loadConfigured();
+        }
+        long now = System.currentTimeMillis();
+        for (Entry<SocketAddress, WarmPartner> entry : partners.entrySet()) {
+            if (stopped || R66ShutdownHook.isShutdownStarting()) {
+                return;
+            }
+            WarmPartner partner = entry.getValue();
+            if (!partner.configured && now - partner.lastUsed > idleDelay) {
+                if (partners.remove(entry.getKey(), partner)) {
+                    evicted.incrementAndGet();
+                    logger.debug("Partner evicted from warm connections: {}", partner.address);
+                }
+                continue;
+            }
+            if (NetworkTransaction.keepWarm(partner.address)) {
+                continue;
+            }
+            if (NetworkTransaction.isShuttingdownNetworkChannel(partner.address)) {
+                // do not retry while in shutdown or blacklisted
+                continue;
+            }
+            try {
+                networkTransaction.openWarmConnection(partner.address, partner.isSSL);
+                warmed.incrementAndGet();
+                logger.debug("Warm connection opened: {}", partner.address);
+            } catch (OpenR66Exception e) {
+                logger.debug("Cannot open warm connection: {}", partner.address + " " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     *
+     * @return the number of partners kept warm
+     */
+    public int size() {
+        return partners.size();
+    }
+
+    /**
+     * One connection reused an already opened network channel
+     */
+    static void hit() {
+        hits.incrementAndGet();
+    }
+
+    /**
+     * One connection needed a new network channel
+     */
+    static void miss() {
+        misses.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return the number of connections that reused an already opened network channel
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     *
+     * @return the number of connections that needed a new network channel
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     *
+     * @return the number of network channels opened in background
+     */
+    public static long getWarmed() {
+        return warmed.get();
+    }
+
+    /**
+     *
+     * @return the number of partners evicted since idle
+     */
+    public static long getEvicted() {
+        return evicted.get();
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler.packet;
+
+import java.nio.channels.FileChannel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+
+import org.waarp.openr66.protocol.localhandler.packet.LocalPacketFactory;
+
+/**
+ * Zero copy version of a Network Packet containing a DataPacket without MD5 key.<br>
+ * The framing (Network header, Local header and rank) is built in a small buffer while the data
+ * itself is sent directly from the file through a FileRegion (sendfile). The bytes on the wire are
+ * exactly the same than the ones of a standard DataPacket, so the receiver side is unchanged.<br>
+ * <br>
+ * Shall not be used with SSL, since SslHandler cannot handle FileRegion.
+ *
+ * @author Frederic Bregier
+ */
+public class NetworkDataRegion {
+    /**
+     * Network header (13) + Local header (13) + rank (4)
+     */
+    public static final int HEADER_SIZE = 13 + 13 + 4;
+
+    private final ByteBuf header;
+
+    private final DefaultFileRegion region;
+
+    /**
+     * @param localId
+     * @param remoteId
+     * @param rank
+     * @param fileChannel
+     *            the FileChannel to read from (not closed by this object)
+     * @param position
+     *            the absolute position in the file
+     * @param length
+     *            the number of bytes to send
+     */
+    public NetworkDataRegion(int localId, int remoteId, int rank,
+            FileChannel fileChannel, long position, int length) {
+        header = Unpooled.buffer(HEADER_SIZE);
+        // Network header
+        header.writeInt(13 + 4 + length + 9);
+        header.writeInt(remoteId);
+        header.writeInt(localId);
+        header.writeByte(LocalPacketFactory.DATAPACKET);
+        // Local header: header length, middle length, end length, type
+        header.writeInt(4 * 2 + 1 + 4);
+        header.writeInt(length);
+        header.writeInt(0);
+        header.writeByte(LocalPacketFactory.DATAPACKET);
+        // DataPacket header
+        header.writeInt(rank);
+        region = new SharedFileRegion(fileChannel, position, length);
+    }
+
+    /**
+     * Write both the framing and the file region to the network channel. Both writes are done
+     * within one event loop task, such that no other packet (from other local channels sharing the
+     * same network channel) could be interleaved.
+     *
+     * @param channel
+     *            the network channel
+     * @return the future of the write of the file region
+     */
+    public ChannelFuture write(final Channel channel) {
+        final ChannelPromise promise = channel.newPromise();
+        if (channel.eventLoop().inEventLoop()) {
+            channel.write(header);
+            channel.writeAndFlush(region, promise);
+        } else {
+            channel.eventLoop().execute(new Runnable() {
+                public void run() {
+                    channel.write(header);
+                    channel.writeAndFlush(region, promise);
+                }
+            });
+        }
+        return promise;
+    }
+
+    /**
+     * FileRegion that does not close the underlying FileChannel once released, since the same
+     * channel is shared by all blocks of one transfer.
+     */
+    private static class SharedFileRegion extends DefaultFileRegion {
+        private SharedFileRegion(FileChannel file, long position, long count) {
+            super(file, position, count);
+        }
+
+        @Override
+        protected void deallocate() {
+            // FileChannel is closed by the owner of the transfer
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.waarp.openr66.protocol.networkhandler.packet;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
 import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
@@ -98,10 +99,12 @@ public class NetworkPacket {
     }
 
     /**
+     * @param allocator
+     *            the allocator of the network channel, used for the header only
      * @return The corresponding ByteBuf
      */
-    public ByteBuf getNetworkPacket() {
-        final ByteBuf buf = Unpooled.buffer(13);
+    public ByteBuf getNetworkPacket(ByteBufAllocator allocator) {
+        final ByteBuf buf = allocator.buffer(13);
         buf.writeInt(buffer.readableBytes() + 9);
         buf.writeInt(remoteId);
         buf.writeInt(localId);
@@ -41,6 +41,11 @@ public class NetworkSslServerHandler extends NetworkServerHandler {
      */
     private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(NetworkSslServerHandler.class);
 
+    /**
+     * Time in ms when this connection started (to know if the SSL session is resumed)
+     */
+    private final long startTime = System.currentTimeMillis();
+
     /**
      * @param isServer
      */
@@ -83,7 +88,9 @@ public class NetworkSslServerHandler extends NetworkServerHandler {
             final SslHandler sslHandler = (SslHandler) handler;
             sslHandler.handshakeFuture().addListener(new GenericFutureListener<Future<? super Channel>>() {
                 public void operationComplete(Future<? super Channel> future) throws Exception {
-                    if (!future.isSuccess()) {
+                    if (future.isSuccess()) {
+                        SslSessionCache.handshakeDone(sslHandler.engine().getSession(), startTime);
+                    } else {
                         if (Configuration.configuration.getR66Mib() != null) {
                             Configuration.configuration.getR66Mib().notifyError(
                                     "SSL Connection Error", "During Handshake");
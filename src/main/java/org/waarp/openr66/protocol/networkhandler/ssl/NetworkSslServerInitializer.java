@@ -59,9 +59,9 @@ public class NetworkSslServerInitializer extends ChannelInitializer<SocketChanne
         // Add SSL handler first to encrypt and decrypt everything.
         SslHandler sslHandler = null;
         if (isClient) {
-            // Not server: no clientAuthent, no renegotiation
-            sslHandler =
-                    getWaarpSslContextFactory().initInitializer(false, false);
+            // Not server: no clientAuthent, no renegotiation, bound to the partner for resumption
+            sslHandler = SslSessionCache.newClientHandler(getWaarpSslContextFactory(),
+                    ch.attr(SslSessionCache.PARTNER).get());
         } else {
             // Server: no renegotiation still, but possible clientAuthent
             sslHandler =
@@ -102,6 +102,7 @@ public class NetworkSslServerInitializer extends ChannelInitializer<SocketChanne
      */
     public static void setWaarpSslContextFactory(WaarpSslContextFactory waarpSslContextFactory) {
         NetworkSslServerInitializer.waarpSslContextFactory = waarpSslContextFactory;
+        SslSessionCache.configure(waarpSslContextFactory);
     }
 
     /**
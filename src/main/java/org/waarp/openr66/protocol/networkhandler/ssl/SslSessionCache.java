@@ -0,0 +1,166 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.networkhandler.ssl;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+
+import org.waarp.common.crypto.ssl.WaarpSslContextFactory;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.openr66.protocol.configuration.Configuration;
+
+/**
+ * TLS session resumption for R66 SSL partners.<br>
+ * <br>
+ * On client side, the SSL engine of each outgoing connection is created for the partner host and
+ * port (given through the PARTNER attribute of the channel), such that the session cache of the
+ * client SSL context resumes the previous session with the same partner instead of a full
+ * handshake. On server side, the size and timeout of the session cache of the server SSL context
+ * can be set. Each handshake is counted as resumed (session created before the connection) or
+ * full.
+ *
+ * @author Frederic Bregier
+ */
+public class SslSessionCache {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory.getLogger(SslSessionCache.class);
+
+    /**
+     * Partner address of an outgoing connection, set before connect
+     */
+    public static final AttributeKey<SocketAddress> PARTNER = AttributeKey.valueOf("R66SslPartner");
+
+    /**
+     * Number of handshakes resuming a previous session
+     */
+    private static final AtomicLong resumed = new AtomicLong();
+    /**
+     * Number of full handshakes
+     */
+    private static final AtomicLong full = new AtomicLong();
+
+    private SslSessionCache() {
+    }
+
+    /**
+     * Apply the session cache size and timeout to both client and server SSL contexts
+     *
+     * @param waarpSslContextFactory
+     */
+    public static void configure(WaarpSslContextFactory waarpSslContextFactory) {
+        if (waarpSslContextFactory == null) {
+            return;
+        }
+        configure(waarpSslContextFactory.getClientContext(), true);
+        configure(waarpSslContextFactory.getServerContext(), false);
+    }
+
+    private static void configure(SSLContext sslContext, boolean client) {
+        if (sslContext == null) {
+            return;
+        }
+        SSLSessionContext sessionContext = client ? sslContext.getClientSessionContext()
+                : sslContext.getServerSessionContext();
+        if (sessionContext == null) {
+            return;
+        }
+        int size = Configuration.configuration.getSslSessionCacheSize();
+        if (size >= 0) {
+            sessionContext.setSessionCacheSize(size);
+        }
+        int timeout = Configuration.configuration.getSslSessionTimeout();
+        if (timeout >= 0) {
+            sessionContext.setSessionTimeout(timeout);
+        }
+        logger.debug("SSL session cache ({}): size {} timeout {}s", client ? "client" : "server",
+                sessionContext.getSessionCacheSize(), sessionContext.getSessionTimeout());
+    }
+
+    /**
+     * Create the SslHandler of an outgoing connection
+     *
+     * @param waarpSslContextFactory
+     * @param partner
+     *            the partner address (could be null)
+     * @return the SslHandler, with an engine bound to the partner host and port if possible
+     */
+    public static SslHandler newClientHandler(WaarpSslContextFactory waarpSslContextFactory,
+            SocketAddress partner) {
+        if (!Configuration.configuration.isSslSessionResumption()
+                || !(partner instanceof InetSocketAddress)
+                || waarpSslContextFactory.getClientContext() == null) {
+            // Not server: no clientAuthent, no renegotiation
+            return waarpSslContextFactory.initInitializer(false, false);
+        }
+        InetSocketAddress address = (InetSocketAddress) partner;
+        String host = address.getAddress() != null ? address.getAddress().getHostAddress()
+                : address.getHostName();
+        SSLEngine engine = waarpSslContextFactory.getClientContext().createSSLEngine(host,
+                address.getPort());
+        engine.setUseClientMode(true);
+        engine.setEnableSessionCreation(true);
+        return new SslHandler(engine);
+    }
+
+    /**
+     * Count one successful handshake
+     *
+     * @param session
+     * @param startTime
+     *            time in ms when the connection started
+     */
+    public static void handshakeDone(SSLSession session, long startTime) {
+        if (session == null) {
+            return;
+        }
+        if (session.getCreationTime() < startTime) {
+            resumed.incrementAndGet();
+            logger.debug("SSL session resumed with {}", session.getPeerHost());
+        } else {
+            full.incrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * @return the number of handshakes resuming a previous session
+     */
+    public static long getResumedHandshakes() {
+        return resumed.get();
+    }
+
+    /**
+     *
+     * @return the number of full handshakes
+     */
+    public static long getFullHandshakes() {
+        return full.get();
+    }
+}
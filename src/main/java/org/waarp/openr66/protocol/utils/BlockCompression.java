@@ -0,0 +1,275 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.utils;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+
+/**
+ * Compression of data blocks (Deflate, fastest level).<br>
+ * <br>
+ * Compression is negotiated per transfer within the request, then each block is compressed
+ * independently: a block that does not shrink by at least 1/8 is sent as is. Digests are always
+ * computed on the uncompressed data.<br>
+ * <br>
+ * Blocks are deflated and inflated straight into pooled buffers, a per thread scratch array being
+ * only used for an input without array (direct buffer).
+ *
+ * @author Frederic Bregier
+ */
+public class BlockCompression {
+    /**
+     * Blocks smaller than this size are never compressed
+     */
+    public static final int MINIMAL_SIZE = 256;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /**
+     * Input of the current thread when the block has no array
+     */
+    private static final ThreadLocal<byte[]> scratches = new ThreadLocal<byte[]>();
+
+    /**
+     * Number of blocks sent compressed
+     */
+    private static final AtomicLong compressedBlocks = new AtomicLong();
+    /**
+     * Number of blocks sent uncompressed since not compressible
+     */
+    private static final AtomicLong skippedBlocks = new AtomicLong();
+    /**
+     * Number of bytes before compression (compressed and skipped blocks)
+     */
+    private static final AtomicLong rawBytes = new AtomicLong();
+    /**
+     * Number of bytes after compression (compressed and skipped blocks)
+     */
+    private static final AtomicLong sentBytes = new AtomicLong();
+    /**
+     * Number of compressed blocks received
+     */
+    private static final AtomicLong decompressedBlocks = new AtomicLong();
+
+    private BlockCompression() {
+    }
+
+    /**
+     *
+     * @param rulename
+     * @return True if this host allows compression for this rule
+     */
+    public static boolean isAllowed(String rulename) {
+        if (!Configuration.configuration.isCompression()) {
+            return false;
+        }
+        Set<String> rules = Configuration.configuration.getCompressionRules();
+        return rules.isEmpty() || rules.contains(rulename);
+    }
+
+    /**
+     *
+     * @param localChannelReference
+     * @param rulename
+     * @return True if both this host (for this rule) and the partner allow compression
+     */
+    public static boolean isAllowed(LocalChannelReference localChannelReference, String rulename) {
+        if (!isAllowed(rulename)) {
+            return false;
+        }
+        PartnerConfiguration partner = localChannelReference.getPartner();
+        return partner != null && partner.useJson() && partner.isCompression();
+    }
+
+    /**
+     *
+     * @param data
+     *            the block to compress (not modified)
+     * @return the compressed block, or null if the block does not compress enough
+     */
+    public static ByteBuf compress(ByteBuf data) {
+        int length = data.readableBytes();
+        rawBytes.addAndGet(length);
+        if (length < MINIMAL_SIZE) {
+            skippedBlocks.incrementAndGet();
+            sentBytes.addAndGet(length);
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        setInput(deflater, null, data, length);
+        deflater.finish();
+        int limit = length - length / 8;
+        ByteBuf buf = ByteBufAllocator.DEFAULT.heapBuffer(limit);
+        byte[] out = buf.array();
+        int offset = buf.arrayOffset();
+        int size = 0;
+        while (!deflater.finished() && size < limit) {
+            size += deflater.deflate(out, offset + size, limit - size);
+        }
+        if (!deflater.finished()) {
+            buf.release();
+            skippedBlocks.incrementAndGet();
+            sentBytes.addAndGet(length);
+            return null;
+        }
+        buf.writerIndex(size);
+        compressedBlocks.incrementAndGet();
+        sentBytes.addAndGet(size);
+        return buf;
+    }
+
+    /**
+     * Set the input of the deflater or of the inflater without copy if the block has an array,
+     * else through the scratch array of the current thread
+     *
+     * @param deflater
+     * @param inflater
+     * @param data
+     * @param length
+     */
+    private static void setInput(Deflater deflater, Inflater inflater, ByteBuf data, int length) {
+        byte[] in;
+        int offset;
+        if (data.hasArray()) {
+            in = data.array();
+            offset = data.arrayOffset() + data.readerIndex();
+        } else {
+            in = scratches.get();
+            if (in == null || in.length < length) {
+                in = new byte[Math.max(length, getMaximalLength())];
+                scratches.set(in);
+            }
+            data.getBytes(data.readerIndex(), in, 0, length);
+            offset = 0;
+        }
+        if (deflater != null) {
+            deflater.setInput(in, offset, length);
+        } else {
+            inflater.setInput(in, offset, length);
+        }
+    }
+
+    /**
+     *
+     * @return the maximal uncompressed length accepted for a received block: the block size may be
+     *         raised up to the maximal block size by the auto tuning
+     */
+    public static int getMaximalLength() {
+        return Math.max(Configuration.configuration.getBLOCKSIZE(),
+                Configuration.configuration.getBlockSizeMax());
+    }
+
+    /**
+     *
+     * @param data
+     *            the compressed block (not released)
+     * @param length
+     *            the uncompressed length, as received
+     * @return the uncompressed block
+     * @throws OpenR66ProtocolPacketException
+     *             if the length is out of bounds or the block cannot be uncompressed
+     */
+    public static ByteBuf decompress(ByteBuf data, int length) throws OpenR66ProtocolPacketException {
+        if (length <= 0 || length > getMaximalLength()) {
+            throw new OpenR66ProtocolPacketException("Bad uncompressed block length: " + length);
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        setInput(null, inflater, data, data.readableBytes());
+        ByteBuf buf = ByteBufAllocator.DEFAULT.heapBuffer(length);
+        byte[] out = buf.array();
+        int offset = buf.arrayOffset();
+        int size = 0;
+        try {
+            while (size < length && !inflater.finished()) {
+                int read = inflater.inflate(out, offset + size, length - size);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += read;
+            }
+        } catch (DataFormatException e) {
+            buf.release();
+            throw new OpenR66ProtocolPacketException("Bad compressed block", e);
+        }
+        if (size != length) {
+            buf.release();
+            throw new OpenR66ProtocolPacketException("Bad compressed block length: " + size + " vs " + length);
+        }
+        buf.writerIndex(size);
+        decompressedBlocks.incrementAndGet();
+        return buf;
+    }
+
+    /**
+     *
+     * @return the number of blocks sent compressed
+     */
+    public static long getCompressedBlocks() {
+        return compressedBlocks.get();
+    }
+
+    /**
+     *
+     * @return the number of blocks sent uncompressed since not compressible
+     */
+    public static long getSkippedBlocks() {
+        return skippedBlocks.get();
+    }
+
+    /**
+     *
+     * @return the number of compressed blocks received
+     */
+    public static long getDecompressedBlocks() {
+        return decompressedBlocks.get();
+    }
+
+    /**
+     *
+     * @return the size sent in percent of the original size (100 if nothing compressed)
+     */
+    public static long getCompressionRatio() {
+        long raw = rawBytes.get();
+        return raw == 0 ? 100 : sentBytes.get() * 100 / raw;
+    }
+}
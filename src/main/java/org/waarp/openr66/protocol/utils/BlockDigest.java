@@ -0,0 +1,311 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.utils;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
+import org.waarp.openr66.protocol.localhandler.LocalChannelReference;
+
+/**
+ * Integrity key of each data block in MD5 mode, without allocation on the data path.<br>
+ * <br>
+ * Each thread keeps its own reusable digest instances (and a chunk buffer for blocks not backed by
+ * an array), and keys are written into a given buffer, or compared in place on reception.<br>
+ * <br>
+ * When both partners accept the same lightweight checksum (CRC32 or ADLER32, see
+ * PartnerConfiguration), the key of each block is this checksum (4 bytes) instead of the digest,
+ * still detecting corruption at a much lower cost. Algorithms not handled here (such as the
+ * specific encoding of CRC32 or ADLER32 used as digest) go through the usual FileUtils.getHash.
+ *
+ * @author Frederic Bregier
+ */
+public class BlockDigest {
+    /**
+     * Lightweight CRC32 checksum
+     */
+    public static final String CRC32 = "CRC32";
+    /**
+     * Lightweight ADLER32 checksum
+     */
+    public static final String ADLER32 = "ADLER32";
+    /**
+     * Length of a checksum key
+     */
+    public static final int CHECKSUM_LENGTH = 4;
+
+    private static final int CHUNK = 0x4000;
+
+    private static final int MAX_DIGEST_LENGTH = 64;
+
+    private static final ThreadLocal<BlockDigest> digests = new ThreadLocal<BlockDigest>() {
+        @Override
+        protected BlockDigest initialValue() {
+            return new BlockDigest();
+        }
+    };
+
+    private final EnumMap<DigestAlgo, MessageDigest> messageDigests = new EnumMap<DigestAlgo, MessageDigest>(
+            DigestAlgo.class);
+
+    private final EnumMap<DigestAlgo, Boolean> unavailable = new EnumMap<DigestAlgo, Boolean>(DigestAlgo.class);
+
+    private final CRC32 crc32 = new CRC32();
+
+    private final Adler32 adler32 = new Adler32();
+
+    private final byte[] chunk = new byte[CHUNK];
+
+    private final byte[] result = new byte[MAX_DIGEST_LENGTH];
+
+    private BlockDigest() {
+    }
+
+    /**
+     *
+     * @param checksum
+     * @return True if this is a known lightweight checksum
+     */
+    public static boolean isChecksum(String checksum) {
+        return CRC32.equals(checksum) || ADLER32.equals(checksum);
+    }
+
+    /**
+     *
+     * @param localChannelReference
+     *            (could be null)
+     * @return the lightweight checksum accepted by both partners, or null if the digest must be used
+     */
+    public static String getChecksum(LocalChannelReference localChannelReference) {
+        String checksum = Configuration.configuration.getBlockChecksum();
+        if (checksum == null || checksum.isEmpty()) {
+            return null;
+        }
+        if (localChannelReference == null) {
+            return null;
+        }
+        PartnerConfiguration partner = localChannelReference.getPartner();
+        if (partner == null || !partner.useJson() || !checksum.equals(partner.getBlockChecksum())) {
+            return null;
+        }
+        return checksum;
+    }
+
+    /**
+     * Compute the key of a block to send
+     *
+     * @param localChannelReference
+     * @param data
+     *            the block (not modified)
+     * @param allocator
+     *            allocator of the key buffer
+     * @return the key of this block
+     */
+    public static ByteBuf getKey(LocalChannelReference localChannelReference, ByteBuf data,
+            ByteBufAllocator allocator) {
+        String checksum = getChecksum(localChannelReference);
+        if (checksum != null) {
+            ByteBuf key = allocator.buffer(CHECKSUM_LENGTH);
+            writeChecksum(data, checksum, key);
+            return key;
+        }
+        DigestAlgo algo = Configuration.configuration.getDigest();
+        BlockDigest digest = digests.get();
+        MessageDigest messageDigest = digest.getMessageDigest(algo);
+        if (messageDigest == null) {
+            return FileUtils.getHash(data, algo);
+        }
+        ByteBuf key = allocator.buffer(messageDigest.getDigestLength());
+        int length = digest.digest(messageDigest, data);
+        key.writeBytes(digest.result, 0, length);
+        return key;
+    }
+
+    /**
+     * Write the digest of the block into the given buffer
+     *
+     * @param data
+     *            the block (not modified)
+     * @param algo
+     * @param out
+     *            the buffer to write into
+     * @return False if this algorithm is not handled here (nothing written)
+     */
+    public static boolean writeDigest(ByteBuf data, DigestAlgo algo, ByteBuf out) {
+        BlockDigest digest = digests.get();
+        MessageDigest messageDigest = digest.getMessageDigest(algo);
+        if (messageDigest == null) {
+            return false;
+        }
+        int length = digest.digest(messageDigest, data);
+        out.writeBytes(digest.result, 0, length);
+        return true;
+    }
+
+    /**
+     * Write the lightweight checksum of the block into the given buffer
+     *
+     * @param data
+     *            the block (not modified)
+     * @param checksum
+     *            CRC32 or ADLER32
+     * @param out
+     *            the buffer to write into
+     */
+    public static void writeChecksum(ByteBuf data, String checksum, ByteBuf out) {
+        out.writeInt(digests.get().checksum(data, checksum));
+    }
+
+    /**
+     * Check the key of a received block
+     *
+     * @param localChannelReference
+     * @param data
+     *            the block (not modified)
+     * @param key
+     *            the received key
+     * @param algo
+     *            the digest algorithm of the partner
+     * @return True if the key is valid
+     */
+    public static boolean isValid(LocalChannelReference localChannelReference, ByteBuf data, ByteBuf key,
+            DigestAlgo algo) {
+        String checksum = getChecksum(localChannelReference);
+        BlockDigest digest = digests.get();
+        if (checksum != null) {
+            return key.readableBytes() == CHECKSUM_LENGTH
+                    && key.getInt(key.readerIndex()) == digest.checksum(data, checksum);
+        }
+        MessageDigest messageDigest = digest.getMessageDigest(algo);
+        if (messageDigest == null) {
+            ByteBuf newbufkey = FileUtils.getHash(data, algo);
+            boolean check = key.equals(newbufkey);
+            newbufkey.release();
+            return check;
+        }
+        int length = digest.digest(messageDigest, data);
+        if (key.readableBytes() != length) {
+            return false;
+        }
+        int index = key.readerIndex();
+        for (int i = 0; i < length; i++) {
+            if (key.getByte(index + i) != digest.result[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param algo
+     * @return the reusable MessageDigest of this thread for this algorithm, or null if not handled
+     *         here
+     */
+    private MessageDigest getMessageDigest(DigestAlgo algo) {
+        MessageDigest messageDigest = messageDigests.get(algo);
+        if (messageDigest != null) {
+            messageDigest.reset();
+            return messageDigest;
+        }
+        if (algo == DigestAlgo.CRC32 || algo == DigestAlgo.ADLER32 || unavailable.containsKey(algo)) {
+            return null;
+        }
+        try {
+            messageDigest = MessageDigest.getInstance(algo.name);
+        } catch (NoSuchAlgorithmException e) {
+            unavailable.put(algo, Boolean.TRUE);
+            return null;
+        }
+        if (messageDigest.getDigestLength() <= 0 || messageDigest.getDigestLength() > MAX_DIGEST_LENGTH) {
+            unavailable.put(algo, Boolean.TRUE);
+            return null;
+        }
+        messageDigests.put(algo, messageDigest);
+        return messageDigest;
+    }
+
+    /**
+     * Digest the block into the result array
+     *
+     * @param messageDigest
+     * @param data
+     * @return the length of the digest
+     */
+    private int digest(MessageDigest messageDigest, ByteBuf data) {
+        int size = data.readableBytes();
+        if (data.hasArray()) {
+            messageDigest.update(data.array(), data.arrayOffset() + data.readerIndex(), size);
+        } else {
+            int index = data.readerIndex();
+            int still = size;
+            while (still > 0) {
+                int len = still > CHUNK ? CHUNK : still;
+                data.getBytes(index, chunk, 0, len);
+                messageDigest.update(chunk, 0, len);
+                index += len;
+                still -= len;
+            }
+        }
+        try {
+            return messageDigest.digest(result, 0, MAX_DIGEST_LENGTH);
+        } catch (DigestException e) {
+            // cannot happen since the result is large enough
+            messageDigest.reset();
+            return 0;
+        }
+    }
+
+    /**
+     *
+     * @param data
+     * @param name
+     *            CRC32 or ADLER32
+     * @return the checksum of the block
+     */
+    private int checksum(ByteBuf data, String name) {
+        Checksum checksum = ADLER32.equals(name) ? adler32 : crc32;
+        checksum.reset();
+        int size = data.readableBytes();
+        if (data.hasArray()) {
+            checksum.update(data.array(), data.arrayOffset() + data.readerIndex(), size);
+        } else {
+            int index = data.readerIndex();
+            int still = size;
+            while (still > 0) {
+                int len = still > CHUNK ? CHUNK : still;
+                data.getBytes(index, chunk, 0, len);
+                checksum.update(chunk, 0, len);
+                index += len;
+                still -= len;
+            }
+        }
+        return (int) checksum.getValue();
+    }
+}
@@ -20,6 +20,7 @@ package org.waarp.openr66.protocol.utils;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.TimeUnit;
 
 import io.netty.buffer.ByteBuf;
@@ -54,6 +55,7 @@ import org.waarp.openr66.protocol.localhandler.packet.LocalPacketFactory;
 import org.waarp.openr66.protocol.localhandler.packet.RequestPacket;
 import org.waarp.openr66.protocol.networkhandler.GlobalTrafficHandler;
 import org.waarp.openr66.protocol.networkhandler.NetworkTransaction;
+import org.waarp.openr66.protocol.networkhandler.packet.NetworkDataRegion;
 import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacket;
 
 import ch.qos.logback.classic.LoggerContext;
@@ -212,7 +214,8 @@ public class ChannelUtils extends Thread {
         ByteBuf md5 = Unpooled.EMPTY_BUFFER;
         DbTaskRunner runner = localChannelReference.getSession().getRunner();
         if (RequestPacket.isMD5Mode(runner.getMode())) {
-            md5 = FileUtils.getHash(block.getBlock(), Configuration.configuration.getDigest());
+            md5 = BlockDigest.getKey(localChannelReference, block.getBlock(),
+                    localChannelReference.getNetworkChannel().alloc());
         }
         if (runner.getRank() % 100 == 1 || localChannelReference.getSessionState() != R66FiniteDualStates.DATAS) {
             localChannelReference.sessionNewState(R66FiniteDualStates.DATAS);
@@ -223,6 +226,51 @@ public class ChannelUtils extends Thread {
         return future;
     }
 
+    /**
+     * 
+     * @param localChannelReference
+     * @return True if the current transfer could use the zero copy send path (no MD5 per block, no
+     *         compression, no SSL, zero copy allowed by configuration)
+     */
+    public static boolean isZeroCopyAllowed(LocalChannelReference localChannelReference) {
+        if (!Configuration.configuration.isZeroCopy()) {
+            return false;
+        }
+        DbTaskRunner runner = localChannelReference.getSession().getRunner();
+        if (runner == null || RequestPacket.isMD5Mode(runner.getMode())
+                || localChannelReference.isCompression()) {
+            return false;
+        }
+        return localChannelReference.getNetworkServerHandler() != null &&
+                !localChannelReference.getNetworkServerHandler().isSsl();
+    }
+
+    /**
+     * Write the next block directly from the file (zero copy), using current rank
+     * 
+     * @param localChannelReference
+     * @param fileChannel
+     * @param position
+     *            absolute position in the file of this block
+     * @param length
+     *            length of this block
+     * @return the ChannelFuture of this write operation
+     * @throws OpenR66ProtocolPacketException
+     */
+    public static ChannelFuture writeBackDataRegion(
+            LocalChannelReference localChannelReference, FileChannel fileChannel, long position, int length)
+            throws OpenR66ProtocolPacketException {
+        DbTaskRunner runner = localChannelReference.getSession().getRunner();
+        if (runner.getRank() % 100 == 1 || localChannelReference.getSessionState() != R66FiniteDualStates.DATAS) {
+            localChannelReference.sessionNewState(R66FiniteDualStates.DATAS);
+        }
+        NetworkDataRegion region = new NetworkDataRegion(localChannelReference.getLocalId(),
+                localChannelReference.getRemoteId(), runner.getRank(), fileChannel, position, length);
+        ChannelFuture future = region.write(localChannelReference.getNetworkChannel());
+        runner.incrementRank();
+        return future;
+    }
+
     /**
      * Write the EndTransfer
      * 
@@ -253,6 +301,27 @@ public class ChannelUtils extends Thread {
         writeAbstractLocalPacket(localChannelReference, packet, true);
     }
 
+    /**
+     * Write the EndTransfer plus Global Hash if not null, without waiting for the write
+     * 
+     * @param localChannelReference
+     * @param hash
+     * @return the ChannelFuture on write operation
+     * @throws OpenR66ProtocolPacketException
+     */
+    public static ChannelFuture writeEndTransferAsync(
+            LocalChannelReference localChannelReference, String hash)
+            throws OpenR66ProtocolPacketException {
+        EndTransferPacket packet;
+        if (hash == null) {
+            packet = new EndTransferPacket(LocalPacketFactory.REQUESTPACKET);
+        } else {
+            packet = new EndTransferPacket(LocalPacketFactory.REQUESTPACKET, hash);
+        }
+        localChannelReference.sessionNewState(R66FiniteDualStates.ENDTRANSFERS);
+        return writeAbstractLocalPacket(localChannelReference, packet, false);
+    }
+
     /**
      * Write an AbstractLocalPacket to the network Channel
      * 
@@ -309,7 +378,10 @@ public class ChannelUtils extends Thread {
      * @param localChannelReference
      * @param size
      * @return the wait in ms
+     * @deprecated senders rely on the writability of the network channel (see
+     *             NetworkChannelReference.waitForWritability)
      */
+    @Deprecated
     public static final long willBeWaitingWriting(LocalChannelReference localChannelReference,
             int size) {
         ChannelTrafficShapingHandler cts = localChannelReference.getChannelTrafficShapingHandler();
@@ -322,7 +394,10 @@ public class ChannelUtils extends Thread {
      * @param cts
      * @param size
      * @return the wait in ms
+     * @deprecated senders rely on the writability of the network channel (see
+     *             NetworkChannelReference.waitForWritability)
      */
+    @Deprecated
     public static final long willBeWaitingWriting(ChannelTrafficShapingHandler cts, int size) {
         long currentTime = System.currentTimeMillis();
         if (cts != null && Configuration.configuration.getServerChannelWriteLimit() > 0) {
@@ -408,6 +483,14 @@ public class ChannelUtils extends Thread {
         }
         logger.info("Exit Shutdown Command");
         terminateCommandChannels();
+        if (Configuration.configuration.getCheckpointJournal() != null) {
+            logger.info("Exit Shutdown Checkpoint Journal");
+            Configuration.configuration.getCheckpointJournal().close();
+        }
+        if (Configuration.configuration.getCheckpointService() != null) {
+            logger.info("Exit Shutdown Checkpoints");
+            Configuration.configuration.getCheckpointService().stop();
+        }
         logger.info("Exit Shutdown Db Connection");
         DbAdmin.closeAllConnection();
         logger.info("Exit Shutdown ServerStop");
@@ -0,0 +1,286 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.openr66.protocol.configuration.Configuration;
+import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
+
+/**
+ * Bundle of small files sent as one transfer.<br>
+ * <br>
+ * The members are written back to back in one file, each one preceded by its name and its size,
+ * such that the bundle is transferred (and restarted) as any other file under one request. The
+ * transfer information starts with BUNDLE_INFO: once received, the requested host extracts the
+ * members in a directory of their own next to the bundle (one per transfer, such that members of
+ * different bundles never overwrite each other) and runs the post tasks of the rule once per
+ * member.<br>
+ * <br>
+ * A bundle is only sent to a partner advertising it in its configuration.
+ *
+ * @author Frederic Bregier
+ */
+public class FileBundle {
+    /**
+     * Prefix of the transfer information of a bundle
+     */
+    public static final String BUNDLE_INFO = "#BUNDLE#";
+    /**
+     * Key of the results of the members in the TransferMap of the runner
+     */
+    public static final String JSON_BUNDLE = "BUNDLE";
+    /**
+     * Extension of bundle files
+     */
+    public static final String EXTENSION = ".r66bundle";
+    /**
+     * Files bigger than this size are not bundled
+     */
+    public static final long MAXIMAL_FILESIZE = 1024 * 1024;
+    /**
+     * Maximum number of members in one bundle
+     */
+    public static final int MAXIMAL_MEMBERS = 10000;
+
+    private static final int MAGIC = 0x52363642;
+
+    private static final int BUFFER_SIZE = 0x10000;
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private FileBundle() {
+    }
+
+    /**
+     *
+     * @param fileInformation
+     *            the transfer information as given by the user (could be null)
+     * @return the transfer information of a bundle
+     */
+    public static String getFileInformation(String fileInformation) {
+        if (fileInformation == null || fileInformation.isEmpty()) {
+            return BUNDLE_INFO;
+        }
+        return BUNDLE_INFO + " " + fileInformation;
+    }
+
+    /**
+     *
+     * @param fileInformation
+     * @return True if this transfer information is the one of a bundle
+     */
+    public static boolean isBundle(String fileInformation) {
+        return fileInformation != null && fileInformation.startsWith(BUNDLE_INFO);
+    }
+
+    /**
+     *
+     * @param hostId
+     * @return True if this partner is known to accept bundles
+     */
+    public static boolean isAllowed(String hostId) {
+        PartnerConfiguration partner = Configuration.configuration.getVersions().get(hostId);
+        return partner != null && partner.useJson() && partner.isBundle();
+    }
+
+    /**
+     *
+     * @param file
+     * @return True if this file could be a member of a bundle
+     */
+    public static boolean isBundleable(File file) {
+        return file.isFile() && file.length() <= MAXIMAL_FILESIZE;
+    }
+
+    /**
+     * Create a new bundle in the working directory
+     *
+     * @param files
+     *            the members (only their names are kept, so they must be unique)
+     * @return the bundle file
+     * @throws IOException
+     */
+    public static File create(List<File> files) throws IOException {
+        File dir = new File(Configuration.configuration.getBaseDirectory()
+                + Configuration.configuration.getWorkingPath());
+        File bundle = new File(dir, "bundle_" + System.currentTimeMillis() + "_"
+                + counter.incrementAndGet() + EXTENSION);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(bundle), BUFFER_SIZE));
+        boolean ok = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(files.size());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (File file : files) {
+                long length = file.length();
+                out.writeUTF(file.getName());
+                out.writeLong(length);
+                InputStream in = new FileInputStream(file);
+                try {
+                    copy(in, out, length, buffer);
+                } finally {
+                    in.close();
+                }
+            }
+            ok = true;
+        } finally {
+            out.close();
+            if (!ok) {
+                bundle.delete();
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     *
+     * @param bundle
+     *            the received bundle
+     * @param specialId
+     *            the id of the transfer of this bundle
+     * @return the directory where to extract the members of this bundle
+     */
+    public static File getMemberDirectory(File bundle, long specialId) {
+        String name = bundle.getName();
+        if (name.endsWith(EXTENSION)) {
+            name = name.substring(0, name.length() - EXTENSION.length());
+        }
+        return new File(bundle.getParentFile(), name + "_" + specialId);
+    }
+
+    /**
+     * Extract all members of a bundle
+     *
+     * @param bundle
+     * @param dir
+     *            the directory where to extract the members (created if needed)
+     * @return the members in the order of the bundle
+     * @throws IOException
+     */
+    public static List<File> extract(File bundle, File dir) throws IOException {
+        return extract(bundle, dir, Collections.<String> emptySet());
+    }
+
+    /**
+     * Extract the members of a bundle, except the ones already done. A member already in the
+     * directory is replaced (as a restarted bundle extracts its members again), which is why each
+     * bundle must have its own directory.
+     *
+     * @param bundle
+     * @param dir
+     *            the directory where to extract the members (created if needed)
+     * @param done
+     *            the names of the members not to extract again
+     * @return the extracted members in the order of the bundle
+     * @throws IOException
+     *             if the bundle is invalid, including two members with the same name
+     */
+    public static List<File> extract(File bundle, File dir, Collection<String> done)
+            throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory for bundle members: " + dir);
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(bundle), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a bundle: " + bundle);
+            }
+            int nb = in.readInt();
+            if (nb < 0 || nb > MAXIMAL_MEMBERS) {
+                throw new IOException("Invalid number of members: " + nb);
+            }
+            List<File> members = new ArrayList<File>(nb);
+            Set<String> names = new HashSet<String>();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int i = 0; i < nb; i++) {
+                String name = in.readUTF();
+                long length = in.readLong();
+                if (name.isEmpty() || name.equals(".") || name.equals("..")
+                        || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || length < 0) {
+                    throw new IOException("Invalid member in bundle: " + name);
+                }
+                if (!names.add(name)) {
+                    throw new IOException("Duplicate member in bundle: " + name);
+                }
+                if (done.contains(name)) {
+                    skip(in, length);
+                    continue;
+                }
+                File member = new File(dir, name);
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(member),
+                        BUFFER_SIZE);
+                try {
+                    copy(in, out, length, buffer);
+                } finally {
+                    out.close();
+                }
+                members.add(member);
+            }
+            return members;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skip(DataInputStream in, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes((int) Math.min(Integer.MAX_VALUE, remaining));
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Member shorter than expected");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length, byte[] buffer)
+            throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Member shorter than expected");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import io.netty.buffer.ByteBuf;
@@ -524,6 +525,35 @@ public class FileUtils {
         digest.Update(buffer);
     }
 
+    /**
+     * Compute global hash (if possible) from a part of a FileChannel, using positional read into
+     * the given reusable buffer (of capacity at least length)
+     * 
+     * @param digest
+     * @param fileChannel
+     * @param buffer
+     * @param position
+     * @param length
+     * @throws IOException
+     */
+    public static void computeGlobalHash(FilesystemBasedDigest digest, FileChannel fileChannel,
+            ByteBuffer buffer, long position, int length) throws IOException {
+        if (digest == null) {
+            return;
+        }
+        buffer.clear();
+        buffer.limit(length);
+        long readPosition = position;
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, readPosition);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            readPosition += read;
+        }
+        digest.Update(buffer.array(), 0, length);
+    }
+
     /**
      * Compute global hash (if possible) from a file but up to length
      * 
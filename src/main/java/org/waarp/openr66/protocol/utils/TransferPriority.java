@@ -0,0 +1,104 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.utils;
+
+import org.waarp.openr66.database.data.DbTaskRunner;
+import org.waarp.openr66.protocol.configuration.Configuration;
+
+/**
+ * Priority of transfers.<br>
+ * <br>
+ * A priority goes from LOWEST to HIGHEST. It is given by the request itself (kept in the
+ * TransferMap of the runner), else by the rule, else the default one. The priority orders the
+ * admission of the transfers to submit, and its weight (priority + 1) is the share of the transfer
+ * when writes and bandwidth are shared by weighted fair queuing.
+ *
+ * @author Frederic Bregier
+ */
+public class TransferPriority {
+    /**
+     * Lowest priority
+     */
+    public static final int LOWEST = 0;
+    /**
+     * Highest priority
+     */
+    public static final int HIGHEST = 9;
+    /**
+     * Weight of the highest priority
+     */
+    public static final int MAX_WEIGHT = HIGHEST + 1;
+
+    private TransferPriority() {
+    }
+
+    /**
+     *
+     * @param priority
+     * @return the priority within LOWEST and HIGHEST
+     */
+    public static int check(int priority) {
+        if (priority < LOWEST) {
+            return LOWEST;
+        }
+        if (priority > HIGHEST) {
+            return HIGHEST;
+        }
+        return priority;
+    }
+
+    /**
+     *
+     * @param priority
+     * @return the weight of this priority (from 1 to MAX_WEIGHT)
+     */
+    public static int getWeight(int priority) {
+        return check(priority) + 1;
+    }
+
+    /**
+     *
+     * @param runner
+     * @return the priority of this transfer: from the request, else from the rule, else the
+     *         default one
+     */
+    public static int getPriority(DbTaskRunner runner) {
+        if (runner == null) {
+            return Configuration.configuration.getDefaultPriority();
+        }
+        int priority = runner.getRequestedPriority();
+        if (priority >= LOWEST) {
+            return check(priority);
+        }
+        return getRulePriority(runner.getRuleId());
+    }
+
+    /**
+     *
+     * @param ruleId
+     * @return the priority of this rule, else the default one
+     */
+    public static int getRulePriority(String ruleId) {
+        Integer priority = ruleId != null ? Configuration.configuration.getRulePriorities().get(ruleId)
+                : null;
+        if (priority == null) {
+            return Configuration.configuration.getDefaultPriority();
+        }
+        return check(priority);
+    }
+}
@@ -61,6 +61,7 @@ public class ChangeBandwidthLimits implements Runnable {
             "   -rglob limitGlobalRead\n" +
             "   -wsess limitSessionWrite\n" +
             "   -rsess limitSessionWrite\n" +
+            "   -partner hostid or -rule ruleid with -wclass limitClassWrite and/or -aclass assuredClassWrite\n" +
             "   -host host (optional)";
 
     protected final R66Future future;
@@ -70,6 +71,10 @@ public class ChangeBandwidthLimits implements Runnable {
     protected final long readSessionLimit;
     protected final NetworkTransaction networkTransaction;
     protected DbHostAuth host;
+    protected String partner = null;
+    protected String rule = null;
+    protected long writeClassLimit = -1;
+    protected long assuredClassLimit = -1;
 
     public ChangeBandwidthLimits(R66Future future, long wgl, long rgl, long wsl, long rsl,
             NetworkTransaction networkTransaction) {
@@ -86,6 +91,24 @@ public class ChangeBandwidthLimits implements Runnable {
         this.host = host;
     }
 
+    /**
+     * Set the bandwidth class to get or set (the rule one if rule is given, else the partner one)
+     * 
+     * @param partner
+     * @param rule
+     * @param writeClassLimit
+     *            negative to keep the current value
+     * @param assuredClassLimit
+     *            negative to keep the current value
+     */
+    public void setBandwidthClass(String partner, String rule, long writeClassLimit,
+            long assuredClassLimit) {
+        this.partner = partner;
+        this.rule = rule;
+        this.writeClassLimit = writeClassLimit;
+        this.assuredClassLimit = assuredClassLimit;
+    }
+
     /**
      * Prior to call this method, the pipeline and NetworkTransaction must have been initialized. It
      * is the responsibility of the caller to finish all network resources.
@@ -125,7 +148,10 @@ public class ChangeBandwidthLimits implements Runnable {
         logger.debug("UseJson: " + useJson);
         if (useJson) {
             BandwidthJsonPacket node = new BandwidthJsonPacket();
-            if (writeGlobalLimit < 0 && readGlobalLimit < 0 && writeSessionLimit < 0 && readSessionLimit < 0) {
+            node.setPartner(partner);
+            node.setRule(rule);
+            if (writeGlobalLimit < 0 && readGlobalLimit < 0 && writeSessionLimit < 0 && readSessionLimit < 0
+                    && writeClassLimit < 0 && assuredClassLimit < 0) {
                 // will ask current values instead
                 node.setSetter(false);
                 valid = new JsonCommandPacket(node, LocalPacketFactory.BANDWIDTHPACKET);
@@ -135,6 +161,8 @@ public class ChangeBandwidthLimits implements Runnable {
                 node.setReadglobal(readGlobalLimit);
                 node.setWritesession(writeSessionLimit);
                 node.setReadsession(readSessionLimit);
+                node.setWriteclass(writeClassLimit);
+                node.setAssuredclass(assuredClassLimit);
                 valid = new JsonCommandPacket(node, LocalPacketFactory.BANDWIDTHPACKET);
             }
         } else {
@@ -172,6 +200,10 @@ public class ChangeBandwidthLimits implements Runnable {
     protected static long swriteSessionLimit = -1;
     protected static long sreadSessionLimit = -1;
     protected static String stohost = null;
+    protected static String spartner = null;
+    protected static String srule = null;
+    protected static long swriteClassLimit = -1;
+    protected static long sassuredClassLimit = -1;
 
     protected static boolean getParams(String[] args) {
         if (args.length < 3) {
@@ -197,6 +229,18 @@ public class ChangeBandwidthLimits implements Runnable {
                 } else if (args[i].equalsIgnoreCase("-rsess")) {
                     i++;
                     sreadSessionLimit = Long.parseLong(args[i]);
+                } else if (args[i].equalsIgnoreCase("-partner")) {
+                    i++;
+                    spartner = args[i];
+                } else if (args[i].equalsIgnoreCase("-rule")) {
+                    i++;
+                    srule = args[i];
+                } else if (args[i].equalsIgnoreCase("-wclass")) {
+                    i++;
+                    swriteClassLimit = Long.parseLong(args[i]);
+                } else if (args[i].equalsIgnoreCase("-aclass")) {
+                    i++;
+                    sassuredClassLimit = Long.parseLong(args[i]);
                 } else if (args[i].equalsIgnoreCase("-host")) {
                     i++;
                     stohost = args[i];
@@ -205,7 +249,8 @@ public class ChangeBandwidthLimits implements Runnable {
             }
         }
         if (swriteGlobalLimit == -1 && sreadGlobalLimit == -1 &&
-                swriteSessionLimit == -1 && sreadSessionLimit == -1) {
+                swriteSessionLimit == -1 && sreadSessionLimit == -1 &&
+                spartner == null && srule == null) {
             logger.error(_INFO_ARGS);
             return false;
         }
@@ -233,6 +278,9 @@ public class ChangeBandwidthLimits implements Runnable {
             ChangeBandwidthLimits transaction = new ChangeBandwidthLimits(future,
                     swriteGlobalLimit, sreadGlobalLimit, swriteSessionLimit, sreadSessionLimit,
                     networkTransaction);
+            if (spartner != null || srule != null) {
+                transaction.setBandwidthClass(spartner, srule, swriteClassLimit, sassuredClassLimit);
+            }
             if (stohost != null) {
                 try {
                     transaction.setHost(new DbHostAuth(DbConstant.admin.getSession(), stohost));
@@ -0,0 +1,82 @@
+package org.waarp.openr66.context.filesystem;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import io.netty.buffer.Unpooled;
+
+import org.waarp.common.file.DataBlock;
+import org.waarp.openr66.context.R66Session;
+
+public class R66FileTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("preallocate", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static DataBlock block(int size) {
+        DataBlock dataBlock = new DataBlock();
+        dataBlock.setBlock(Unpooled.wrappedBuffer(new byte[size]));
+        return dataBlock;
+    }
+
+    @Test
+    public void testInterruptedTransferTruncated() throws Exception {
+        R66File r66File = new R66File(mock(R66Session.class), null, file.getPath());
+        assertTrue(r66File.preallocate(10000, 1000, 0));
+        assertEquals(10000, file.length());
+        r66File.writeDataBlock(block(1000), 0);
+        r66File.writeDataBlock(block(1000), 1000);
+        assertEquals(2000, r66File.getWrittenSize());
+        // written out of order after a missing block
+        r66File.writeDataBlock(block(1000), 4000);
+        assertEquals(2000, r66File.getWrittenSize());
+        r66File.closeFile();
+        assertEquals(2000, file.length());
+    }
+
+    @Test
+    public void testRestartFromCheckpointedRank() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[3500]);
+        out.close();
+        R66File r66File = new R66File(mock(R66Session.class), null, file.getPath());
+        // restart from the last checkpoint, before the end of the current data
+        assertTrue(r66File.preallocate(10000, 1000, 2));
+        assertEquals(2000, r66File.getWrittenSize());
+        r66File.writeDataBlock(block(1000), 3000);
+        assertEquals(2000, r66File.getWrittenSize());
+        r66File.writeDataBlock(block(1000), 2000);
+        assertEquals(4000, r66File.getWrittenSize());
+        r66File.closeFile();
+        assertEquals(4000, file.length());
+    }
+
+    @Test
+    public void testCompleteTransferKept() throws Exception {
+        R66File r66File = new R66File(mock(R66Session.class), null, file.getPath());
+        assertTrue(r66File.preallocate(2500, 1000, 0));
+        r66File.writeDataBlock(block(500), 2000);
+        r66File.writeDataBlock(block(1000), 1000);
+        assertEquals(0, r66File.getWrittenSize());
+        r66File.writeDataBlock(block(1000), 0);
+        // replayed block
+        r66File.writeDataBlock(block(1000), 1000);
+        assertEquals(2500, r66File.getWrittenSize());
+        r66File.closeFile();
+        assertEquals(2500, file.length());
+    }
+}
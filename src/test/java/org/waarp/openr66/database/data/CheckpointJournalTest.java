@@ -0,0 +1,213 @@
+package org.waarp.openr66.database.data;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+
+import org.waarp.openr66.database.data.CheckpointJournal.Record;
+
+public class CheckpointJournalTest {
+    private File directory;
+
+    /**
+     * Checkpoints written in memory instead of the RUNNER table
+     */
+    private static class MemoryCheckpointService extends CheckpointService {
+        final ConcurrentHashMap<Long, Integer> table = new ConcurrentHashMap<Long, Integer>();
+        volatile boolean failing = false;
+
+        MemoryCheckpointService() {
+            super(1000, 1000000);
+        }
+
+        @Override
+        protected void writeBatch(List<Checkpoint> batch) throws WaarpDatabaseException {
+            if (failing) {
+                throw new WaarpDatabaseSqlException("Database unavailable");
+            }
+            for (Checkpoint checkpoint : batch) {
+                table.put(checkpoint.specialId, checkpoint.rank);
+            }
+        }
+    }
+
+    /**
+     * Journal whose background compactions are run on demand
+     */
+    private static class ManualJournal extends CheckpointJournal {
+        final List<Thread> compactions = new ArrayList<Thread>();
+
+        ManualJournal(File directory, CheckpointService service) throws IOException {
+            super(directory, 0, service);
+        }
+
+        @Override
+        protected void launchCompaction(Thread task) {
+            compactions.add(task);
+        }
+
+        void runCompactions() {
+            List<Thread> tasks = new ArrayList<Thread>(compactions);
+            compactions.clear();
+            for (Thread task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * As done by incrementRank: checkpoint first, then journal
+     */
+    private static void progress(CheckpointService service, CheckpointJournal journal, long id,
+            int rank) {
+        service.checkpoint("requested requester " + id, "owner", "requester", "requested", id,
+                rank, "R");
+        journal.append("owner", "requester", "requested", id, rank, 4, "R");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private Map<String, Record> readAll() throws IOException {
+        Map<String, Record> last = new HashMap<String, Record>();
+        CheckpointJournal.read(new File(directory, "checkpoint0.journal"), last);
+        CheckpointJournal.read(new File(directory, "checkpoint1.journal"), last);
+        return last;
+    }
+
+    @Test
+    public void testLastRecordAfterCrash() throws IOException {
+        CheckpointJournal journal = new CheckpointJournal(directory, 0,
+                new CheckpointService(1000, 100));
+        for (int rank = 1; rank <= 200; rank++) {
+            for (long id = 1; id <= 3; id++) {
+                journal.append("owner", "requester", "requested", id, rank + (int) id, 4, "R");
+            }
+        }
+        // no close: the mapped records survive the end of the process
+        Map<String, Record> last = readAll();
+        assertEquals(3, last.size());
+        for (long id = 1; id <= 3; id++) {
+            Record record = last.get("requested requester " + id);
+            assertEquals(200 + id, record.rank);
+            assertEquals(4, record.step);
+            assertEquals("R", record.status);
+            assertEquals("owner", record.ownerRequest);
+        }
+    }
+
+    @Test
+    public void testTornRecordIgnored() throws IOException {
+        CheckpointJournal journal = new CheckpointJournal(directory, 0,
+                new CheckpointService(1000, 100));
+        journal.append("owner", "requester", "requested", 1, 10, 4, "R");
+        journal.append("owner", "requester", "requested", 1, 11, 4, "R");
+        // second record partially written
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "checkpoint0.journal"),
+                "rw");
+        try {
+            int length = file.readInt();
+            file.seek(length + 4 + 8 + 8);
+            file.writeInt(12345);
+        } finally {
+            file.close();
+        }
+        Record record = readAll().get("requested requester 1");
+        assertEquals(10, record.rank);
+    }
+
+    @Test(expected = IOException.class)
+    public void testPreviousJournalKept() throws IOException {
+        new CheckpointJournal(directory, 0, new CheckpointService(1000, 100));
+        new CheckpointJournal(directory, 0, new CheckpointService(1000, 100));
+    }
+
+    @Test
+    public void testSwitchSegments() throws IOException {
+        MemoryCheckpointService service = new MemoryCheckpointService();
+        ManualJournal journal = new ManualJournal(directory, service);
+        // about 1000 records per segment of 64 KB
+        for (int rank = 1; rank <= 1500; rank++) {
+            progress(service, journal, 1 + rank % 3, rank);
+        }
+        assertEquals(1, journal.compactions.size());
+        journal.runCompactions();
+        // the full segment is compacted then cleared, the rest kept in the active one
+        assertEquals(1500, (int) service.table.get(1L));
+        for (int rank = 1501; rank <= 2500; rank++) {
+            progress(service, journal, 1 + rank % 3, rank);
+        }
+        journal.runCompactions();
+        for (int rank = 2501; rank <= 2700; rank++) {
+            progress(service, journal, 1 + rank % 3, rank);
+        }
+        // crash: the journal holds the last position of every transfer
+        Map<String, Record> last = readAll();
+        assertEquals(2700, last.get("requested requester 1").rank);
+        assertEquals(2698, last.get("requested requester 2").rank);
+        assertEquals(2699, last.get("requested requester 3").rank);
+        assertEquals(64 * 1024, new File(directory, "checkpoint0.journal").length());
+        assertEquals(64 * 1024, new File(directory, "checkpoint1.journal").length());
+    }
+
+    @Test
+    public void testGrowWhileNotCompacted() throws IOException {
+        MemoryCheckpointService service = new MemoryCheckpointService();
+        service.failing = true;
+        ManualJournal journal = new ManualJournal(directory, service);
+        for (int rank = 1; rank <= 1500; rank++) {
+            progress(service, journal, 1 + rank % 3, rank);
+        }
+        // compaction failed: the full segment must be kept
+        journal.runCompactions();
+        assertTrue(service.table.isEmpty());
+        for (int rank = 1501; rank <= 3000; rank++) {
+            progress(service, journal, 1 + rank % 3, rank);
+        }
+        assertTrue(new File(directory, "checkpoint1.journal").length() > 64 * 1024);
+        Map<String, Record> last = readAll();
+        assertEquals(3000, last.get("requested requester 1").rank);
+        // the database is back: the retried compaction clears the old segment
+        service.failing = false;
+        journal.runCompactions();
+        assertEquals(3000, (int) service.table.get(1L));
+        assertEquals(3000, readAll().get("requested requester 1").rank);
+    }
+
+    @Test
+    public void testReplayDeletesEmptyJournal() throws IOException {
+        new CheckpointJournal(directory, 0, new CheckpointService(1000, 100));
+        // idle run: nothing to replay, but the next start must get a new journal
+        assertEquals(0, CheckpointJournal.replay(mock(DbSession.class), directory));
+        assertFalse(new File(directory, "checkpoint0.journal").exists());
+        assertFalse(new File(directory, "checkpoint1.journal").exists());
+        new CheckpointJournal(directory, 0, new CheckpointService(1000, 100));
+    }
+}
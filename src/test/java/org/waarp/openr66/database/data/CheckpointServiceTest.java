@@ -0,0 +1,275 @@
+package org.waarp.openr66.database.data;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+
+public class CheckpointServiceTest {
+
+    /**
+     * Checkpoints written in memory instead of the RUNNER table, flushed in the caller thread once
+     * the batch size is reached
+     */
+    private static class MemoryCheckpointService extends CheckpointService {
+        final ConcurrentHashMap<String, Integer> table = new ConcurrentHashMap<String, Integer>();
+        volatile boolean failing = false;
+        int batches = 0;
+
+        MemoryCheckpointService(int batchSize) {
+            super(1000, batchSize);
+        }
+
+        @Override
+        protected void scheduleFlush() {
+            flush();
+        }
+
+        @Override
+        protected void writeBatch(List<Checkpoint> batch) throws WaarpDatabaseException {
+            if (failing) {
+                throw new WaarpDatabaseSqlException("Database unavailable");
+            }
+            batches++;
+            for (Checkpoint checkpoint : batch) {
+                table.put(checkpoint.requester + " " + checkpoint.specialId, checkpoint.rank);
+            }
+        }
+
+        int getRank(long specialId) {
+            Integer rank = table.get("requester " + specialId);
+            return rank == null ? 0 : rank;
+        }
+    }
+
+    private static void checkpoint(CheckpointService service, long specialId, int rank) {
+        service.checkpoint("requested requester " + specialId, "owner", "requester", "requested",
+                specialId, rank, "R");
+    }
+
+    @Test
+    public void testCoalescedInOneBatch() {
+        MemoryCheckpointService service = new MemoryCheckpointService(100);
+        for (int rank = 1; rank <= 1000; rank++) {
+            for (long id = 1; id <= 3; id++) {
+                checkpoint(service, id, rank);
+            }
+        }
+        assertEquals(0, service.batches);
+        assertEquals(3, service.getPending());
+        assertEquals(3, service.flush());
+        assertEquals(1, service.batches);
+        for (long id = 1; id <= 3; id++) {
+            assertEquals(1000, service.getRank(id));
+        }
+        assertEquals(0, service.flush());
+    }
+
+    @Test
+    public void testFlushOnBatchSize() {
+        MemoryCheckpointService service = new MemoryCheckpointService(10);
+        for (long id = 1; id <= 9; id++) {
+            checkpoint(service, id, 1);
+        }
+        assertEquals(0, service.batches);
+        checkpoint(service, 10, 1);
+        assertEquals(1, service.batches);
+        assertEquals(0, service.getPending());
+    }
+
+    /**
+     * Crash at random points of concurrent transfers: the rank in the table is never ahead of the
+     * blocks written, and restarting from it rebuilds every file completely
+     */
+    @Test
+    public void testRestartAfterCrash() {
+        Random random = new Random(42);
+        int blocks = 500;
+        int transfers = 20;
+        for (int round = 0; round < 50; round++) {
+            MemoryCheckpointService service = new MemoryCheckpointService(1 + random.nextInt(20));
+            boolean[][] files = new boolean[transfers][blocks];
+            int[] written = new int[transfers];
+            int crashAt = random.nextInt(blocks * transfers);
+            for (int step = 0; step < crashAt; step++) {
+                int id = random.nextInt(transfers);
+                if (written[id] == blocks) {
+                    continue;
+                }
+                // the block is written before the rank is incremented
+                files[id][written[id]] = true;
+                written[id]++;
+                checkpoint(service, id, written[id]);
+                if (random.nextInt(50) == 0) {
+                    service.flush();
+                }
+            }
+            // crash: pending checkpoints are lost, restart from the table
+            MemoryCheckpointService restarted = new MemoryCheckpointService(10);
+            restarted.table.putAll(service.table);
+            for (int id = 0; id < transfers; id++) {
+                int rank = restarted.getRank(id);
+                assertTrue("rank ahead of data", rank <= written[id]);
+                for (int block = 0; block < rank; block++) {
+                    assertTrue("missing block before rank", files[id][block]);
+                }
+                for (int block = rank; block < blocks; block++) {
+                    files[id][block] = true;
+                    checkpoint(restarted, id, block + 1);
+                }
+            }
+            restarted.flush();
+            for (int id = 0; id < transfers; id++) {
+                assertEquals(blocks, restarted.getRank(id));
+                for (int block = 0; block < blocks; block++) {
+                    assertTrue(files[id][block]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFailedBatchKeptPending() {
+        MemoryCheckpointService service = new MemoryCheckpointService(100);
+        checkpoint(service, 1, 5);
+        service.failing = true;
+        assertEquals(0, service.flush());
+        assertEquals(1, service.getPending());
+        service.failing = false;
+        assertEquals(1, service.flush());
+        assertEquals(5, service.getRank(1));
+    }
+
+    @Test
+    public void testCheckpointDuringBatchKeptForNext() throws InterruptedException {
+        final CountDownLatch inBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MemoryCheckpointService service = new MemoryCheckpointService(100) {
+            @Override
+            protected void writeBatch(List<Checkpoint> batch) throws WaarpDatabaseException {
+                inBatch.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                super.writeBatch(batch);
+            }
+        };
+        checkpoint(service, 1, 7);
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                service.flush();
+            }
+        };
+        flusher.start();
+        assertTrue(inBatch.await(10, TimeUnit.SECONDS));
+        // the checkpoint taken by the batch is not updated anymore
+        checkpoint(service, 1, 8);
+        assertEquals(1, service.getPending());
+        release.countDown();
+        flusher.join();
+        assertEquals(7, service.getRank(1));
+        assertEquals(1, service.flush());
+        assertEquals(8, service.getRank(1));
+    }
+
+    @Test
+    public void testForgetWaitsForFlushInProgress() throws InterruptedException {
+        final CountDownLatch inBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MemoryCheckpointService service = new MemoryCheckpointService(100) {
+            @Override
+            protected void writeBatch(List<Checkpoint> batch) throws WaarpDatabaseException {
+                inBatch.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                super.writeBatch(batch);
+            }
+        };
+        checkpoint(service, 1, 7);
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                service.flush();
+            }
+        };
+        flusher.start();
+        assertTrue(inBatch.await(10, TimeUnit.SECONDS));
+        final CountDownLatch forgotten = new CountDownLatch(1);
+        Thread saver = new Thread() {
+            @Override
+            public void run() {
+                service.forget("requested requester 1");
+                forgotten.countDown();
+            }
+        };
+        saver.start();
+        // the synchronous save must not run before the older checkpoint is written
+        assertFalse(forgotten.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(forgotten.await(10, TimeUnit.SECONDS));
+        assertEquals(7, service.getRank(1));
+        flusher.join();
+        saver.join();
+    }
+
+    @Test
+    public void testForgetDuringFailedBatch() throws InterruptedException {
+        final CountDownLatch inBatch = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MemoryCheckpointService service = new MemoryCheckpointService(100) {
+            @Override
+            protected void writeBatch(List<Checkpoint> batch) throws WaarpDatabaseException {
+                inBatch.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                super.writeBatch(batch);
+            }
+        };
+        checkpoint(service, 1, 7);
+        checkpoint(service, 2, 3);
+        service.failing = true;
+        Thread flusher = new Thread() {
+            @Override
+            public void run() {
+                service.flush();
+            }
+        };
+        flusher.start();
+        assertTrue(inBatch.await(10, TimeUnit.SECONDS));
+        final CountDownLatch forgotten = new CountDownLatch(1);
+        Thread saver = new Thread() {
+            @Override
+            public void run() {
+                service.forget("requested requester 1");
+                forgotten.countDown();
+            }
+        };
+        saver.start();
+        assertFalse(forgotten.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(forgotten.await(10, TimeUnit.SECONDS));
+        flusher.join();
+        saver.join();
+        // the full row is now written synchronously
+        service.table.put("requester 1", 9);
+        service.failing = false;
+        // only the checkpoint not forgotten is kept pending
+        assertEquals(1, service.getPending());
+        assertEquals(1, service.flush());
+        assertEquals(9, service.getRank(1));
+        assertEquals(3, service.getRank(2));
+    }
+}
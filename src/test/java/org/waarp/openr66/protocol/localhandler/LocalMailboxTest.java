@@ -0,0 +1,124 @@
+package org.waarp.openr66.protocol.localhandler;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.util.concurrent.EventExecutor;
+
+import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacket;
+
+public class LocalMailboxTest {
+    private static final Integer LOCALID = 12;
+    private static final Integer REMOTEID = 34;
+
+    private ConcurrentHashMap<Integer, LocalMailbox> mailboxes;
+    private ConcurrentHashMap<Integer, LocalChannelReference> localChannels;
+    private LocalMailbox mailbox;
+    private LocalChannel localChannel;
+    private LocalChannelReference localChannelReference;
+
+    @Before
+    public void setUp() {
+        mailboxes = new ConcurrentHashMap<Integer, LocalMailbox>();
+        localChannels = new ConcurrentHashMap<Integer, LocalChannelReference>();
+        Channel networkChannel = mock(Channel.class);
+        when(networkChannel.remoteAddress()).thenReturn(new InetSocketAddress("127.0.0.1", 6666));
+        // the executor of the network channel runs the tasks immediately
+        EventExecutor executor = mock(EventExecutor.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).when(executor).execute(any(Runnable.class));
+        localChannel = mock(LocalChannel.class);
+        localChannelReference = mock(LocalChannelReference.class);
+        when(localChannelReference.getRemoteId()).thenReturn(REMOTEID);
+        when(localChannelReference.getLocalChannel()).thenReturn(localChannel);
+        when(localChannelReference.isDirectDispatch()).thenReturn(false);
+        mailbox = new LocalMailbox(mailboxes, localChannels, networkChannel, executor, REMOTEID,
+                LOCALID);
+        mailboxes.put(LOCALID, mailbox);
+    }
+
+    private static NetworkPacket newPacket(int i) {
+        ByteBuf buffer = Unpooled.buffer(4);
+        buffer.writeInt(i);
+        return new NetworkPacket(REMOTEID, LOCALID, (byte) 0, buffer);
+    }
+
+    @Test
+    public void testDeliveredInOrderOnRegistration() {
+        int globalPackets = LocalMailbox.getGlobalPackets();
+        List<ByteBuf> buffers = new ArrayList<ByteBuf>();
+        for (int i = 0; i < 10; i++) {
+            NetworkPacket packet = newPacket(i);
+            buffers.add(packet.getBuffer());
+            assertTrue(mailbox.offer(REMOTEID, packet));
+        }
+        assertEquals(globalPackets + 10, LocalMailbox.getGlobalPackets());
+        verify(localChannel, never()).write(any());
+        mailbox.ready(localChannelReference);
+        InOrder inOrder = inOrder(localChannel);
+        for (ByteBuf buffer : buffers) {
+            inOrder.verify(localChannel).write(buffer);
+        }
+        inOrder.verify(localChannel).flush();
+        assertEquals(globalPackets, LocalMailbox.getGlobalPackets());
+        // once delivered, the next packets go directly to the local channel
+        assertFalse(mailboxes.containsKey(LOCALID));
+        assertFalse(mailbox.offer(REMOTEID, newPacket(10)));
+    }
+
+    @Test
+    public void testDeliveredOnPeriodicCheck() {
+        assertTrue(mailbox.offer(REMOTEID, newPacket(0)));
+        mailbox.run();
+        verify(localChannel, never()).write(any());
+        localChannels.put(LOCALID, localChannelReference);
+        mailbox.run();
+        verify(localChannel).write(any());
+        assertFalse(mailboxes.containsKey(LOCALID));
+    }
+
+    @Test
+    public void testOverflowDropsPackets() {
+        int globalPackets = LocalMailbox.getGlobalPackets();
+        List<ByteBuf> buffers = new ArrayList<ByteBuf>();
+        for (int i = 0; i < LocalMailbox.MAXIMAL_PACKETS; i++) {
+            NetworkPacket packet = newPacket(i);
+            buffers.add(packet.getBuffer());
+            assertTrue(mailbox.offer(REMOTEID, packet));
+            assertEquals(2, packet.getBuffer().refCnt());
+        }
+        assertEquals(globalPackets + LocalMailbox.MAXIMAL_PACKETS, LocalMailbox.getGlobalPackets());
+        // one more packet: all waiting packets are dropped
+        NetworkPacket overflow = newPacket(LocalMailbox.MAXIMAL_PACKETS);
+        assertTrue(mailbox.offer(REMOTEID, overflow));
+        assertEquals(1, overflow.getBuffer().refCnt());
+        for (ByteBuf buffer : buffers) {
+            assertEquals(1, buffer.refCnt());
+        }
+        assertEquals(globalPackets, LocalMailbox.getGlobalPackets());
+        assertFalse(mailboxes.containsKey(LOCALID));
+        assertFalse(mailbox.offer(REMOTEID, newPacket(0)));
+        // nothing is delivered afterwards
+        mailbox.ready(localChannelReference);
+        verify(localChannel, never()).write(any());
+    }
+}
@@ -0,0 +1,82 @@
+package org.waarp.openr66.protocol.localhandler;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+
+public class RetrieveRunnerTest {
+
+    @Test
+    public void testMultiBlockRetrieveWithBlocksInFlight() throws Exception {
+        int blocksize = 1024;
+        byte[] file = new byte[blocksize * 20 + 123];
+        new Random(42).nextBytes(file);
+        File tmp = File.createTempFile("retrieve", ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        out.write(file);
+        out.close();
+        RandomAccessFile raf = new RandomAccessFile(tmp, "r");
+        FileChannel fileChannel = raf.getChannel();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // window large enough to never wait for room
+            HashingStage hashing = new HashingStage(new FilesystemBasedDigest(DigestAlgo.MD5), 32,
+                    executor);
+            // nothing is written before the whole file is read: all blocks are in flight at once
+            List<ByteBuf> inflight = new ArrayList<ByteBuf>();
+            for (int position = 0; position < file.length; position += blocksize) {
+                ByteBuf block = RetrieveRunner.readBlock(fileChannel, position,
+                        Math.min(blocksize, file.length - position), PooledByteBufAllocator.DEFAULT);
+                assertNotNull(block);
+                hashing.submit(block);
+                inflight.add(block);
+                assertFalse(hashing.isFull());
+            }
+            // the file is shorter than expected
+            assertNull(RetrieveRunner.readBlock(fileChannel, file.length - 10, blocksize,
+                    PooledByteBufAllocator.DEFAULT));
+            final CountDownLatch hashed = new CountDownLatch(1);
+            hashing.finish(new Runnable() {
+                public void run() {
+                    hashed.countDown();
+                }
+            });
+            assertTrue(hashed.await(10, TimeUnit.SECONDS));
+            String expected = FilesystemBasedDigest.getHex(MessageDigest.getInstance("MD5")
+                    .digest(file));
+            assertEquals(expected, hashing.getHash());
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            for (ByteBuf buffer : inflight) {
+                byte[] bytes = new byte[buffer.readableBytes()];
+                buffer.readBytes(bytes);
+                received.write(bytes);
+                // as done once written to the network
+                assertTrue(buffer.release());
+            }
+            assertArrayEquals(file, received.toByteArray());
+        } finally {
+            executor.shutdownNow();
+            raf.close();
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.waarp.openr66.protocol.localhandler;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+import org.waarp.openr66.protocol.configuration.PartnerConfiguration;
+
+public class StreamingDigestTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("digest", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * @param partnerAlgo
+     *            the algorithm of the partner for its final hash (null if no final hash)
+     */
+    private static StreamingDigest create(DigestAlgo partnerAlgo) {
+        LocalChannelReference localChannelReference = mock(LocalChannelReference.class);
+        if (partnerAlgo != null) {
+            PartnerConfiguration partner = mock(PartnerConfiguration.class);
+            when(partner.useFinalHash()).thenReturn(true);
+            when(partner.getDigestAlgo()).thenReturn(partnerAlgo);
+            when(localChannelReference.getPartner()).thenReturn(partner);
+        }
+        StreamingDigest digest = StreamingDigest.create(localChannelReference);
+        assertNotNull(digest);
+        return digest;
+    }
+
+    private static String md5(byte[] bytes) throws Exception {
+        return FilesystemBasedDigest.getHex(MessageDigest.getInstance("MD5").digest(bytes));
+    }
+
+    @Test
+    public void testKnownVectorInSeveralBlocks() {
+        // local algorithm is MD5
+        StreamingDigest digest = create(null);
+        assertFalse(digest.isDifferentAlgo());
+        digest.update(Unpooled.copiedBuffer("a", ASCII));
+        ByteBuf direct = Unpooled.directBuffer(2);
+        direct.writeBytes("bc".getBytes(ASCII));
+        digest.update(direct);
+        // the buffer is not consumed
+        assertEquals(2, direct.readableBytes());
+        direct.release();
+        digest.finish();
+        assertEquals(3, digest.getLength());
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", digest.getGlobalHash());
+        assertEquals(digest.getGlobalHash(), digest.getLocalHash());
+    }
+
+    @Test
+    public void testPartnerAlgoInOnePass() {
+        StreamingDigest digest = create(DigestAlgo.SHA1);
+        assertTrue(digest.isDifferentAlgo());
+        digest.update("abc".getBytes(ASCII), 0, 3);
+        digest.finish();
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", digest.getGlobalHash());
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", digest.getLocalHash());
+    }
+
+    @Test
+    public void testDirectBlocksLargerThanChunk() throws Exception {
+        byte[] bytes = new byte[200000];
+        new Random(42).nextBytes(bytes);
+        StreamingDigest digest = create(null);
+        for (int position = 0; position < bytes.length; position += 65536) {
+            int length = Math.min(65536, bytes.length - position);
+            ByteBuf block = Unpooled.directBuffer(length);
+            block.writeBytes(bytes, position, length);
+            digest.update(block);
+            block.release();
+        }
+        digest.finish();
+        assertEquals(bytes.length, digest.getLength());
+        assertEquals(md5(bytes), digest.getGlobalHash());
+    }
+
+    @Test
+    public void testPrimeOnRestart() throws Exception {
+        byte[] bytes = new byte[100000];
+        new Random(42).nextBytes(bytes);
+        int received = 70000;
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes, 0, received);
+        out.close();
+        StreamingDigest digest = create(null);
+        assertTrue(digest.prime(file, received));
+        digest.update(Unpooled.wrappedBuffer(bytes, received, bytes.length - received));
+        digest.finish();
+        assertEquals(bytes.length, digest.getLength());
+        assertEquals(md5(bytes), digest.getGlobalHash());
+        // the file is shorter than what was supposed to be received
+        assertFalse(create(null).prime(file, received + 1));
+    }
+}
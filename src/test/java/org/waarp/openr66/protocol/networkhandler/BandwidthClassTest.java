@@ -0,0 +1,97 @@
+package org.waarp.openr66.protocol.networkhandler;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import org.waarp.openr66.protocol.utils.TransferPriority;
+
+public class BandwidthClassTest {
+
+    /**
+     * Send blocks through this class for this duration, waiting as asked by reserve
+     *
+     * @return the number of bytes sent
+     */
+    private static long send(BandwidthClass bandwidthClass, int block, long duration)
+            throws InterruptedException {
+        long sent = 0;
+        long end = System.currentTimeMillis() + duration;
+        while (System.currentTimeMillis() < end) {
+            long wait = bandwidthClass.reserve(block);
+            if (wait > 0) {
+                Thread.sleep(Math.min(wait, Math.max(1, end - System.currentTimeMillis())));
+            } else {
+                sent += block;
+            }
+        }
+        return sent;
+    }
+
+    @Test
+    public void testCountedWithoutLimit() {
+        BandwidthClasses classes = new BandwidthClasses();
+        BandwidthClass ruleClass = classes.getBandwidthClass("partner", "rule");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, ruleClass.reserve(1000000));
+        }
+        assertEquals(100000000, ruleClass.getTransferred());
+        assertEquals(100000000, ruleClass.getParent().getTransferred());
+        assertEquals(100000000, classes.getGlobal().getTransferred());
+    }
+
+    @Test
+    public void testLimitThrottles() throws InterruptedException {
+        BandwidthClasses classes = new BandwidthClasses();
+        classes.setPartnerLimits("partner", 100000, -1);
+        BandwidthClass ruleClass = classes.getBandwidthClass("partner", "rule");
+        // one block over the bucket is allowed, then wait for the tokens
+        assertEquals(0, ruleClass.reserve(10000));
+        assertTrue(ruleClass.reserve(10000) > 0);
+        long start = System.currentTimeMillis();
+        long sent = send(ruleClass, 1000, 500);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("too fast: " + sent, sent <= 100000 * elapsed / 1000 + 1000);
+        assertTrue("too slow: " + sent, sent >= 100000 * 500 / 1000 / 2);
+    }
+
+    @Test
+    public void testRuleLimitUnderPartner() {
+        BandwidthClasses classes = new BandwidthClasses();
+        classes.setRuleLimits("rule", 1000, -1);
+        BandwidthClass limited = classes.getBandwidthClass("partner", "rule");
+        BandwidthClass other = classes.getBandwidthClass("partner", "other");
+        assertEquals(0, limited.reserve(1000));
+        assertTrue(limited.reserve(1000) > 0);
+        // the other rule of the same partner is not limited
+        assertEquals(0, other.reserve(1000000));
+        // changed live
+        classes.setRuleLimits("rule", 0, -1);
+        assertEquals(0, limited.reserve(1000000));
+    }
+
+    @Test
+    public void testAssuredWhenGlobalExhausted() {
+        BandwidthClasses classes = new BandwidthClasses();
+        classes.setGlobalLimit(1000);
+        classes.setPartnerLimits("assured", 0, 1000);
+        BandwidthClass borrowing = classes.getBandwidthClass("borrowing", null);
+        BandwidthClass assured = classes.getBandwidthClass("assured", null);
+        assertEquals(0, borrowing.reserve(1000));
+        // the global class is exhausted: borrowing waits, the assured throughput is still sent
+        assertTrue(borrowing.reserve(1000) > 0);
+        assertEquals(0, assured.reserve(1000));
+        assertTrue(assured.reserve(1000) > 0);
+    }
+
+    @Test
+    public void testLowerWeightWaitsLonger() {
+        BandwidthClasses classes = new BandwidthClasses();
+        classes.setPartnerLimits("partner", 10000000, -1);
+        BandwidthClass partner = classes.getBandwidthClass("partner", null);
+        assertEquals(0, partner.reserve(100000));
+        long highest = partner.reserve(1000, TransferPriority.MAX_WEIGHT);
+        long lowest = partner.reserve(1000, 1);
+        assertTrue(highest > 0);
+        assertTrue(lowest > highest);
+    }
+}
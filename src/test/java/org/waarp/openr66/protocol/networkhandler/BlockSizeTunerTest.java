@@ -0,0 +1,71 @@
+package org.waarp.openr66.protocol.networkhandler;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.waarp.openr66.protocol.configuration.Configuration;
+
+public class BlockSizeTunerTest {
+    private static final int WINDOW = 10;
+    private static final long MINIMAL_RTT = 100;
+
+    @Before
+    public void setUp() {
+        Configuration.configuration.setConfigPath(null);
+        Configuration.configuration.setBlockSizeAuto(true);
+        Configuration.configuration.setSenderWindow(WINDOW);
+        Configuration.configuration.setBLOCKSIZE(0x10000);
+        Configuration.configuration.setBlockSizeMin(0x4000);
+        Configuration.configuration.setBlockSizeMax(0x1000000);
+    }
+
+    /**
+     * One transfer on a link of the given capacity (bytes/s): the throughput is limited by the
+     * window, and once the window exceeds the bandwidth delay product, the RTT grows with the queue
+     */
+    private static void transfer(String hostId, long capacity) {
+        int blocksize = BlockSizeTuner.getBlockSize(hostId);
+        long inflight = (long) blocksize * WINDOW;
+        long throughput = Math.min(capacity, inflight * 1000 / MINIMAL_RTT);
+        long rtt = Math.max(MINIMAL_RTT, inflight * 1000 / capacity);
+        BlockSizeTuner.update(hostId, rtt, throughput, blocksize);
+    }
+
+    @Test
+    public void testGrowsOnUnderUsedLink() {
+        // 100 MB/s with 100 ms: 10 MB in flight needed, so 1 MB blocks
+        long capacity = 100L * 1024 * 1024;
+        String hostId = "underused";
+        transfer(hostId, capacity);
+        assertTrue(BlockSizeTuner.getBlockSize(hostId) > 0x10000);
+        for (int i = 0; i < 20; i++) {
+            transfer(hostId, capacity);
+        }
+        int blocksize = BlockSizeTuner.getBlockSize(hostId);
+        assertTrue("block size not grown: " + blocksize, blocksize >= 0x100000);
+        // probing stops once the RTT rises
+        assertTrue("block size beyond the link: " + blocksize, blocksize <= 0x200000);
+    }
+
+    @Test
+    public void testStaysOnSaturatedLink() {
+        // 1 MB/s with 100 ms: 100 KB in flight is enough
+        long capacity = 1024 * 1024;
+        String hostId = "saturated";
+        // first estimate of the RTT on the startup exchange
+        BlockSizeTuner.update(hostId, MINIMAL_RTT, 0, 0);
+        for (int i = 0; i < 20; i++) {
+            transfer(hostId, capacity);
+        }
+        int blocksize = BlockSizeTuner.getBlockSize(hostId);
+        assertTrue("block size too large: " + blocksize, blocksize <= 0x8000);
+    }
+
+    @Test
+    public void testComputeBlockSize() {
+        assertEquals(0x4000, BlockSizeTuner.computeBlockSize(0, WINDOW));
+        assertEquals(0x20000, BlockSizeTuner.computeBlockSize(0x100000, 8));
+        assertEquals(0x1000000, BlockSizeTuner.computeBlockSize(Long.MAX_VALUE / 2, 1));
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.waarp.common.future.WaarpLock;
+import org.waarp.common.lru.SynchronizedLruCache;
+import org.waarp.openr66.protocol.networkhandler.NetworkChannelLocks;
+
+/**
+ * Benchmark of the locks on remote addresses under concurrent connect/close churn: the former
+ * global lock protecting a LRU cache of locks keyed by address hash code, compared with the striped
+ * locks keyed by the real address.<br>
+ * <br>
+ * Each thread repeatedly takes the lock of one of the addresses, registers a connection, then takes
+ * the lock again to unregister it (as addNetworkChannel then closedNetworkChannel would do).<br>
+ * <br>
+ * Usage: TestChannelLocks [-threads number of threads] [-hosts number of addresses] [-nb number of
+ * connections per thread]
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class TestChannelLocks {
+    static int nbThreads = 64;
+    static int nbHosts = 500;
+    static int nb = 100000;
+
+    /**
+     * Lock provider to compare
+     */
+    private static interface LockProvider {
+        WaarpLock getLock(SocketAddress address);
+    }
+
+    /**
+     * Former implementation: one global lock and a LRU cache keyed by hash code
+     */
+    private static class GlobalLockProvider implements LockProvider {
+        private final ReentrantLock lockOfLock = new ReentrantLock();
+        private final SynchronizedLruCache<Integer, WaarpLock> locks =
+                new SynchronizedLruCache<Integer, WaarpLock>(20000, 180000);
+
+        public WaarpLock getLock(SocketAddress address) {
+            lockOfLock.lock();
+            try {
+                WaarpLock lock = locks.get(address.hashCode());
+                if (lock == null) {
+                    lock = new WaarpLock(true);
+                }
+                locks.put(address.hashCode(), lock);
+                return lock;
+            } finally {
+                lockOfLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Striped implementation
+     */
+    private static class StripedLockProvider implements LockProvider {
+        private final NetworkChannelLocks locks =
+                new NetworkChannelLocks(NetworkChannelLocks.DEFAULT_STRIPES);
+
+        public WaarpLock getLock(SocketAddress address) {
+            return locks.getLock(address);
+        }
+    }
+
+    private static long run(final LockProvider provider, final SocketAddress[] addresses)
+            throws InterruptedException {
+        final ConcurrentHashMap<SocketAddress, Integer> registry =
+                new ConcurrentHashMap<SocketAddress, Integer>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch end = new CountDownLatch(nbThreads);
+        for (int t = 0; t < nbThreads; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int index = seed;
+                    for (int i = 0; i < nb; i++) {
+                        index = (index * 31 + 17) % addresses.length;
+                        if (index < 0) {
+                            index += addresses.length;
+                        }
+                        SocketAddress address = addresses[index];
+                        // connect
+                        WaarpLock lock = provider.getLock(address);
+                        lock.lock();
+                        try {
+                            registry.put(address, seed);
+                        } finally {
+                            lock.unlock();
+                        }
+                        // close
+                        lock = provider.getLock(address);
+                        lock.lock();
+                        try {
+                            registry.remove(address);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    end.countDown();
+                }
+            };
+            thread.start();
+        }
+        long time = System.nanoTime();
+        start.countDown();
+        end.await();
+        return System.nanoTime() - time;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("-threads")) {
+                i++;
+                nbThreads = Integer.parseInt(args[i]);
+            } else if (args[i].equalsIgnoreCase("-hosts")) {
+                i++;
+                nbHosts = Integer.parseInt(args[i]);
+            } else if (args[i].equalsIgnoreCase("-nb")) {
+                i++;
+                nb = Integer.parseInt(args[i]);
+            }
+        }
+        SocketAddress[] addresses = new SocketAddress[nbHosts];
+        for (int i = 0; i < nbHosts; i++) {
+            addresses[i] = new InetSocketAddress("10.0." + (i / 250) + "." + (i % 250 + 1), 6666);
+        }
+        long total = (long) nbThreads * nb * 2;
+        for (int loop = 0; loop < 2; loop++) {
+            long timeGlobal = run(new GlobalLockProvider(), addresses);
+            long timeStriped = run(new StripedLockProvider(), addresses);
+            if (loop > 0) {
+                // first loop is warm up
+                System.out.println("Threads: " + nbThreads + " Addresses: " + nbHosts +
+                        " Lock operations: " + total);
+                System.out.println("Global lock:   " + (timeGlobal / total) + " ns/operation");
+                System.out.println("Striped locks: " + (timeStriped / total) + " ns/operation");
+            }
+        }
+    }
+}
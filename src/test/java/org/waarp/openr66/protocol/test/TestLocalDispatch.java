@@ -0,0 +1,153 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.test;
+
+import java.util.concurrent.CountDownLatch;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import org.waarp.openr66.protocol.localhandler.LocalDirectDispatcher;
+import org.waarp.openr66.protocol.localhandler.packet.AbstractLocalPacket;
+import org.waarp.openr66.protocol.localhandler.packet.DataPacket;
+import org.waarp.openr66.protocol.localhandler.packet.LocalPacketCodec;
+
+/**
+ * Benchmark of the dispatch of packets received from network to the local handler: through the
+ * LocalChannel pair (current default path) compared with the direct dispatch (decode once and
+ * serial execution on the local handler event loop).<br>
+ * <br>
+ * Usage: TestLocalDispatch [-block blocksize] [-nb number of packets]
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class TestLocalDispatch {
+    static int blocksize = 0x10000;
+    static int nb = 100000;
+
+    /**
+     * Counting handler standing for LocalServerHandler
+     */
+    private static class CountingHandler extends SimpleChannelInboundHandler<AbstractLocalPacket> {
+        volatile CountDownLatch latch;
+        volatile ChannelHandlerContext context;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            context = ctx;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, AbstractLocalPacket msg)
+                throws Exception {
+            msg.clear();
+            latch.countDown();
+        }
+    }
+
+    private static ByteBuf newBuffer(int rank, byte[] data) throws Exception {
+        DataPacket packet = new DataPacket(rank, Unpooled.wrappedBuffer(data), Unpooled.EMPTY_BUFFER);
+        return packet.getLocalPacket(null);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("-block")) {
+                i++;
+                blocksize = Integer.parseInt(args[i]);
+            } else if (args[i].equalsIgnoreCase("-nb")) {
+                i++;
+                nb = Integer.parseInt(args[i]);
+            }
+        }
+        byte[] data = new byte[blocksize];
+        NioEventLoopGroup group = new NioEventLoopGroup(4);
+        final CountingHandler handler = new CountingHandler();
+        try {
+            LocalAddress address = new LocalAddress("benchdispatch");
+            ServerBootstrap serverBootstrap = new ServerBootstrap();
+            serverBootstrap.channel(LocalServerChannel.class).group(group, group)
+                    .childHandler(new ChannelInitializer<LocalChannel>() {
+                        @Override
+                        protected void initChannel(LocalChannel ch) throws Exception {
+                            ch.pipeline().addLast("codec", new LocalPacketCodec());
+                            ch.pipeline().addLast("handler", handler);
+                        }
+                    });
+            Channel server = serverBootstrap.bind(address).sync().channel();
+            Bootstrap bootstrap = new Bootstrap();
+            bootstrap.channel(LocalChannel.class).group(group)
+                    .handler(new ChannelInitializer<LocalChannel>() {
+                        @Override
+                        protected void initChannel(LocalChannel ch) throws Exception {
+                            ch.pipeline().addLast("codec", new LocalPacketCodec());
+                        }
+                    });
+            Channel client = bootstrap.connect(address).sync().channel();
+            while (handler.context == null) {
+                Thread.sleep(10);
+            }
+            LocalDirectDispatcher dispatcher = new LocalDirectDispatcher();
+            dispatcher.register(handler.context, handler);
+
+            for (int loop = 0; loop < 2; loop++) {
+                // Through LocalChannel
+                handler.latch = new CountDownLatch(nb);
+                long start = System.nanoTime();
+                for (int i = 0; i < nb; i++) {
+                    client.writeAndFlush(newBuffer(i, data));
+                }
+                handler.latch.await();
+                long timeChannel = System.nanoTime() - start;
+
+                // Direct dispatch
+                handler.latch = new CountDownLatch(nb);
+                start = System.nanoTime();
+                for (int i = 0; i < nb; i++) {
+                    ByteBuf buf = newBuffer(i, data);
+                    AbstractLocalPacket packet = LocalPacketCodec.decodeNetworkPacket(buf);
+                    buf.release();
+                    dispatcher.dispatch(packet);
+                }
+                handler.latch.await();
+                long timeDirect = System.nanoTime() - start;
+                if (loop > 0) {
+                    // first loop is warm up
+                    System.out.println("Packets: " + nb + " of " + blocksize + " bytes");
+                    System.out.println("LocalChannel dispatch: " + (timeChannel / nb) + " ns/packet");
+                    System.out.println("Direct dispatch:       " + (timeDirect / nb) + " ns/packet");
+                }
+            }
+            client.close().sync();
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+}
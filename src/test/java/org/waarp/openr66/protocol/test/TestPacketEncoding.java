@@ -0,0 +1,135 @@
+/**
+ * This file is part of Waarp Project.
+ *
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ *
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.openr66.protocol.test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+import org.waarp.openr66.protocol.localhandler.packet.DataPacket;
+import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacket;
+import org.waarp.openr66.protocol.networkhandler.packet.NetworkPacketCodec;
+
+/**
+ * Benchmark of the encoding of DataPacket through the NetworkPacketCodec: bytes copied per block
+ * and time per block, comparing the previous copying encoder with the current composite one.<br>
+ * <br>
+ * Usage: TestPacketEncoding [-block blocksize] [-nb number of blocks]
+ *
+ * @author Frederic Bregier
+ *
+ */
+public class TestPacketEncoding {
+    static int blocksize = 0x10000;
+    static int nb = 100000;
+
+    /**
+     * Header size of one DataPacket on the wire: Network header, Local header and rank
+     */
+    static final int HEADER = 13 + 13 + 4;
+
+    private static NetworkPacket newPacket(int rank, byte[] data)
+            throws OpenR66ProtocolPacketException {
+        DataPacket packet = new DataPacket(rank, Unpooled.wrappedBuffer(data), Unpooled.EMPTY_BUFFER);
+        return new NetworkPacket(1, 2, packet, null);
+    }
+
+    /**
+     * Previous implementation: ByteToMessageCodec copying the full packet into the output buffer
+     *
+     * @param data
+     * @return the number of bytes copied
+     * @throws OpenR66ProtocolPacketException
+     */
+    private static long encodeWithCopy(byte[] data) throws OpenR66ProtocolPacketException {
+        long copied = 0;
+        for (int i = 0; i < nb; i++) {
+            NetworkPacket packet = newPacket(i, data);
+            ByteBuf finalBuf = packet.getNetworkPacket(UnpooledByteBufAllocator.DEFAULT);
+            ByteBuf out = Unpooled.buffer(finalBuf.readableBytes());
+            out.writeBytes(finalBuf);
+            copied += finalBuf.readableBytes();
+            finalBuf.release();
+            out.release();
+        }
+        return copied;
+    }
+
+    /**
+     * Current implementation through the real codec
+     *
+     * @param data
+     * @return the number of bytes copied
+     * @throws OpenR66ProtocolPacketException
+     */
+    private static long encodeWithCodec(byte[] data) throws OpenR66ProtocolPacketException {
+        EmbeddedChannel channel = new EmbeddedChannel(new NetworkPacketCodec());
+        long copied = 0;
+        for (int i = 0; i < nb; i++) {
+            channel.writeOutbound(newPacket(i, data));
+            ByteBuf out = (ByteBuf) channel.readOutbound();
+            // Payload is shared if a change in the source is visible in the encoded buffer
+            byte previous = data[0];
+            data[0] = (byte) (previous + 1);
+            boolean shared = out.getByte(out.readerIndex() + HEADER) == data[0];
+            data[0] = previous;
+            if (shared) {
+                copied += out.readableBytes() - data.length;
+            } else {
+                copied += out.readableBytes();
+            }
+            out.release();
+        }
+        channel.finish();
+        return copied;
+    }
+
+    public static void main(String[] args) throws OpenR66ProtocolPacketException {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("-block")) {
+                i++;
+                blocksize = Integer.parseInt(args[i]);
+            } else if (args[i].equalsIgnoreCase("-nb")) {
+                i++;
+                nb = Integer.parseInt(args[i]);
+            }
+        }
+        byte[] data = new byte[blocksize];
+        // warm up
+        int nbsave = nb;
+        nb = nbsave / 10 + 1;
+        encodeWithCopy(data);
+        encodeWithCodec(data);
+        nb = nbsave;
+
+        long start = System.nanoTime();
+        long copiedBefore = encodeWithCopy(data);
+        long timeBefore = System.nanoTime() - start;
+        start = System.nanoTime();
+        long copiedAfter = encodeWithCodec(data);
+        long timeAfter = System.nanoTime() - start;
+
+        System.out.println("Blocks: " + nb + " of " + blocksize + " bytes");
+        System.out.println("Copying encoder:   " + (copiedBefore / nb) + " bytes copied/block, "
+                + (timeBefore / nb) + " ns/block");
+        System.out.println("Composite encoder: " + (copiedAfter / nb) + " bytes copied/block, "
+                + (timeAfter / nb) + " ns/block");
+    }
+}
@@ -0,0 +1,85 @@
+package org.waarp.openr66.protocol.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.openr66.protocol.exception.OpenR66ProtocolPacketException;
+
+public class BlockCompressionTest {
+
+    private static byte[] compressible(int length) {
+        byte[] bytes = new byte[length];
+        Random random = new Random(42);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testRoundTrip() throws OpenR66ProtocolPacketException {
+        byte[] bytes = compressible(4096);
+        ByteBuf compressed = BlockCompression.compress(Unpooled.wrappedBuffer(bytes));
+        assertNotNull(compressed);
+        assertTrue(compressed.readableBytes() < bytes.length);
+        ByteBuf data = BlockCompression.decompress(compressed, bytes.length);
+        byte[] result = new byte[data.readableBytes()];
+        data.readBytes(result);
+        assertArrayEquals(bytes, result);
+    }
+
+    @Test
+    public void testDirectBuffersRoundTrip() throws OpenR66ProtocolPacketException {
+        for (int length = 4096; length <= 16384; length *= 2) {
+            byte[] bytes = compressible(length);
+            ByteBuf direct = Unpooled.directBuffer(length);
+            direct.writeBytes(bytes);
+            ByteBuf compressed = BlockCompression.compress(direct);
+            assertNotNull(compressed);
+            // the block is not consumed
+            assertEquals(length, direct.readableBytes());
+            ByteBuf received = Unpooled.directBuffer(compressed.readableBytes());
+            received.writeBytes(compressed);
+            assertTrue(compressed.release());
+            ByteBuf data = BlockCompression.decompress(received, length);
+            byte[] result = new byte[data.readableBytes()];
+            data.readBytes(result);
+            assertArrayEquals(bytes, result);
+            assertTrue(data.release());
+            direct.release();
+            received.release();
+        }
+    }
+
+    @Test
+    public void testNotCompressible() {
+        byte[] bytes = new byte[4096];
+        new Random(42).nextBytes(bytes);
+        assertNull(BlockCompression.compress(Unpooled.wrappedBuffer(bytes)));
+        assertNull(BlockCompression.compress(Unpooled.wrappedBuffer(compressible(100))));
+    }
+
+    @Test(expected = OpenR66ProtocolPacketException.class)
+    public void testOversizedLength() throws OpenR66ProtocolPacketException {
+        ByteBuf compressed = BlockCompression.compress(Unpooled.wrappedBuffer(compressible(4096)));
+        // a peer announcing a huge block must not make the receiver allocate it
+        BlockCompression.decompress(compressed, Integer.MAX_VALUE);
+    }
+
+    @Test(expected = OpenR66ProtocolPacketException.class)
+    public void testNegativeLength() throws OpenR66ProtocolPacketException {
+        ByteBuf compressed = BlockCompression.compress(Unpooled.wrappedBuffer(compressible(4096)));
+        BlockCompression.decompress(compressed, -1);
+    }
+
+    @Test(expected = OpenR66ProtocolPacketException.class)
+    public void testWrongLength() throws OpenR66ProtocolPacketException {
+        ByteBuf compressed = BlockCompression.compress(Unpooled.wrappedBuffer(compressible(4096)));
+        BlockCompression.decompress(compressed, 8192);
+    }
+}
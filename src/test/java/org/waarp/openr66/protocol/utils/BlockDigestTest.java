@@ -0,0 +1,91 @@
+package org.waarp.openr66.protocol.utils;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import org.waarp.common.digest.FilesystemBasedDigest;
+import org.waarp.common.digest.FilesystemBasedDigest.DigestAlgo;
+
+public class BlockDigestTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static String digest(ByteBuf data, DigestAlgo algo) {
+        ByteBuf out = Unpooled.buffer();
+        assertTrue(BlockDigest.writeDigest(data, algo, out));
+        byte[] bytes = new byte[out.readableBytes()];
+        out.readBytes(bytes);
+        return FilesystemBasedDigest.getHex(bytes);
+    }
+
+    private static int checksum(String data, String checksum) {
+        ByteBuf out = Unpooled.buffer();
+        BlockDigest.writeChecksum(Unpooled.copiedBuffer(data, ASCII), checksum, out);
+        assertEquals(BlockDigest.CHECKSUM_LENGTH, out.readableBytes());
+        return out.readInt();
+    }
+
+    @Test
+    public void testKnownVectors() {
+        ByteBuf abc = Unpooled.copiedBuffer("abc", ASCII);
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", digest(abc, DigestAlgo.MD5));
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", digest(abc, DigestAlgo.SHA1));
+        // the digest instance is reused
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", digest(abc, DigestAlgo.MD5));
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", digest(Unpooled.EMPTY_BUFFER, DigestAlgo.MD5));
+        // the block is not consumed
+        assertEquals(3, abc.readableBytes());
+    }
+
+    @Test
+    public void testChecksumKnownVectors() {
+        assertEquals(0xCBF43926, checksum("123456789", BlockDigest.CRC32));
+        assertEquals(0x11E60398, checksum("Wikipedia", BlockDigest.ADLER32));
+        assertTrue(BlockDigest.isChecksum(BlockDigest.CRC32));
+        assertTrue(BlockDigest.isChecksum(BlockDigest.ADLER32));
+        assertFalse(BlockDigest.isChecksum("MD5"));
+    }
+
+    @Test
+    public void testDirectBufferLargerThanChunk() throws Exception {
+        byte[] bytes = new byte[100000];
+        new Random(42).nextBytes(bytes);
+        ByteBuf data = Unpooled.directBuffer(bytes.length);
+        data.writeBytes(bytes);
+        data.skipBytes(7);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(bytes, 7, bytes.length - 7);
+        assertEquals(FilesystemBasedDigest.getHex(md5.digest()), digest(data, DigestAlgo.MD5));
+        assertEquals(7, data.readerIndex());
+        data.release();
+    }
+
+    @Test
+    public void testIsValid() {
+        ByteBuf data = Unpooled.copiedBuffer("some block of data", ASCII);
+        ByteBuf key = Unpooled.buffer();
+        assertTrue(BlockDigest.writeDigest(data, DigestAlgo.MD5, key));
+        assertTrue(BlockDigest.isValid(null, data, key, DigestAlgo.MD5));
+        // another algorithm
+        assertFalse(BlockDigest.isValid(null, data, key, DigestAlgo.SHA1));
+        // truncated key
+        assertFalse(BlockDigest.isValid(null, data, key.slice(0, key.readableBytes() - 1),
+                DigestAlgo.MD5));
+        // corrupted block
+        data.setByte(0, data.getByte(0) + 1);
+        assertFalse(BlockDigest.isValid(null, data, key, DigestAlgo.MD5));
+    }
+
+    @Test
+    public void testAlgoNotHandled() {
+        ByteBuf out = Unpooled.buffer();
+        assertFalse(BlockDigest.writeDigest(Unpooled.copiedBuffer("abc", ASCII), DigestAlgo.CRC32, out));
+        assertEquals(0, out.readableBytes());
+    }
+}
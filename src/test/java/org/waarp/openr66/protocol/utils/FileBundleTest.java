@@ -0,0 +1,144 @@
+package org.waarp.openr66.protocol.utils;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.waarp.openr66.protocol.configuration.Configuration;
+
+public class FileBundleTest {
+    private File base;
+
+    @Before
+    public void setUp() throws IOException {
+        base = File.createTempFile("bundle", "");
+        base.delete();
+        new File(base, "work").mkdirs();
+        new File(base, "in").mkdirs();
+        new File(base, "out").mkdirs();
+        Configuration.configuration.setBaseDirectory(base.getAbsolutePath());
+        Configuration.configuration.setWorkingPath("/work");
+    }
+
+    @After
+    public void tearDown() {
+        delete(base);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File member(String name, String content) throws IOException {
+        File file = new File(new File(base, "out"), name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            while (pos < bytes.length) {
+                pos += in.read(bytes, pos, bytes.length - pos);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    @Test
+    public void testCreateAndExtract() throws IOException {
+        List<File> files = new ArrayList<File>();
+        files.add(member("a.txt", "first"));
+        files.add(member("b.txt", ""));
+        files.add(member("c.txt", "third member"));
+        File bundle = FileBundle.create(files);
+        assertTrue(bundle.getName().endsWith(FileBundle.EXTENSION));
+        File dir = FileBundle.getMemberDirectory(bundle, 42);
+        List<File> members = FileBundle.extract(bundle, dir);
+        assertEquals(3, members.size());
+        assertEquals(new File(dir, "a.txt"), members.get(0));
+        assertEquals("first", read(members.get(0)));
+        assertEquals("", read(members.get(1)));
+        assertEquals("third member", read(members.get(2)));
+    }
+
+    @Test
+    public void testBundlesExtractedApart() throws IOException {
+        File first = FileBundle.create(Arrays.asList(member("same.txt", "from first")));
+        File second = FileBundle.create(Arrays.asList(member("same.txt", "from second")));
+        File in = new File(base, "in");
+        // both received under the same name by two transfers
+        File received = new File(in, "received" + FileBundle.EXTENSION);
+        assertTrue(first.renameTo(received));
+        File firstMember = FileBundle.extract(received, FileBundle.getMemberDirectory(received, 1))
+                .get(0);
+        assertTrue(second.renameTo(received));
+        File secondMember = FileBundle.extract(received,
+                FileBundle.getMemberDirectory(received, 2)).get(0);
+        assertFalse(firstMember.equals(secondMember));
+        assertEquals("from first", read(firstMember));
+        assertEquals("from second", read(secondMember));
+    }
+
+    @Test
+    public void testMembersDoneNotExtractedAgain() throws IOException {
+        File bundle = FileBundle.create(Arrays.asList(member("a.txt", "first"),
+                member("b.txt", "second"), member("c.txt", "third")));
+        File dir = FileBundle.getMemberDirectory(bundle, 1);
+        List<File> members = FileBundle.extract(bundle, dir, Arrays.asList("a.txt", "c.txt"));
+        assertEquals(1, members.size());
+        assertEquals("second", read(members.get(0)));
+        assertFalse(new File(dir, "a.txt").exists());
+        assertFalse(new File(dir, "c.txt").exists());
+    }
+
+    private File rawBundle(String... names) throws IOException {
+        File bundle = new File(new File(base, "in"), "raw" + FileBundle.EXTENSION);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(bundle));
+        out.writeInt(0x52363642);
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+            out.writeLong(1);
+            out.write('x');
+        }
+        out.close();
+        return bundle;
+    }
+
+    @Test(expected = IOException.class)
+    public void testDuplicateMemberRejected() throws IOException {
+        File bundle = rawBundle("a.txt", "a.txt");
+        FileBundle.extract(bundle, FileBundle.getMemberDirectory(bundle, 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testPathMemberRejected() throws IOException {
+        File bundle = rawBundle("../a.txt");
+        FileBundle.extract(bundle, FileBundle.getMemberDirectory(bundle, 1),
+                Collections.<String> emptySet());
+    }
+}